@@ -22,6 +22,7 @@ import co.elastic.apm.agent.bci.ElasticApmAgent;
 import co.elastic.apm.agent.configuration.CoreConfiguration;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.objectpool.ObjectPoolFactory;
 import io.undertow.Undertow;
 import io.undertow.server.handlers.BlockingHandler;
 import net.bytebuddy.agent.ByteBuddyAgent;
@@ -76,18 +77,21 @@ public class AbstractMockApmServerBenchmark extends AbstractBenchmark {
 
         server.start();
         int port = ((InetSocketAddress) server.getListenerInfo().get(0).getAddress()).getPort();
+        SimpleSource configSource = new SimpleSource()
+            .add(CoreConfiguration.SERVICE_NAME, "benchmark")
+            .add(CoreConfiguration.INSTRUMENT, Boolean.toString(apmEnabled))
+            .add("active", Boolean.toString(apmEnabled))
+            .add("api_request_size", "10mb")
+            .add("capture_headers", "false")
+//             .add("profiling_inferred_spans", "true")
+//             .add("profiling_interval", "10s")
+            .add("classes_excluded_from_instrumentation", "java.*,com.sun.*,sun.*")
+            .add("server_url", "http://localhost:" + port);
+        addConfig(configSource);
         tracer = new ElasticApmTracerBuilder()
+            .withObjectPoolFactory(createObjectPoolFactory())
             .configurationRegistry(ConfigurationRegistry.builder()
-                .addConfigSource(new SimpleSource()
-                    .add(CoreConfiguration.SERVICE_NAME, "benchmark")
-                    .add(CoreConfiguration.INSTRUMENT, Boolean.toString(apmEnabled))
-                    .add("active", Boolean.toString(apmEnabled))
-                    .add("api_request_size", "10mb")
-                    .add("capture_headers", "false")
-//                     .add("profiling_inferred_spans", "true")
-//                     .add("profiling_interval", "10s")
-                    .add("classes_excluded_from_instrumentation", "java.*,com.sun.*,sun.*")
-                    .add("server_url", "http://localhost:" + port))
+                .addConfigSource(configSource)
                 .optionProviders(ServiceLoader.load(ConfigurationOptionProvider.class))
                 .build())
             .buildAndStart();
@@ -95,6 +99,16 @@ public class AbstractMockApmServerBenchmark extends AbstractBenchmark {
 
     }
 
+    /**
+     * Allows subclasses to add or override configuration options
+     */
+    protected void addConfig(SimpleSource configSource) {
+    }
+
+    protected ObjectPoolFactory createObjectPoolFactory() {
+        return new ObjectPoolFactory();
+    }
+
     @TearDown
     public void tearDown() throws ExecutionException, InterruptedException {
         Thread.sleep(1000);
@@ -0,0 +1,310 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.impl.error.ErrorCapture;
+import co.elastic.apm.agent.impl.metadata.MetaData;
+import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
+import co.elastic.apm.agent.impl.transaction.Outcome;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.report.ApmServerClient;
+import co.elastic.apm.agent.report.Reporter;
+import co.elastic.apm.agent.report.ReporterConfiguration;
+import co.elastic.apm.agent.report.ReporterStatistics;
+import co.elastic.apm.agent.report.SerializedEvent;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import com.dslplatform.json.JsonWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+import org.stagemonitor.configuration.ConfigurationOptionProvider;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Guards the hot path {@code startTransaction -> startSpan -> end -> serialize} against allocation regressions.
+ * <p>
+ * Events are serialized on the benchmark thread by a {@link Reporter} that discards the bytes afterwards,
+ * so that the {@code gc.alloc.rate.norm} secondary result of the {@link GCProfiler} is the number of bytes
+ * the agent allocates per transaction, including its spans and errors.
+ * </p>
+ * <p>
+ * Run {@link #main(String[])} to compare the results with the {@link #ALLOCATION_BUDGETS}.
+ * It fails if a scenario allocates more than its budget.
+ * After reducing allocations, lower the budget accordingly so that the improvement can't regress unnoticed.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AllocationBenchmark extends AbstractBenchmark {
+
+    /**
+     * The maximum number of bytes that may be allocated per operation of each scenario
+     */
+    static final Map<String, Long> ALLOCATION_BUDGETS = Map.of(
+        // the hash map nodes of the two labels
+        "servlet_jdbc_http", 80L,
+        // the copy of the stack trace returned by Throwable#getStackTrace
+        "error", 120L,
+        "span_compression", 8L
+    );
+
+    private static final Long USER_ID = 42L;
+
+    /**
+     * <ul>
+     *     <li>{@code servlet_jdbc_http}: a request transaction with labels, a JDBC span and an HTTP client span</li>
+     *     <li>{@code error}: a request transaction with a captured exception</li>
+     *     <li>{@code span_compression}: a request transaction with ten JDBC spans that are compressed into one</li>
+     * </ul>
+     */
+    @Param({"servlet_jdbc_http", "error", "span_compression"})
+    public String scenario;
+
+    private ElasticApmTracer tracer;
+    private Exception exception;
+
+    public static void main(String[] args) throws RunnerException {
+        Collection<RunResult> results = new Runner(new OptionsBuilder()
+            .include(AllocationBenchmark.class.getSimpleName())
+            .warmupIterations(5)
+            .warmupTime(TimeValue.seconds(1))
+            .measurementIterations(5)
+            .measurementTime(TimeValue.seconds(1))
+            .addProfiler(GCProfiler.class)
+            .build())
+            .run();
+        List<String> regressions = new ArrayList<>();
+        for (RunResult result : results) {
+            String scenario = result.getParams().getParam("scenario");
+            Result allocated = result.getSecondaryResults().get("gc.alloc.rate.norm");
+            long budget = ALLOCATION_BUDGETS.get(scenario);
+            if (allocated.getScore() > budget) {
+                regressions.add(String.format("%s allocated %.0f bytes per transaction, the budget is %d bytes", scenario, allocated.getScore(), budget));
+            }
+        }
+        if (!regressions.isEmpty()) {
+            throw new IllegalStateException("Allocation regression: " + regressions);
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        SimpleSource configSource = new SimpleSource()
+            .add(CoreConfiguration.SERVICE_NAME, "benchmark")
+            .add("metrics_interval", "0ms")
+            .add("span_compression_enabled", "true")
+            .add("cloud_provider", "none");
+        ConfigurationRegistry configurationRegistry = ConfigurationRegistry.builder()
+            .addConfigSource(configSource)
+            .optionProviders(ServiceLoader.load(ConfigurationOptionProvider.class))
+            .build();
+        ApmServerClient apmServerClient = new ApmServerClient(configurationRegistry.getConfig(ReporterConfiguration.class),
+            configurationRegistry.getConfig(CoreConfiguration.class));
+        DslJsonSerializer serializer = new DslJsonSerializer(configurationRegistry.getConfig(StacktraceConfiguration.class),
+            apmServerClient, new CompletableFuture<MetaData>());
+        tracer = new ElasticApmTracerBuilder()
+            .configurationRegistry(configurationRegistry)
+            .withApmServerClient(apmServerClient)
+            .reporter(new SerializingReporter(serializer))
+            .buildAndStart();
+        exception = new IllegalStateException("Product not found");
+    }
+
+    @TearDown
+    public void tearDown() {
+        tracer.stop();
+    }
+
+    @Benchmark
+    public Transaction transaction() {
+        Transaction transaction = tracer.startRootTransaction(null);
+        transaction.withName("GET /api/products/{id}").withType("request");
+        transaction.getContext().getRequest().withMethod("GET").getUrl()
+            .withProtocol("http")
+            .withHostname("localhost")
+            .withPort(8080)
+            .withPathname("/api/products/42");
+        transaction.getContext().getResponse().withStatusCode(200).withFinished(true);
+        switch (scenario) {
+            case "servlet_jdbc_http":
+                transaction.addLabel("tenant", "acme");
+                transaction.addLabel("user_id", USER_ID);
+                jdbcSpan(transaction);
+                httpClientSpan(transaction);
+                break;
+            case "error":
+                transaction.captureException(exception);
+                transaction.withOutcome(Outcome.FAILURE);
+                break;
+            case "span_compression":
+                for (int i = 0; i < 10; i++) {
+                    jdbcSpan(transaction);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException(scenario);
+        }
+        transaction.withResultIfUnset("HTTP 2xx");
+        transaction.end();
+        return transaction;
+    }
+
+    private static void jdbcSpan(Transaction transaction) {
+        Span span = transaction.createExitSpan();
+        if (span == null) {
+            return;
+        }
+        span.withName("SELECT FROM products").withType("db").withSubtype("mysql").withAction("query");
+        span.getContext().getDb()
+            .withType("sql")
+            .withInstance("products")
+            .withStatement("SELECT * FROM products WHERE id = ?");
+        span.getContext().getDestination().withAddress("localhost").withPort(3306);
+        span.getContext().getServiceTarget().withType("mysql").withName("products");
+        span.withOutcome(Outcome.SUCCESS);
+        span.end();
+    }
+
+    private static void httpClientSpan(Transaction transaction) {
+        Span span = transaction.createExitSpan();
+        if (span == null) {
+            return;
+        }
+        span.withName("GET localhost").withType("external").withSubtype("http");
+        span.getContext().getHttp().withMethod("GET").withUrl("http://localhost:8081/api/prices/42").withStatusCode(200);
+        span.getContext().getDestination().withAddress("localhost").withPort(8081);
+        span.getContext().getServiceTarget().withType("http").withHostPortName("localhost", 8081).withNameOnlyDestinationResource();
+        span.withOutcome(Outcome.SUCCESS);
+        span.end();
+    }
+
+    /**
+     * Serializes the events on the thread that reports them and discards the bytes
+     */
+    static class SerializingReporter implements Reporter {
+
+        private final DslJsonSerializer serializer;
+        private long reported;
+
+        SerializingReporter(DslJsonSerializer serializer) {
+            this.serializer = serializer;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void report(Transaction transaction) {
+            serializer.serializeTransactionNdJson(transaction);
+            transaction.decrementReferences();
+            discard();
+        }
+
+        @Override
+        public void report(Span span) {
+            serializer.serializeSpanNdJson(span);
+            span.decrementReferences();
+            discard();
+        }
+
+        @Override
+        public void report(ErrorCapture error) {
+            serializer.serializeErrorNdJson(error);
+            error.recycle();
+            discard();
+        }
+
+        @Override
+        public void report(JsonWriter jsonWriter) {
+            discard();
+        }
+
+        @Override
+        public void report(SerializedEvent serializedEvent) {
+            serializedEvent.recycle();
+            discard();
+        }
+
+        private void discard() {
+            serializer.getJsonWriter().reset();
+            reported++;
+        }
+
+        @Override
+        public long getDropped() {
+            return 0;
+        }
+
+        @Override
+        public long getReported() {
+            return reported;
+        }
+
+        @Override
+        public long getQueuedBytes() {
+            return -1;
+        }
+
+        @Nullable
+        @Override
+        public ReporterStatistics getStatistics() {
+            return null;
+        }
+
+        @Override
+        public boolean flush(long timeout, TimeUnit unit, boolean followupWithFlushRequest) {
+            return true;
+        }
+
+        @Override
+        public boolean flush() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
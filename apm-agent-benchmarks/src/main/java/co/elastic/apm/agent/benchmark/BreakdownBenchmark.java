@@ -0,0 +1,130 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.impl.metadata.MetaData;
+import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.report.ApmServerClient;
+import co.elastic.apm.agent.report.ReporterConfiguration;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.ConfigurationOptionProvider;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import java.util.ServiceLoader;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of tracking the breakdown metrics of a transaction which fans out 1000 spans to a thread pool,
+ * where all threads end spans of the same transaction concurrently.
+ * <p>
+ * The spans are shorter than {@code span_min_duration} so that they are discarded and only their self time is tracked.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BreakdownBenchmark extends AbstractBenchmark {
+
+    private static final int SPANS = 1000;
+    private static final String[][] TYPES_AND_SUBTYPES = {
+        {"db", "mysql"},
+        {"db", "redis"},
+        {"external", "http"},
+        {"messaging", "kafka"},
+        {"template", null}
+    };
+
+    @Param({"1", "4", "8"})
+    public int threads;
+
+    private ElasticApmTracer tracer;
+    private ExecutorService executor;
+
+    public static void main(String[] args) throws RunnerException {
+        run(BreakdownBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() {
+        SimpleSource configSource = new SimpleSource()
+            .add(CoreConfiguration.SERVICE_NAME, "benchmark")
+            .add("transaction_max_spans", Integer.toString(SPANS))
+            .add("span_min_duration", "1m")
+            .add("metrics_interval", "0ms")
+            .add("cloud_provider", "none");
+        ConfigurationRegistry configurationRegistry = ConfigurationRegistry.builder()
+            .addConfigSource(configSource)
+            .optionProviders(ServiceLoader.load(ConfigurationOptionProvider.class))
+            .build();
+        ApmServerClient apmServerClient = new ApmServerClient(configurationRegistry.getConfig(ReporterConfiguration.class),
+            configurationRegistry.getConfig(CoreConfiguration.class));
+        DslJsonSerializer serializer = new DslJsonSerializer(configurationRegistry.getConfig(StacktraceConfiguration.class),
+            apmServerClient, new CompletableFuture<MetaData>());
+        tracer = new ElasticApmTracerBuilder()
+            .configurationRegistry(configurationRegistry)
+            .withApmServerClient(apmServerClient)
+            .reporter(new AllocationBenchmark.SerializingReporter(serializer))
+            .buildAndStart();
+        executor = Executors.newFixedThreadPool(threads);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
+        tracer.stop();
+    }
+
+    @Benchmark
+    public Transaction fanOutTransaction() throws InterruptedException {
+        final Transaction transaction = tracer.startRootTransaction(null);
+        transaction.withName("transaction").withType("request");
+        final CountDownLatch latch = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < SPANS / threads; j++) {
+                        String[] typeAndSubtype = TYPES_AND_SUBTYPES[j % TYPES_AND_SUBTYPES.length];
+                        transaction.createSpan().withType(typeAndSubtype[0]).withSubtype(typeAndSubtype[1]).end();
+                    }
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        transaction.end();
+        return transaction;
+    }
+}
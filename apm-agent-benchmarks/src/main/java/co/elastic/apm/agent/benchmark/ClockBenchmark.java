@@ -0,0 +1,147 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.impl.metadata.MetaData;
+import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
+import co.elastic.apm.agent.impl.transaction.CoarseNanoClock;
+import co.elastic.apm.agent.impl.transaction.EpochTickClock;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.report.ApmServerClient;
+import co.elastic.apm.agent.report.ReporterConfiguration;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.ConfigurationOptionProvider;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import java.util.ServiceLoader;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of reading the clock sources the agent can take timestamps from, and of starting and ending a span
+ * with the clock configured by {@code span_clock_resolution}.
+ * <p>
+ * The cost of {@link System#nanoTime()} depends a lot on the clock source of the host,
+ * run this benchmark on the target environment to decide whether a coarse span clock is worth the loss of precision.
+ * On Linux, the clock source can be found in {@code /sys/devices/system/clocksource/clocksource0/current_clocksource}.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ClockBenchmark extends AbstractBenchmark {
+
+    /**
+     * The value of {@code span_clock_resolution}, {@code 0ms} means that spans use {@link System#nanoTime()}
+     */
+    @Param({"0ms", "1ms"})
+    public String spanClockResolution;
+
+    private final EpochTickClock clock = new EpochTickClock();
+    private final CoarseNanoClock coarseNanoClock = new CoarseNanoClock(TimeUnit.MILLISECONDS.toNanos(1));
+    private ElasticApmTracer tracer;
+    private Transaction transaction;
+
+    public static void main(String[] args) throws RunnerException {
+        run(ClockBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() {
+        clock.init();
+        coarseNanoClock.start();
+        SimpleSource configSource = new SimpleSource()
+            .add(CoreConfiguration.SERVICE_NAME, "benchmark")
+            .add("span_clock_resolution", spanClockResolution)
+            .add("metrics_interval", "0ms")
+            .add("cloud_provider", "none");
+        ConfigurationRegistry configurationRegistry = ConfigurationRegistry.builder()
+            .addConfigSource(configSource)
+            .optionProviders(ServiceLoader.load(ConfigurationOptionProvider.class))
+            .build();
+        ApmServerClient apmServerClient = new ApmServerClient(configurationRegistry.getConfig(ReporterConfiguration.class),
+            configurationRegistry.getConfig(CoreConfiguration.class));
+        DslJsonSerializer serializer = new DslJsonSerializer(configurationRegistry.getConfig(StacktraceConfiguration.class),
+            apmServerClient, new CompletableFuture<MetaData>());
+        tracer = new ElasticApmTracerBuilder()
+            .configurationRegistry(configurationRegistry)
+            .withApmServerClient(apmServerClient)
+            .reporter(new AllocationBenchmark.SerializingReporter(serializer))
+            .buildAndStart();
+        transaction = tracer.startRootTransaction(null);
+        transaction.withName("transaction").withType("request");
+    }
+
+    @TearDown
+    public void tearDown() {
+        transaction.end();
+        tracer.stop();
+        coarseNanoClock.stop();
+    }
+
+    @Benchmark
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    @Benchmark
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Reads {@link System#nanoTime()}, as it happens for each timestamp without a coarse clock
+     */
+    @Benchmark
+    public long epochMicros() {
+        return clock.getEpochMicros();
+    }
+
+    @Benchmark
+    public long coarseEpochMicros() {
+        return clock.getEpochMicros(coarseNanoClock.nanoTime());
+    }
+
+    /**
+     * Initializes a clock, as it happens for each transaction that starts a trace
+     */
+    @Benchmark
+    public long initClock() {
+        return clock.init();
+    }
+
+    @Benchmark
+    public Span startAndEndSpan() {
+        Span span = transaction.createSpan().withName("span").withType("db");
+        span.end();
+        return span;
+    }
+}
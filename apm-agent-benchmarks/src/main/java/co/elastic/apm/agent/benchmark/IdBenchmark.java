@@ -0,0 +1,137 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.impl.metadata.MetaData;
+import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
+import co.elastic.apm.agent.impl.transaction.Id;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.report.ApmServerClient;
+import co.elastic.apm.agent.report.ReporterConfiguration;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import com.dslplatform.json.DslJson;
+import com.dslplatform.json.JsonWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.ConfigurationOptionProvider;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import java.util.ServiceLoader;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of generating and rendering trace and span ids, and of starting a span, which generates a span id.
+ * <p>
+ * Compare the results, together with the output of {@link SizeOfSpan}, before and after changing the {@link Id} implementation.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class IdBenchmark extends AbstractBenchmark {
+
+    private final Id traceId = Id.new128BitId();
+    private final Id spanId = Id.new64BitId();
+    private final JsonWriter jsonWriter = new DslJson<>(new DslJson.Settings<>()).newWriter(512);
+    private ElasticApmTracer tracer;
+    private Transaction transaction;
+
+    public static void main(String[] args) throws RunnerException {
+        run(IdBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() {
+        SimpleSource configSource = new SimpleSource()
+            .add(CoreConfiguration.SERVICE_NAME, "benchmark")
+            .add("metrics_interval", "0ms")
+            .add("cloud_provider", "none");
+        ConfigurationRegistry configurationRegistry = ConfigurationRegistry.builder()
+            .addConfigSource(configSource)
+            .optionProviders(ServiceLoader.load(ConfigurationOptionProvider.class))
+            .build();
+        ApmServerClient apmServerClient = new ApmServerClient(configurationRegistry.getConfig(ReporterConfiguration.class),
+            configurationRegistry.getConfig(CoreConfiguration.class));
+        DslJsonSerializer serializer = new DslJsonSerializer(configurationRegistry.getConfig(StacktraceConfiguration.class),
+            apmServerClient, new CompletableFuture<MetaData>());
+        tracer = new ElasticApmTracerBuilder()
+            .configurationRegistry(configurationRegistry)
+            .withApmServerClient(apmServerClient)
+            .reporter(new AllocationBenchmark.SerializingReporter(serializer))
+            .buildAndStart();
+        transaction = tracer.startRootTransaction(null);
+        transaction.withName("transaction").withType("request");
+    }
+
+    @TearDown
+    public void tearDown() {
+        transaction.end();
+        tracer.stop();
+    }
+
+    @Benchmark
+    public Id randomTraceId() {
+        traceId.setToRandomValue();
+        return traceId;
+    }
+
+    @Benchmark
+    public Id randomSpanId() {
+        spanId.setToRandomValue();
+        return spanId;
+    }
+
+    /**
+     * Generates a new id and renders it, as it happens when a transaction is serialized
+     */
+    @Benchmark
+    public int randomTraceIdAsHex() {
+        jsonWriter.reset();
+        traceId.setToRandomValue();
+        traceId.writeAsHex(jsonWriter);
+        return jsonWriter.size();
+    }
+
+    /**
+     * Renders the same id multiple times, as it happens when the trace id is serialized for each span of a transaction
+     */
+    @Benchmark
+    public int traceIdAsHex() {
+        jsonWriter.reset();
+        traceId.writeAsHex(jsonWriter);
+        return jsonWriter.size();
+    }
+
+    @Benchmark
+    public Span startAndEndSpan() {
+        Span span = transaction.createSpan().withName("span").withType("db");
+        span.end();
+        return span;
+    }
+}
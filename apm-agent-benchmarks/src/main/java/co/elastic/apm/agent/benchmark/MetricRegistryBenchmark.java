@@ -0,0 +1,101 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.configuration.MetricsConfiguration;
+import co.elastic.apm.agent.metrics.Labels;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.report.ReporterConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.ConfigurationOptionProvider;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+
+import java.util.ServiceLoader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of updating the breakdown metrics of a transaction in the {@link MetricRegistry} when the transaction ends,
+ * which happens on the thread that ends the transaction.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MetricRegistryBenchmark extends AbstractBenchmark {
+
+    private static final int TRANSACTION_NAMES = 100;
+    private static final String[][] TYPES_AND_SUBTYPES = {
+        {"app", null},
+        {"db", "mysql"},
+        {"db", "redis"},
+        {"external", "http"},
+        {"template", null}
+    };
+
+    private final Labels.Mutable labels = Labels.Mutable.of();
+    private final StringBuilder[] transactionNames = new StringBuilder[TRANSACTION_NAMES];
+    private MetricRegistry registry;
+    private int transaction;
+
+    public static void main(String[] args) throws RunnerException {
+        run(MetricRegistryBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() {
+        ConfigurationRegistry configurationRegistry = ConfigurationRegistry.builder()
+            .optionProviders(ServiceLoader.load(ConfigurationOptionProvider.class))
+            .build();
+        registry = new MetricRegistry(configurationRegistry.getConfig(ReporterConfiguration.class),
+            configurationRegistry.getConfig(MetricsConfiguration.class));
+        for (int i = 0; i < TRANSACTION_NAMES; i++) {
+            transactionNames[i] = new StringBuilder("GET /api/v1/orders/").append(i).append("/items");
+        }
+        // creates the metric sets
+        for (int i = 0; i < TRANSACTION_NAMES; i++) {
+            endOfTransaction();
+        }
+    }
+
+    /**
+     * Updates the {@code span.self_time} timers of a transaction with five distinct span types and subtypes,
+     * as it happens when a transaction ends
+     */
+    @Benchmark
+    public Labels endOfTransaction() {
+        StringBuilder transactionName = transactionNames[transaction++ % TRANSACTION_NAMES];
+        labels.resetState();
+        labels.serviceName("benchmark")
+            .transactionName(transactionName)
+            .transactionType("request");
+        long criticalValueAtEnter = registry.writerCriticalSectionEnter();
+        try {
+            for (String[] typeAndSubtype : TYPES_AND_SUBTYPES) {
+                labels.spanType(typeAndSubtype[0]).spanSubType(typeAndSubtype[1]);
+                registry.updateTimer("span.self_time", labels, 42, 1);
+            }
+        } finally {
+            registry.writerCriticalSectionExit(criticalValueAtEnter);
+        }
+        return labels;
+    }
+}
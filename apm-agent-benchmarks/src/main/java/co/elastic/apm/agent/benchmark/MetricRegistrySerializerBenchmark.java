@@ -0,0 +1,120 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.configuration.MetricsConfiguration;
+import co.elastic.apm.agent.configuration.ServiceInfo;
+import co.elastic.apm.agent.metrics.DoubleSupplier;
+import co.elastic.apm.agent.metrics.Labels;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.metrics.MetricSet;
+import co.elastic.apm.agent.report.ReporterConfiguration;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import co.elastic.apm.agent.report.serialize.MetricRegistrySerializer;
+import com.dslplatform.json.DslJson;
+import com.dslplatform.json.JsonWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.ConfigurationOptionProvider;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares serializing the metric sets of a {@link MetricRegistry} into a {@link JsonWriter} per metric set
+ * with appending them to a reused chunk, as the {@link co.elastic.apm.agent.report.serialize.MetricRegistryReporter} does.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MetricRegistrySerializerBenchmark extends AbstractBenchmark {
+
+    private static final int METRIC_SETS = 1000;
+
+    private final MetricRegistrySerializer serializer = new MetricRegistrySerializer();
+    private final List<ServiceInfo> serviceInfos = Collections.emptyList();
+    private final List<MetricSet> metricSets = new ArrayList<>();
+    private JsonWriter chunk;
+
+    public static void main(String[] args) throws RunnerException {
+        run(MetricRegistrySerializerBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() {
+        ConfigurationRegistry configurationRegistry = ConfigurationRegistry.builder()
+            .optionProviders(ServiceLoader.load(ConfigurationOptionProvider.class))
+            .build();
+        MetricRegistry registry = new MetricRegistry(configurationRegistry.getConfig(ReporterConfiguration.class),
+            configurationRegistry.getConfig(MetricsConfiguration.class));
+        for (int i = 0; i < METRIC_SETS; i++) {
+            final int value = i;
+            Labels labels = Labels.Mutable.of("transaction.name", "GET /api/v1/orders/" + i).add("span.type", "db");
+            DoubleSupplier gauge = new DoubleSupplier() {
+                @Override
+                public double get() {
+                    return value;
+                }
+            };
+            registry.add("span.self_time.count", labels, gauge);
+            registry.add("span.self_time.sum.us", labels, gauge);
+        }
+        // the registry is not flipped again, so the metric sets are not reset and can be serialized repeatedly
+        registry.flipPhaseAndReport(new MetricRegistry.MetricsReporter() {
+            @Override
+            public void report(Map<? extends Labels, MetricSet> metricSets) {
+                MetricRegistrySerializerBenchmark.this.metricSets.addAll(metricSets.values());
+            }
+        });
+        chunk = new DslJson<>(new DslJson.Settings<>()).newWriter(DslJsonSerializer.BUFFER_SIZE * 2);
+    }
+
+    @Benchmark
+    public long serializePerMetricSet() {
+        long size = 0;
+        for (int i = 0; i < metricSets.size(); i++) {
+            JsonWriter jw = serializer.serialize(metricSets.get(i), serviceInfos);
+            if (jw != null) {
+                size += jw.size();
+            }
+        }
+        return size;
+    }
+
+    @Benchmark
+    public long serializeToChunks() {
+        long size = 0;
+        chunk.reset();
+        for (int i = 0; i < metricSets.size(); i++) {
+            if (serializer.serialize(metricSets.get(i), serviceInfos, chunk) && chunk.size() >= DslJsonSerializer.BUFFER_SIZE) {
+                size += chunk.size();
+                chunk.reset();
+            }
+        }
+        return size + chunk.size();
+    }
+}
@@ -21,29 +21,119 @@ package co.elastic.apm.agent.benchmark;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
 import co.elastic.apm.agent.impl.error.ErrorCapture;
+import co.elastic.apm.agent.impl.transaction.AbstractSpan;
+import co.elastic.apm.agent.impl.transaction.Id;
 import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.TraceContext;
 import co.elastic.apm.agent.impl.transaction.Transaction;
 import co.elastic.apm.agent.report.ReporterConfiguration;
 import co.elastic.apm.agent.util.MathUtils;
 import org.ehcache.sizeof.SizeOf;
+import org.ehcache.sizeof.filters.SizeOfFilter;
 
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Prints the retained size of pooled tracer objects and of spans of different types.
+ * <p>
+ * The sizes don't include the tracer or the parent transaction of a span, but they do include the context sub-objects
+ * that are only allocated when a span of the corresponding type uses them.
+ * Track the output of this class when changing the fields of {@link Span} or its context.
+ * </p>
+ */
 public class SizeOfSpan {
 
+    /**
+     * Don't follow references to the tracer and to other spans
+     */
+    private static final SizeOfFilter OWN_FIELDS_ONLY = new SizeOfFilter() {
+        @Override
+        public Collection<Field> filterFields(Class<?> klazz, Collection<Field> fields) {
+            List<Field> ownFields = new ArrayList<>(fields.size());
+            for (Field field : fields) {
+                if (!ElasticApmTracer.class.isAssignableFrom(field.getType()) && !AbstractSpan.class.isAssignableFrom(field.getType())) {
+                    ownFields.add(field);
+                }
+            }
+            return ownFields;
+        }
+
+        @Override
+        public boolean filterClass(Class<?> klazz) {
+            return !ElasticApmTracer.class.isAssignableFrom(klazz);
+        }
+    };
+
     public static void main(String[] args) {
-        final SizeOf sizeOf = SizeOf.newInstance();
+        final SizeOf sizeOf = SizeOf.newInstance(OWN_FIELDS_ONLY);
         ElasticApmTracer tracer = new ElasticApmTracerBuilder().buildAndStart();
         final long sizeOfSpan = sizeOf.deepSizeOf(new Span(tracer));
         final long sizeOfTransaction = sizeOf.deepSizeOf(new Transaction(tracer));
         final long sizeOfError = sizeOf.deepSizeOf(new ErrorCapture(tracer));
+        final long sizeOfId = sizeOf.deepSizeOf(Id.new128BitId());
 
         System.out.println("sizeof span: " + sizeOfSpan);
         System.out.println("sizeof transaction: " + sizeOfTransaction);
         System.out.println("sizeof error: " + sizeOfError);
+        System.out.println("sizeof 128 bit id: " + sizeOfId);
 
         final int queueSize = MathUtils.getNextPowerOf2(new ReporterConfiguration().getMaxQueueSize());
         final long sizeOfObjectPools = queueSize * 2 * sizeOfSpan +
             queueSize * 2 * sizeOfTransaction +
             queueSize * sizeOfError;
         System.out.println("sizeOfObjectPools: " + sizeOfObjectPools / 1024.0 / 1024.0 + " MiB");
+
+        Transaction transaction = tracer.startRootTransaction(null);
+        try {
+            System.out.println("sizeof started span: " + sizeOf.deepSizeOf(transaction.createSpan().withName("span").withType("app")));
+            System.out.println("sizeof db span: " + sizeOfDbSpan(sizeOf, transaction));
+            System.out.println("sizeof http span: " + sizeOfHttpSpan(sizeOf, transaction));
+            System.out.println("sizeof messaging span: " + sizeOfMessagingSpan(sizeOf, transaction));
+            System.out.println("sizeof otel span: " + sizeOfOTelSpan(sizeOf, transaction));
+            System.out.println("sizeof span with link: " + sizeOfSpanWithLink(sizeOf, transaction));
+        } finally {
+            transaction.end();
+            tracer.stop();
+        }
+    }
+
+    private static long sizeOfDbSpan(SizeOf sizeOf, Transaction transaction) {
+        Span span = transaction.createExitSpan();
+        span.withName("SELECT FROM products").withType("db").withSubtype("postgresql").withAction("query");
+        span.getContext().getDb().withInstance("shop").withType("sql").withUser("app")
+            .withStatementBuffer().append("SELECT * FROM products WHERE id = ?");
+        return sizeOf.deepSizeOf(span);
+    }
+
+    private static long sizeOfHttpSpan(SizeOf sizeOf, Transaction transaction) {
+        Span span = transaction.createExitSpan();
+        span.withName("GET localhost").withType("external").withSubtype("http");
+        span.getContext().getHttp().withUrl("http://localhost:8080/api/products/42").withMethod("GET").withStatusCode(200);
+        return sizeOf.deepSizeOf(span);
+    }
+
+    private static long sizeOfMessagingSpan(SizeOf sizeOf, Transaction transaction) {
+        Span span = transaction.createExitSpan();
+        span.withName("JMS SEND to queue orders").withType("messaging").withSubtype("jms").withAction("send");
+        span.getContext().getMessage().withQueue("orders").withBody("{\"id\":42}").addHeader("priority", "4");
+        return sizeOf.deepSizeOf(span);
+    }
+
+    private static long sizeOfOTelSpan(SizeOf sizeOf, Transaction transaction) {
+        Span span = transaction.createSpan();
+        span.withName("otel").withType("app");
+        span.getOtelAttributes().put("http.url", "http://localhost:8080/api/products/42");
+        span.getOtelAttributes().put("net.peer.port", 8080L);
+        return sizeOf.deepSizeOf(span);
+    }
+
+    private static long sizeOfSpanWithLink(SizeOf sizeOf, Transaction transaction) {
+        Span span = transaction.createSpan();
+        span.withName("span").withType("app");
+        span.addSpanLink(TraceContext.fromParent(), transaction);
+        return sizeOf.deepSizeOf(span);
     }
 }
@@ -0,0 +1,193 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.httpclient.HttpClientHelper;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.impl.metadata.MetaData;
+import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.TextHeaderGetter;
+import co.elastic.apm.agent.impl.transaction.TextHeaderSetter;
+import co.elastic.apm.agent.impl.transaction.TraceContext;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.report.ApmServerClient;
+import co.elastic.apm.agent.report.ReporterConfiguration;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+import org.stagemonitor.configuration.ConfigurationOptionProvider;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import javax.annotation.Nullable;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of continuing a trace from incoming {@code traceparent} and {@code tracestate} headers
+ * and of propagating it to an outgoing request of an HTTP client plugin that is based on {@link HttpClientHelper}.
+ * <p>
+ * Run {@link #main(String[])} to see the allocations per request in the {@code gc.alloc.rate.norm} secondary result.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TraceContextPropagationBenchmark extends AbstractBenchmark {
+
+    private static final URI OUTGOING_URI = URI.create("http://localhost:8081/api/prices/42");
+
+    /**
+     * <ul>
+     *     <li>{@code none}: the incoming request only has a {@code traceparent} header</li>
+     *     <li>{@code elastic}: the incoming request has a {@code tracestate} header that only contains the {@code es} entry</li>
+     *     <li>{@code vendors}: the incoming request has a {@code tracestate} header with entries of other vendors</li>
+     * </ul>
+     */
+    @Param({"none", "elastic", "vendors"})
+    public String tracestate;
+
+    private ElasticApmTracer tracer;
+    private final Map<String, String> incomingHeaders = new HashMap<>();
+    private final Map<String, String> outgoingHeaders = new HashMap<>();
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(TraceContextPropagationBenchmark.class.getSimpleName())
+            .warmupIterations(5)
+            .warmupTime(TimeValue.seconds(1))
+            .measurementIterations(5)
+            .measurementTime(TimeValue.seconds(1))
+            .addProfiler(GCProfiler.class)
+            .build())
+            .run();
+    }
+
+    @Setup
+    public void setUp() {
+        SimpleSource configSource = new SimpleSource()
+            .add(CoreConfiguration.SERVICE_NAME, "benchmark")
+            .add("metrics_interval", "0ms")
+            .add("cloud_provider", "none");
+        ConfigurationRegistry configurationRegistry = ConfigurationRegistry.builder()
+            .addConfigSource(configSource)
+            .optionProviders(ServiceLoader.load(ConfigurationOptionProvider.class))
+            .build();
+        ApmServerClient apmServerClient = new ApmServerClient(configurationRegistry.getConfig(ReporterConfiguration.class),
+            configurationRegistry.getConfig(CoreConfiguration.class));
+        DslJsonSerializer serializer = new DslJsonSerializer(configurationRegistry.getConfig(StacktraceConfiguration.class),
+            apmServerClient, new CompletableFuture<MetaData>());
+        tracer = new ElasticApmTracerBuilder()
+            .configurationRegistry(configurationRegistry)
+            .withApmServerClient(apmServerClient)
+            .reporter(new AllocationBenchmark.SerializingReporter(serializer))
+            .buildAndStart();
+
+        incomingHeaders.put(TraceContext.W3C_TRACE_PARENT_TEXTUAL_HEADER_NAME, "00-0af7651916cd43dd8448eb211c80319c-b9c7c989f97918e1-01");
+        switch (tracestate) {
+            case "none":
+                break;
+            case "elastic":
+                incomingHeaders.put(TraceContext.TRACESTATE_HEADER_NAME, "es=s:1");
+                break;
+            case "vendors":
+                incomingHeaders.put(TraceContext.TRACESTATE_HEADER_NAME, "es=s:1,rojo=00f067aa0ba902b7,congo=t61rcWkgMzE");
+                break;
+            default:
+                throw new IllegalArgumentException(tracestate);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        tracer.stop();
+    }
+
+    /**
+     * A transaction that is continued from the incoming headers and an HTTP client span that propagates the trace context
+     */
+    @Benchmark
+    public Map<String, String> continueAndPropagate() {
+        Transaction transaction = tracer.startChildTransaction(incomingHeaders, MapHeaderAccessor.INSTANCE, null);
+        if (transaction == null) {
+            return outgoingHeaders;
+        }
+        transaction.withName("GET /api/products/{id}").withType("request");
+        Span span = HttpClientHelper.startHttpClientSpan(transaction, "GET", OUTGOING_URI, OUTGOING_URI.getHost());
+        if (span != null) {
+            span.propagateTraceContext(outgoingHeaders, MapHeaderAccessor.INSTANCE);
+            span.end();
+        }
+        transaction.end();
+        return outgoingHeaders;
+    }
+
+    /**
+     * Only parses the incoming headers, without propagating them
+     */
+    @Benchmark
+    public Transaction continueTrace() {
+        Transaction transaction = tracer.startChildTransaction(incomingHeaders, MapHeaderAccessor.INSTANCE, null);
+        if (transaction != null) {
+            transaction.withName("GET /api/products/{id}").withType("request");
+            transaction.end();
+        }
+        return transaction;
+    }
+
+    private static class MapHeaderAccessor implements TextHeaderGetter<Map<String, String>>, TextHeaderSetter<Map<String, String>> {
+
+        private static final MapHeaderAccessor INSTANCE = new MapHeaderAccessor();
+
+        @Nullable
+        @Override
+        public String getFirstHeader(String headerName, Map<String, String> carrier) {
+            return carrier.get(headerName);
+        }
+
+        @Override
+        public <S> void forEach(String headerName, Map<String, String> carrier, S state, HeaderConsumer<String, S> consumer) {
+            String value = carrier.get(headerName);
+            if (value != null) {
+                consumer.accept(value, state);
+            }
+        }
+
+        @Override
+        public void setHeader(String headerName, String headerValue, Map<String, String> carrier) {
+            carrier.put(headerName, headerValue);
+        }
+    }
+}
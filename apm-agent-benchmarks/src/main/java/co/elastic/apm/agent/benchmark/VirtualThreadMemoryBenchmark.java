@@ -0,0 +1,170 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.impl.metadata.MetaData;
+import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.report.ApmServerClient;
+import co.elastic.apm.agent.report.ReporterConfiguration;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import org.stagemonitor.configuration.ConfigurationOptionProvider;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.reflect.Method;
+import java.util.ServiceLoader;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures the heap the agent retains per virtual thread while a large number of virtual threads are parked.
+ * <p>
+ * Requires Java 21, run with {@code java -Xmx4g -cp target/benchmarks.jar co.elastic.apm.agent.benchmark.VirtualThreadMemoryBenchmark [threads]}.
+ * For each scenario, the heap that is used while all virtual threads are parked is compared with the heap used by
+ * the {@code baseline} scenario, in which the virtual threads don't interact with the agent.
+ * </p>
+ * <ul>
+ *     <li>{@code baseline}: the virtual threads don't interact with the agent</li>
+ *     <li>{@code lookup}: the virtual threads look up the active span, but don't have one</li>
+ *     <li>{@code ended_span}: the virtual threads have activated and deactivated a span before parking</li>
+ *     <li>{@code active_span}: the virtual threads park while a span is active</li>
+ * </ul>
+ */
+public class VirtualThreadMemoryBenchmark {
+
+    private static final String[] SCENARIOS = {"baseline", "lookup", "ended_span", "active_span"};
+
+    private static final Runnable NOOP = () -> {
+    };
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Method startVirtualThread;
+        try {
+            startVirtualThread = Thread.class.getMethod("startVirtualThread", Runnable.class);
+        } catch (NoSuchMethodException e) {
+            System.out.println("Virtual threads are not supported by this JVM: " + System.getProperty("java.version"));
+            return;
+        }
+        ElasticApmTracer tracer = createTracer();
+        Transaction transaction = tracer.startRootTransaction(null);
+        transaction.withName("virtual threads").withType("request");
+        try {
+            long baseline = -1;
+            for (String scenario : SCENARIOS) {
+                Runnable afterMeasurement = "active_span".equals(scenario) ? deactivate(transaction) : NOOP;
+                long usedHeap = measureUsedHeap(startVirtualThread, threads, task(scenario, tracer, transaction), afterMeasurement);
+                if (baseline < 0) {
+                    baseline = usedHeap;
+                }
+                System.out.printf("%-12s used heap: %8.1f MiB, agent overhead per virtual thread: %6.1f bytes%n",
+                    scenario, usedHeap / 1024.0 / 1024.0, (usedHeap - baseline) / (double) threads);
+            }
+            System.out.println("pooled activation stacks: " + tracer.getObjectPools().get("active_stack").getObjectsInPool());
+        } finally {
+            transaction.end();
+            tracer.stop();
+        }
+    }
+
+    private static Runnable task(String scenario, final ElasticApmTracer tracer, final Transaction transaction) {
+        switch (scenario) {
+            case "baseline":
+                return NOOP;
+            case "lookup":
+                return tracer::getActive;
+            case "ended_span":
+                return () -> {
+                    Span span = transaction.createSpan().withName("span").activate();
+                    span.deactivate().end();
+                };
+            case "active_span":
+                return () -> transaction.activate();
+            default:
+                throw new IllegalArgumentException(scenario);
+        }
+    }
+
+    private static Runnable deactivate(final Transaction transaction) {
+        return () -> transaction.deactivate();
+    }
+
+    /**
+     * Starts the virtual threads, which execute the task and then park until the heap has been measured
+     */
+    private static long measureUsedHeap(Method startVirtualThread, int threads, Runnable task, Runnable afterMeasurement) throws Exception {
+        CountDownLatch parked = new CountDownLatch(threads);
+        CountDownLatch measured = new CountDownLatch(1);
+        Thread[] virtualThreads = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            virtualThreads[i] = (Thread) startVirtualThread.invoke(null, (Runnable) () -> {
+                task.run();
+                parked.countDown();
+                try {
+                    measured.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                afterMeasurement.run();
+            });
+        }
+        parked.await();
+        long usedHeap = usedHeapAfterGc();
+        measured.countDown();
+        for (Thread virtualThread : virtualThreads) {
+            virtualThread.join();
+        }
+        return usedHeap;
+    }
+
+    private static long usedHeapAfterGc() {
+        MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memoryMXBean.getHeapMemoryUsage().getUsed();
+    }
+
+    private static ElasticApmTracer createTracer() {
+        SimpleSource configSource = new SimpleSource()
+            .add(CoreConfiguration.SERVICE_NAME, "benchmark")
+            .add("metrics_interval", "0ms")
+            .add("cloud_provider", "none");
+        ConfigurationRegistry configurationRegistry = ConfigurationRegistry.builder()
+            .addConfigSource(configSource)
+            .optionProviders(ServiceLoader.load(ConfigurationOptionProvider.class))
+            .build();
+        ApmServerClient apmServerClient = new ApmServerClient(configurationRegistry.getConfig(ReporterConfiguration.class),
+            configurationRegistry.getConfig(CoreConfiguration.class));
+        DslJsonSerializer serializer = new DslJsonSerializer(configurationRegistry.getConfig(StacktraceConfiguration.class),
+            apmServerClient, new CompletableFuture<MetaData>());
+        return new ElasticApmTracerBuilder()
+            .configurationRegistry(configurationRegistry)
+            .withApmServerClient(apmServerClient)
+            .reporter(new AllocationBenchmark.SerializingReporter(serializer))
+            .buildAndStart();
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark.objectpool;
+
+import co.elastic.apm.agent.objectpool.Allocator;
+import co.elastic.apm.agent.objectpool.ObjectPool;
+import co.elastic.apm.agent.objectpool.ObjectPoolFactory;
+import co.elastic.apm.agent.objectpool.Recyclable;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how often an instance is requested from any pool and how often the pool had to allocate a new one,
+ * which lets benchmarks report the pool hit rate.
+ * <p>
+ * Register the instance via {@code System.getProperties().put(CountingObjectPoolFactory.class.getName(), factory)}
+ * so that the {@link co.elastic.apm.agent.benchmark.profiler.ReporterProfiler} picks it up.
+ * </p>
+ */
+public class CountingObjectPoolFactory extends ObjectPoolFactory {
+
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+
+    @Override
+    public <T extends Recyclable> ObjectPool<T> createRecyclableObjectPool(int maxCapacity, final Allocator<T> allocator) {
+        final ObjectPool<T> delegate = super.createRecyclableObjectPool(maxCapacity, new Allocator<T>() {
+            @Override
+            public T createInstance() {
+                allocated.incrementAndGet();
+                return allocator.createInstance();
+            }
+        });
+        return new ObjectPool<T>() {
+            @Override
+            public T createInstance() {
+                requested.incrementAndGet();
+                return delegate.createInstance();
+            }
+
+            @Override
+            public void recycle(T obj) {
+                delegate.recycle(obj);
+            }
+
+            @Override
+            public int getObjectsInPool() {
+                return delegate.getObjectsInPool();
+            }
+
+            @Override
+            public long getGarbageCreated() {
+                return delegate.getGarbageCreated();
+            }
+
+            @Override
+            public long getObjectsCreated() {
+                return delegate.getObjectsCreated();
+            }
+
+            @Override
+            public long getObjectsRecycled() {
+                return delegate.getObjectsRecycled();
+            }
+
+            @Override
+            public int getTrimmableObjects() {
+                return delegate.getTrimmableObjects();
+            }
+
+            @Override
+            public int trim(int maxObjects) {
+                return delegate.trim(maxObjects);
+            }
+
+            @Override
+            public void clear() {
+                delegate.clear();
+            }
+        };
+    }
+
+    public long getRequested() {
+        return requested.get();
+    }
+
+    public long getAllocated() {
+        return allocated.get();
+    }
+}
@@ -24,6 +24,7 @@ import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
 import co.elastic.apm.agent.impl.transaction.Transaction;
 import co.elastic.apm.agent.objectpool.ObjectPool;
 import co.elastic.apm.agent.objectpool.impl.QueueBasedObjectPool;
+import co.elastic.apm.agent.objectpool.impl.StripedObjectPool;
 import co.elastic.apm.agent.objectpool.impl.ThreadLocalObjectPool;
 import org.agrona.concurrent.ManyToManyConcurrentArrayQueue;
 import org.jctools.queues.MpmcArrayQueue;
@@ -35,7 +36,11 @@ import org.openjdk.jmh.annotations.OutputTimeUnit;
 import org.openjdk.jmh.annotations.Setup;
 import org.openjdk.jmh.annotations.TearDown;
 import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
 import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
 
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.TimeUnit;
@@ -50,9 +55,22 @@ public class ObjectPoolBenchmark extends AbstractBenchmark {
     private ObjectPool<Transaction> threadLocalObjectPool;
     private ObjectPool<Transaction> jctoolsQueueObjectPool;
     private ObjectPool<Transaction> jctoolsAtomicQueueObjectPool;
+    private ObjectPool<Transaction> stripedObjectPool;
 
+    /**
+     * Compares the contention of the pools with 1, 8 and 64 threads concurrently creating and recycling instances
+     */
     public static void main(String[] args) throws RunnerException {
-        run(ObjectPoolBenchmark.class);
+        for (int threads : new int[]{1, 8, 64}) {
+            new Runner(new OptionsBuilder()
+                .include(ObjectPoolBenchmark.class.getSimpleName())
+                .threads(threads)
+                .measurementTime(TimeValue.seconds(1))
+                .warmupTime(TimeValue.seconds(1))
+                .addProfiler(GCProfiler.class)
+                .build())
+                .run();
+        }
     }
 
     @Setup
@@ -63,11 +81,13 @@ public class ObjectPoolBenchmark extends AbstractBenchmark {
         jctoolsAtomicQueueObjectPool = QueueBasedObjectPool.ofRecyclable(new MpmcAtomicArrayQueue<>(256), true, () -> new Transaction(tracer));
         agronaQueueObjectPool = QueueBasedObjectPool.ofRecyclable(new ManyToManyConcurrentArrayQueue<>(256), true, () -> new Transaction(tracer));
         threadLocalObjectPool = new ThreadLocalObjectPool<>(64, true, () -> new Transaction(tracer));
+        stripedObjectPool = StripedObjectPool.ofRecyclable(256, 16, () -> new Transaction(tracer));
     }
 
     @TearDown
     public void tearDown() {
         System.out.println("Objects created by agronaQueueObjectPool: " + agronaQueueObjectPool.getGarbageCreated());
+        System.out.println("Objects created by stripedObjectPool: " + stripedObjectPool.getGarbageCreated());
     }
 
     //    @Benchmark
@@ -108,7 +128,7 @@ public class ObjectPoolBenchmark extends AbstractBenchmark {
         return transaction;
     }
 
-    //    @Benchmark
+    @Benchmark
     @Threads(8)
     public Transaction testThreadLocalObjectPool() {
         Transaction transaction = threadLocalObjectPool.createInstance();
@@ -116,4 +136,12 @@ public class ObjectPoolBenchmark extends AbstractBenchmark {
         return transaction;
     }
 
+    @Benchmark
+    @Threads(8)
+    public Transaction testStripedObjectPool() {
+        Transaction transaction = stripedObjectPool.createInstance();
+        stripedObjectPool.recycle(transaction);
+        return transaction;
+    }
+
 }
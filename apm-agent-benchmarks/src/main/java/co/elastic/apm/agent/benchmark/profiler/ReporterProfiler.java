@@ -18,6 +18,7 @@
  */
 package co.elastic.apm.agent.benchmark.profiler;
 
+import co.elastic.apm.agent.benchmark.objectpool.CountingObjectPoolFactory;
 import co.elastic.apm.agent.report.Reporter;
 import org.openjdk.jmh.infra.BenchmarkParams;
 import org.openjdk.jmh.infra.IterationParams;
@@ -30,6 +31,9 @@ import org.openjdk.jmh.results.ScalarResult;
 import org.openjdk.jmh.runner.options.TimeValue;
 
 import javax.annotation.Nullable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
@@ -43,6 +47,10 @@ public class ReporterProfiler implements InternalProfiler {
     private Long receivedBytesStart;
     @Nullable
     private Long receivedPayloadsStart;
+    private long reporterCpuTimeStart;
+    private long poolRequestedStart;
+    private long poolAllocatedStart;
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
 
 
     public ReporterProfiler() {
@@ -60,7 +68,31 @@ public class ReporterProfiler implements InternalProfiler {
             droppedCountStart = reporter.getDropped();
             receivedBytesStart = getLong("server.received.bytes");
             receivedPayloadsStart = getLong("server.received.payloads");
+            reporterCpuTimeStart = getReporterCpuTime();
         }
+        final CountingObjectPoolFactory objectPoolFactory = getObjectPoolFactory();
+        if (objectPoolFactory != null) {
+            poolRequestedStart = objectPoolFactory.getRequested();
+            poolAllocatedStart = objectPoolFactory.getAllocated();
+        }
+    }
+
+    @Nullable
+    private CountingObjectPoolFactory getObjectPoolFactory() {
+        return (CountingObjectPoolFactory) System.getProperties().get(CountingObjectPoolFactory.class.getName());
+    }
+
+    /**
+     * @return the summed up CPU time of all reporter threads in nanoseconds
+     */
+    private long getReporterCpuTime() {
+        long cpuTime = 0;
+        for (ThreadInfo threadInfo : threadMXBean.getThreadInfo(threadMXBean.getAllThreadIds())) {
+            if (threadInfo != null && threadInfo.getThreadName().contains("server-reporter")) {
+                cpuTime += Math.max(0, threadMXBean.getThreadCpuTime(threadInfo.getThreadId()));
+            }
+        }
+        return cpuTime;
     }
 
     private Long getLong(String propertyName) {
@@ -98,6 +130,19 @@ public class ReporterProfiler implements InternalProfiler {
                 results.add(new ScalarResult(Defaults.PREFIX + "server.received.payloads", perSecond(iterationDurationNs,
                     receivedPayloadsDuringThisIteration), "payloads/s", AggregationPolicy.AVG));
             }
+
+            long reporterCpuTimeDuringThisIteration = getReporterCpuTime() - reporterCpuTimeStart;
+            results.add(new ScalarResult(Defaults.PREFIX + "reporter.cpu", 100d * reporterCpuTimeDuringThisIteration / iterationDurationNs,
+                "%", AggregationPolicy.AVG));
+        }
+        final CountingObjectPoolFactory objectPoolFactory = getObjectPoolFactory();
+        if (objectPoolFactory != null) {
+            long requested = objectPoolFactory.getRequested() - poolRequestedStart;
+            long allocated = objectPoolFactory.getAllocated() - poolAllocatedStart;
+            if (requested > 0) {
+                results.add(new ScalarResult(Defaults.PREFIX + "objectpool.hit.rate", 100d * (requested - allocated) / requested,
+                    "%", AggregationPolicy.AVG));
+            }
         }
         return results;
     }
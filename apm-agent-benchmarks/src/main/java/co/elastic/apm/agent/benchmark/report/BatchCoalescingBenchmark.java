@@ -0,0 +1,212 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark.report;
+
+import co.elastic.apm.agent.benchmark.AbstractBenchmark;
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.report.ApiRequestCompression;
+import co.elastic.apm.agent.report.IntakeCompressor;
+import co.elastic.apm.agent.report.ReporterConfiguration;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.ConfigurationOptionProvider;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ServiceLoader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the effect of {@code max_batch_bytes} on the reporter thread, for different sizes of the batches it takes from the queue.
+ * <p>
+ * Each benchmark operation serializes a batch of {@link #batchSize} transactions into a deflate-compressed request,
+ * the same way {@link co.elastic.apm.agent.report.IntakeV2ReportingEventHandler} does.
+ * A request is ended after {@code api_request_size} bytes.
+ * See the {@code events} secondary result for the events per second,
+ * {@code deflates} for the number of writes to the compressing stream per second
+ * and {@code writes} for the number of writes to the connection per second.
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BatchCoalescingBenchmark extends AbstractBenchmark {
+
+    @Param({"1", "16", "256"})
+    public int batchSize;
+
+    @Param({"0b", "1mb"})
+    public String maxBatchBytes;
+
+    private ElasticApmTracer tracer;
+    private ReporterConfiguration reporterConfiguration;
+    private IntakeCompressor compressor;
+    private DslJsonSerializer serializer;
+    private CountingNullOutputStream wire;
+    private OutputStream os;
+    private CountingOutputStream deflaterInput;
+    private Transaction transaction;
+    private boolean coalesce;
+
+    public static void main(String[] args) throws RunnerException {
+        run(BatchCoalescingBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        tracer = new ElasticApmTracerBuilder()
+            .configurationRegistry(ConfigurationRegistry.builder()
+                .addConfigSource(new SimpleSource()
+                    .add(CoreConfiguration.SERVICE_NAME, "benchmark")
+                    .add("api_request_compression", "deflate")
+                    .add("max_batch_bytes", maxBatchBytes)
+                    .add("disable_send", "true"))
+                .optionProviders(ServiceLoader.load(ConfigurationOptionProvider.class))
+                .build())
+            .buildAndStart();
+        reporterConfiguration = tracer.getConfig(ReporterConfiguration.class);
+        coalesce = reporterConfiguration.getMaxBatchBytes() > 0;
+        compressor = new IntakeCompressor(reporterConfiguration);
+        serializer = new DslJsonSerializer(tracer.getConfig(StacktraceConfiguration.class), tracer.getApmServerClient(), tracer.getMetaDataFuture());
+        wire = new CountingNullOutputStream();
+        transaction = tracer.startRootTransaction(null);
+        transaction.withName("GET /api/products/{id}").withType("request").withResult("HTTP 2xx");
+        transaction.getContext().getRequest().withMethod("GET").getUrl().withPathname("/api/products/42");
+        transaction.getContext().getResponse().withStatusCode(200).withFinished(true);
+        startRequest();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        endRequest();
+        compressor.close();
+        transaction.end();
+        tracer.stop();
+    }
+
+    @Benchmark
+    public void serializeBatch(WireCounters counters) throws IOException {
+        for (int i = 0; i < batchSize; i++) {
+            serializer.serializeTransactionNdJson(transaction);
+            if (coalesce && serializer.getBufferSize() >= reporterConfiguration.getMaxBatchBytes()) {
+                serializer.flushToOutputStream();
+            }
+            if (wire.bytes + serializer.getBufferSize() >= reporterConfiguration.getApiRequestSize()) {
+                endRequest();
+                startRequest();
+            }
+        }
+        if (coalesce && serializer.getBufferSize() >= DslJsonSerializer.BUFFER_SIZE) {
+            serializer.flushToOutputStream();
+        }
+        counters.events += batchSize;
+        counters.deflates += deflaterInput.writes;
+        counters.writes += wire.writes;
+        deflaterInput.writes = 0;
+        wire.writes = 0;
+    }
+
+    private void startRequest() throws IOException {
+        wire.bytes = 0;
+        os = compressor.wrap(wire, ApiRequestCompression.DEFLATE);
+        deflaterInput = new CountingOutputStream(os, deflaterInput != null ? deflaterInput.writes : 0);
+        serializer.setOutputStream(deflaterInput, coalesce);
+    }
+
+    private void endRequest() throws IOException {
+        serializer.fullFlush();
+        os.close();
+        compressor.onRequestEnd();
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class WireCounters {
+        public long events;
+        public long deflates;
+        public long writes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            events = 0;
+            deflates = 0;
+            writes = 0;
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private final OutputStream delegate;
+        private long writes;
+
+        private CountingOutputStream(OutputStream delegate, long writes) {
+            this.delegate = delegate;
+            this.writes = writes;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            writes++;
+            delegate.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            writes++;
+            delegate.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            delegate.flush();
+        }
+    }
+
+    private static class CountingNullOutputStream extends OutputStream {
+        private long bytes;
+        private long writes;
+
+        @Override
+        public void write(int b) {
+            bytes++;
+            writes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes += len;
+            writes++;
+        }
+    }
+}
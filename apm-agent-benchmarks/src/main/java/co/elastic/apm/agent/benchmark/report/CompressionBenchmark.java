@@ -0,0 +1,180 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark.report;
+
+import co.elastic.apm.agent.benchmark.AbstractBenchmark;
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.report.ApiRequestCompression;
+import co.elastic.apm.agent.report.IntakeCompressor;
+import co.elastic.apm.agent.report.ReporterConfiguration;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.ConfigurationOptionProvider;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ServiceLoader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the throughput of the reporter thread and the number of bytes on the wire for the different
+ * {@link ApiRequestCompression} algorithms and compression levels.
+ * <p>
+ * Each benchmark operation serializes a single transaction event into the compressing stream of the current request.
+ * A request is ended after {@code api_request_size} compressed bytes, just like the actual reporter does.
+ * See the {@code wireBytes} secondary result for the compressed bytes per second.
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CompressionBenchmark extends AbstractBenchmark {
+
+    @Param({"none", "deflate", "gzip"})
+    public String compression;
+
+    @Param({"1", "6", "9"})
+    public int level;
+
+    private ElasticApmTracer tracer;
+    private ReporterConfiguration reporterConfiguration;
+    private IntakeCompressor compressor;
+    private DslJsonSerializer serializer;
+    private CountingNullOutputStream wire;
+    private OutputStream os;
+    private Transaction transaction;
+
+    public static void main(String[] args) throws RunnerException {
+        run(CompressionBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        tracer = new ElasticApmTracerBuilder()
+            .configurationRegistry(ConfigurationRegistry.builder()
+                .addConfigSource(new SimpleSource()
+                    .add(CoreConfiguration.SERVICE_NAME, "benchmark")
+                    .add("api_request_compression", compression)
+                    .add("api_request_compression_level", Integer.toString(level))
+                    .add("disable_send", "true"))
+                .optionProviders(ServiceLoader.load(ConfigurationOptionProvider.class))
+                .build())
+            .buildAndStart();
+        reporterConfiguration = tracer.getConfig(ReporterConfiguration.class);
+        compressor = new IntakeCompressor(reporterConfiguration);
+        serializer = new DslJsonSerializer(tracer.getConfig(StacktraceConfiguration.class), tracer.getApmServerClient(), tracer.getMetaDataFuture());
+        wire = new CountingNullOutputStream();
+        transaction = createTransaction();
+        startRequest();
+    }
+
+    private Transaction createTransaction() {
+        Transaction transaction = tracer.startRootTransaction(null);
+        transaction.withName("GET /api/products/{id}").withType("request").withResult("HTTP 2xx");
+        transaction.addLabel("tenant", "acme");
+        transaction.addLabel("region", "eu-west-1");
+        transaction.getContext().getRequest()
+            .withMethod("GET")
+            .withHttpVersion("1.1")
+            .addHeader("Accept", "text/html,application/xhtml+xml,application/xml;q=0.9,image/webp,image/apng,*/*;q=0.8")
+            .addHeader("Accept-Encoding", "gzip, deflate, br")
+            .addHeader("Accept-Language", "en-GB,en;q=0.9,en-US;q=0.8,de;q=0.7")
+            .getUrl()
+            .withProtocol("http")
+            .withHostname("localhost")
+            .withPort(8080)
+            .withPathname("/api/products/42");
+        transaction.getContext().getResponse().withStatusCode(200).withFinished(true);
+        return transaction;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        endRequest();
+        compressor.close();
+        transaction.end();
+        tracer.stop();
+    }
+
+    @Benchmark
+    public void serializeAndCompress(WireCounters counters) throws IOException {
+        serializer.serializeTransactionNdJson(transaction);
+        counters.events++;
+        if (wire.count + serializer.getBufferSize() >= reporterConfiguration.getApiRequestSize()) {
+            endRequest();
+            counters.wireBytes += wire.count;
+            wire.count = 0;
+            startRequest();
+        }
+    }
+
+    private void startRequest() throws IOException {
+        os = compressor.wrap(wire, ApiRequestCompression.valueOf(compression.toUpperCase()));
+        serializer.setOutputStream(os);
+    }
+
+    private void endRequest() throws IOException {
+        serializer.fullFlush();
+        os.close();
+        compressor.onRequestEnd();
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class WireCounters {
+        public long events;
+        public long wireBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            events = 0;
+            wireBytes = 0;
+        }
+    }
+
+    private static class CountingNullOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark.report;
+
+import co.elastic.apm.agent.benchmark.AbstractMockApmServerBenchmark;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.report.Reporter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the {@code url_connection} and {@code nio} {@code api_request_transport}s.
+ * <p>
+ * The requests are kept small so that the reporter frequently has to start a new intake request,
+ * which makes the cost of establishing connections visible.
+ * See the {@code reporter.reported} secondary result of the {@link co.elastic.apm.agent.benchmark.profiler.ReporterProfiler}
+ * for the events per second the reporter could send to the mock APM Server
+ * and run with {@code -prof gc} to compare the allocation rates of both transports.
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class IntakeTransportBenchmark extends AbstractMockApmServerBenchmark {
+
+    @Param({"url_connection", "nio"})
+    public String transport;
+
+    public IntakeTransportBenchmark() {
+        super(true);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        run(IntakeTransportBenchmark.class);
+    }
+
+    @Override
+    public void setUp(Blackhole blackhole) throws IOException {
+        super.setUp(blackhole);
+        System.getProperties().put(Reporter.class.getName(), tracer.getReporter());
+    }
+
+    @Override
+    protected void addConfig(SimpleSource configSource) {
+        configSource
+            .add("api_request_transport", transport)
+            .add("api_request_size", "64kb");
+    }
+
+    @Benchmark
+    public Transaction reportTransaction() {
+        Transaction transaction = tracer.startRootTransaction(null);
+        transaction.withName("GET /api/products/{id}").withType("request").withResult("HTTP 2xx");
+        transaction.getContext().getRequest().withMethod("GET").getUrl().withPathname("/api/products/42");
+        transaction.end();
+        return transaction;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark.report;
+
+import co.elastic.apm.agent.benchmark.AbstractMockApmServerBenchmark;
+import co.elastic.apm.agent.benchmark.objectpool.CountingObjectPoolFactory;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.objectpool.ObjectPoolFactory;
+import co.elastic.apm.agent.report.Reporter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares serializing events on the reporter thread with serializing them on the application thread that ends them
+ * (see {@code serialize_events_on_end}).
+ * <p>
+ * Apart from the latency of creating a transaction with a few spans,
+ * see the {@code reporter.cpu} secondary result for the CPU utilization of the reporter thread
+ * and {@code objectpool.hit.rate} for the percentage of pooled objects (transactions, spans, serialized events)
+ * that could be reused instead of having to be allocated.
+ * </p>
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ProducerSideSerializationBenchmark extends AbstractMockApmServerBenchmark {
+
+    @Param({"false", "true"})
+    public boolean serializeEventsOnEnd;
+
+    public ProducerSideSerializationBenchmark() {
+        super(true);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        run(ProducerSideSerializationBenchmark.class);
+    }
+
+    @Override
+    public void setUp(Blackhole blackhole) throws IOException {
+        super.setUp(blackhole);
+        System.getProperties().put(Reporter.class.getName(), tracer.getReporter());
+    }
+
+    @Override
+    protected void addConfig(SimpleSource configSource) {
+        configSource.add("serialize_events_on_end", Boolean.toString(serializeEventsOnEnd));
+    }
+
+    @Override
+    protected ObjectPoolFactory createObjectPoolFactory() {
+        CountingObjectPoolFactory objectPoolFactory = new CountingObjectPoolFactory();
+        System.getProperties().put(CountingObjectPoolFactory.class.getName(), objectPoolFactory);
+        return objectPoolFactory;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Transaction transactionWithSpans() {
+        Transaction transaction = tracer.startRootTransaction(null);
+        transaction.withName("GET /api/products/{id}").withType("request").withResult("HTTP 2xx");
+        transaction.getContext().getRequest().withMethod("GET").getUrl().withPathname("/api/products/42");
+        for (int i = 0; i < 3; i++) {
+            Span span = transaction.createSpan();
+            span.withName("SELECT FROM products").withType("db").withSubtype("mysql").withAction("query");
+            span.getContext().getDb().withStatement("SELECT * FROM products WHERE id = ?");
+            span.end();
+        }
+        transaction.end();
+        return transaction;
+    }
+}
@@ -18,14 +18,51 @@
  */
 package co.elastic.apm.agent.common;
 
+import javax.annotation.Nullable;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
 public final class ThreadUtils {
 
     public static final String ELASTIC_APM_THREAD_PREFIX = "elastic-apm-";
 
+    /**
+     * {@code Thread#isVirtual()}, {@code null} on Java versions without virtual threads.
+     * As the handle is a constant, the JIT can inline {@link MethodHandle#invokeExact} like a direct call.
+     */
+    @Nullable
+    private static final MethodHandle IS_VIRTUAL = lookupIsVirtual();
+
     private ThreadUtils() {
     }
 
     public static String addElasticApmThreadPrefix(String purpose) {
         return ELASTIC_APM_THREAD_PREFIX + purpose;
     }
+
+    /**
+     * @param thread a thread
+     * @return {@code true} if the thread is a virtual thread, {@code false} if it is a platform thread or when the
+     * Java version does not support virtual threads
+     */
+    public static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(thread);
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+
+    @Nullable
+    private static MethodHandle lookupIsVirtual() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
 }
@@ -19,6 +19,8 @@
 package co.elastic.apm.agent.configuration;
 
 import co.elastic.apm.agent.bci.ElasticApmAgent;
+import co.elastic.apm.agent.configuration.converter.ByteValue;
+import co.elastic.apm.agent.configuration.converter.ByteValueConverter;
 import co.elastic.apm.agent.configuration.converter.ListValueConverter;
 import co.elastic.apm.agent.configuration.converter.RoundedDoubleConverter;
 import co.elastic.apm.agent.configuration.converter.TimeDuration;
@@ -237,6 +239,107 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         .addValidator(isInRange(0d, 1d))
         .buildWithDefault(1.0);
 
+    private final ConfigurationOption<Integer> transactionSampleBudget = ConfigurationOption.integerOption()
+        .key("transaction_sample_budget")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("added[1.35.0]", "experimental", "performance")
+        .description("The number of transactions per second to sample. `0` disables the budget.\n" +
+            "\n" +
+            "When set, the agent adjusts the sample rate every few seconds, based on how many transactions it has observed,\n" +
+            "so that about this many transactions per second are sampled.\n" +
+            "<<config-transaction-sample-rate, `transaction_sample_rate`>> still applies as the upper bound.\n" +
+            "The effective sample rate is propagated in the `tracestate` header, so that downstream services follow it\n" +
+            "and the APM Server can still extrapolate the throughput correctly.\n" +
+            "\n" +
+            "When <<config-tail-sampling-enabled, `tail_sampling_enabled`>> is set, the budget is shared by the transaction names:\n" +
+            "names that need less than their share are sampled fully and the rest of the budget is split evenly among the others,\n" +
+            "so that a frequent transaction like a health check can't use up the budget of the rare ones.\n" +
+            "Transactions that are kept due to their latency or outcome, or by a <<config-tail-sampling-policies, `tail_sampling_policies`>>,\n" +
+            "are not limited by the budget.")
+        .dynamic(true)
+        .addValidator(isInRange(0, Integer.MAX_VALUE))
+        .buildWithDefault(0);
+
+    private final ConfigurationOption<Boolean> tailSamplingEnabled = ConfigurationOption.booleanOption()
+        .key("tail_sampling_enabled")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("added[1.35.0]", "experimental", "performance")
+        .description("When enabled, the sampling decision for transactions that start a trace is made when the transaction ends, instead of when it starts.\n" +
+            "\n" +
+            "All such transactions are recorded, and their spans are buffered until the transaction has ended.\n" +
+            "Transactions that are slower than <<config-tail-sampling-latency-threshold, `tail_sampling_latency_threshold`>>\n" +
+            "or that have the outcome `failure` are always kept.\n" +
+            "For the other transactions, the sample rate of the matching <<config-tail-sampling-policies, `tail_sampling_policies`>>\n" +
+            "or, if none matches, <<config-transaction-sample-rate, `transaction_sample_rate`>> applies.\n" +
+            "The spans of transactions that are not kept are discarded and the transactions are reported as unsampled.\n" +
+            "\n" +
+            "As the decision is made locally, it only applies to the spans of this service.\n" +
+            "Downstream services receive a sampled trace context and record their part of the trace.\n" +
+            "Transactions that continue a trace of a caller are not affected.")
+        .dynamic(false)
+        .buildWithDefault(false);
+
+    private final ConfigurationOption<TimeDuration> tailSamplingLatencyThreshold = TimeDurationValueConverter.durationOption("ms")
+        .key("tail_sampling_latency_threshold")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("added[1.35.0]", "experimental", "performance")
+        .description("When <<config-tail-sampling-enabled, `tail_sampling_enabled`>> is set, transactions that take at least this long are always kept.")
+        .dynamic(true)
+        .buildWithDefault(TimeDuration.of("1s"));
+
+    private final ConfigurationOption<Map<WildcardMatcher, Double>> tailSamplingPolicies = ConfigurationOption
+        .builder(new MapValueConverter<WildcardMatcher, Double>(new WildcardMatcherValueConverter(), RoundedDoubleConverter.withDefaultPrecision(), "=", ","), Map.class)
+        .key("tail_sampling_policies")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("added[1.35.0]", "experimental", "performance")
+        .description("Sample rates for transactions with specific names, with the format `name=rate[,name=rate[,...]]`.\n" +
+            "\n" +
+            "When <<config-tail-sampling-enabled, `tail_sampling_enabled`>> is set, these sample rates apply instead of\n" +
+            "<<config-transaction-sample-rate, `transaction_sample_rate`>> to transactions that are neither slow nor failed.\n" +
+            "For example, `GET /checkout*=1.0,GET /health=0.0` keeps all checkout transactions and drops health checks.\n" +
+            "If multiple names match, the highest sample rate applies.\n" +
+            "\n" +
+            WildcardMatcher.DOCUMENTATION)
+        .dynamic(true)
+        .addValidator(new ConfigurationOption.Validator<Map<WildcardMatcher, Double>>() {
+            @Override
+            public void assertValid(@Nullable Map<WildcardMatcher, Double> value) {
+                if (value != null) {
+                    for (Map.Entry<WildcardMatcher, Double> entry : value.entrySet()) {
+                        if (entry.getValue() < 0 || entry.getValue() > 1) {
+                            throw new IllegalArgumentException("The sample rate for " + entry.getKey() + " must be between 0.0 and 1.0");
+                        }
+                    }
+                }
+            }
+        })
+        .buildWithDefault(Collections.<WildcardMatcher, Double>emptyMap());
+
+    private final ConfigurationOption<TimeDuration> tailSamplingDecisionWindow = TimeDurationValueConverter.durationOption("ms")
+        .key("tail_sampling_decision_window")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("added[1.35.0]", "experimental", "performance")
+        .description("When <<config-tail-sampling-enabled, `tail_sampling_enabled`>> is set, the maximum time the spans of a transaction\n" +
+            "that has not ended yet are buffered.\n" +
+            "Once the window has elapsed, the sampling decision for the transaction is made early,\n" +
+            "based on <<config-transaction-sample-rate, `transaction_sample_rate`>>, as neither the outcome nor the final name of the transaction are known yet.\n" +
+            "\n" +
+            "The number of buffered traces is reported as the `agent.tail_sampling.buffer.traces` metric,\n" +
+            "the average time their spans have been buffered as `agent.tail_sampling.decision.latency.avg`.")
+        .dynamic(true)
+        .buildWithDefault(TimeDuration.of("5s"));
+
+    private final ConfigurationOption<ByteValue> tailSamplingMaxBufferBytes = ByteValueConverter.byteOption()
+        .key("tail_sampling_max_buffer_bytes")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("added[1.35.0]", "experimental", "performance")
+        .description("When <<config-tail-sampling-enabled, `tail_sampling_enabled`>> is set, the maximum estimated size of the buffered spans.\n" +
+            "When the budget is exceeded, the sampling decision for the traces that have been buffered the longest is made early.\n" +
+            "\n" +
+            "The current estimated size of the buffered spans is reported as the `agent.tail_sampling.buffer.bytes` metric.")
+        .dynamic(true)
+        .buildWithDefault(ByteValue.of("10mb"));
+
     private final ConfigurationOption<Integer> transactionMaxSpans = ConfigurationOption.integerOption()
         .key("transaction_max_spans")
         .configurationCategory(CORE_CATEGORY)
@@ -748,7 +851,7 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
             "spent on metadata discovery. Wherever possible, these tasks are executed in parallel, but in some cases \n" +
             "they can't be, which means that this config doesn't indicate the absolute limit for the entire metadata \n" +
             "discovery. Rather, it defines the timeout for each metadata discovery task.")
-        .buildWithDefault(TimeDuration.of("1000ms"));
+        .buildWithDefault(TimeDuration.of("1s"));
 
     private final ConfigurationOption<Boolean> enablePublicApiAnnotationInheritance = ConfigurationOption.booleanOption()
         .key("enable_public_api_annotation_inheritance")
@@ -798,6 +901,34 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         .dynamic(true)
         .buildWithDefault(TraceContinuationStrategy.CONTINUE);
 
+    private final ConfigurationOption<ObjectPoolType> objectPoolType = ConfigurationOption.enumOption(ObjectPoolType.class)
+        .key("object_pool_type")
+        .tags("added[1.35.0]", "experimental")
+        .configurationCategory(CORE_CATEGORY)
+        .description("The type of object pool used to recycle transactions, spans, errors and span links.\n" +
+            "\n" +
+            "Valid values are:\n" +
+            "* 'queue': The default behavior. All threads share a single concurrent queue per pooled type.\n" +
+            "* 'striped': Each thread recycles into and allocates from its own small magazines of pooled objects and only " +
+            "exchanges whole magazines with a shared depot. " +
+            "This reduces contention in applications that start and end transactions and spans on many threads concurrently, " +
+            "at the expense of keeping a few more pooled objects per thread.")
+        .dynamic(false)
+        .buildWithDefault(ObjectPoolType.QUEUE);
+
+    private final ConfigurationOption<Boolean> objectPoolAdaptiveCapacity = ConfigurationOption.booleanOption()
+        .key("object_pool_adaptive_capacity")
+        .tags("added[1.35.0]", "experimental")
+        .configurationCategory(CORE_CATEGORY)
+        .description("When enabled, the number of idle transactions, spans, errors and span links the agent keeps for reuse adapts to the load.\n" +
+            "\n" +
+            "Every 10 seconds, the retained capacity of a pool grows by the number of objects that had to be allocated because the pool was empty.\n" +
+            "After a minute without such allocations, the capacity is halved, down to a minimum of 16 objects.\n" +
+            "Idle objects exceeding the capacity are released, which reduces the retained heap of services after a burst of load.\n" +
+            "By default, pools retain up to their fixed maximum capacity, which depends on <<config-max-queue-size>>.")
+        .dynamic(false)
+        .buildWithDefault(false);
+
     public boolean isEnabled() {
         return enabled.get();
     }
@@ -850,6 +981,30 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         return sampleRate;
     }
 
+    public int getTransactionSampleBudget() {
+        return transactionSampleBudget.get();
+    }
+
+    public boolean isTailSamplingEnabled() {
+        return tailSamplingEnabled.get();
+    }
+
+    public TimeDuration getTailSamplingLatencyThreshold() {
+        return tailSamplingLatencyThreshold.get();
+    }
+
+    public ConfigurationOption<Map<WildcardMatcher, Double>> getTailSamplingPolicies() {
+        return tailSamplingPolicies;
+    }
+
+    public TimeDuration getTailSamplingDecisionWindow() {
+        return tailSamplingDecisionWindow.get();
+    }
+
+    public long getTailSamplingMaxBufferBytes() {
+        return tailSamplingMaxBufferBytes.get().getBytes();
+    }
+
     public int getTransactionMaxSpans() {
         return transactionMaxSpans.get();
     }
@@ -1062,6 +1217,14 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         return traceContinuationStrategy.get();
     }
 
+    public ObjectPoolType getObjectPoolType() {
+        return objectPoolType.get();
+    }
+
+    public boolean isObjectPoolAdaptiveCapacity() {
+        return objectPoolAdaptiveCapacity.get();
+    }
+
     public enum EventType {
         /**
          * Request bodies will never be reported
@@ -1104,4 +1267,14 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
             return name().toLowerCase();
         }
     }
+
+    public enum ObjectPoolType {
+        QUEUE,
+        STRIPED;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
 }
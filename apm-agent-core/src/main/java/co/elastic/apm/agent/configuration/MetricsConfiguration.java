@@ -50,6 +50,28 @@ public class MetricsConfiguration extends ConfigurationOptionProvider {
         .dynamic(false)
         .buildWithDefault(1000);
 
+    private final ConfigurationOption<Boolean> transactionDurationHistogram = ConfigurationOption.booleanOption()
+        .key("transaction_duration_histogram_enabled")
+        .configurationCategory(METRICS_CATEGORY)
+        .description("When enabled, the agent records the durations of all transactions, including the ones that are not sampled,\n" +
+            "in the `transaction.duration.histogram` metric, per transaction name, type and outcome.\n" +
+            "This allows to calculate latency percentiles without sampling all transactions.\n" +
+            "\n" +
+            "The histograms have a fixed number of buckets, the relative error of the recorded durations is at most 12.5%.\n" +
+            "Each distinct combination of transaction name, type and outcome counts towards the <<config-metric-set-limit, `metric_set_limit`>>.")
+        .dynamic(true)
+        .tags("added[1.35.0]", "experimental")
+        .buildWithDefault(false);
+
+    private final ConfigurationOption<Boolean> objectPoolMetrics = ConfigurationOption.booleanOption()
+        .key("object_pool_metrics_enabled")
+        .configurationCategory(METRICS_CATEGORY)
+        .description("When enabled, the agent reports the `agent.objectpool.*` metrics about its internal object pools.\n" +
+            "These metrics help to tune the pool capacity, but they are not needed to monitor an application.")
+        .dynamic(false)
+        .tags("added[1.35.0]")
+        .buildWithDefault(false);
+
     public boolean isDedotCustomMetrics() {
         return dedotCustomMetrics.get();
     }
@@ -57,4 +79,12 @@ public class MetricsConfiguration extends ConfigurationOptionProvider {
     public int getMetricSetLimit() {
         return metricSetLimit.get();
     }
+
+    public boolean isTransactionDurationHistogramEnabled() {
+        return transactionDurationHistogram.get();
+    }
+
+    public boolean isObjectPoolMetricsEnabled() {
+        return objectPoolMetrics.get();
+    }
 }
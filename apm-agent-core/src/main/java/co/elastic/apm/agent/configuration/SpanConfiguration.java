@@ -67,6 +67,23 @@ public class SpanConfiguration extends ConfigurationOptionProvider {
         .dynamic(true)
         .buildWithDefault(TimeDuration.ofFine("0ms"));
 
+    private final ConfigurationOption<TimeDuration> spanClockResolution = TimeDurationValueConverter.fineDurationOption()
+        .key("span_clock_resolution")
+        .tags("added[1.35.0]", "experimental", "performance")
+        .configurationCategory(HUGE_TRACES_CATEGORY)
+        .description("When set, spans take their start and end timestamps from a clock that is updated by a background thread\n" +
+            "at this resolution, instead of reading the monotonic system clock twice per span.\n" +
+            "This reduces the overhead of short spans on hosts with a slow clock source, for example some virtualized environments.\n" +
+            "Transactions are not affected.\n" +
+            "\n" +
+            "The tradeoff is that the durations of spans are only accurate to about the resolution.\n" +
+            "Spans that are shorter than the resolution may be reported with a duration of zero,\n" +
+            "so consider setting <<config-span-min-duration, `span_min_duration`>> and <<config-exit-span-min-duration, `exit_span_min_duration`>>\n" +
+            "to at least the resolution to discard them.\n" +
+            "`0ms` disables the coarse clock.")
+        .dynamic(false)
+        .buildWithDefault(TimeDuration.ofFine("0ms"));
+
     public boolean isSpanCompressionEnabled() {
         return spanCompressionEnabled.get();
     }
@@ -82,4 +99,8 @@ public class SpanConfiguration extends ConfigurationOptionProvider {
     public TimeDuration getExitSpanMinDuration() {
         return exitSpanMinDuration.get();
     }
+
+    public TimeDuration getSpanClockResolution() {
+        return spanClockResolution.get();
+    }
 }
@@ -22,12 +22,12 @@ import co.elastic.apm.agent.impl.transaction.AbstractSpan;
 import co.elastic.apm.agent.impl.transaction.ElasticContext;
 import co.elastic.apm.agent.impl.transaction.ElasticContextWrapper;
 import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.objectpool.Recyclable;
 import co.elastic.apm.agent.sdk.logging.Logger;
 import co.elastic.apm.agent.sdk.logging.LoggerFactory;
 
 import javax.annotation.Nullable;
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.Callable;
@@ -36,11 +36,19 @@ import java.util.concurrent.Callable;
  * Manages a thread's tracing-context activation state.
  * Instances of this class should be used as thread-locals.
  * Accordingly, it is implemented without taking any thread-safety considerations into account.
+ * <p>
+ * Stacks of virtual threads are {@linkplain #isPooled() pooled}: as there may be millions of short-lived virtual threads,
+ * a virtual thread only holds a stack while it has an active context.
+ * </p>
  */
-class ActiveStack {
+class ActiveStack implements Recyclable {
 
     private static final Logger logger = LoggerFactory.getLogger(ActiveStack.class);
 
+    private static final ElasticContext<?>[] EMPTY = new ElasticContext<?>[0];
+
+    static final int INITIAL_CAPACITY = 16;
+
     private final int stackMaxDepth;
 
     /**
@@ -51,21 +59,47 @@ class ActiveStack {
     private long overflowCounter = 0;
 
     /**
-     * Maintains a stack of all the activated spans/contexts.
-     * This way it's easy to retrieve the bottom of the stack (the transaction).
-     * Also, the caller does not have to keep a reference to the previously active span, as that is maintained by the stack.
-     * This makes activating a span allocation-free (assuming the stack has enough pre-allocated slots available).
+     * Maintains a stack of all the activated spans/contexts, the top of the stack is at {@code stack[size - 1]}.
+     * The caller does not have to keep a reference to the previously active span, as that is maintained by the stack.
+     * This makes activating a span allocation-free once the array has grown to the nesting depth of the thread.
+     * The array is only allocated on the first activation, so that threads which only look up the active context don't
+     * pay for it.
+     */
+    private ElasticContext<?>[] stack = EMPTY;
+
+    private int size;
+
+    /**
+     * The context on top of the stack, unwrapped if the top of the stack is an {@link ElasticContextWrapper}.
+     * Caching it avoids the type check on every {@link #currentContext()}.
      */
-    private final Deque<ElasticContext<?>> activeContextStack = new ArrayDeque<ElasticContext<?>>();
+    @Nullable
+    private ElasticContext<?> current;
+
+    private final boolean pooled;
 
     ActiveStack(int stackMaxDepth) {
+        this(stackMaxDepth, false);
+    }
+
+    ActiveStack(int stackMaxDepth, boolean pooled) {
         this.stackMaxDepth = stackMaxDepth;
+        this.pooled = pooled;
     }
 
+    /**
+     * @return {@code true} if this stack is returned to a pool when it becomes {@linkplain #isEmpty() empty}
+     */
+    boolean isPooled() {
+        return pooled;
+    }
+
+    /**
+     * @return the transaction of the context at the bottom of the stack
+     */
     @Nullable
     Transaction currentTransaction() {
-        final ElasticContext<?> bottomOfStack = activeContextStack.peekLast();
-        return bottomOfStack != null ? bottomOfStack.getTransaction() : null;
+        return size > 0 ? stack[0].getTransaction() : null;
     }
 
     /**
@@ -73,22 +107,19 @@ class ActiveStack {
      */
     @Nullable
     public ElasticContext<?> currentContext() {
-        ElasticContext<?> current = activeContextStack.peek();
-
-        // When the active context is wrapped, the wrapper should be transparent to the caller, thus we always return
-        // the underlying wrapped context.
-        if (current instanceof ElasticContextWrapper) {
-            return ((ElasticContextWrapper<?>) current).getWrappedContext();
-        }
         return current;
     }
 
+    boolean isEmpty() {
+        return size == 0;
+    }
+
     boolean activate(ElasticContext<?> context, List<ActivationListener> activationListeners) {
         if (logger.isDebugEnabled()) {
             logger.debug("Activating {} on thread {}", context, Thread.currentThread().getId());
         }
 
-        if (activeContextStack.size() == stackMaxDepth) {
+        if (size == stackMaxDepth) {
             if (overflowCounter == 0) {
                 logger.error(String.format("Activation stack depth reached its maximum - %s. This is likely related to activation" +
                         " leak. Current transaction: %s", stackMaxDepth, currentTransaction()),
@@ -105,7 +136,7 @@ class ActiveStack {
             triggerActivationListeners(span, true, activationListeners);
         }
 
-        activeContextStack.push(context);
+        push(context);
         return true;
     }
 
@@ -119,16 +150,12 @@ class ActiveStack {
             return false;
         }
 
-        ElasticContext<?> activeContext = currentContext();
-        activeContextStack.remove();
+        // when context has been wrapped, current is already the underlying context
+        ElasticContext<?> activeContext = current;
+        pop();
 
         AbstractSpan<?> span = context.getSpan();
 
-        if (activeContext != context && activeContext instanceof ElasticContextWrapper) {
-            // when context has been wrapped, we need to get the underlying context
-            activeContext = ((ElasticContextWrapper<?>) activeContext).getWrappedContext();
-        }
-
         try {
             assertIsActive(context, activeContext, assertionsEnabled);
             if (null != span) {
@@ -142,6 +169,43 @@ class ActiveStack {
         return true;
     }
 
+    private void push(ElasticContext<?> context) {
+        if (size == stack.length) {
+            stack = Arrays.copyOf(stack, Math.min(Math.max(INITIAL_CAPACITY, size * 2), stackMaxDepth));
+        }
+        stack[size++] = context;
+        current = unwrap(context);
+    }
+
+    private void pop() {
+        if (size == 0) {
+            return;
+        }
+        stack[--size] = null;
+        if (size == 0) {
+            current = null;
+        } else {
+            current = unwrap(stack[size - 1]);
+        }
+    }
+
+    @Override
+    public void resetState() {
+        Arrays.fill(stack, 0, size, null);
+        size = 0;
+        current = null;
+        overflowCounter = 0;
+    }
+
+    private static ElasticContext<?> unwrap(ElasticContext<?> context) {
+        // When the active context is wrapped, the wrapper should be transparent to the caller, thus we always return
+        // the underlying wrapped context.
+        if (context instanceof ElasticContextWrapper) {
+            return ((ElasticContextWrapper<?>) context).getWrappedContext();
+        }
+        return context;
+    }
+
     private void triggerActivationListeners(AbstractSpan<?> span, boolean isActivate, List<ActivationListener> activationListeners) {
         for (int i = 0, size = activationListeners.size(); i < size; i++) {
             ActivationListener listener = activationListeners.get(i);
@@ -183,21 +247,20 @@ class ActiveStack {
     <T extends ElasticContext<T>> T wrapActiveContextIfRequired(Class<T> wrapperClass, Callable<T> wrapFunction, int approximateContextSize) {
 
         // the current context might be either a "regular" one or a "wrapped" one if it has already been wrapped
-        ElasticContext<?> current = activeContextStack.peek();
+        ElasticContext<?> top = size > 0 ? stack[size - 1] : null;
 
-        Objects.requireNonNull(current, "active context required for wrapping");
+        Objects.requireNonNull(top, "active context required for wrapping");
         ElasticContextWrapper<?> wrapper;
-        if (current instanceof ElasticContextWrapper) {
-            wrapper = (ElasticContextWrapper<?>) current;
+        if (top instanceof ElasticContextWrapper) {
+            wrapper = (ElasticContextWrapper<?>) top;
         } else {
-            wrapper = new ElasticContextWrapper<>(approximateContextSize, current);
+            wrapper = new ElasticContextWrapper<>(approximateContextSize, top);
         }
         T wrapped = wrapper.wrapIfRequired(wrapperClass, wrapFunction);
 
         // replace the currently active on the stack, however currentContext() will make sure to return the original
         // context in order to keep wrapping transparent.
-        activeContextStack.remove();
-        activeContextStack.push(wrapper);
+        stack[size - 1] = wrapper;
 
         return wrapped;
     }
@@ -19,19 +19,25 @@
 package co.elastic.apm.agent.impl;
 
 import co.elastic.apm.agent.common.JvmRuntimeInfo;
+import co.elastic.apm.agent.common.ThreadUtils;
 import co.elastic.apm.agent.configuration.CoreConfiguration;
 import co.elastic.apm.agent.configuration.MetricsConfiguration;
 import co.elastic.apm.agent.configuration.ServiceInfo;
 import co.elastic.apm.agent.configuration.SpanConfiguration;
 import co.elastic.apm.agent.context.ClosableLifecycleListenerAdapter;
 import co.elastic.apm.agent.context.LifecycleListener;
+import co.elastic.apm.agent.impl.context.Message;
 import co.elastic.apm.agent.impl.error.ErrorCapture;
 import co.elastic.apm.agent.impl.metadata.MetaDataFuture;
+import co.elastic.apm.agent.impl.sampling.AdaptiveSampler;
+import co.elastic.apm.agent.impl.sampling.ConstantSampler;
 import co.elastic.apm.agent.impl.sampling.ProbabilitySampler;
 import co.elastic.apm.agent.impl.sampling.Sampler;
+import co.elastic.apm.agent.impl.sampling.TailSamplingBuffer;
 import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
 import co.elastic.apm.agent.impl.transaction.AbstractSpan;
 import co.elastic.apm.agent.impl.transaction.BinaryHeaderGetter;
+import co.elastic.apm.agent.impl.transaction.CoarseNanoClock;
 import co.elastic.apm.agent.impl.transaction.ElasticContext;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.TextHeaderGetter;
@@ -40,6 +46,7 @@ import co.elastic.apm.agent.impl.transaction.Transaction;
 import co.elastic.apm.agent.logging.LoggingConfiguration;
 import co.elastic.apm.agent.matcher.WildcardMatcher;
 import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.objectpool.Allocator;
 import co.elastic.apm.agent.objectpool.ObjectPool;
 import co.elastic.apm.agent.objectpool.ObjectPoolFactory;
 import co.elastic.apm.agent.report.ApmServerClient;
@@ -58,12 +65,16 @@ import org.stagemonitor.configuration.ConfigurationRegistry;
 import javax.annotation.Nullable;
 import java.io.Closeable;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -77,6 +88,8 @@ public class ElasticApmTracer implements Tracer {
 
     private static final WeakMap<ClassLoader, ServiceInfo> serviceInfoByClassLoader = WeakConcurrent.buildMap();
 
+    private static final int MESSAGE_POOL_CAPACITY = 128;
+
     private final ConfigurationRegistry configurationRegistry;
     private final StacktraceConfiguration stacktraceConfiguration;
     private final ApmServerClient apmServerClient;
@@ -85,15 +98,16 @@ public class ElasticApmTracer implements Tracer {
     private final ObjectPool<Span> spanPool;
     private final ObjectPool<ErrorCapture> errorPool;
     private final ObjectPool<TraceContext> spanLinkPool;
+    private final ObjectPool<Message> messagePool;
+    private final Map<String, ObjectPool<?>> objectPools;
     private final Reporter reporter;
     private final ObjectPoolFactory objectPoolFactory;
 
-    private final ThreadLocal<ActiveStack> activeStack = new ThreadLocal<ActiveStack>() {
-        @Override
-        protected ActiveStack initialValue() {
-            return new ActiveStack(coreConfiguration.getTransactionMaxSpans());
-        }
-    };
+    /**
+     * Only set on threads that have activated a context, so that looking up the active context does not create a stack
+     */
+    private final ThreadLocal<ActiveStack> activeStack = new ThreadLocal<ActiveStack>();
+    private final ObjectPool<ActiveStack> activeStackPool;
 
     private final CoreConfiguration coreConfiguration;
     private final SpanConfiguration spanConfiguration;
@@ -102,6 +116,14 @@ public class ElasticApmTracer implements Tracer {
     private final ScheduledThreadPoolExecutor sharedPool;
     private final int approximateContextSize;
     private Sampler sampler;
+    private final AdaptiveSampler adaptiveSampler;
+    @Nullable
+    private final TailSamplingBuffer tailSamplingBuffer;
+    /**
+     * Only set while the tracer is running and {@code span_clock_resolution} is set
+     */
+    @Nullable
+    private volatile CoarseNanoClock coarseNanoClock;
     boolean assertionsEnabled = false;
 
     /**
@@ -139,6 +161,8 @@ public class ElasticApmTracer implements Tracer {
         });
 
         this.objectPoolFactory = poolFactory;
+        // only messaging spans and transactions borrow a message from this pool, so it doesn't need to be as large
+        messagePool = poolFactory.createMessagePool(MESSAGE_POOL_CAPACITY);
         transactionPool = poolFactory.createTransactionPool(maxPooledElements, this);
         spanPool = poolFactory.createSpanPool(maxPooledElements, this);
 
@@ -148,13 +172,39 @@ public class ElasticApmTracer implements Tracer {
         // span links pool allows for 10X the maximum allowed span links per span
         spanLinkPool = poolFactory.createSpanLinkPool(AbstractSpan.MAX_ALLOWED_SPAN_LINKS * 10, this);
 
-        sampler = ProbabilitySampler.of(coreConfiguration.getSampleRate().get());
-        coreConfiguration.getSampleRate().addChangeListener(new ConfigurationOption.ChangeListener<Double>() {
+        // virtual threads return their stacks to this pool as soon as they don't have an active context anymore
+        activeStackPool = poolFactory.createRecyclableObjectPool(maxPooledElements, new Allocator<ActiveStack>() {
             @Override
-            public void onChange(ConfigurationOption<?> configurationOption, Double oldValue, Double newValue) {
-                sampler = ProbabilitySampler.of(newValue);
+            public ActiveStack createInstance() {
+                return new ActiveStack(coreConfiguration.getTransactionMaxSpans(), true);
             }
         });
+
+        Map<String, ObjectPool<?>> pools = new LinkedHashMap<>();
+        pools.put("transaction", transactionPool);
+        pools.put("span", spanPool);
+        pools.put("error", errorPool);
+        pools.put("span_link", spanLinkPool);
+        pools.put("message", messagePool);
+        pools.put("active_stack", activeStackPool);
+        objectPools = Collections.unmodifiableMap(pools);
+
+        adaptiveSampler = new AdaptiveSampler(coreConfiguration);
+        if (coreConfiguration.isTailSamplingEnabled()) {
+            // root transactions are always sampled, the tail sampling buffer applies the sample rate once they have ended
+            tailSamplingBuffer = new TailSamplingBuffer(coreConfiguration, reporter, adaptiveSampler);
+            lifecycleListeners.add(tailSamplingBuffer);
+            sampler = ConstantSampler.of(true);
+        } else {
+            tailSamplingBuffer = null;
+            sampler = ProbabilitySampler.of(coreConfiguration.getSampleRate().get());
+            coreConfiguration.getSampleRate().addChangeListener(new ConfigurationOption.ChangeListener<Double>() {
+                @Override
+                public void onChange(ConfigurationOption<?> configurationOption, Double oldValue, Double newValue) {
+                    sampler = ProbabilitySampler.of(newValue);
+                }
+            });
+        }
         this.activationListeners = DependencyInjectingServiceLoader.load(ActivationListener.class, this);
         sharedPool = ExecutorUtils.createSingleThreadSchedulingDaemonPool("shared");
 
@@ -171,13 +221,13 @@ public class ElasticApmTracer implements Tracer {
     @Override
     @Nullable
     public Transaction startRootTransaction(@Nullable ClassLoader initiatingClassLoader) {
-        return startRootTransaction(sampler, -1, initiatingClassLoader);
+        return startRootTransaction(getSampler(), -1, initiatingClassLoader);
     }
 
     @Override
     @Nullable
     public Transaction startRootTransaction(@Nullable ClassLoader initiatingClassLoader, long epochMicro) {
-        return startRootTransaction(sampler, epochMicro, initiatingClassLoader);
+        return startRootTransaction(getSampler(), epochMicro, initiatingClassLoader);
     }
 
     @Override
@@ -194,13 +244,13 @@ public class ElasticApmTracer implements Tracer {
     @Override
     @Nullable
     public <C> Transaction startChildTransaction(@Nullable C headerCarrier, TextHeaderGetter<C> textHeadersGetter, @Nullable ClassLoader initiatingClassLoader) {
-        return startChildTransaction(headerCarrier, textHeadersGetter, sampler, -1, initiatingClassLoader);
+        return startChildTransaction(headerCarrier, textHeadersGetter, getSampler(), -1, initiatingClassLoader);
     }
 
     @Override
     @Nullable
     public <C> Transaction startChildTransaction(@Nullable C headerCarrier, TextHeaderGetter<C> textHeadersGetter, @Nullable ClassLoader initiatingClassLoader, long epochMicros) {
-        return startChildTransaction(headerCarrier, textHeadersGetter, sampler, epochMicros, initiatingClassLoader);
+        return startChildTransaction(headerCarrier, textHeadersGetter, getSampler(), epochMicros, initiatingClassLoader);
     }
 
     @Override
@@ -219,7 +269,7 @@ public class ElasticApmTracer implements Tracer {
     @Override
     @Nullable
     public <C> Transaction startChildTransaction(@Nullable C headerCarrier, BinaryHeaderGetter<C> binaryHeadersGetter, @Nullable ClassLoader initiatingClassLoader) {
-        return startChildTransaction(headerCarrier, binaryHeadersGetter, sampler, -1, initiatingClassLoader);
+        return startChildTransaction(headerCarrier, binaryHeadersGetter, getSampler(), -1, initiatingClassLoader);
     }
 
     @Override
@@ -265,7 +315,8 @@ public class ElasticApmTracer implements Tracer {
     @Override
     @Nullable
     public Transaction currentTransaction() {
-        return activeStack.get().currentTransaction();
+        ActiveStack stack = getActiveStack();
+        return stack != null ? stack.currentTransaction() : null;
     }
 
     /**
@@ -380,6 +431,11 @@ public class ElasticApmTracer implements Tracer {
                     new RuntimeException("this exception is just used to record where the transaction has been ended from"));
             }
         }
+        if (tailSamplingBuffer != null) {
+            tailSamplingBuffer.onTransactionEnd(transaction);
+        } else if (adaptiveSampler.isEnabled() && !transaction.isNoop() && transaction.getTraceContext().getParentId().isEmpty()) {
+            adaptiveSampler.onRootTransactionEnd();
+        }
         if (!transaction.isNoop() &&
             (transaction.isSampled() || apmServerClient.supportsKeepingUnsampledTransaction())) {
             // we do report non-sampled transactions (without the context)
@@ -447,6 +503,9 @@ public class ElasticApmTracer implements Tracer {
                 span.withStacktrace(new Throwable());
             }
         }
+        if (tailSamplingBuffer != null && tailSamplingBuffer.offer(span)) {
+            return;
+        }
         reporter.report(span);
     }
 
@@ -458,6 +517,13 @@ public class ElasticApmTracer implements Tracer {
         return spanLinkPool.createInstance();
     }
 
+    /**
+     * @return the pool the contexts of transactions, spans and errors borrow their {@link Message} from
+     */
+    public ObjectPool<Message> getMessagePool() {
+        return messagePool;
+    }
+
     public void recycle(Transaction transaction) {
         transactionPool.recycle(transaction);
     }
@@ -487,6 +553,11 @@ public class ElasticApmTracer implements Tracer {
             }
         }
         ExecutorUtils.shutdownAndWaitTermination(sharedPool);
+        CoarseNanoClock clock = coarseNanoClock;
+        if (clock != null) {
+            coarseNanoClock = null;
+            clock.stop();
+        }
         tracerState = TracerState.STOPPED;
         logger.info("Tracer switched to STOPPED state");
         if (logger.isDebugEnabled()) {
@@ -496,6 +567,7 @@ public class ElasticApmTracer implements Tracer {
         try {
             configurationRegistry.close();
             reporter.close();
+            apmServerClient.close();
         } catch (Exception e) {
             logger.warn("Suppressed exception while calling stop()", e);
         }
@@ -506,14 +578,40 @@ public class ElasticApmTracer implements Tracer {
         return reporter;
     }
 
+    /**
+     * @return the sampler for transactions that start a trace
+     */
     public Sampler getSampler() {
+        if (tailSamplingBuffer == null && adaptiveSampler.isEnabled()) {
+            return adaptiveSampler.getSampler();
+        }
         return sampler;
     }
 
+    /**
+     * @return the clock for the timestamps of spans, {@code null} if they are taken from {@link System#nanoTime()}
+     */
+    @Nullable
+    public CoarseNanoClock getCoarseNanoClock() {
+        return coarseNanoClock;
+    }
+
+    @Nullable
+    public TailSamplingBuffer getTailSamplingBuffer() {
+        return tailSamplingBuffer;
+    }
+
     public ObjectPoolFactory getObjectPoolFactory() {
         return objectPoolFactory;
     }
 
+    /**
+     * @return the pools of transactions, spans, errors, span links and activation stacks of virtual threads, by their name
+     */
+    public Map<String, ObjectPool<?>> getObjectPools() {
+        return objectPools;
+    }
+
     @Override
     @Nullable
     public AbstractSpan<?> getActive() {
@@ -616,6 +714,12 @@ public class ElasticApmTracer implements Tracer {
         }
         apmServerClient.start();
         reporter.start();
+        long spanClockResolutionNs = TimeUnit.MICROSECONDS.toNanos(spanConfiguration.getSpanClockResolution().getMicros());
+        if (spanClockResolutionNs > 0) {
+            CoarseNanoClock clock = new CoarseNanoClock(spanClockResolutionNs);
+            clock.start();
+            coarseNanoClock = clock;
+        }
         for (LifecycleListener lifecycleListener : lifecycleListeners) {
             try {
                 lifecycleListener.start(this);
@@ -727,7 +831,8 @@ public class ElasticApmTracer implements Tracer {
      */
     @Nullable
     public ElasticContext<?> currentContext() {
-        return activeStack.get().currentContext();
+        ActiveStack stack = getActiveStack();
+        return stack != null ? stack.currentContext() : null;
     }
 
     /**
@@ -740,11 +845,14 @@ public class ElasticApmTracer implements Tracer {
      * @return newly (or previously) created wrapper
      */
     public <T extends ElasticContext<T>> T wrapActiveContextIfRequired(Class<T> wrapperClass, Callable<T> wrapFunction) {
-        return activeStack.get().wrapActiveContextIfRequired(wrapperClass, wrapFunction, approximateContextSize);
+        // without a stack, there's no active context to wrap
+        // failing before getOrCreateActiveStack avoids leaking a pooled stack to the thread local of a virtual thread
+        ActiveStack stack = Objects.requireNonNull(activeStack.get(), "active context required for wrapping");
+        return stack.wrapActiveContextIfRequired(wrapperClass, wrapFunction, approximateContextSize);
     }
 
     public void activate(ElasticContext<?> context) {
-        activeStack.get().activate(context, activationListeners);
+        getOrCreateActiveStack().activate(context, activationListeners);
     }
 
     public Scope activateInScope(final ElasticContext<?> context) {
@@ -767,7 +875,31 @@ public class ElasticApmTracer implements Tracer {
     }
 
     public void deactivate(ElasticContext<?> context) {
-        activeStack.get().deactivate(context, activationListeners, assertionsEnabled);
+        ActiveStack stack = getOrCreateActiveStack();
+        stack.deactivate(context, activationListeners, assertionsEnabled);
+        if (stack.isPooled() && stack.isEmpty()) {
+            activeStack.remove();
+            activeStackPool.recycle(stack);
+        }
+    }
+
+    // visible for testing
+    @Nullable
+    ActiveStack getActiveStack() {
+        return activeStack.get();
+    }
+
+    private ActiveStack getOrCreateActiveStack() {
+        ActiveStack stack = activeStack.get();
+        if (stack == null) {
+            if (ThreadUtils.isVirtual(Thread.currentThread())) {
+                stack = activeStackPool.createInstance();
+            } else {
+                stack = new ActiveStack(coreConfiguration.getTransactionMaxSpans());
+            }
+            activeStack.set(stack);
+        }
+        return stack;
     }
 
     public MetricRegistry getMetricRegistry() {
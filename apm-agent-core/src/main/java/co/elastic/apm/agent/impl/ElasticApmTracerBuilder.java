@@ -70,6 +70,7 @@ public class ElasticApmTracerBuilder {
     @Nullable
     private Reporter reporter;
 
+    @Nullable
     private ObjectPoolFactory objectPoolFactory;
 
     private final List<LifecycleListener> extraLifecycleListeners;
@@ -96,7 +97,6 @@ public class ElasticApmTracerBuilder {
         this.ephemeralId = UUID.randomUUID().toString();
         LoggingConfiguration.init(configSources, ephemeralId);
         logger = LoggerFactory.getLogger(getClass());
-        objectPoolFactory = new ObjectPoolFactory();
         extraLifecycleListeners = new ArrayList<>();
     }
 
@@ -154,6 +154,10 @@ public class ElasticApmTracerBuilder {
             apmServerClient = new ApmServerClient(configurationRegistry.getConfig(ReporterConfiguration.class), configurationRegistry.getConfig(CoreConfiguration.class));
         }
 
+        if (objectPoolFactory == null) {
+            objectPoolFactory = new ObjectPoolFactory(configurationRegistry.getConfig(CoreConfiguration.class).getObjectPoolType());
+        }
+
         MetaDataFuture metaDataFuture = MetaData.create(configurationRegistry, ephemeralId);
         if (addApmServerConfigSource) {
             // adding remote configuration source last will make it highest priority
@@ -172,7 +176,7 @@ public class ElasticApmTracerBuilder {
         }
 
         if (reporter == null) {
-            reporter = new ReporterFactory().createReporter(configurationRegistry, apmServerClient, metaDataFuture);
+            reporter = new ReporterFactory().createReporter(configurationRegistry, apmServerClient, metaDataFuture, objectPoolFactory);
         }
 
         ElasticApmTracer tracer = new ElasticApmTracer(configurationRegistry, reporter, objectPoolFactory, apmServerClient, ephemeralId, metaDataFuture);
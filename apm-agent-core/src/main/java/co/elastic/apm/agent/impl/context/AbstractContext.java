@@ -18,76 +18,184 @@
  */
 package co.elastic.apm.agent.impl.context;
 
+import co.elastic.apm.agent.objectpool.ObjectPool;
 import co.elastic.apm.agent.objectpool.Recyclable;
 
 import javax.annotation.Nullable;
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.NoSuchElementException;
 
 public abstract class AbstractContext implements Recyclable {
 
     public static final String REDACTED_CONTEXT_STRING = "[REDACTED]";
 
+    /**
+     * Only messaging spans and transactions need a {@link Message}, which is why it is borrowed from this pool on first use.
+     * If there is no pool, the message is allocated instead.
+     */
+    @Nullable
+    private final ObjectPool<Message> messagePool;
+
     /**
      * A flat mapping of user-defined labels with {@link String} keys and {@link String}, {@link Number} or {@link Boolean} values
      * (formerly known as tags).
      * <p>
      * See also https://github.com/elastic/ecs#-base-fields
      * </p>
+     * <p>
+     * The keys and values are kept in two lists, in the order the labels have been added,
+     * so that they can be iterated by index and adding a label doesn't allocate once the lists have grown.
+     * Labels are added by the thread that owns the transaction or span, which is why the lists are not synchronized.
+     * </p>
      */
-    private final Map<String, Object> labels = new ConcurrentHashMap<>();
+    private final List<String> labelKeys = new ArrayList<>();
+    private final List<Object> labelValues = new ArrayList<>();
 
     /**
      * An object containing contextual data for Messages (incoming in case of transactions or outgoing in case of spans)
      */
-    private final Message message = new Message();
+    @Nullable
+    private Message message;
+
+    protected AbstractContext() {
+        this(null);
+    }
+
+    protected AbstractContext(@Nullable ObjectPool<Message> messagePool) {
+        this.messagePool = messagePool;
+    }
 
     public Iterator<? extends Map.Entry<String, ?>> getLabelIterator() {
-        return labels.entrySet().iterator();
+        return new Iterator<Map.Entry<String, ?>>() {
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                return index < labelKeys.size();
+            }
+
+            @Override
+            public Map.Entry<String, ?> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, ?> entry = new AbstractMap.SimpleImmutableEntry<>(labelKeys.get(index), labelValues.get(index));
+                index++;
+                return entry;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Allows to iterate over the labels without allocating an {@link Iterator}, in combination with {@link #getLabelValue(int)}.
+     * Do not modify this list.
+     *
+     * @return the keys of the labels, in the order they have been added
+     */
+    public List<String> getLabelKeys() {
+        return labelKeys;
+    }
+
+    /**
+     * @param index the index of the label's key in {@link #getLabelKeys()}
+     * @return the value of the label
+     */
+    public Object getLabelValue(int index) {
+        return labelValues.get(index);
     }
 
     public void addLabel(String key, String value) {
-        labels.put(key, value);
+        putLabel(key, value);
     }
 
     public void addLabel(String key, Number value) {
-        labels.put(key, value);
+        putLabel(key, value);
     }
 
     public void addLabel(String key, boolean value) {
-        labels.put(key, value);
+        putLabel(key, value);
+    }
+
+    private void putLabel(String key, Object value) {
+        int index = labelKeys.indexOf(key);
+        if (index >= 0) {
+            labelValues.set(index, value);
+        } else {
+            labelKeys.add(key);
+            labelValues.add(value);
+        }
     }
 
     @Nullable
     public Object getLabel(String key) {
-        return labels.get(key);
+        int index = labelKeys.indexOf(key);
+        return index >= 0 ? labelValues.get(index) : null;
     }
 
     public void clearLabels() {
-        labels.clear();
+        labelKeys.clear();
+        labelValues.clear();
     }
 
     public boolean hasLabels() {
-        return !labels.isEmpty();
+        return !labelKeys.isEmpty();
     }
 
+    /**
+     * Gets the {@link Message} of this context, which is borrowed from a pool when this method is called for the first time.
+     * Use {@link #getMessageForRead()} when the message is not going to be updated.
+     * <p>
+     * Note: This method is not thread safe
+     * </p>
+     *
+     * @return the message of this context
+     */
     public Message getMessage() {
+        Message message = this.message;
+        if (message == null) {
+            message = this.message = messagePool != null ? messagePool.createInstance() : new Message();
+        }
+        return message;
+    }
+
+    /**
+     * @return the message of this context, or {@code null} if {@link #getMessage()} has never been called
+     */
+    @Nullable
+    public Message getMessageForRead() {
         return message;
     }
 
     @Override
     public void resetState() {
-        labels.clear();
-        message.resetState();
+        clearLabels();
+        if (message != null) {
+            if (messagePool != null) {
+                messagePool.recycle(message);
+            }
+            message = null;
+        }
     }
 
     public boolean hasContent() {
-        return !labels.isEmpty() || message.hasContent();
+        return !labelKeys.isEmpty() || (message != null && message.hasContent());
     }
 
     public void copyFrom(AbstractContext other) {
-        labels.putAll(other.labels);
-        message.copyFrom(other.message);
+        for (int i = 0; i < other.labelKeys.size(); i++) {
+            putLabel(other.labelKeys.get(i), other.labelValues.get(i));
+        }
+        if (other.message != null) {
+            getMessage().copyFrom(other.message);
+        }
     }
 }
@@ -57,7 +57,10 @@ public class BodyProcessor implements Processor {
             if (context.getRequest().getBody() != null) {
                 context.getRequest().redactBody();
             }
-            context.getMessage().redactBody();
+            Message message = context.getMessageForRead();
+            if (message != null) {
+                message.redactBody();
+            }
         }
     }
 }
@@ -18,6 +18,9 @@
  */
 package co.elastic.apm.agent.impl.context;
 
+import co.elastic.apm.agent.objectpool.ObjectPool;
+
+import javax.annotation.Nullable;
 
 /**
  * Any other arbitrary data captured by the agent, optionally provided by the user
@@ -44,6 +47,13 @@ public class SpanContext extends AbstractContext {
      */
     private final ServiceTarget serviceTarget = new ServiceTarget();
 
+    public SpanContext() {
+    }
+
+    public SpanContext(@Nullable ObjectPool<Message> messagePool) {
+        super(messagePool);
+    }
+
     /**
      * An object containing contextual data for database spans
      */
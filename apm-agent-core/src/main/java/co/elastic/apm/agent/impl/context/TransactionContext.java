@@ -18,6 +18,9 @@
  */
 package co.elastic.apm.agent.impl.context;
 
+import co.elastic.apm.agent.objectpool.ObjectPool;
+
+import javax.annotation.Nullable;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -65,6 +68,13 @@ public class TransactionContext extends AbstractContext {
      */
     private final ServiceOrigin serviceOrigin = new ServiceOrigin();
 
+    public TransactionContext() {
+    }
+
+    public TransactionContext(@Nullable ObjectPool<Message> messagePool) {
+        super(messagePool);
+    }
+
     public void copyFrom(TransactionContext other) {
         super.copyFrom(other);
         response.copyFrom(other.response);
@@ -51,7 +51,7 @@ public class ErrorCapture implements Recyclable {
      * <p>
      * Any arbitrary contextual information regarding the event, captured by the agent, optionally provided by the user
      */
-    private final TransactionContext context = new TransactionContext();
+    private final TransactionContext context;
     private final ElasticApmTracer tracer;
     /**
      * Information about the originally thrown error.
@@ -74,6 +74,7 @@ public class ErrorCapture implements Recyclable {
     public ErrorCapture(ElasticApmTracer tracer) {
         this.tracer = tracer;
         traceContext = TraceContext.with128BitId(this.tracer);
+        context = new TransactionContext(tracer.getMessagePool());
     }
 
     /**
@@ -0,0 +1,290 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.sampling;
+
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.configuration.converter.RoundedDoubleConverter;
+import co.elastic.apm.agent.util.CharSequenceUtils;
+
+import javax.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Adjusts the sample rate so that about {@link CoreConfiguration#getTransactionSampleBudget()} transactions per second are sampled.
+ * <p>
+ * Every {@link #ADJUSTMENT_INTERVAL_NS}, the number of transactions observed during the interval is turned into a smoothed
+ * throughput, from which the sample rate for the next interval is computed.
+ * There is no background thread, the rates are adjusted by the thread that observes the first transaction after the interval has elapsed.
+ * </p>
+ * <p>
+ * As the name of a transaction is usually not known yet when it starts, the head-based {@linkplain #getSampler() sampler}
+ * applies one rate to all transactions.
+ * When the sampling decision is made once the transaction has ended (see {@link TailSamplingBuffer}), each transaction name gets
+ * its own {@linkplain #getSampler(CharSequence) sampler}.
+ * The budget is then shared like this: names that need less than an even share are sampled fully,
+ * and what they leave is split evenly among the others.
+ * The number of names is limited by {@link #MAX_NAMES}, further names share a single reservoir.
+ * </p>
+ */
+public class AdaptiveSampler {
+
+    static final int MAX_NAMES = 1000;
+    static final long ADJUSTMENT_INTERVAL_NS = TimeUnit.SECONDS.toNanos(5);
+    /**
+     * The weight of the last interval when smoothing the observed throughput
+     */
+    private static final double SMOOTHING = 0.5;
+    /**
+     * Reservoirs with a lower smoothed throughput (per second) are removed to make room for other names
+     */
+    private static final double MIN_THROUGHPUT = 0.01;
+    private static final RoundedDoubleConverter ROUNDING = RoundedDoubleConverter.withDefaultPrecision();
+    /**
+     * The lowest non-zero rate that can be represented with the {@linkplain RoundedDoubleConverter#DEFAULT_PRECISION default precision}.
+     * Names with a throughput that exceeds the budget by more than that are still sampled with this rate,
+     * instead of a rate that would be rounded to zero.
+     */
+    private static final double MIN_RATE = 0.0001;
+    private static final Comparator<Reservoir> BY_THROUGHPUT = new Comparator<Reservoir>() {
+        @Override
+        public int compare(Reservoir r1, Reservoir r2) {
+            return Double.compare(r1.throughput, r2.throughput);
+        }
+    };
+    /**
+     * Used to look up the reservoir of a name without turning the name into a {@link String} first
+     */
+    private static final ThreadLocal<NameKey> lookupKey = new ThreadLocal<NameKey>() {
+        @Override
+        protected NameKey initialValue() {
+            return new NameKey();
+        }
+    };
+
+    private final CoreConfiguration coreConfiguration;
+    private final Reservoir all;
+    private final ConcurrentHashMap<NameKey, Reservoir> byName = new ConcurrentHashMap<>();
+    private final Reservoir otherNames;
+    private final AtomicLong nextAdjustmentNs;
+    /**
+     * Guarded by this
+     */
+    private final List<Reservoir> sortedReservoirs = new ArrayList<>();
+
+    public AdaptiveSampler(CoreConfiguration coreConfiguration) {
+        this(coreConfiguration, System.nanoTime());
+    }
+
+    AdaptiveSampler(CoreConfiguration coreConfiguration, long nowNs) {
+        this.coreConfiguration = coreConfiguration;
+        double sampleRate = coreConfiguration.getSampleRate().get();
+        all = new Reservoir(sampleRate);
+        otherNames = new Reservoir(sampleRate);
+        nextAdjustmentNs = new AtomicLong(nowNs + ADJUSTMENT_INTERVAL_NS);
+    }
+
+    /**
+     * @return whether a {@linkplain CoreConfiguration#getTransactionSampleBudget() budget} is configured
+     */
+    public boolean isEnabled() {
+        return coreConfiguration.getTransactionSampleBudget() > 0;
+    }
+
+    /**
+     * @return the sampler for transactions of any name, for the sampling decision when a transaction starts
+     */
+    public Sampler getSampler() {
+        return all.sampler;
+    }
+
+    /**
+     * Counts a transaction that started a trace with the decision of {@link #getSampler()}
+     */
+    public void onRootTransactionEnd() {
+        all.count.incrementAndGet();
+        adjustRatesIfDue(System.nanoTime());
+    }
+
+    /**
+     * Counts a transaction of the given name and returns the sampler for it.
+     * The sampler is only stable until the next adjustment, so it should only be used for a single decision.
+     *
+     * @param name the name of a transaction which has ended
+     * @return the sampler for transactions of the given name
+     */
+    public Sampler getSampler(CharSequence name) {
+        Reservoir reservoir = getReservoir(name);
+        reservoir.count.incrementAndGet();
+        adjustRatesIfDue(System.nanoTime());
+        return reservoir.sampler;
+    }
+
+    private Reservoir getReservoir(CharSequence name) {
+        Reservoir reservoir = lookup(name);
+        if (reservoir == null) {
+            if (byName.size() >= MAX_NAMES) {
+                return otherNames;
+            }
+            // new names are sampled with the configured sample rate until the next adjustment
+            Reservoir newReservoir = new Reservoir(coreConfiguration.getSampleRate().get());
+            // only the map gets its own copy of the name, as the name is usually a mutable, recycled buffer
+            reservoir = byName.putIfAbsent(new NameKey().with(name.toString()), newReservoir);
+            if (reservoir == null) {
+                reservoir = newReservoir;
+            }
+        }
+        return reservoir;
+    }
+
+    @Nullable
+    private Reservoir lookup(CharSequence name) {
+        NameKey key = lookupKey.get().with(name);
+        try {
+            return byName.get(key);
+        } finally {
+            key.with(null);
+        }
+    }
+
+    void adjustRatesIfDue(long nowNs) {
+        long next = nextAdjustmentNs.get();
+        if (nowNs - next >= 0 && nextAdjustmentNs.compareAndSet(next, nowNs + ADJUSTMENT_INTERVAL_NS)) {
+            adjustRates((double) (nowNs - next + ADJUSTMENT_INTERVAL_NS) / TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+
+    /**
+     * @param intervalSeconds the time since the last adjustment
+     */
+    synchronized void adjustRates(double intervalSeconds) {
+        double budget = coreConfiguration.getTransactionSampleBudget();
+        double maxRate = coreConfiguration.getSampleRate().get();
+        all.updateThroughput(intervalSeconds);
+        all.updateSampler(budget > 0 ? rate(budget, all.throughput, maxRate) : maxRate);
+
+        sortedReservoirs.clear();
+        for (Iterator<Map.Entry<NameKey, Reservoir>> iterator = byName.entrySet().iterator(); iterator.hasNext(); ) {
+            Reservoir reservoir = iterator.next().getValue();
+            reservoir.updateThroughput(intervalSeconds);
+            if (reservoir.throughput < MIN_THROUGHPUT) {
+                iterator.remove();
+            } else {
+                sortedReservoirs.add(reservoir);
+            }
+        }
+        otherNames.updateThroughput(intervalSeconds);
+        sortedReservoirs.add(otherNames);
+        Collections.sort(sortedReservoirs, BY_THROUGHPUT);
+        double remainingBudget = budget;
+        for (int i = 0; i < sortedReservoirs.size(); i++) {
+            Reservoir reservoir = sortedReservoirs.get(i);
+            if (budget > 0) {
+                double share = remainingBudget / (sortedReservoirs.size() - i);
+                remainingBudget -= Math.min(share, reservoir.throughput);
+                reservoir.updateSampler(rate(share, reservoir.throughput, maxRate));
+            } else {
+                reservoir.updateSampler(maxRate);
+            }
+        }
+        sortedReservoirs.clear();
+    }
+
+    private static double rate(double budget, double throughput, double maxRate) {
+        if (throughput <= budget) {
+            return maxRate;
+        }
+        return Math.min(maxRate, ROUNDING.round(Math.max(MIN_RATE, budget / throughput)));
+    }
+
+    /**
+     * @return the smoothed number of transactions per second that have been observed for the given name
+     */
+    synchronized double getThroughput(CharSequence name) {
+        Reservoir reservoir = lookup(name);
+        return reservoir != null ? reservoir.throughput : otherNames.throughput;
+    }
+
+    /**
+     * @return the smoothed number of transactions per second that have been observed by {@link #onRootTransactionEnd()}
+     */
+    synchronized double getThroughput() {
+        return all.throughput;
+    }
+
+    private static class Reservoir {
+        private final AtomicLong count = new AtomicLong();
+        /**
+         * Smoothed transactions per second, {@code -1} before the first adjustment.
+         * Guarded by the {@link AdaptiveSampler}.
+         */
+        private double throughput = -1;
+        private volatile Sampler sampler;
+
+        private Reservoir(double sampleRate) {
+            sampler = ProbabilitySampler.of(sampleRate);
+        }
+
+        private void updateThroughput(double intervalSeconds) {
+            double lastInterval = count.getAndSet(0) / intervalSeconds;
+            throughput = throughput < 0 ? lastInterval : SMOOTHING * lastInterval + (1 - SMOOTHING) * throughput;
+        }
+
+        private void updateSampler(double sampleRate) {
+            if (sampler.getSampleRate() != sampleRate) {
+                sampler = ProbabilitySampler.of(sampleRate);
+            }
+        }
+    }
+
+    /**
+     * A map key that compares the content of a {@link CharSequence}.
+     * The keys in the map hold an immutable {@link String}, a single, mutable instance per thread is used for lookups.
+     */
+    private static class NameKey {
+        @Nullable
+        private CharSequence name;
+        private int hash;
+
+        private NameKey with(@Nullable CharSequence name) {
+            this.name = name;
+            // String caches its hash code, which is computed in the same way
+            hash = name == null ? 0 : name instanceof String ? name.hashCode() : CharSequenceUtils.hashCode(name);
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof NameKey && CharSequenceUtils.equals(name, ((NameKey) o).name);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,503 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.sampling;
+
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.context.AbstractLifecycleListener;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.transaction.AbstractSpan;
+import co.elastic.apm.agent.impl.transaction.Outcome;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.matcher.WildcardMatcher;
+import co.elastic.apm.agent.report.EventSizeEstimator;
+import co.elastic.apm.agent.report.Reporter;
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+import org.stagemonitor.configuration.ConfigurationOption;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Makes the sampling decision for transactions that start a trace when they end, instead of when they start (tail-based sampling).
+ * <p>
+ * Such transactions are always started as sampled.
+ * Their spans are buffered until the transaction has ended, and are then either reported or discarded,
+ * depending on the transaction's duration, its outcome and its name.
+ * Transactions that are not kept are reported as unsampled, so that they are still counted.
+ * </p>
+ * <p>
+ * The spans of a transaction are buffered for at most {@link CoreConfiguration#getTailSamplingDecisionWindow()},
+ * and the estimated size of all buffered spans is limited by {@link CoreConfiguration#getTailSamplingMaxBufferBytes()}.
+ * When either limit is exceeded, the decision for the traces that have been buffered the longest is made early.
+ * Besides being checked whenever a span or transaction ends, the decision window is checked periodically on the
+ * {@linkplain ElasticApmTracer#getSharedSingleThreadedPool() shared pool}, so that spans are not buffered indefinitely
+ * when no further events occur.
+ * </p>
+ * <p>
+ * The decision is stored in the transaction, so that spans which end after it has been made don't need to be buffered.
+ * This is safe as every span holds a reference to its transaction.
+ * </p>
+ */
+public class TailSamplingBuffer extends AbstractLifecycleListener implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TailSamplingBuffer.class);
+
+    public enum Decision {
+        KEEP_LATENCY(true, "latency"),
+        KEEP_FAILURE(true, "failure"),
+        KEEP_POLICY(true, "policy"),
+        DROP_POLICY(false, "policy"),
+        KEEP_SAMPLE_RATE(true, "sample_rate"),
+        DROP_SAMPLE_RATE(false, "sample_rate");
+
+        private final boolean keep;
+        private final String reason;
+
+        Decision(boolean keep, String reason) {
+            this.keep = keep;
+            this.reason = reason;
+        }
+
+        public boolean isKeep() {
+            return keep;
+        }
+
+        /**
+         * @return why the trace has been kept or dropped
+         */
+        public String getReason() {
+            return reason;
+        }
+    }
+
+    /**
+     * A {@link Decision} and, if the trace is kept based on a sample rate, the sampler which applies to it.
+     */
+    public static final class Verdict {
+        private static final Verdict KEEP_LATENCY = new Verdict(Decision.KEEP_LATENCY, null);
+        private static final Verdict KEEP_FAILURE = new Verdict(Decision.KEEP_FAILURE, null);
+        private static final Verdict DROP_POLICY = new Verdict(Decision.DROP_POLICY, null);
+        private static final Verdict DROP_SAMPLE_RATE = new Verdict(Decision.DROP_SAMPLE_RATE, null);
+
+        private final Decision decision;
+        @Nullable
+        private final Sampler sampler;
+
+        private Verdict(Decision decision, @Nullable Sampler sampler) {
+            this.decision = decision;
+            this.sampler = sampler;
+        }
+
+        public Decision getDecision() {
+            return decision;
+        }
+
+        public boolean isKeep() {
+            return decision.isKeep();
+        }
+    }
+
+    private final CoreConfiguration coreConfiguration;
+    private final Reporter reporter;
+    private final AdaptiveSampler adaptiveSampler;
+
+    /**
+     * The traces with buffered spans, in the order their first span has been buffered.
+     * Traces that have been decided are removed lazily, once they are at the head of the queue.
+     */
+    private final Queue<PendingTrace> pendingTraces = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger undecidedTraces = new AtomicInteger();
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    private final AtomicLongArray decisions = new AtomicLongArray(Decision.values().length);
+    private final AtomicLong bufferedTracesDecided = new AtomicLong();
+    private final AtomicLong bufferedNsOfDecidedTraces = new AtomicLong();
+
+    /**
+     * Holds the sampler for {@link CoreConfiguration#getSampleRate()}
+     */
+    private volatile Verdict keepBySampleRate;
+    private volatile List<Policy> policies;
+    @Nullable
+    private volatile ScheduledExecutorService sweeper;
+
+    public TailSamplingBuffer(CoreConfiguration coreConfiguration, Reporter reporter, AdaptiveSampler adaptiveSampler) {
+        this.coreConfiguration = coreConfiguration;
+        this.reporter = reporter;
+        this.adaptiveSampler = adaptiveSampler;
+        keepBySampleRate = new Verdict(Decision.KEEP_SAMPLE_RATE, ProbabilitySampler.of(coreConfiguration.getSampleRate().get()));
+        coreConfiguration.getSampleRate().addChangeListener(new ConfigurationOption.ChangeListener<Double>() {
+            @Override
+            public void onChange(ConfigurationOption<?> configurationOption, Double oldValue, Double newValue) {
+                keepBySampleRate = new Verdict(Decision.KEEP_SAMPLE_RATE, ProbabilitySampler.of(newValue));
+            }
+        });
+        policies = toPolicies(coreConfiguration.getTailSamplingPolicies().get());
+        coreConfiguration.getTailSamplingPolicies().addChangeListener(new ConfigurationOption.ChangeListener<Map<WildcardMatcher, Double>>() {
+            @Override
+            public void onChange(ConfigurationOption<?> configurationOption, Map<WildcardMatcher, Double> oldValue, Map<WildcardMatcher, Double> newValue) {
+                policies = toPolicies(newValue);
+            }
+        });
+    }
+
+    @Override
+    public void start(ElasticApmTracer tracer) {
+        ScheduledExecutorService sweeper = tracer.getSharedSingleThreadedPool();
+        this.sweeper = sweeper;
+        scheduleSweep(sweeper);
+    }
+
+    @Override
+    public void stop() {
+        sweeper = null;
+    }
+
+    /**
+     * Makes the decisions that are due, for when no span or transaction has ended during the last decision window
+     */
+    @Override
+    public void run() {
+        try {
+            makeEarlyDecisions(System.nanoTime());
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+        } finally {
+            ScheduledExecutorService sweeper = this.sweeper;
+            if (sweeper != null) {
+                scheduleSweep(sweeper);
+            }
+        }
+    }
+
+    /**
+     * Schedules a single sweep, rather than one at a fixed rate, so that changes of the decision window are picked up
+     */
+    private void scheduleSweep(ScheduledExecutorService sweeper) {
+        try {
+            sweeper.schedule(this, Math.max(1, coreConfiguration.getTailSamplingDecisionWindow().getMillis()), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // the tracer is being stopped
+        }
+    }
+
+    private static List<Policy> toPolicies(Map<WildcardMatcher, Double> sampleRates) {
+        List<Policy> policies = new ArrayList<>(sampleRates.size());
+        for (Map.Entry<WildcardMatcher, Double> entry : sampleRates.entrySet()) {
+            policies.add(new Policy(entry.getKey(), entry.getValue()));
+        }
+        return policies;
+    }
+
+    /**
+     * @return {@code true} if the sampling decision for the transaction is made by this buffer
+     */
+    public static boolean appliesTo(Transaction transaction) {
+        return !transaction.isNoop() && transaction.isSampled() && transaction.getTraceContext().getParentId().isEmpty();
+    }
+
+    /**
+     * Buffers a span until the sampling decision for its transaction has been made.
+     *
+     * @param span a sampled span which has ended
+     * @return {@code true} if the buffer takes care of the span, {@code false} if the span should be reported
+     */
+    public boolean offer(Span span) {
+        Transaction transaction = span.getTransaction();
+        if (transaction == null) {
+            return false;
+        }
+        // checked first, as transactions which are not kept are unsampled when they end
+        Verdict verdict = transaction.getTailSamplingVerdict().get();
+        if (verdict != null) {
+            return dropIfNotKept(span, verdict);
+        }
+        if (!appliesTo(transaction)) {
+            return false;
+        }
+        PendingTrace trace = getOrCreatePendingTrace(transaction);
+        synchronized (trace) {
+            if (trace.verdict != null) {
+                return dropIfNotKept(span, trace.verdict);
+            }
+            // re-check, as the transaction may have ended before the pending trace has been published
+            verdict = transaction.getTailSamplingVerdict().get();
+            if (verdict != null) {
+                apply(trace, verdict);
+                return dropIfNotKept(span, verdict);
+            }
+            long size = EventSizeEstimator.estimateSize(span);
+            trace.spans.add(span);
+            trace.bytes += size;
+            bufferedBytes.addAndGet(size);
+        }
+        makeEarlyDecisions(System.nanoTime());
+        return true;
+    }
+
+    /**
+     * Makes the sampling decision for a transaction that has ended and reports or discards its buffered spans.
+     * If the transaction is kept based on a sample rate, that rate is set in its {@code tracestate},
+     * otherwise the transaction is {@linkplain Transaction#setUnsampled() unsampled}.
+     *
+     * @param transaction a transaction which has ended
+     */
+    public void onTransactionEnd(Transaction transaction) {
+        if (!appliesTo(transaction)) {
+            return;
+        }
+        Verdict verdict = decide(transaction, true);
+        PendingTrace trace = transaction.getTailSamplingTrace().get();
+        if (trace != null) {
+            synchronized (trace) {
+                apply(trace, verdict);
+            }
+        }
+        if (verdict.isKeep()) {
+            applySampleRate(transaction, verdict);
+        } else {
+            transaction.setUnsampled();
+        }
+        makeEarlyDecisions(System.nanoTime());
+    }
+
+    private PendingTrace getOrCreatePendingTrace(Transaction transaction) {
+        PendingTrace trace = transaction.getTailSamplingTrace().get();
+        if (trace == null) {
+            PendingTrace newTrace = new PendingTrace(transaction, System.nanoTime());
+            if (transaction.getTailSamplingTrace().compareAndSet(null, newTrace)) {
+                undecidedTraces.incrementAndGet();
+                pendingTraces.offer(newTrace);
+                trace = newTrace;
+            } else {
+                trace = transaction.getTailSamplingTrace().get();
+            }
+        }
+        return trace;
+    }
+
+    private boolean dropIfNotKept(Span span, Verdict verdict) {
+        if (verdict.isKeep()) {
+            applySampleRate(span, verdict);
+            return false;
+        }
+        span.decrementReferences();
+        return true;
+    }
+
+    /**
+     * The trace context is started with a sample rate of 1, this sets the rate the trace has actually been kept with,
+     * so that the throughput can be extrapolated.
+     * Must only be called for spans and transactions that have ended, by the thread that owns them.
+     */
+    private static void applySampleRate(AbstractSpan<?> span, Verdict verdict) {
+        if (verdict.sampler != null) {
+            span.getTraceContext().overrideSampleRate(verdict.sampler);
+        }
+    }
+
+    /**
+     * Makes the decision for the traces that have been buffered longer than the decision window,
+     * and for the oldest traces while the buffered spans exceed the budget
+     *
+     * @param nowNs the current {@link System#nanoTime()}
+     */
+    void makeEarlyDecisions(long nowNs) {
+        long windowNs = coreConfiguration.getTailSamplingDecisionWindow().getMillis() * 1_000_000;
+        long maxBytes = coreConfiguration.getTailSamplingMaxBufferBytes();
+        PendingTrace head;
+        while ((head = pendingTraces.peek()) != null) {
+            if (head.verdict == null && bufferedBytes.get() <= maxBytes && nowNs - head.createdNs < windowNs) {
+                return;
+            }
+            // only one thread can remove the head
+            if (pendingTraces.remove(head)) {
+                synchronized (head) {
+                    Transaction transaction = head.transaction;
+                    if (head.verdict == null && transaction != null) {
+                        apply(head, decide(transaction, false));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Must be called while holding the lock of the trace
+     */
+    private void apply(PendingTrace trace, Verdict verdict) {
+        if (trace.verdict != null) {
+            return;
+        }
+        List<Span> spans = trace.spans;
+        for (int i = 0; i < spans.size(); i++) {
+            Span span = spans.get(i);
+            if (verdict.isKeep()) {
+                applySampleRate(span, verdict);
+                reporter.report(span);
+            } else {
+                span.decrementReferences();
+            }
+        }
+        if (!spans.isEmpty()) {
+            bufferedTracesDecided.incrementAndGet();
+            bufferedNsOfDecidedTraces.addAndGet(System.nanoTime() - trace.createdNs);
+        }
+        spans.clear();
+        bufferedBytes.addAndGet(-trace.bytes);
+        undecidedTraces.decrementAndGet();
+        trace.bytes = 0;
+        trace.verdict = verdict;
+        // the transaction may be recycled once its spans have been reported or discarded
+        trace.transaction = null;
+    }
+
+    /**
+     * Makes the decision for the transaction, unless it has already been made
+     *
+     * @param ended whether the transaction has ended, otherwise the decision is made early, while its outcome is not known yet
+     */
+    private Verdict decide(Transaction transaction, boolean ended) {
+        Verdict verdict = transaction.getTailSamplingVerdict().get();
+        if (verdict != null) {
+            return verdict;
+        }
+        verdict = makeDecision(transaction, ended);
+        if (transaction.getTailSamplingVerdict().compareAndSet(null, verdict)) {
+            decisions.incrementAndGet(verdict.decision.ordinal());
+            return verdict;
+        }
+        return transaction.getTailSamplingVerdict().get();
+    }
+
+    private Verdict makeDecision(Transaction transaction, boolean ended) {
+        long durationUs = ended
+            ? transaction.getDuration()
+            : transaction.getTraceContext().getClock().getEpochMicros() - transaction.getTimestamp();
+        if (durationUs >= coreConfiguration.getTailSamplingLatencyThreshold().getMillis() * 1000) {
+            return Verdict.KEEP_LATENCY;
+        }
+        if (ended && transaction.getOutcome() == Outcome.FAILURE) {
+            return Verdict.KEEP_FAILURE;
+        }
+        Verdict keep = keepBySampleRate;
+        // the name is only final, and safe to read from another thread, once the transaction has ended
+        if (ended) {
+            Policy matchingPolicy = null;
+            CharSequence name = transaction.getNameForSerialization();
+            List<Policy> policies = this.policies;
+            for (int i = 0; i < policies.size(); i++) {
+                Policy policy = policies.get(i);
+                if ((matchingPolicy == null || policy.sampler.getSampleRate() > matchingPolicy.sampler.getSampleRate())
+                    && policy.matcher.matches(name)) {
+                    matchingPolicy = policy;
+                }
+            }
+            if (matchingPolicy != null) {
+                return matchingPolicy.sampler.isSampled(transaction.getTraceContext().getTraceId()) ? matchingPolicy.keep : Verdict.DROP_POLICY;
+            }
+            if (adaptiveSampler.isEnabled()) {
+                keep = new Verdict(Decision.KEEP_SAMPLE_RATE, adaptiveSampler.getSampler(name));
+            }
+        }
+        //noinspection ConstantConditions
+        return keep.sampler.isSampled(transaction.getTraceContext().getTraceId()) ? keep : Verdict.DROP_SAMPLE_RATE;
+    }
+
+    /**
+     * @return the estimated size of the buffered spans, in bytes
+     */
+    public long getBufferedBytes() {
+        return bufferedBytes.get();
+    }
+
+    /**
+     * @return the number of traces with buffered spans that are waiting for their sampling decision
+     */
+    public int getBufferedTraces() {
+        return undecidedTraces.get();
+    }
+
+    /**
+     * @return how many decisions of the given kind have been made
+     */
+    public long getDecisions(Decision decision) {
+        return decisions.get(decision.ordinal());
+    }
+
+    /**
+     * @return the number of decided traces which had buffered spans
+     */
+    public long getBufferedTracesDecided() {
+        return bufferedTracesDecided.get();
+    }
+
+    /**
+     * @return the total time the spans of {@linkplain #getBufferedTracesDecided() decided traces} have been buffered,
+     * from the time the first span of the trace has been buffered until the decision has been made
+     */
+    public long getBufferedNsOfDecidedTraces() {
+        return bufferedNsOfDecidedTraces.get();
+    }
+
+    /**
+     * The spans of a transaction that are buffered until the sampling decision has been made.
+     * Guarded by its own lock.
+     */
+    public static class PendingTrace {
+        private final List<Span> spans = new ArrayList<>();
+        private final long createdNs;
+        @Nullable
+        private Transaction transaction;
+        private long bytes;
+        /**
+         * {@code null} until the decision has been made
+         */
+        @Nullable
+        private Verdict verdict;
+
+        private PendingTrace(Transaction transaction, long createdNs) {
+            this.transaction = transaction;
+            this.createdNs = createdNs;
+        }
+    }
+
+    private static class Policy {
+        private final WildcardMatcher matcher;
+        private final Sampler sampler;
+        private final Verdict keep;
+
+        private Policy(WildcardMatcher matcher, double sampleRate) {
+            this.matcher = matcher;
+            this.sampler = ProbabilitySampler.of(sampleRate);
+            this.keep = new Verdict(Decision.KEEP_POLICY, sampler);
+        }
+    }
+}
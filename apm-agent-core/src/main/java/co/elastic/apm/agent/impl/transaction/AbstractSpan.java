@@ -23,6 +23,7 @@ import co.elastic.apm.agent.configuration.CoreConfiguration;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.Scope;
 import co.elastic.apm.agent.impl.context.AbstractContext;
+import co.elastic.apm.agent.impl.error.ErrorCapture;
 import co.elastic.apm.agent.matcher.WildcardMatcher;
 import co.elastic.apm.agent.objectpool.Recyclable;
 import co.elastic.apm.agent.report.ReporterConfiguration;
@@ -31,6 +32,7 @@ import co.elastic.apm.agent.sdk.logging.LoggerFactory;
 import co.elastic.apm.agent.util.LoggerUtils;
 
 import javax.annotation.Nullable;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -121,12 +123,20 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
 
     // Span links handling
     public static final int MAX_ALLOWED_SPAN_LINKS = 1000;
-    private final List<TraceContext> spanLinks = new UniqueSpanLinkArrayList();
+    /**
+     * Allocated on first use and then kept for the whole lifecycle of this pooled instance, as most spans don't have links
+     */
+    @Nullable
+    private UniqueSpanLinkArrayList spanLinks;
 
     @Nullable
     private OTelSpanKind otelKind = null;
 
-    private final Map<String, Object> otelAttributes = new HashMap<>();
+    /**
+     * Allocated on first use and then kept for the whole lifecycle of this pooled instance, only OpenTelemetry spans have attributes
+     */
+    @Nullable
+    private Map<String, Object> otelAttributes;
 
     public int getReferenceCount() {
         return references.get();
@@ -384,7 +394,7 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
     }
 
     private boolean canAddSpanLink() {
-        if (spanLinks.size() == MAX_ALLOWED_SPAN_LINKS) {
+        if (spanLinks != null && spanLinks.size() == MAX_ALLOWED_SPAN_LINKS) {
             oneTimeMaxSpanLinksLogger.warn("Span links for {} has reached the allowed maximum ({}). No more spans will be linked.",
                 this, MAX_ALLOWED_SPAN_LINKS);
             return false;
@@ -415,7 +425,7 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
         try {
             TraceContext childTraceContext = tracer.createSpanLink();
             if (childContextCreator.asChildOf(childTraceContext, carrier, headerGetter)) {
-                added = spanLinks.add(childTraceContext);
+                added = getOrCreateSpanLinks().add(childTraceContext);
             }
             if (!added) {
                 tracer.recycle(childTraceContext);
@@ -443,7 +453,7 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
         try {
             TraceContext childTraceContext = tracer.createSpanLink();
             if (childContextCreator.asChildOf(childTraceContext, parent)) {
-                added = spanLinks.add(childTraceContext);
+                added = getOrCreateSpanLinks().add(childTraceContext);
             }
             if (!added) {
                 tracer.recycle(childTraceContext);
@@ -462,6 +472,14 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
      * @return a list of child {@link TraceContext}s of linked spans
      */
     public List<TraceContext> getSpanLinks() {
+        return spanLinks != null ? spanLinks : Collections.<TraceContext>emptyList();
+    }
+
+    private List<TraceContext> getOrCreateSpanLinks() {
+        UniqueSpanLinkArrayList spanLinks = this.spanLinks;
+        if (spanLinks == null) {
+            spanLinks = this.spanLinks = new UniqueSpanLinkArrayList();
+        }
         return spanLinks;
     }
 
@@ -486,10 +504,15 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
         bufferedSpan.set(null);
         recycleSpanLinks();
         otelKind = null;
-        otelAttributes.clear();
+        if (otelAttributes != null) {
+            otelAttributes.clear();
+        }
     }
 
     private void recycleSpanLinks() {
+        if (spanLinks == null) {
+            return;
+        }
         //noinspection ForLoopReplaceableByForEach
         for (int i = 0; i < spanLinks.size(); i++) {
             tracer.recycle(spanLinks.get(i));
@@ -498,7 +521,7 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
     }
 
     public Span createSpan() {
-        return createSpan(traceContext.getClock().getEpochMicros());
+        return createSpan(getSpanEpochMicrosNow());
     }
 
     public Span createSpan(long epochMicros) {
@@ -540,7 +563,13 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
 
     public T captureException(@Nullable Throwable t) {
         if (t != null) {
-            captureExceptionAndGetErrorId(getTraceContext().getClock().getEpochMicros(), t);
+            hasCapturedExceptions = true;
+            // avoids rendering the error id, as opposed to captureExceptionAndGetErrorId
+            ErrorCapture error = tracer.captureException(t, this, null);
+            if (error != null) {
+                error.withTimestamp(getTraceContext().getClock().getEpochMicros());
+                error.end();
+            }
         }
         return (T) this;
     }
@@ -670,6 +699,23 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
         timestamp.set(epochMicros);
     }
 
+    /**
+     * Returns the current timestamp for the start of a child span or the end of a span.
+     * <p>
+     * If {@code span_clock_resolution} is set, the timestamp is based on the {@link CoarseNanoClock},
+     * but never before the start of this span, as the coarse clock lags behind.
+     * </p>
+     *
+     * @return the current timestamp in micro-seconds since epoch
+     */
+    long getSpanEpochMicrosNow() {
+        CoarseNanoClock coarseClock = tracer.getCoarseNanoClock();
+        if (coarseClock == null) {
+            return traceContext.getClock().getEpochMicros();
+        }
+        return Math.max(timestamp.get(), traceContext.getClock().getEpochMicros(coarseClock.nanoTime()));
+    }
+
     /**
      * Set start timestamp from context current clock
      */
@@ -831,10 +877,26 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
         return otelKind;
     }
 
+    /**
+     * Note: This method is not thread safe
+     *
+     * @return the OpenTelemetry attributes of this span, which are allocated when this method is called for the first time
+     */
     public Map<String, Object> getOtelAttributes() {
+        Map<String, Object> otelAttributes = this.otelAttributes;
+        if (otelAttributes == null) {
+            otelAttributes = this.otelAttributes = new HashMap<>();
+        }
         return otelAttributes;
     }
 
+    /**
+     * @return {@code true} if OpenTelemetry attributes have been added to this span
+     */
+    public boolean hasOtelAttributes() {
+        return otelAttributes != null && !otelAttributes.isEmpty();
+    }
+
     @Nullable
     public String getType() {
         return type;
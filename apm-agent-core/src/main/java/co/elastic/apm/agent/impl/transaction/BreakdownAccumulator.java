@@ -0,0 +1,231 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.transaction;
+
+import co.elastic.apm.agent.objectpool.Recyclable;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Accumulates the self times of the spans of a {@link Transaction}, by span type and subtype, for the breakdown metrics.
+ * <p>
+ * Each distinct combination of type and subtype is interned into a small open-addressed table that maps it to a slot.
+ * The table is not cleared when the transaction is recycled.
+ * Instead, it accumulates span types and subtypes over time so that after a warm-up, no keys need to be allocated.
+ * Once more than {@link #EVICTION_THRESHOLD} keys have accumulated, they are cleared when the transaction is recycled,
+ * so that transactions with new combinations of span types and subtypes can still be tracked.
+ * </p>
+ * <p>
+ * The total time and count of a slot are striped by thread, so that spans that end concurrently on different threads,
+ * for example when a transaction fans out to a thread pool, don't contend on the same atomic values.
+ * The stripes are merged once, when the transaction ends.
+ * As the accumulator is pooled together with its transaction, it keeps at most one stripe when it's recycled,
+ * so that the stripes a fan-out has required are not retained by every pooled transaction.
+ * </p>
+ */
+public class BreakdownAccumulator implements Recyclable {
+
+    /**
+     * The maximum number of distinct span type and subtype combinations per transaction.
+     * The self times of further combinations are not tracked.
+     */
+    static final int MAX_KEYS = 64;
+    /**
+     * The number of keys above which the keys are cleared on {@link #resetState()}
+     */
+    static final int EVICTION_THRESHOLD = MAX_KEYS * 3 / 4;
+    private static final int STRIPES = Integer.highestOneBit(Math.min(Runtime.getRuntime().availableProcessors(), 4));
+
+    private final AtomicReferenceArray<Key> keys = new AtomicReferenceArray<>(MAX_KEYS);
+    /**
+     * Per stripe, the total time of a slot is at index {@code slot * 2} and the count at {@code slot * 2 + 1}.
+     * Stripes are allocated when a thread that maps to the stripe adds a self time for the first time.
+     * All but one of them are released on {@link #resetState()}.
+     */
+    private final AtomicReferenceArray<AtomicLongArray> stripes = new AtomicReferenceArray<>(STRIPES);
+
+    /**
+     * Adds the self time of a span.
+     *
+     * @param type       the span type
+     * @param subtype    the span subtype
+     * @param durationUs the self time of the span in microseconds
+     * @return {@code false} if the maximum number of distinct type and subtype combinations has been reached
+     */
+    boolean add(String type, @Nullable String subtype, long durationUs) {
+        int slot = getSlot(type, subtype == null ? "" : subtype, true);
+        if (slot < 0) {
+            return false;
+        }
+        AtomicLongArray stripe = getOrCreateStripe((int) Thread.currentThread().getId() & (STRIPES - 1));
+        stripe.addAndGet(slot * 2, durationUs);
+        stripe.incrementAndGet(slot * 2 + 1);
+        return true;
+    }
+
+    private int getSlot(String type, String subtype, boolean create) {
+        int hash = 31 * type.hashCode() + subtype.hashCode();
+        int start = (hash ^ (hash >>> 16)) & (MAX_KEYS - 1);
+        int slot = start;
+        do {
+            Key key = keys.get(slot);
+            if (key == null) {
+                if (!create) {
+                    return -1;
+                }
+                Key newKey = new Key(type, subtype);
+                if (keys.compareAndSet(slot, null, newKey)) {
+                    return slot;
+                }
+                // another thread has claimed the slot, which might be for the same type and subtype
+                key = keys.get(slot);
+            }
+            if (key.matches(type, subtype)) {
+                return slot;
+            }
+            slot = (slot + 1) & (MAX_KEYS - 1);
+        } while (slot != start);
+        return -1;
+    }
+
+    private AtomicLongArray getOrCreateStripe(int index) {
+        AtomicLongArray stripe = stripes.get(index);
+        if (stripe == null) {
+            stripes.compareAndSet(index, null, new AtomicLongArray(MAX_KEYS * 2));
+            stripe = stripes.get(index);
+        }
+        return stripe;
+    }
+
+    @Nullable
+    String getType(int slot) {
+        Key key = keys.get(slot);
+        return key != null ? key.type : null;
+    }
+
+    /**
+     * @return the subtype of the slot, {@code null} if the slot is empty or if the spans don't have a subtype
+     */
+    @Nullable
+    String getSubtype(int slot) {
+        Key key = keys.get(slot);
+        return key != null && !key.subtype.isEmpty() ? key.subtype : null;
+    }
+
+    long getTotalTimeUs(int slot) {
+        return sum(slot * 2);
+    }
+
+    long getCount(int slot) {
+        return sum(slot * 2 + 1);
+    }
+
+    private long sum(int index) {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            AtomicLongArray stripe = stripes.get(i);
+            if (stripe != null) {
+                sum += stripe.get(index);
+            }
+        }
+        return sum;
+    }
+
+    public long getTotalTimeUs(String type, @Nullable String subtype) {
+        int slot = getSlot(type, subtype == null ? "" : subtype, false);
+        return slot >= 0 ? getTotalTimeUs(slot) : 0;
+    }
+
+    public long getCount(String type, @Nullable String subtype) {
+        int slot = getSlot(type, subtype == null ? "" : subtype, false);
+        return slot >= 0 ? getCount(slot) : 0;
+    }
+
+    // visible for testing
+    int getStripeCount() {
+        int count = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            if (stripes.get(i) != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public boolean isEmpty() {
+        for (int slot = 0; slot < MAX_KEYS; slot++) {
+            if (keys.get(slot) != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Resets the total times and counts, but keeps the interned keys unless there are more than {@link #EVICTION_THRESHOLD} of them.
+     * Only the first allocated stripe is kept, the others are released.
+     * Must not be called concurrently to {@link #add(String, String, long)}.
+     */
+    @Override
+    public void resetState() {
+        int size = 0;
+        for (int slot = 0; slot < MAX_KEYS; slot++) {
+            if (keys.get(slot) != null) {
+                size++;
+            }
+        }
+        boolean keepStripe = true;
+        for (int i = 0; i < STRIPES; i++) {
+            AtomicLongArray stripe = stripes.get(i);
+            if (stripe != null && !keepStripe) {
+                stripes.set(i, null);
+            } else if (stripe != null) {
+                keepStripe = false;
+                for (int slot = 0; slot < MAX_KEYS; slot++) {
+                    if (keys.get(slot) != null) {
+                        stripe.set(slot * 2, 0);
+                        stripe.set(slot * 2 + 1, 0);
+                    }
+                }
+            }
+        }
+        if (size > EVICTION_THRESHOLD) {
+            for (int slot = 0; slot < MAX_KEYS; slot++) {
+                keys.set(slot, null);
+            }
+        }
+    }
+
+    private static class Key {
+        private final String type;
+        private final String subtype;
+
+        private Key(String type, String subtype) {
+            this.type = type;
+            this.subtype = subtype;
+        }
+
+        private boolean matches(String type, String subtype) {
+            // types and subtypes are usually string literals, which makes the identity check succeed most of the time
+            return (this.type == type || this.type.equals(type)) && (this.subtype == subtype || this.subtype.equals(subtype));
+        }
+    }
+}
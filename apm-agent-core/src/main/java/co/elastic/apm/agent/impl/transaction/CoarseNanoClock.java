@@ -0,0 +1,96 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.transaction;
+
+import co.elastic.apm.agent.util.ExecutorUtils;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@link System#nanoTime()} that is read by a background thread once per resolution, so that reading it is as cheap as a volatile read.
+ * <p>
+ * On hosts with a slow clock source, for example some virtualized environments, calling {@link System#nanoTime()}
+ * for the start and the end of every span can make up a significant part of the tracing overhead of short spans.
+ * The tradeoff is that the timestamps lag behind by up to the resolution,
+ * and by more if the background thread does not get scheduled in time.
+ * </p>
+ * <p>
+ * As there is only one thread updating the time, it is monotonic.
+ * </p>
+ */
+public class CoarseNanoClock {
+
+    private final long resolutionNs;
+    private volatile long nanoTime = System.nanoTime();
+    @Nullable
+    private ThreadPoolExecutor executor;
+
+    public CoarseNanoClock(long resolutionNs) {
+        this.resolutionNs = resolutionNs;
+    }
+
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        executor = ExecutorUtils.createSingleThreadDaemonPool("coarse-clock", 1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    nanoTime = System.nanoTime();
+                    LockSupport.parkNanos(resolutionNs);
+                }
+            }
+        });
+    }
+
+    public synchronized void stop() {
+        if (executor != null) {
+            // interrupts the update loop
+            executor.shutdownNow();
+            try {
+                // makes sure the time is not updated anymore once this method returns
+                executor.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            executor = null;
+        }
+    }
+
+    /**
+     * @return the value of {@link System#nanoTime()} at the latest update
+     */
+    public long nanoTime() {
+        return nanoTime;
+    }
+
+    public long getResolutionNs() {
+        return resolutionNs;
+    }
+
+    // visible for testing
+    void setNanoTime(long nanoTime) {
+        this.nanoTime = nanoTime;
+    }
+}
@@ -24,14 +24,14 @@ import co.elastic.apm.agent.objectpool.ObjectPool;
 import co.elastic.apm.agent.objectpool.Recyclable;
 import co.elastic.apm.agent.objectpool.impl.QueueBasedObjectPool;
 import co.elastic.apm.agent.util.CharSequenceUtils;
+import co.elastic.apm.agent.util.KeyListConcurrentHashMap;
 import org.jctools.queues.atomic.MpmcAtomicArrayQueue;
 
 import javax.annotation.Nullable;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -161,7 +161,7 @@ public class DroppedSpanStats implements Iterable<Map.Entry<DroppedSpanStats.Sta
         }
     });
 
-    private final ConcurrentMap<StatsKey, Stats> statsMap = new ConcurrentHashMap<>();
+    private final KeyListConcurrentHashMap<StatsKey, Stats> statsMap = new KeyListConcurrentHashMap<>();
 
     // only used during testing
     @Nullable
@@ -211,11 +211,31 @@ public class DroppedSpanStats implements Iterable<Map.Entry<DroppedSpanStats.Sta
         return statsMap.entrySet().iterator();
     }
 
+    /**
+     * Allows to iterate over the stats without allocating an {@link Iterator}, in combination with {@link #getStats(StatsKey)}.
+     * Do not modify this list.
+     *
+     * @return the keys of the dropped span stats
+     */
+    public List<StatsKey> getKeys() {
+        return statsMap.keyList();
+    }
+
+    @Nullable
+    public Stats getStats(StatsKey key) {
+        return statsMap.get(key);
+    }
+
     @Override
     public void resetState() {
-        for (Map.Entry<StatsKey, Stats> e : statsMap.entrySet()) {
-            statsKeyObjectPool.recycle(e.getKey());
-            statsObjectPool.recycle(e.getValue());
+        List<StatsKey> keys = statsMap.keyList();
+        for (int i = 0; i < keys.size(); i++) {
+            StatsKey key = keys.get(i);
+            Stats stats = statsMap.get(key);
+            if (stats != null) {
+                statsObjectPool.recycle(stats);
+            }
+            statsKeyObjectPool.recycle(key);
         }
         statsMap.clear();
     }
@@ -23,17 +23,37 @@ import co.elastic.apm.agent.util.HexUtils;
 import com.dslplatform.json.JsonWriter;
 
 import javax.annotation.Nullable;
-import java.nio.ByteBuffer;
-import java.util.Arrays;
 import java.util.Random;
 import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * A 128 bit globally unique ID of the whole trace forest
+ * <p>
+ * The id is stored in two {@code long}s instead of a {@code byte[]}.
+ * A 64 bit id only uses the {@link #low} bits.
+ * </p>
  */
 public class Id implements Recyclable {
 
-    private final byte[] data;
+    /**
+     * Scratch buffer the hex encoding is rendered into before it's copied to a {@link JsonWriter} in one go
+     */
+    private static final ThreadLocal<byte[]> hexBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[32];
+        }
+    };
+
+    private final int length;
+    /**
+     * The first 8 bytes of a 128 bit id, always {@code 0} for a 64 bit id
+     */
+    private long high;
+    /**
+     * The last 8 bytes of the id
+     */
+    private long low;
     private boolean empty = true;
     @Nullable
     private String cachedStringRepresentation;
@@ -47,66 +67,115 @@ public class Id implements Recyclable {
     }
 
     private Id(int idLengthBytes) {
-        data = new byte[idLengthBytes];
+        length = idLengthBytes;
     }
 
     public void setToRandomValue() {
+        // on Java 8+, ThreadLocalRandom is a per-thread SplitMix64 generator that doesn't need any synchronization
         setToRandomValue(ThreadLocalRandom.current());
     }
 
     public void setToRandomValue(Random random) {
-        random.nextBytes(data);
+        if (length == 16) {
+            high = random.nextLong();
+        }
+        low = random.nextLong();
         onMutation(false);
     }
 
     public void fromHexString(String hexEncodedString, int offset) {
-        HexUtils.nextBytes(hexEncodedString, offset, data);
+        final int charsToRead = length * 2;
+        if (hexEncodedString.length() < offset + charsToRead) {
+            throw new IllegalArgumentException(String.format("Can't read %d bytes from string %s with offset %d", length, hexEncodedString, offset));
+        }
+        resetBits();
+        for (int i = 0; i < length; i++) {
+            setByte(i, HexUtils.getNextByte(hexEncodedString, offset + i * 2));
+        }
+        onMutation();
+    }
+
+    /**
+     * Like {@link #fromHexString(String, int)}, but signals invalid input via the return value instead of an exception
+     *
+     * @return {@code false} if the string does not contain enough hex chars at the given offset,
+     * in which case this id may be partially updated
+     */
+    public boolean tryFromHexString(CharSequence hexEncoded, int offset) {
+        if (hexEncoded.length() < offset + length * 2) {
+            return false;
+        }
+        resetBits();
+        for (int i = 0; i < length; i++) {
+            int value = HexUtils.decodeByte(hexEncoded, offset + i * 2);
+            if (value < 0) {
+                onMutation();
+                return false;
+            }
+            setByte(i, (byte) value);
+        }
         onMutation();
+        return true;
     }
 
     /**
      * Sets the id based on a byte array
      *
-     * @param bytes the byte array used to fill this id's {@link #data}
+     * @param bytes the byte array used to fill this id
      * @param offset the offset in the byte array
      * @return the number of read bytes which is equivalent to {@link #getLength()}
      */
     public int fromBytes(byte[] bytes, int offset) {
-        System.arraycopy(bytes, offset, data, 0, data.length);
+        if (length == 16) {
+            high = toLong(bytes, offset);
+            low = toLong(bytes, offset + 8);
+        } else {
+            low = toLong(bytes, offset);
+        }
         onMutation();
-        return data.length;
+        return length;
     }
 
     public int toBytes(byte[] bytes, int offset) {
-        System.arraycopy(data, 0, bytes, offset, data.length);
-        return offset + data.length;
+        if (length == 16) {
+            offset = writeLong(high, bytes, offset);
+        }
+        return writeLong(low, bytes, offset);
     }
 
     public void fromLongs(long... values) {
-        if (values.length * Long.BYTES != data.length) {
+        if (values.length * Long.BYTES != length) {
             throw new IllegalArgumentException("Invalid number of long values");
         }
-        final ByteBuffer buffer = ByteBuffer.wrap(data);
-        for (long value : values) {
-            buffer.putLong(value);
+        if (length == 16) {
+            high = values[0];
+            low = values[1];
+        } else {
+            low = values[0];
         }
         onMutation();
     }
 
     @Override
     public void resetState() {
-        Arrays.fill(data, (byte) 0);
+        resetBits();
         onMutation(true);
     }
 
     public void copyFrom(Id other) {
-        System.arraycopy(other.data, 0, data, 0, data.length);
+        this.high = other.high;
+        this.low = other.low;
         this.cachedStringRepresentation = other.cachedStringRepresentation;
         this.empty = other.empty;
     }
 
+    private void resetBits() {
+        high = 0;
+        low = 0;
+    }
+
     private void onMutation() {
-        onMutation(isAllZeros(data));
+        onMutation(high == 0 && low == 0);
     }
 
     private void onMutation(boolean empty) {
@@ -119,29 +188,28 @@ public class Id implements Recyclable {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         Id that = (Id) o;
-        return Arrays.equals(data, that.data);
+        return length == that.length && high == that.high && low == that.low;
     }
 
     public boolean dataEquals(byte[] data, int offset) {
-        byte[] thisData = this.data;
-        for (int i = 0; i < thisData.length; i++) {
-            if (thisData[i] != data[i + offset]) {
-                return false;
-            }
+        if (length == 16 && high != toLong(data, offset)) {
+            return false;
         }
-        return true;
+        return low == toLong(data, offset + length - 8);
     }
 
     @Override
     public int hashCode() {
-        return Arrays.hashCode(data);
+        return 31 * (int) (high ^ (high >>> 32)) + (int) (low ^ (low >>> 32));
     }
 
     @Override
     public String toString() {
         String s = cachedStringRepresentation;
         if (s == null) {
-            s = cachedStringRepresentation = HexUtils.bytesToHex(data);
+            char[] chars = new char[length * 2];
+            writeAsHex(chars, 0);
+            s = cachedStringRepresentation = new String(chars);
         }
         return s;
     }
@@ -150,21 +218,30 @@ public class Id implements Recyclable {
         return empty;
     }
 
-    private static boolean isAllZeros(byte[] bytes) {
-        for (byte b : bytes) {
-            if (b != 0) {
-                return false;
-            }
+    public void writeAsHex(JsonWriter jw) {
+        byte[] hex = hexBuffer.get();
+        int offset = 0;
+        if (length == 16) {
+            offset = HexUtils.writeAsHex(high, hex, offset);
         }
-        return true;
+        jw.writeAscii(hex, HexUtils.writeAsHex(low, hex, offset));
     }
 
-    public void writeAsHex(JsonWriter jw) {
-        HexUtils.writeBytesAsHex(data, jw);
+    public void writeAsHex(StringBuilder sb) {
+        if (length == 16) {
+            HexUtils.writeAsHex(high, sb);
+        }
+        HexUtils.writeAsHex(low, sb);
     }
 
-    public void writeAsHex(StringBuilder sb) {
-        HexUtils.writeBytesAsHex(data, sb);
+    /**
+     * @return the index after the last written char
+     */
+    public int writeAsHex(char[] dest, int offset) {
+        if (length == 16) {
+            offset = HexUtils.writeAsHex(high, dest, offset);
+        }
+        return HexUtils.writeAsHex(low, dest, offset);
     }
 
     /**
@@ -180,21 +257,60 @@ public class Id implements Recyclable {
      * @return the last 8 bytes of this id as a {@code long}
      */
     public long getLeastSignificantBits() {
-        return readLong(data.length - 8);
+        return low;
     }
 
     /**
      * Converts the next 8 bytes, starting from the offset, to a {@code long}
      */
     public long readLong(int offset) {
-        long lsb = 0;
+        if (offset == length - 8) {
+            return low;
+        } else if (offset == 0 && length == 16) {
+            return high;
+        }
+        long value = 0;
         for (int i = offset; i < offset + 8; i++) {
-            lsb = (lsb << 8) | (data[i] & 0xff);
+            value = (value << 8) | (getByte(i) & 0xff);
         }
-        return lsb;
+        return value;
     }
 
     int getLength() {
-        return data.length;
+        return length;
+    }
+
+    private byte getByte(int index) {
+        if (index < length - 8) {
+            return (byte) (high >>> ((7 - index) * 8));
+        }
+        return (byte) (low >>> ((length - 1 - index) * 8));
+    }
+
+    /**
+     * Expects the bits of the byte to be cleared
+     */
+    private void setByte(int index, byte b) {
+        if (index < length - 8) {
+            high |= (b & 0xFFL) << ((7 - index) * 8);
+        } else {
+            low |= (b & 0xFFL) << ((length - 1 - index) * 8);
+        }
+    }
+
+    private static long toLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (bytes[i] & 0xff);
+        }
+        return value;
+    }
+
+    private static int writeLong(long value, byte[] bytes, int offset) {
+        for (int i = 7; i >= 0; i--) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+        return offset + 8;
     }
 }
@@ -59,7 +59,7 @@ public class Span extends AbstractSpan<Span> implements Recyclable {
     /**
      * Any other arbitrary data captured by the agent, optionally provided by the user
      */
-    private final SpanContext context = new SpanContext();
+    private final SpanContext context;
     private final Composite composite = new Composite();
     @Nullable
     private Throwable stacktrace;
@@ -84,6 +84,12 @@ public class Span extends AbstractSpan<Span> implements Recyclable {
 
     public Span(ElasticApmTracer tracer) {
         super(tracer);
+        context = new SpanContext(tracer.getMessagePool());
+    }
+
+    @Override
+    public void end() {
+        end(getSpanEpochMicrosNow());
     }
 
     public <T> Span start(TraceContext.ChildContextCreator<T> childContextCreator, T parentContext, long epochMicros) {
@@ -116,6 +122,8 @@ public class Span extends AbstractSpan<Span> implements Recyclable {
         }
         if (epochMicros >= 0) {
             setStartTimestamp(epochMicros);
+        } else if (parent != null) {
+            setStartTimestamp(parent.getSpanEpochMicrosNow());
         } else {
             setStartTimestampNow();
         }
@@ -234,12 +242,12 @@ public class Span extends AbstractSpan<Span> implements Recyclable {
         ServiceTarget serviceTarget = getContext().getServiceTarget();
         if (isExit() && !serviceTarget.hasContent() && !serviceTarget.isSetByUser()) {
             Db db = context.getDb();
-            Message message = context.getMessage();
+            Message message = context.getMessageForRead();
             Url httpUrl = context.getHttp().getInternalUrl();
             String targetServiceType = (subtype != null) ? subtype : type;
             if (db.hasContent()) {
                 serviceTarget.withType(targetServiceType).withName(db.getInstance());
-            } else if (message.hasContent()) {
+            } else if (message != null && message.hasContent()) {
                 serviceTarget.withType(targetServiceType).withName(message.getQueueName());
             } else if (httpUrl.hasContent()) {
 
@@ -24,7 +24,6 @@ import co.elastic.apm.agent.impl.Tracer;
 import co.elastic.apm.agent.impl.sampling.Sampler;
 import co.elastic.apm.agent.objectpool.Recyclable;
 import co.elastic.apm.agent.util.ByteUtils;
-import co.elastic.apm.agent.util.HexUtils;
 import co.elastic.apm.agent.sdk.logging.Logger;
 import co.elastic.apm.agent.sdk.logging.LoggerFactory;
 
@@ -72,10 +71,6 @@ public class TraceContext implements Recyclable {
     public static final String W3C_TRACE_PARENT_TEXTUAL_HEADER_NAME = "traceparent";
     public static final String TRACESTATE_HEADER_NAME = "tracestate";
     public static final int SERIALIZED_LENGTH = 42;
-    private static final int TEXT_HEADER_EXPECTED_LENGTH = 55;
-    private static final int TEXT_HEADER_TRACE_ID_OFFSET = 3;
-    private static final int TEXT_HEADER_PARENT_ID_OFFSET = 36;
-    private static final int TEXT_HEADER_FLAGS_OFFSET = 53;
 
     public static final String TRACE_PARENT_BINARY_HEADER_NAME = "elasticapmtraceparent";
     public static final int BINARY_FORMAT_EXPECTED_LENGTH = 29;
@@ -213,7 +208,11 @@ public class TraceContext implements Recyclable {
     private final Id id;
     private final Id parentId = Id.new64BitId();
     private final Id transactionId = Id.new64BitId();
-    private final StringBuilder outgoingTextHeader = new StringBuilder(TEXT_HEADER_EXPECTED_LENGTH);
+    /**
+     * The rendered {@code traceparent} header for downstream services, {@code null} until rendered or after a mutation
+     */
+    @Nullable
+    private volatile String outgoingTextHeader;
     private byte flags;
     private boolean discardable = true;
 
@@ -299,36 +298,8 @@ public class TraceContext implements Recyclable {
     boolean asChildOf(String traceParentHeader) {
         traceParentHeader = traceParentHeader.trim();
         try {
-            if (traceParentHeader.length() < TEXT_HEADER_EXPECTED_LENGTH) {
-                logger.warn("The traceparent header has to be at least 55 chars long, but was '{}'", traceParentHeader);
-                return false;
-            }
-            if (noDashAtPosition(traceParentHeader, TEXT_HEADER_TRACE_ID_OFFSET - 1)
-                || noDashAtPosition(traceParentHeader, TEXT_HEADER_PARENT_ID_OFFSET - 1)
-                || noDashAtPosition(traceParentHeader, TEXT_HEADER_FLAGS_OFFSET - 1)) {
-                logger.warn("The traceparent header has an invalid format: '{}'", traceParentHeader);
-                return false;
-            }
-            if (traceParentHeader.length() > TEXT_HEADER_EXPECTED_LENGTH
-                && noDashAtPosition(traceParentHeader, TEXT_HEADER_EXPECTED_LENGTH)) {
-                logger.warn("The traceparent header has an invalid format: '{}'", traceParentHeader);
-                return false;
-            }
-            if (traceParentHeader.startsWith("ff")) {
-                logger.warn("Version ff is not supported");
-                return false;
-            }
-            byte version = HexUtils.getNextByte(traceParentHeader, 0);
-            if (version == 0 && traceParentHeader.length() > TEXT_HEADER_EXPECTED_LENGTH) {
-                logger.warn("The traceparent header has to be exactly 55 chars long for version 00, but was '{}'", traceParentHeader);
-                return false;
-            }
-            traceId.fromHexString(traceParentHeader, TEXT_HEADER_TRACE_ID_OFFSET);
-            if (traceId.isEmpty()) {
-                return false;
-            }
-            parentId.fromHexString(traceParentHeader, TEXT_HEADER_PARENT_ID_OFFSET);
-            if (parentId.isEmpty()) {
+            int flags = TraceParentCodec.decode(traceParentHeader, traceId, parentId);
+            if (flags < 0) {
                 return false;
             }
             id.setToRandomValue();
@@ -336,12 +307,9 @@ public class TraceContext implements Recyclable {
             // TODO don't blindly trust the flags from the caller
             // consider implement rate limiting and/or having a list of trusted sources
             // trace the request if it's either requested or if the parent has recorded it
-            flags = HexUtils.getNextByte(traceParentHeader, TEXT_HEADER_FLAGS_OFFSET);
+            this.flags = (byte) flags;
             clock.init();
             return true;
-        } catch (IllegalArgumentException e) {
-            logger.warn(e.getMessage());
-            return false;
         } finally {
             onMutation();
         }
@@ -405,10 +373,6 @@ public class TraceContext implements Recyclable {
         }
     }
 
-    private boolean noDashAtPosition(String traceParentHeader, int index) {
-        return traceParentHeader.charAt(index) != '-';
-    }
-
     public void asRootSpan(Sampler sampler) {
         traceId.setToRandomValue();
         id.setToRandomValue();
@@ -440,7 +404,7 @@ public class TraceContext implements Recyclable {
         id.resetState();
         parentId.resetState();
         transactionId.resetState();
-        outgoingTextHeader.setLength(0);
+        outgoingTextHeader = null;
         flags = 0;
         discardable = true;
         clock.resetState();
@@ -517,6 +481,18 @@ public class TraceContext implements Recyclable {
         } else {
             flags &= ~FLAG_RECORDED;
         }
+        onMutation();
+    }
+
+    /**
+     * Replaces the sample rate, for when the sampling decision is made after this context has been created.
+     * The {@code traceparent} header is not affected.
+     *
+     * @param sampler the sampler the trace has been kept with
+     */
+    public void overrideSampleRate(Sampler sampler) {
+        traceState.overrideSampleRate(sampler.getSampleRate(), sampler.getTraceStateHeader());
+        onMutation();
     }
 
     void setNonDiscardable() {
@@ -532,9 +508,7 @@ public class TraceContext implements Recyclable {
      * Returns the value of the {@code traceparent} header, as it was received.
      */
     String getIncomingTraceParentHeader() {
-        final StringBuilder sb = new StringBuilder(TEXT_HEADER_EXPECTED_LENGTH);
-        fillTraceParentHeader(sb, parentId);
-        return sb.toString();
+        return TraceParentCodec.encode(traceId, parentId, flags);
     }
 
     /**
@@ -545,7 +519,7 @@ public class TraceContext implements Recyclable {
      * @param <C>          the header carrier type, for example - an HTTP request
      */
     <C> void propagateTraceContext(C carrier, TextHeaderSetter<C> headerSetter) {
-        String outgoingTraceParent = getOutgoingTraceParentTextHeader().toString();
+        String outgoingTraceParent = getOutgoingTraceParentTextHeader();
 
         headerSetter.setHeader(W3C_TRACE_PARENT_TEXTUAL_HEADER_NAME, outgoingTraceParent, carrier);
         if (coreConfiguration.isElasticTraceparentHeaderEnabled()) {
@@ -584,27 +558,17 @@ public class TraceContext implements Recyclable {
     /**
      * @return  the value of the {@code traceparent} header for downstream services.
      */
-    StringBuilder getOutgoingTraceParentTextHeader() {
-        if (outgoingTextHeader.length() == 0) {
-            synchronized (outgoingTextHeader) {
-                if (outgoingTextHeader.length() == 0) {
-                    // for unsampled traces, propagate the ID of the transaction in calls to downstream services
-                    // such that the parentID of those transactions point to a transaction that exists
-                    // remember that we do report unsampled transactions
-                    fillTraceParentHeader(outgoingTextHeader, isSampled() ? id : transactionId);
-                }
-            }
+    String getOutgoingTraceParentTextHeader() {
+        String header = outgoingTextHeader;
+        if (header == null) {
+            // for unsampled traces, propagate the ID of the transaction in calls to downstream services
+            // such that the parentID of those transactions point to a transaction that exists
+            // remember that we do report unsampled transactions
+            // concurrent callers may render the header more than once, but they render the same value
+            header = TraceParentCodec.encode(traceId, isSampled() ? id : transactionId, flags);
+            outgoingTextHeader = header;
         }
-        return outgoingTextHeader;
-    }
-
-    private void fillTraceParentHeader(StringBuilder sb, Id spanId) {
-        sb.append("00-");
-        traceId.writeAsHex(sb);
-        sb.append('-');
-        spanId.writeAsHex(sb);
-        sb.append('-');
-        HexUtils.writeByteAsHex(flags, sb);
+        return header;
     }
 
     /**
@@ -656,11 +620,11 @@ public class TraceContext implements Recyclable {
 
     @Override
     public String toString() {
-        return getOutgoingTraceParentTextHeader().toString();
+        return getOutgoingTraceParentTextHeader();
     }
 
     private void onMutation() {
-        outgoingTextHeader.setLength(0);
+        outgoingTextHeader = null;
     }
 
     public boolean isRoot() {
@@ -0,0 +1,125 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.transaction;
+
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+import co.elastic.apm.agent.util.HexUtils;
+
+/**
+ * Encodes and decodes the textual representation of the {@code traceparent} header without intermediate allocations.
+ * <p>
+ * Hex chars are looked up in precomputed tables of {@link HexUtils}, ids are decoded directly into their {@link Id},
+ * and headers are rendered into a per-thread char buffer, so that the only allocation is the resulting {@link String}.
+ * </p>
+ *
+ * @see TraceContext
+ */
+final class TraceParentCodec {
+
+    static final int TEXT_HEADER_EXPECTED_LENGTH = 55;
+    private static final int TEXT_HEADER_TRACE_ID_OFFSET = 3;
+    private static final int TEXT_HEADER_PARENT_ID_OFFSET = 36;
+    private static final int TEXT_HEADER_FLAGS_OFFSET = 53;
+
+    private static final Logger logger = LoggerFactory.getLogger(TraceParentCodec.class);
+
+    private static final ThreadLocal<char[]> textHeaderBuffer = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            char[] buffer = new char[TEXT_HEADER_EXPECTED_LENGTH];
+            buffer[0] = '0';
+            buffer[1] = '0';
+            buffer[TEXT_HEADER_TRACE_ID_OFFSET - 1] = '-';
+            buffer[TEXT_HEADER_PARENT_ID_OFFSET - 1] = '-';
+            buffer[TEXT_HEADER_FLAGS_OFFSET - 1] = '-';
+            return buffer;
+        }
+    };
+
+    private TraceParentCodec() {
+    }
+
+    /**
+     * Renders a version {@code 00} {@code traceparent} header
+     *
+     * @param traceId  the trace id
+     * @param parentId the id of the parent span
+     * @param flags    the trace flags
+     * @return the header value
+     */
+    static String encode(Id traceId, Id parentId, byte flags) {
+        char[] buffer = textHeaderBuffer.get();
+        traceId.writeAsHex(buffer, TEXT_HEADER_TRACE_ID_OFFSET);
+        parentId.writeAsHex(buffer, TEXT_HEADER_PARENT_ID_OFFSET);
+        HexUtils.writeByteAsHex(flags, buffer, TEXT_HEADER_FLAGS_OFFSET);
+        return new String(buffer);
+    }
+
+    /**
+     * Decodes a {@code traceparent} header into the given ids
+     *
+     * @param traceParentHeader the (trimmed) header value
+     * @param traceId           the id to decode the trace id into
+     * @param parentId          the id to decode the parent id into
+     * @return the trace flags, or a negative value if the header is invalid, in which case the ids may be partially decoded
+     */
+    static int decode(String traceParentHeader, Id traceId, Id parentId) {
+        if (traceParentHeader.length() < TEXT_HEADER_EXPECTED_LENGTH) {
+            logger.warn("The traceparent header has to be at least 55 chars long, but was '{}'", traceParentHeader);
+            return -1;
+        }
+        if (noDashAtPosition(traceParentHeader, TEXT_HEADER_TRACE_ID_OFFSET - 1)
+            || noDashAtPosition(traceParentHeader, TEXT_HEADER_PARENT_ID_OFFSET - 1)
+            || noDashAtPosition(traceParentHeader, TEXT_HEADER_FLAGS_OFFSET - 1)) {
+            logger.warn("The traceparent header has an invalid format: '{}'", traceParentHeader);
+            return -1;
+        }
+        if (traceParentHeader.length() > TEXT_HEADER_EXPECTED_LENGTH
+            && noDashAtPosition(traceParentHeader, TEXT_HEADER_EXPECTED_LENGTH)) {
+            logger.warn("The traceparent header has an invalid format: '{}'", traceParentHeader);
+            return -1;
+        }
+        if (traceParentHeader.startsWith("ff")) {
+            logger.warn("Version ff is not supported");
+            return -1;
+        }
+        int version = HexUtils.decodeByte(traceParentHeader, 0);
+        if (version == 0 && traceParentHeader.length() > TEXT_HEADER_EXPECTED_LENGTH) {
+            logger.warn("The traceparent header has to be exactly 55 chars long for version 00, but was '{}'", traceParentHeader);
+            return -1;
+        }
+        int flags = HexUtils.decodeByte(traceParentHeader, TEXT_HEADER_FLAGS_OFFSET);
+        if (version < 0
+            || flags < 0
+            || !traceId.tryFromHexString(traceParentHeader, TEXT_HEADER_TRACE_ID_OFFSET)
+            || !parentId.tryFromHexString(traceParentHeader, TEXT_HEADER_PARENT_ID_OFFSET)) {
+            logger.warn("The traceparent header has an invalid format: '{}'", traceParentHeader);
+            return -1;
+        }
+        if (traceId.isEmpty() || parentId.isEmpty()) {
+            return -1;
+        }
+        return flags;
+    }
+
+    private static boolean noDashAtPosition(String traceParentHeader, int index) {
+        return traceParentHeader.charAt(index) != '-';
+    }
+}
@@ -47,6 +47,12 @@ public class TraceState implements Recyclable {
 
     private final List<String> tracestate;
 
+    /**
+     * The joined {@link #tracestate} entries, {@code null} until {@link #toTextHeader()} is called or after a mutation
+     */
+    @Nullable
+    private String textHeader;
+
     /**
      * sample rate, {@link Double#NaN} if unknown or not set
      */
@@ -67,6 +73,7 @@ public class TraceState implements Recyclable {
             //noinspection UseBulkOperation
             tracestate.add(other.tracestate.get(i));
         }
+        textHeader = other.textHeader;
         rewriteBuffer.setLength(0);
     }
 
@@ -75,6 +82,7 @@ public class TraceState implements Recyclable {
     }
 
     public void addTextHeader(String headerValue) {
+        textHeader = null;
         int vendorStart = headerValue.indexOf(VENDOR_PREFIX);
 
         if (vendorStart < 0) {
@@ -112,16 +120,17 @@ public class TraceState implements Recyclable {
             }
         }
 
-        String headerValueString = headerValue.substring(valueStart, valueEnd);
-        double value = Double.NaN;
-        try {
-            value = Double.parseDouble(headerValueString);
-        } catch (NumberFormatException e) {
-            // silently ignored
+        double value = parseDecimal(headerValue, valueStart, valueEnd);
+        if (Double.isNaN(value)) {
+            try {
+                value = Double.parseDouble(headerValue.substring(valueStart, valueEnd));
+            } catch (NumberFormatException e) {
+                // silently ignored
+            }
         }
 
         if (Double.isNaN(value) || value < 0 || value > 1) {
-            log.warn("invalid sample rate header {}", headerValueString);
+            log.warn("invalid sample rate header {}", headerValue.substring(valueStart, valueEnd));
             headerValue = rewriteRemoveInvalidHeader(headerValue, vendorStart, vendorEnd);
         } else {
             if (!Double.isNaN(sampleRate)) {
@@ -147,6 +156,38 @@ public class TraceState implements Recyclable {
 
     }
 
+    /**
+     * Parses plain decimals like {@code 1} or {@code 0.25} without allocating.
+     * As both the digits and the power of ten are exactly representable, the division yields the same value as
+     * {@link Double#parseDouble(String)}.
+     *
+     * @return the parsed value or {@link Double#NaN} if the value is not a plain decimal with at most 15 digits
+     */
+    static double parseDecimal(CharSequence value, int start, int end) {
+        long digits = 0;
+        int digitCount = 0;
+        long divisor = 1;
+        boolean fraction = false;
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            if (c == '.' && !fraction) {
+                fraction = true;
+            } else if (c >= '0' && c <= '9' && digitCount < 15) {
+                digits = digits * 10 + (c - '0');
+                digitCount++;
+                if (fraction) {
+                    divisor *= 10;
+                }
+            } else {
+                return Double.NaN;
+            }
+        }
+        if (digitCount == 0) {
+            return Double.NaN;
+        }
+        return (double) digits / divisor;
+    }
+
     private String rewriteRoundedHeader(String fullHeader, int valueStart, int valueEnd, double rounded) {
         // we don't minimize allocation as re-writing should be an exception
         rewriteBuffer.setLength(0);
@@ -181,6 +222,24 @@ public class TraceState implements Recyclable {
 
         sampleRate = rate;
         tracestate.add(headerValue);
+        textHeader = null;
+    }
+
+    /**
+     * Replaces the sample rate and the {@code es} entry that holds it, which have been set through {@link #set(double, String)}.
+     *
+     * @param rate        sample rate
+     * @param headerValue header value, as provided by a call to {@link #getHeaderValue(double)}
+     */
+    public void overrideSampleRate(double rate, String headerValue) {
+        for (int i = 0; i < tracestate.size(); i++) {
+            if (tracestate.get(i).startsWith(FULL_PREFIX)) {
+                tracestate.remove(i);
+                break;
+            }
+        }
+        sampleRate = Double.NaN;
+        set(rate, headerValue);
     }
 
     /**
@@ -204,17 +263,31 @@ public class TraceState implements Recyclable {
         return sampleRate;
     }
 
+    /**
+     * Returns the {@code tracestate} header value for downstream services.
+     * <p>
+     * In the common case of a single {@code es=s:x} entry, this is the header value pre-rendered by the {@link co.elastic.apm.agent.impl.sampling.Sampler}.
+     * Multiple entries are joined once and cached until the next mutation.
+     * </p>
+     *
+     * @return the header value, {@code null} if there are no entries
+     */
     @Nullable
     public String toTextHeader() {
         if (tracestate.isEmpty()) {
             return null;
-        } else {
-            return TextTracestateAppender.INSTANCE.join(tracestate, sizeLimit);
         }
+        String header = textHeader;
+        if (header == null) {
+            header = TextTracestateAppender.INSTANCE.join(tracestate, sizeLimit);
+            textHeader = header;
+        }
+        return header;
     }
 
     @Override
     public void resetState() {
+        textHeader = null;
         sampleRate = Double.NaN;
         sizeLimit = DEFAULT_SIZE_LIMIT;
         rewriteBuffer.setLength(0);
@@ -226,6 +299,8 @@ public class TraceState implements Recyclable {
             throw new IllegalStateException("can't change size limit once headers have been added");
         }
         this.sizeLimit = limit;
+        // the cached header has been joined with the previous limit
+        textHeader = null;
     }
 
     /**
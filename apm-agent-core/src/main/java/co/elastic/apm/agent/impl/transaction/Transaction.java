@@ -19,21 +19,24 @@
 package co.elastic.apm.agent.impl.transaction;
 
 import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.configuration.MetricsConfiguration;
 import co.elastic.apm.agent.configuration.SpanConfiguration;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.context.Response;
 import co.elastic.apm.agent.impl.context.TransactionContext;
 import co.elastic.apm.agent.impl.context.web.ResultUtil;
 import co.elastic.apm.agent.impl.sampling.Sampler;
+import co.elastic.apm.agent.impl.sampling.TailSamplingBuffer;
 import co.elastic.apm.agent.matcher.WildcardMatcher;
 import co.elastic.apm.agent.metrics.Labels;
 import co.elastic.apm.agent.metrics.MetricRegistry;
-import co.elastic.apm.agent.metrics.Timer;
-import co.elastic.apm.agent.util.KeyListConcurrentHashMap;
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+import co.elastic.apm.agent.util.LoggerUtils;
 import org.HdrHistogram.WriterReaderPhaser;
 
 import javax.annotation.Nullable;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static co.elastic.apm.agent.configuration.CoreConfiguration.TraceContinuationStrategy.RESTART;
 import static co.elastic.apm.agent.configuration.CoreConfiguration.TraceContinuationStrategy.RESTART_EXTERNAL;
@@ -43,6 +46,8 @@ import static co.elastic.apm.agent.configuration.CoreConfiguration.TraceContinua
  */
 public class Transaction extends AbstractSpan<Transaction> {
 
+    private static final Logger oneTimeBreakdownLimitLogger = LoggerUtils.logOnce(LoggerFactory.getLogger(Transaction.class));
+
     private static final ThreadLocal<Labels.Mutable> labelsThreadLocal = new ThreadLocal<Labels.Mutable>() {
         @Override
         protected Labels.Mutable initialValue() {
@@ -57,22 +62,17 @@ public class Transaction extends AbstractSpan<Transaction> {
      * <p>
      * Any arbitrary contextual information regarding the event, captured by the agent, optionally provided by the user
      */
-    private final TransactionContext context = new TransactionContext();
+    private final TransactionContext context;
     private final SpanCount spanCount = new SpanCount();
     private final DroppedSpanStats droppedSpanStats = new DroppedSpanStats();
     /**
-     * type: subtype: timer
-     * <p>
-     * This map is not cleared when the transaction is recycled.
-     * Instead, it accumulates span types and subtypes over time.
-     * When tracking the metrics, the timers are reset and only those with a count > 0 are examined.
-     * That is done in order to minimize {@link java.util.Map.Entry} garbage.
-     * </p>
+     * The self times by span type and subtype, which are merged into the {@link MetricRegistry} when the transaction ends
      */
-    private final KeyListConcurrentHashMap<String, KeyListConcurrentHashMap<String, Timer>> timerBySpanTypeAndSubtype = new KeyListConcurrentHashMap<>();
+    private final BreakdownAccumulator breakdownAccumulator = new BreakdownAccumulator();
     private final WriterReaderPhaser phaser = new WriterReaderPhaser();
     private final CoreConfiguration coreConfig;
     private final SpanConfiguration spanConfig;
+    private final MetricsConfiguration metricsConfig;
 
     /**
      * The result of the transaction. HTTP status code for HTTP-related
@@ -109,6 +109,16 @@ public class Transaction extends AbstractSpan<Transaction> {
      */
     private final Faas faas = new Faas();
 
+    /**
+     * The spans buffered by the {@link TailSamplingBuffer} until the sampling decision has been made
+     */
+    private final AtomicReference<TailSamplingBuffer.PendingTrace> tailSamplingTrace = new AtomicReference<>();
+
+    /**
+     * The decision of the {@link TailSamplingBuffer}, {@code null} until it has been made
+     */
+    private final AtomicReference<TailSamplingBuffer.Verdict> tailSamplingVerdict = new AtomicReference<>();
+
     @Override
     public Transaction getTransaction() {
         return this;
@@ -116,8 +126,10 @@ public class Transaction extends AbstractSpan<Transaction> {
 
     public Transaction(ElasticApmTracer tracer) {
         super(tracer);
+        context = new TransactionContext(tracer.getMessagePool());
         coreConfig = tracer.getConfig(CoreConfiguration.class);
         spanConfig = tracer.getConfig(SpanConfiguration.class);
+        metricsConfig = tracer.getConfig(MetricsConfiguration.class);
     }
 
     public <T> Transaction startRoot(long epochMicros, Sampler sampler) {
@@ -289,8 +301,8 @@ public class Transaction extends AbstractSpan<Transaction> {
         return getSpanCount().isSpanLimitReached(maxSpans);
     }
 
-    public KeyListConcurrentHashMap<String, KeyListConcurrentHashMap<String, Timer>> getTimerBySpanTypeAndSubtype() {
-        return timerBySpanTypeAndSubtype;
+    public BreakdownAccumulator getBreakdownAccumulator() {
+        return breakdownAccumulator;
     }
 
     @Override
@@ -308,13 +320,31 @@ public class Transaction extends AbstractSpan<Transaction> {
         frameworkName = null;
         frameworkVersion = null;
         faas.resetState();
-        // don't clear timerBySpanTypeAndSubtype map (see field-level javadoc)
+        tailSamplingTrace.set(null);
+        tailSamplingVerdict.set(null);
+        // breakdownAccumulator is reset when the transaction ends, and usually keeps its keys (see BreakdownAccumulator)
     }
 
     public boolean isNoop() {
         return noop;
     }
 
+    public AtomicReference<TailSamplingBuffer.PendingTrace> getTailSamplingTrace() {
+        return tailSamplingTrace;
+    }
+
+    public AtomicReference<TailSamplingBuffer.Verdict> getTailSamplingVerdict() {
+        return tailSamplingVerdict;
+    }
+
+    /**
+     * Reverts the sampling decision, so that this transaction is reported as unsampled when it ends.
+     * Used when the sampling decision is made after the transaction has been started as sampled.
+     */
+    public void setUnsampled() {
+        traceContext.setRecorded(false);
+    }
+
     /**
      * Ignores this transaction, which makes it a noop so that it will not be reported to the APM Server.
      */
@@ -424,33 +454,14 @@ public class Transaction extends AbstractSpan<Transaction> {
     void incrementTimer(@Nullable String type, @Nullable String subtype, long duration) {
         long criticalValueAtEnter = phaser.writerCriticalSectionEnter();
         try {
+            // if finished is false, trackMetrics waits until this thread has exited the critical section
+            // if it is true, the self times have already been merged or the transaction has been recycled
             if (!collectBreakdownMetrics || type == null || finished) {
                 return;
             }
-            if (subtype == null) {
-                subtype = "";
-            }
-            KeyListConcurrentHashMap<String, Timer> timersBySubtype = timerBySpanTypeAndSubtype.get(type);
-            if (timersBySubtype == null) {
-                timersBySubtype = new KeyListConcurrentHashMap<>();
-                KeyListConcurrentHashMap<String, Timer> racyMap = timerBySpanTypeAndSubtype.putIfAbsent(type, timersBySubtype);
-                if (racyMap != null) {
-                    timersBySubtype = racyMap;
-                }
-            }
-            Timer timer = timersBySubtype.get(subtype);
-            if (timer == null) {
-                timer = new Timer();
-                Timer racyTimer = timersBySubtype.putIfAbsent(subtype, timer);
-                if (racyTimer != null) {
-                    timer = racyTimer;
-                }
-            }
-            timer.update(duration);
-            if (finished) {
-                // in case end()->trackMetrics() has been called concurrently
-                // don't leak timers
-                timer.resetState();
+            if (!breakdownAccumulator.add(type, subtype, duration)) {
+                oneTimeBreakdownLimitLogger.warn("The limit of {} distinct span types and subtypes per transaction has been reached, " +
+                    "the self time of {} {} spans is not tracked.", BreakdownAccumulator.MAX_KEYS, type, subtype);
             }
         } finally {
             phaser.writerCriticalSectionExit(criticalValueAtEnter);
@@ -468,6 +479,7 @@ public class Transaction extends AbstractSpan<Transaction> {
 
             final String type = getType();
             if (type == null) {
+                breakdownAccumulator.resetState();
                 return;
             }
             final Labels.Mutable labels = labelsThreadLocal.get();
@@ -480,24 +492,21 @@ public class Transaction extends AbstractSpan<Transaction> {
             long criticalValueAtEnter = metricRegistry.writerCriticalSectionEnter();
             try {
                 if (collectBreakdownMetrics) {
-                    List<String> types = timerBySpanTypeAndSubtype.keyList();
-                    for (int i = 0; i < types.size(); i++) {
-                        String spanType = types.get(i);
-                        KeyListConcurrentHashMap<String, Timer> timerBySubtype = timerBySpanTypeAndSubtype.get(spanType);
-                        List<String> subtypes = timerBySubtype.keyList();
-                        for (int j = 0; j < subtypes.size(); j++) {
-                            String subtype = subtypes.get(j);
-                            final Timer timer = timerBySubtype.get(subtype);
-                            if (timer.getCount() > 0) {
-                                if (subtype.equals("")) {
-                                    subtype = null;
-                                }
-                                labels.spanType(spanType).spanSubType(subtype);
-                                metricRegistry.updateTimer("span.self_time", labels, timer.getTotalTimeUs(), timer.getCount());
-                                timer.resetState();
+                    for (int slot = 0; slot < BreakdownAccumulator.MAX_KEYS; slot++) {
+                        String spanType = breakdownAccumulator.getType(slot);
+                        if (spanType != null) {
+                            long count = breakdownAccumulator.getCount(slot);
+                            if (count > 0) {
+                                labels.spanType(spanType).spanSubType(breakdownAccumulator.getSubtype(slot));
+                                metricRegistry.updateTimer("span.self_time", labels, breakdownAccumulator.getTotalTimeUs(slot), count);
                             }
                         }
                     }
+                    breakdownAccumulator.resetState();
+                }
+                if (!noop && metricsConfig.isTransactionDurationHistogramEnabled()) {
+                    labels.spanType(null).spanSubType(null).add("outcome", getOutcome().toString());
+                    metricRegistry.updateHistogram("transaction.duration.histogram", labels, getDuration());
                 }
             } finally {
                 metricRegistry.writerCriticalSectionExit(criticalValueAtEnter);
@@ -0,0 +1,113 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics;
+
+import co.elastic.apm.agent.objectpool.Recyclable;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-memory histogram with log-linear buckets, similar to the bucket layout of an HdrHistogram.
+ * <p>
+ * Values below {@code 2^}{@link #SUB_BUCKET_BITS} have a bucket of their own.
+ * Each larger power of two is divided into {@code 2^}{@link #SUB_BUCKET_BITS} linear sub-buckets,
+ * so that the relative error of a value is at most {@code 1/2^}{@link #SUB_BUCKET_BITS} of the value.
+ * Values greater than {@link #MAX_VALUE} are recorded in the highest bucket.
+ * </p>
+ * <p>
+ * Recording a value is lock-free and does not allocate.
+ * Reading the buckets is only consistent if there are no concurrent updates,
+ * which is guaranteed for the inactive {@link MetricSet}s of a {@link MetricRegistry}.
+ * </p>
+ */
+public class Histogram implements Recyclable {
+
+    static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    /**
+     * The highest value that can be distinguished from larger values.
+     * If the values are durations in microseconds, that's roughly 71 minutes.
+     */
+    static final long MAX_VALUE = (1L << 32) - 1;
+    static final int BUCKET_COUNT = getBucketIndex(MAX_VALUE) + 1;
+
+    private final AtomicLongArray bucketCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+
+    public void update(long value) {
+        bucketCounts.incrementAndGet(getBucketIndex(Math.min(Math.max(value, 0), MAX_VALUE)));
+        count.incrementAndGet();
+    }
+
+    static int getBucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((value >>> shift) - SUB_BUCKET_COUNT);
+    }
+
+    static long getLowestValue(int bucketIndex) {
+        if (bucketIndex < SUB_BUCKET_COUNT) {
+            return bucketIndex;
+        }
+        int shift = (bucketIndex >> SUB_BUCKET_BITS) - 1;
+        return ((long) ((bucketIndex & (SUB_BUCKET_COUNT - 1)) + SUB_BUCKET_COUNT)) << shift;
+    }
+
+    /**
+     * Returns the value that represents all values of a bucket, which is the middle of the range of the bucket.
+     *
+     * @param bucketIndex the index of the bucket, between {@code 0} and {@link #getNumberOfBuckets()} (exclusive)
+     * @return the middle of the range of values recorded in the bucket
+     */
+    public double getBucketValue(int bucketIndex) {
+        long lowestValue = getLowestValue(bucketIndex);
+        long width = bucketIndex < SUB_BUCKET_COUNT ? 1 : 1L << ((bucketIndex >> SUB_BUCKET_BITS) - 1);
+        return lowestValue + (width - 1) / 2.0;
+    }
+
+    public long getBucketCount(int bucketIndex) {
+        return bucketCounts.get(bucketIndex);
+    }
+
+    public int getNumberOfBuckets() {
+        return BUCKET_COUNT;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public boolean hasContent() {
+        return count.get() > 0;
+    }
+
+    @Override
+    public void resetState() {
+        if (count.get() == 0) {
+            return;
+        }
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            bucketCounts.set(i, 0);
+        }
+        count.set(0);
+    }
+}
@@ -126,6 +126,14 @@ public interface Labels {
 
         @Override
         public int hashCode() {
+            return hashSpanLabels(hashPrefix());
+        }
+
+        /**
+         * Hashes all labels, except for {@link #getSpanType()} and {@link #getSpanSubType()},
+         * which are hashed last so that the hash of the prefix can be cached (see {@link Mutable#hashCode()}).
+         */
+        int hashPrefix() {
             int h = 0;
             for (int i = 0; i < values.size(); i++) {
                 h = 31 * h + hashEntryAt(i);
@@ -134,11 +142,14 @@ public interface Labels {
             h = 31 * h + hash(getServiceVersion());
             h = 31 * h + hash(getTransactionName());
             h = 31 * h + (getTransactionType() != null ? getTransactionType().hashCode() : 0);
-            h = 31 * h + (getSpanType() != null ? getSpanType().hashCode() : 0);
-            h = 31 * h + (getSpanSubType() != null ? getSpanSubType().hashCode() : 0);
             return h;
         }
 
+        int hashSpanLabels(int prefixHash) {
+            int h = 31 * prefixHash + (getSpanType() != null ? getSpanType().hashCode() : 0);
+            return 31 * h + (getSpanSubType() != null ? getSpanSubType().hashCode() : 0);
+        }
+
         @Override
         public String toString() {
             StringBuilder sb = new StringBuilder();
@@ -218,6 +229,12 @@ public interface Labels {
         private String spanType;
         @Nullable
         private String spanSubType;
+        /**
+         * The cached {@link #hashPrefix()}, which is the expensive part of the hash as it includes the transaction name.
+         * When tracking breakdown metrics, only the span type and subtype change between lookups of the metric sets of a transaction.
+         */
+        private int prefixHash;
+        private boolean prefixHashValid;
 
         private Mutable() {
             super(new ArrayList<String>(), new ArrayList<CharSequence>());
@@ -244,26 +261,38 @@ public interface Labels {
         public Labels add(String key, CharSequence value) {
             keys.add(key);
             values.add(value);
+            prefixHashValid = false;
             return this;
         }
 
         public Labels.Mutable serviceName(@Nullable String serviceName) {
             this.serviceName = serviceName;
+            prefixHashValid = false;
             return this;
         }
 
         public Labels.Mutable serviceVersion(@Nullable String serviceVersion) {
             this.serviceVersion = serviceVersion;
+            prefixHashValid = false;
             return this;
         }
 
+        /**
+         * Sets the transaction name.
+         * As the hash of the labels is cached, the name must not be changed while it is part of these labels.
+         *
+         * @param transactionName the transaction name
+         * @return {@code this}, for chaining
+         */
         public Labels.Mutable transactionName(@Nullable CharSequence transactionName) {
             this.transactionName = transactionName;
+            prefixHashValid = false;
             return this;
         }
 
         public Labels.Mutable transactionType(@Nullable String transactionType) {
             this.transactionType = transactionType;
+            prefixHashValid = false;
             return this;
         }
 
@@ -312,6 +341,15 @@ public interface Labels {
             return new Immutable(this);
         }
 
+        @Override
+        public int hashCode() {
+            if (!prefixHashValid) {
+                prefixHash = hashPrefix();
+                prefixHashValid = true;
+            }
+            return hashSpanLabels(prefixHash);
+        }
+
         @Override
         public void resetState() {
             keys.clear();
@@ -322,6 +360,7 @@ public interface Labels {
             transactionType = null;
             spanType = null;
             spanSubType = null;
+            prefixHashValid = false;
         }
     }
 
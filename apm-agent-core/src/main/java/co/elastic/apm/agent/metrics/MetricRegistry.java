@@ -25,17 +25,16 @@ import org.HdrHistogram.WriterReaderPhaser;
 import co.elastic.apm.agent.sdk.logging.Logger;
 import co.elastic.apm.agent.sdk.logging.LoggerFactory;
 
-import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A registry for metrics.
  * <p>
- * Currently only holds gauges.
- * There are plans to add support for histogram-based timers.
+ * Holds gauges, counters, timers and histograms.
  * </p>
  */
 public class MetricRegistry {
@@ -55,6 +54,11 @@ public class MetricRegistry {
      * See {@link #getOrCreateMetricSet(Labels)}
      */
     private final ConcurrentMap<Labels.Immutable, MetricSet> metricSets1 = activeMetricSets, metricSets2 = inactiveMetricSets;
+    /**
+     * The number of distinct labels, which is reserved before a {@link MetricSet} is created
+     * so that concurrent threads can't exceed the {@link #metricSetLimit}.
+     */
+    private final AtomicInteger metricSetCount = new AtomicInteger();
 
     public MetricRegistry(ReporterConfiguration reporterConfiguration, MetricsConfiguration metricsConfiguration) {
         this.reporterConfiguration = reporterConfiguration;
@@ -201,6 +205,25 @@ public class MetricRegistry {
         }
     }
 
+    /**
+     * Records a value in a {@link Histogram}, for example the duration of a transaction.
+     *
+     * @param histogramName the name of the histogram
+     * @param labels        labels for the histogram
+     * @param value         the value to record, usually a duration in microseconds
+     */
+    public void updateHistogram(String histogramName, Labels labels, long value) {
+        long criticalValueAtEnter = phaser.writerCriticalSectionEnter();
+        try {
+            final MetricSet metricSet = getOrCreateMetricSet(labels);
+            if (metricSet != null) {
+                metricSet.histogram(histogramName).update(value);
+            }
+        } finally {
+            phaser.writerCriticalSectionExit(criticalValueAtEnter);
+        }
+    }
+
     /*
      * Must always be executed in context of a critical section so that the
      * activeMetricSets and inactiveMetricSets reference can't swap while this method runs
@@ -211,14 +234,22 @@ public class MetricRegistry {
         if (metricSet != null) {
             return metricSet;
         }
-        if (activeMetricSets.size() < metricSetLimit) {
-            return createMetricSet(labels.immutableCopy());
+        if (metricSetCount.get() >= metricSetLimit) {
+            return null;
         }
-        return null;
+        return createMetricSet(labels.immutableCopy());
     }
 
-    @Nonnull
+    @Nullable
     private MetricSet createMetricSet(Labels.Immutable labelsCopy) {
+        // the limit is enforced when reserving a slot for the labels, rather than by checking the size of the map,
+        // which is both slower and racy
+        int count = metricSetCount.incrementAndGet();
+        if (count > metricSetLimit) {
+            metricSetCount.decrementAndGet();
+            // another thread might have created the metric set in the meantime
+            return activeMetricSets.get(labelsCopy);
+        }
         // Gauges are the only metric types which are not reset after each report (as opposed to counters and timers)
         // that's why both metric sets have to contain the exact same gauges.
         // we can't access inactiveMetricSets as it might be swapped as this method is executed
@@ -226,15 +257,16 @@ public class MetricRegistry {
         MetricSet metricSet = new MetricSet(labelsCopy);
         final MetricSet racyMetricSet = metricSets1.putIfAbsent(labelsCopy, metricSet);
         if (racyMetricSet != null) {
+            // another thread has created the metric set, release the reserved slot
+            metricSetCount.decrementAndGet();
             metricSet = racyMetricSet;
-        }
-        // even if the map already contains this metric set, the gauges reference will be the same
-        metricSets2.putIfAbsent(labelsCopy, new MetricSet(labelsCopy, metricSet.getGauges()));
-        if (metricSets1.size() >= metricSetLimit) {
+        } else if (count == metricSetLimit) {
             logger.warn("The limit of {} timers has been reached, no new timers will be created. " +
                 "Try to name your transactions so that there are fewer distinct transaction names. " +
                 "You may use the unsupported configuration 'metric_set_limit' to increase the limit.", metricSetLimit);
         }
+        // even if the map already contains this metric set, the gauges reference will be the same
+        metricSets2.putIfAbsent(labelsCopy, new MetricSet(labelsCopy, metricSet.getGauges()));
         return activeMetricSets.get(labelsCopy);
     }
 
@@ -46,8 +46,10 @@ public class MetricSet implements Recyclable {
     // low load factor as hash collisions are quite costly when tracking breakdown metrics
     private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>(32, 0.5f, Runtime.getRuntime().availableProcessors());
     private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<>(32, 0.5f, Runtime.getRuntime().availableProcessors());
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>(4, 0.5f, Runtime.getRuntime().availableProcessors());
     private volatile boolean hasNonEmptyTimer;
     private volatile boolean hasNonEmptyCounter;
+    private volatile boolean hasNonEmptyHistogram;
 
     MetricSet(Labels.Immutable labels) {
         this(labels, new ConcurrentHashMap<String, DoubleSupplier>());
@@ -95,12 +97,26 @@ public class MetricSet implements Recyclable {
         counter.incrementAndGet();
     }
 
+    public Histogram histogram(String histogramName) {
+        hasNonEmptyHistogram = true;
+        Histogram histogram = histograms.get(histogramName);
+        if (histogram == null) {
+            histograms.putIfAbsent(histogramName, new Histogram());
+            histogram = histograms.get(histogramName);
+        }
+        return histogram;
+    }
+
     public Map<String, Timer> getTimers() {
         return timers;
     }
 
+    public Map<String, Histogram> getHistograms() {
+        return histograms;
+    }
+
     public boolean hasContent() {
-        return !gauges.isEmpty() || hasNonEmptyTimer || hasNonEmptyCounter;
+        return !gauges.isEmpty() || hasNonEmptyTimer || hasNonEmptyCounter || hasNonEmptyHistogram;
     }
 
     /**
@@ -113,8 +129,12 @@ public class MetricSet implements Recyclable {
         for (AtomicLong counter : counters.values()) {
             counter.set(0);
         }
+        for (Histogram histogram : histograms.values()) {
+            histogram.resetState();
+        }
         hasNonEmptyTimer = false;
         hasNonEmptyCounter = false;
+        hasNonEmptyHistogram = false;
     }
 
     public Map<String, AtomicLong> getCounters() {
@@ -0,0 +1,100 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics.builtin;
+
+import co.elastic.apm.agent.configuration.MetricsConfiguration;
+import co.elastic.apm.agent.context.AbstractLifecycleListener;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.metrics.DoubleSupplier;
+import co.elastic.apm.agent.metrics.Labels;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.objectpool.ObjectPool;
+
+import java.util.Map;
+
+/**
+ * Metrics about the pools of transactions, spans, errors and span links.
+ * Only registered if {@link MetricsConfiguration#isObjectPoolMetricsEnabled()}, as they are mostly useful to tune the pools.
+ * <p>
+ * Except for the pool size, the metrics are reported as the difference to the previous report, that is, per {@code metrics_interval}.
+ * </p>
+ */
+public class AgentObjectPoolMetrics extends AbstractLifecycleListener {
+
+    @Override
+    public void start(ElasticApmTracer tracer) {
+        if (!tracer.getConfig(MetricsConfiguration.class).isObjectPoolMetricsEnabled()) {
+            return;
+        }
+        bindTo(tracer.getMetricRegistry(), tracer.getObjectPools());
+    }
+
+    void bindTo(MetricRegistry registry, Map<String, ObjectPool<?>> pools) {
+        for (Map.Entry<String, ObjectPool<?>> entry : pools.entrySet()) {
+            final ObjectPool<?> pool = entry.getValue();
+            Labels labels = Labels.Mutable.of("pool", entry.getKey());
+            registry.add("agent.objectpool.size", labels, new DoubleSupplier() {
+                @Override
+                public double get() {
+                    return pool.getObjectsInPool();
+                }
+            });
+            registry.add("agent.objectpool.created", labels, new CounterGauge(pool.getObjectsCreated()) {
+                @Override
+                protected long getCount() {
+                    return pool.getObjectsCreated();
+                }
+            });
+            registry.add("agent.objectpool.recycled", labels, new CounterGauge(pool.getObjectsRecycled()) {
+                @Override
+                protected long getCount() {
+                    return pool.getObjectsRecycled();
+                }
+            });
+            registry.add("agent.objectpool.discarded", labels, new CounterGauge(pool.getGarbageCreated()) {
+                @Override
+                protected long getCount() {
+                    return pool.getGarbageCreated();
+                }
+            });
+        }
+    }
+
+    /**
+     * Reports the increase of a monotonic count since the previous report
+     */
+    abstract static class CounterGauge extends AgentReporterMetrics.IntervalGauge {
+        private long lastCount;
+
+        CounterGauge(long initialCount) {
+            this.lastCount = initialCount;
+        }
+
+        @Override
+        protected double compute(long nowNs, long elapsedNs) {
+            long count = getCount();
+            // counts aggregated from several threads may be read slightly out of date
+            long delta = Math.max(0, count - lastCount);
+            lastCount = Math.max(lastCount, count);
+            return delta;
+        }
+
+        protected abstract long getCount();
+    }
+}
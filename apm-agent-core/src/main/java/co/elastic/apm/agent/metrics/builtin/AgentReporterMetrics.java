@@ -0,0 +1,150 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics.builtin;
+
+import co.elastic.apm.agent.context.AbstractLifecycleListener;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.metrics.DoubleSupplier;
+import co.elastic.apm.agent.metrics.Labels;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.report.Reporter;
+import co.elastic.apm.agent.report.ReporterLane;
+import co.elastic.apm.agent.report.ReporterStatistics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Metrics about the agent's own reporter.
+ * <p>
+ * The reporter thread metrics are reported as the difference to the previous report, that is, per {@code metrics_interval}.
+ * </p>
+ */
+public class AgentReporterMetrics extends AbstractLifecycleListener {
+
+    @Override
+    public void start(ElasticApmTracer tracer) {
+        bindTo(tracer.getMetricRegistry(), tracer.getReporter());
+    }
+
+    void bindTo(final MetricRegistry registry, final Reporter reporter) {
+        registry.addUnlessNegative("agent.events.queue.bytes", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return reporter.getQueuedBytes();
+            }
+        });
+        final ReporterStatistics statistics = reporter.getStatistics();
+        if (statistics != null) {
+            bindTo(registry, statistics);
+        }
+    }
+
+    private void bindTo(MetricRegistry registry, final ReporterStatistics statistics) {
+        registry.add("agent.events.reporter.idle.pct", Labels.EMPTY, new IntervalGauge() {
+            private long lastIdleNs = statistics.getIdleNs(lastNs);
+
+            @Override
+            protected double compute(long nowNs, long elapsedNs) {
+                long idleNs = statistics.getIdleNs(nowNs);
+                double idle = (double) (idleNs - lastIdleNs) / elapsedNs / Math.max(1, statistics.getConsumers());
+                lastIdleNs = idleNs;
+                return Math.max(0, Math.min(1, idle));
+            }
+        });
+        registry.add("agent.events.batch.size.avg", Labels.EMPTY, new IntervalGauge() {
+            private long lastEvents = statistics.getEvents();
+            private long lastBatches = statistics.getBatches();
+
+            @Override
+            protected double compute(long nowNs, long elapsedNs) {
+                long events = statistics.getEvents();
+                long batches = statistics.getBatches();
+                double average = batches > lastBatches ? (double) (events - lastEvents) / (batches - lastBatches) : 0;
+                lastEvents = events;
+                lastBatches = batches;
+                return average;
+            }
+        });
+        for (int i = 0; i < ReporterStatistics.getLatencyBuckets(); i++) {
+            final int bucket = i;
+            registry.add("agent.events.latency.count", Labels.Mutable.of("bucket", ReporterStatistics.getLatencyBucketName(bucket)), new IntervalGauge() {
+                private long lastCount = statistics.getLatencyCount(bucket);
+
+                @Override
+                protected double compute(long nowNs, long elapsedNs) {
+                    long count = statistics.getLatencyCount(bucket);
+                    long delta = count - lastCount;
+                    lastCount = count;
+                    return delta;
+                }
+            });
+        }
+        for (final ReporterLane lane : ReporterLane.values()) {
+            registry.add("agent.events.processed", Labels.Mutable.of("lane", lane.toString()), new IntervalGauge() {
+                private long lastCount = statistics.getProcessed(lane);
+
+                @Override
+                protected double compute(long nowNs, long elapsedNs) {
+                    long count = statistics.getProcessed(lane);
+                    long delta = count - lastCount;
+                    lastCount = count;
+                    return delta;
+                }
+            });
+            registry.add("agent.events.dropped", Labels.Mutable.of("lane", lane.toString()), new IntervalGauge() {
+                private long lastCount = statistics.getDropped(lane);
+
+                @Override
+                protected double compute(long nowNs, long elapsedNs) {
+                    long count = statistics.getDropped(lane);
+                    long delta = count - lastCount;
+                    lastCount = count;
+                    return delta;
+                }
+            });
+        }
+    }
+
+    /**
+     * A gauge for the change of a cumulative value since the previous report.
+     * <p>
+     * As gauges may be read multiple times per report, for example once per service name,
+     * the value is only re-computed if at least {@link #MIN_INTERVAL_NS} have elapsed since it has been computed the last time.
+     * That is the minimum {@code metrics_interval}.
+     * </p>
+     */
+    abstract static class IntervalGauge implements DoubleSupplier {
+        private static final long MIN_INTERVAL_NS = TimeUnit.SECONDS.toNanos(1);
+        protected long lastNs = System.nanoTime();
+        private double value = Double.NaN;
+
+        @Override
+        public double get() {
+            long nowNs = System.nanoTime();
+            long elapsedNs = nowNs - lastNs;
+            if (elapsedNs >= MIN_INTERVAL_NS) {
+                value = compute(nowNs, elapsedNs);
+                lastNs = nowNs;
+            }
+            return value;
+        }
+
+        protected abstract double compute(long nowNs, long elapsedNs);
+    }
+}
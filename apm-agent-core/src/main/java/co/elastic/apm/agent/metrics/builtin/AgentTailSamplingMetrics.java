@@ -0,0 +1,84 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics.builtin;
+
+import co.elastic.apm.agent.context.AbstractLifecycleListener;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.sampling.TailSamplingBuffer;
+import co.elastic.apm.agent.metrics.DoubleSupplier;
+import co.elastic.apm.agent.metrics.Labels;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Metrics about the {@link TailSamplingBuffer}, only registered if {@code tail_sampling_enabled} is set.
+ * <p>
+ * Except for the buffer size, the metrics are reported as the difference to the previous report, that is, per {@code metrics_interval}.
+ * </p>
+ */
+public class AgentTailSamplingMetrics extends AbstractLifecycleListener {
+
+    @Override
+    public void start(ElasticApmTracer tracer) {
+        TailSamplingBuffer buffer = tracer.getTailSamplingBuffer();
+        if (buffer != null) {
+            bindTo(tracer.getMetricRegistry(), buffer);
+        }
+    }
+
+    void bindTo(MetricRegistry registry, final TailSamplingBuffer buffer) {
+        registry.add("agent.tail_sampling.buffer.bytes", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return buffer.getBufferedBytes();
+            }
+        });
+        registry.add("agent.tail_sampling.buffer.traces", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return buffer.getBufferedTraces();
+            }
+        });
+        for (final TailSamplingBuffer.Decision decision : TailSamplingBuffer.Decision.values()) {
+            Labels labels = Labels.Mutable.of("decision", decision.isKeep() ? "keep" : "drop")
+                .add("reason", decision.getReason());
+            registry.add("agent.tail_sampling.decisions", labels, new AgentObjectPoolMetrics.CounterGauge(buffer.getDecisions(decision)) {
+                @Override
+                protected long getCount() {
+                    return buffer.getDecisions(decision);
+                }
+            });
+        }
+        registry.add("agent.tail_sampling.decision.latency.avg", Labels.EMPTY, new AgentReporterMetrics.IntervalGauge() {
+            private long lastTraces = buffer.getBufferedTracesDecided();
+            private long lastBufferedNs = buffer.getBufferedNsOfDecidedTraces();
+
+            @Override
+            protected double compute(long nowNs, long elapsedNs) {
+                long traces = buffer.getBufferedTracesDecided();
+                long ns = buffer.getBufferedNsOfDecidedTraces();
+                double averageMs = traces > lastTraces ? (double) (ns - lastBufferedNs) / (traces - lastTraces) / TimeUnit.MILLISECONDS.toNanos(1) : 0;
+                lastTraces = traces;
+                lastBufferedNs = ns;
+                return averageMs;
+            }
+        });
+    }
+}
@@ -51,16 +51,23 @@ public class CGroupMetrics extends AbstractLifecycleListener {
     private static final String CGROUP2_MAX_MEMORY = "memory.max";
     private static final String CGROUP2_USED_MEMORY = "memory.current";
     private static final String CGROUP_MEMORY_STAT = "memory.stat";
+    private static final String CGROUP_CPU_STAT = "cpu.stat";
+    private static final String CGROUP2_MEMORY_EVENTS = "memory.events";
+    private static final String CGROUP2_PRESSURE_SUFFIX = ".pressure";
+    private static final String[] CGROUP2_MEMORY_EVENTS_KEYS = {"low", "high", "max", "oom", "oom_kill"};
+    private static final String[] PRESSURE_RESOURCES = {"cpu", "memory", "io"};
     private static final String CGROUP1_UNLIMITED = "9223372036854771712";
     private static final String CGROUP2_UNLIMITED = "max";
 
     static final Pattern MEMORY_CGROUP = Pattern.compile("^\\d+:memory:.*");
     static final Pattern CGROUP1_MOUNT_POINT = Pattern.compile("^\\d+? \\d+? .+? .+? (.*?) .*cgroup.*memory.*");
+    static final Pattern CGROUP1_CPU_MOUNT_POINT = Pattern.compile("^\\d+? \\d+? .+? .+? (.*?) .* - cgroup .*\\bcpu\\b.*");
     static final Pattern CGROUP2_MOUNT_POINT = Pattern.compile("^\\d+? \\d+? .+? .+? (.*?) .*cgroup2.*cgroup.*");
 
     private static final Logger logger = LoggerFactory.getLogger(CGroupMetrics.class);
 
 
+    private final ProcFileReader procFileReader = new ProcFileReader();
     @Nullable
     private final CgroupFiles cgroupFiles;
 
@@ -125,7 +132,7 @@ public class CGroupMetrics extends AbstractLifecycleListener {
                         // cgroup v1
                         String memoryMountPath = applyCgroupRegex(CGROUP1_MOUNT_POINT, mountLine);
                         if (memoryMountPath != null) {
-                            cgroupFiles = createCgroup1Files(new File(memoryMountPath));
+                            cgroupFiles = createCgroup1Files(new File(memoryMountPath), findCgroup1CpuMountPath(mountInfo));
                             if (cgroupFiles != null) {
                                 return cgroupFiles;
                             }
@@ -147,7 +154,7 @@ public class CGroupMetrics extends AbstractLifecycleListener {
                 return cgroupFiles;
             }
             // cgroup v1
-            cgroupFiles = createCgroup1Files(new File(DEFAULT_SYS_FS_CGROUP + File.pathSeparator + "memory"));
+            cgroupFiles = createCgroup1Files(new File(DEFAULT_SYS_FS_CGROUP + File.pathSeparator + "memory"), findCgroup1CpuMountPath(mountInfo));
             if (cgroupFiles != null) {
                 return cgroupFiles;
             }
@@ -169,31 +176,61 @@ public class CGroupMetrics extends AbstractLifecycleListener {
         return null;
     }
 
+    /**
+     * Finds the mount path of the cgroup v1 cpu controller, which is mounted separately from the memory controller
+     *
+     * @param mountInfo /proc/self/mountinfo file
+     * @return the mount path of the cpu controller, or the default path if it can't be discovered
+     */
+    private File findCgroup1CpuMountPath(File mountInfo) {
+        if (mountInfo.canRead()) {
+            try (BufferedReader fileMountInfoReader = new BufferedReader(new FileReader(mountInfo))) {
+                for (String mountLine = fileMountInfoReader.readLine(); mountLine != null; mountLine = fileMountInfoReader.readLine()) {
+                    String cpuMountPath = applyCgroupRegex(CGROUP1_CPU_MOUNT_POINT, mountLine);
+                    if (cpuMountPath != null) {
+                        return new File(cpuMountPath);
+                    }
+                }
+            } catch (IOException e) {
+                logger.debug("Failed to discover the cpu mount path from mountinfo", e);
+            }
+        }
+        return new File(DEFAULT_SYS_FS_CGROUP, "cpu");
+    }
+
     @Nullable
     private CgroupFiles createCgroup2Files(String cgroupLine, File rootCgroupFsPath) throws IOException {
         final String[] cgroupLineParts = StringUtils.split(cgroupLine, ':');
         String sliceSubdir = cgroupLineParts[cgroupLineParts.length - 1];
-        File maxMemoryFile = new File(rootCgroupFsPath, sliceSubdir + System.getProperty("file.separator") + CGROUP2_MAX_MEMORY);
+        File sliceDir = new File(rootCgroupFsPath, sliceSubdir);
+        File maxMemoryFile = new File(sliceDir, CGROUP2_MAX_MEMORY);
         if (maxMemoryFile.canRead()) {
             maxMemoryFile = getMaxMemoryFile(maxMemoryFile, CGROUP2_UNLIMITED);
             return new CgroupFiles(
                 maxMemoryFile,
-                new File(rootCgroupFsPath, sliceSubdir + System.getProperty("file.separator") + CGROUP2_USED_MEMORY),
-                new File(rootCgroupFsPath, sliceSubdir + System.getProperty("file.separator") + CGROUP_MEMORY_STAT)
+                new File(sliceDir, CGROUP2_USED_MEMORY),
+                new File(sliceDir, CGROUP_MEMORY_STAT),
+                new File(sliceDir, CGROUP_CPU_STAT),
+                new File(sliceDir, CGROUP2_MEMORY_EVENTS),
+                sliceDir
             );
         }
         return null;
     }
 
     @Nullable
-    private CgroupFiles createCgroup1Files(File memoryMountPath) throws IOException {
+    private CgroupFiles createCgroup1Files(File memoryMountPath, File cpuMountPath) throws IOException {
         File maxMemoryFile = new File(memoryMountPath, CGroupMetrics.CGROUP1_MAX_MEMORY);
         if (maxMemoryFile.canRead()) {
             maxMemoryFile = getMaxMemoryFile(maxMemoryFile, CGROUP1_UNLIMITED);
             return new CgroupFiles(
                 maxMemoryFile,
                 new File(memoryMountPath, CGroupMetrics.CGROUP1_USED_MEMORY),
-                new File(memoryMountPath, CGroupMetrics.CGROUP_MEMORY_STAT)
+                new File(memoryMountPath, CGroupMetrics.CGROUP_MEMORY_STAT),
+                new File(cpuMountPath, CGROUP_CPU_STAT),
+                // memory events and pressure stall information are only available in cgroup v2
+                null,
+                null
             );
         }
         return null;
@@ -217,18 +254,19 @@ public class CGroupMetrics extends AbstractLifecycleListener {
         bindTo(tracer.getMetricRegistry());
     }
 
+    @Override
+    public void stop() throws Exception {
+        procFileReader.close();
+    }
+
     void bindTo(MetricRegistry metricRegistry) {
         if (cgroupFiles != null) {
 
+            final File usedMemoryFile = cgroupFiles.getUsedMemoryFile();
             metricRegistry.addUnlessNan("system.process.cgroup.memory.mem.usage.bytes", Labels.EMPTY, new DoubleSupplier() {
                 @Override
                 public double get() {
-                    try (BufferedReader fileReaderMemoryUsed = new BufferedReader(new FileReader(cgroupFiles.getUsedMemoryFile()))) {
-                        return Long.parseLong(fileReaderMemoryUsed.readLine());
-                    } catch (Exception e) {
-                        logger.debug("Failed to read " + cgroupFiles.getUsedMemoryFile().getAbsolutePath() + " file", e);
-                        return Double.NaN;
-                    }
+                    return procFileReader.readNumber(usedMemoryFile);
                 }
             });
 
@@ -237,29 +275,68 @@ public class CGroupMetrics extends AbstractLifecycleListener {
                 metricRegistry.addUnlessNan("system.process.cgroup.memory.mem.limit.bytes", Labels.EMPTY, new DoubleSupplier() {
                     @Override
                     public double get() {
-                        try (BufferedReader fileReaderMemoryMax = new BufferedReader(new FileReader(maxMemoryFile))) {
-                            return Long.parseLong(fileReaderMemoryMax.readLine());
-                        } catch (Exception e) {
-                            logger.debug("Failed to read " + maxMemoryFile + " file", e);
-                            return Double.NaN;
-                        }
+                        return procFileReader.readNumber(maxMemoryFile);
                     }
                 });
             }
+
+            final File cpuStatFile = cgroupFiles.getCpuStatFile();
+            if (cpuStatFile.canRead()) {
+                addValue(metricRegistry, "system.process.cgroup.cpu.stats.periods", cpuStatFile, "nr_periods", 1);
+                addValue(metricRegistry, "system.process.cgroup.cpu.stats.throttled.periods", cpuStatFile, "nr_throttled", 1);
+                // cgroup v1 reports the throttled time in nanoseconds, cgroup v2 in microseconds
+                addValue(metricRegistry, "system.process.cgroup.cpu.stats.throttled.ns", cpuStatFile, "throttled_time", 1);
+                addValue(metricRegistry, "system.process.cgroup.cpu.stats.throttled.ns", cpuStatFile, "throttled_usec", 1000);
+            }
+
+            final File memoryEventsFile = cgroupFiles.getMemoryEventsFile();
+            if (memoryEventsFile != null && memoryEventsFile.canRead()) {
+                for (String key : CGROUP2_MEMORY_EVENTS_KEYS) {
+                    addValue(metricRegistry, "system.process.cgroup.memory.events." + key, memoryEventsFile, key, 1);
+                }
+            }
+
+            final File pressureDir = cgroupFiles.getPressureDir();
+            if (pressureDir != null) {
+                for (String resource : PRESSURE_RESOURCES) {
+                    File pressureFile = new File(pressureDir, resource + CGROUP2_PRESSURE_SUFFIX);
+                    if (pressureFile.canRead()) {
+                        SystemMetrics.addPressure(metricRegistry, "system.process.cgroup.pressure." + resource, pressureFile, procFileReader);
+                    }
+                }
+            }
         }
     }
 
+    private void addValue(MetricRegistry metricRegistry, String name, final File file, final String key, final long multiplier) {
+        metricRegistry.addUnlessNan(name, Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return procFileReader.readValue(file, key) * multiplier;
+            }
+        });
+    }
+
     private static class CgroupFiles {
 
         @Nullable // may be null if memory mount is found for the cgroup, but memory is unlimited
         private final File maxMemoryFile;
         private final File usedMemoryFile;
         private final File statMemoryFile;
-
-        public CgroupFiles(@Nullable File maxMemoryFile, File usedMemoryFile, File statMemoryFile) {
+        private final File cpuStatFile;
+        @Nullable // only available in cgroup v2
+        private final File memoryEventsFile;
+        @Nullable // only available in cgroup v2
+        private final File pressureDir;
+
+        public CgroupFiles(@Nullable File maxMemoryFile, File usedMemoryFile, File statMemoryFile, File cpuStatFile,
+                           @Nullable File memoryEventsFile, @Nullable File pressureDir) {
             this.maxMemoryFile = maxMemoryFile;
             this.usedMemoryFile = usedMemoryFile;
             this.statMemoryFile = statMemoryFile;
+            this.cpuStatFile = cpuStatFile;
+            this.memoryEventsFile = memoryEventsFile;
+            this.pressureDir = pressureDir;
         }
 
         @Nullable
@@ -278,5 +355,19 @@ public class CGroupMetrics extends AbstractLifecycleListener {
         public File getStatMemoryFile() {
             return statMemoryFile;
         }
+
+        public File getCpuStatFile() {
+            return cpuStatFile;
+        }
+
+        @Nullable
+        public File getMemoryEventsFile() {
+            return memoryEventsFile;
+        }
+
+        @Nullable
+        public File getPressureDir() {
+            return pressureDir;
+        }
     }
 }
@@ -0,0 +1,343 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics.builtin;
+
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads numbers from files of the {@code /proc} and cgroup file systems, without allocating once a file has been opened.
+ * <p>
+ * Files are kept open and are re-read from the start for each read, which the proc and cgroup file systems support,
+ * into a direct {@link ByteBuffer} that is reused for all files.
+ * The numbers are parsed directly from the buffer.
+ * Only the first {@link #BUFFER_SIZE} bytes of a file are read, which is more than enough for the values the agent reads.
+ * </p>
+ * <p>
+ * If a file can't be read or a value can't be found, the methods return {@link Double#NaN} or a count of {@code 0},
+ * so that the gauges which use them are not reported.
+ * </p>
+ */
+class ProcFileReader implements Closeable {
+
+    static final int BUFFER_SIZE = 4096;
+
+    private static final Logger logger = LoggerFactory.getLogger(ProcFileReader.class);
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final Map<File, FileChannel> channels = new HashMap<>();
+    /**
+     * The number of bytes that have been read into the {@link #buffer}
+     */
+    private int limit;
+    /**
+     * The index of the next byte to parse
+     */
+    private int position;
+
+    /**
+     * Reads the number at the start of a file, for example {@code memory.current}.
+     *
+     * @param file the file to read
+     * @return the number, or {@link Double#NaN} if the file does not start with a number, for example if it contains {@code max}
+     */
+    synchronized double readNumber(File file) {
+        if (!read(file)) {
+            return Double.NaN;
+        }
+        long value = parseLong();
+        return value >= 0 ? value : Double.NaN;
+    }
+
+    /**
+     * Reads the value of a key in a file that consists of {@code key value} or {@code key: value} lines,
+     * for example {@code memory.stat}, {@code cpu.stat}, {@code memory.events} or {@code /proc/meminfo}.
+     *
+     * @param file the file to read
+     * @param key  the key, without a trailing colon
+     * @return the value, or {@link Double#NaN} if the key can't be found
+     */
+    synchronized double readValue(File file, String key) {
+        if (!read(file) || !findLine(key, true)) {
+            return Double.NaN;
+        }
+        long value = parseLong();
+        return value >= 0 ? value : Double.NaN;
+    }
+
+    /**
+     * Same as {@link #readValue(File, String)}, but reads the values of multiple keys from a single read of the file.
+     *
+     * @param file   the file to read
+     * @param keys   the keys to read
+     * @param values the array to store the values in, at the same index as the key, or {@link Double#NaN} for missing keys
+     * @return {@code false} if the file can't be read
+     */
+    synchronized boolean readValues(File file, String[] keys, double[] values) {
+        if (!read(file)) {
+            return false;
+        }
+        for (int i = 0; i < keys.length; i++) {
+            long value = findLine(keys[i], true) ? parseLong() : -1;
+            values[i] = value >= 0 ? value : Double.NaN;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the whitespace separated numbers after the prefix of the first line that starts with the prefix,
+     * for example the {@code cpu} line of {@code /proc/stat}.
+     *
+     * @param file       the file to read
+     * @param linePrefix the prefix of the line
+     * @param values     the array to store the numbers in, a token that is not a number is stored as {@code -1}
+     * @return the number of tokens that have been read, at most {@code values.length}
+     */
+    synchronized int readLongs(File file, String linePrefix, long[] values) {
+        if (!read(file) || !findLine(linePrefix, false)) {
+            return 0;
+        }
+        return parseLongs(values);
+    }
+
+    /**
+     * Reads the whitespace separated numbers after the last occurrence of a character,
+     * for example the fields after the command name of {@code /proc/self/stat}, which may itself contain spaces and parentheses.
+     *
+     * @param file   the file to read
+     * @param marker the character after which the numbers are read
+     * @param values the array to store the numbers in, a token that is not a number is stored as {@code -1}
+     * @return the number of tokens that have been read, at most {@code values.length}
+     */
+    synchronized int readLongsAfterLast(File file, char marker, long[] values) {
+        if (!read(file)) {
+            return 0;
+        }
+        int index = -1;
+        for (int i = 0; i < limit; i++) {
+            if (buffer.get(i) == marker) {
+                index = i;
+            }
+        }
+        if (index < 0) {
+            return 0;
+        }
+        position = index + 1;
+        return parseLongs(values);
+    }
+
+    /**
+     * Reads a decimal field of a line in a pressure stall information (PSI) file, for example {@code cpu.pressure}:
+     * <pre>
+     * some avg10=1.53 avg60=0.87 avg300=0.35 total=5471244
+     * full avg10=0.00 avg60=0.00 avg300=0.00 total=0
+     * </pre>
+     *
+     * @param file  the file to read
+     * @param line  the first token of the line, {@code some} or {@code full}
+     * @param field the name of the field, for example {@code avg10}
+     * @return the value of the field, or {@link Double#NaN} if it can't be found
+     */
+    synchronized double readPressure(File file, String line, String field) {
+        if (!read(file) || !findLine(line, true)) {
+            return Double.NaN;
+        }
+        while (position < limit && buffer.get(position) != '\n') {
+            skipWhitespace();
+            if (matches(position, field) && position + field.length() < limit && buffer.get(position + field.length()) == '=') {
+                position += field.length() + 1;
+                return parseDecimal();
+            }
+            skipToken();
+        }
+        return Double.NaN;
+    }
+
+    private boolean read(File file) {
+        FileChannel channel = channels.get(file);
+        try {
+            if (channel == null) {
+                channel = new RandomAccessFile(file, "r").getChannel();
+                channels.put(file, channel);
+            }
+            ((Buffer) buffer).clear();
+            long offset = 0;
+            int read;
+            while (buffer.hasRemaining() && (read = channel.read(buffer, offset)) > 0) {
+                offset += read;
+            }
+            limit = buffer.position();
+            position = 0;
+            return true;
+        } catch (IOException e) {
+            logger.debug("Failed to read {}: {}", file, e.getMessage());
+            closeQuietly(channels.remove(file));
+            return false;
+        }
+    }
+
+    /**
+     * Moves the {@link #position} after the prefix of the first line that starts with the prefix.
+     *
+     * @param prefix the prefix of the line
+     * @param isKey  whether the prefix has to be followed by a whitespace or a colon,
+     *               so that for example the key {@code oom} does not match a line that starts with {@code oom_kill}
+     * @return whether a line has been found
+     */
+    private boolean findLine(String prefix, boolean isKey) {
+        int lineStart = 0;
+        while (lineStart < limit) {
+            if (matches(lineStart, prefix)) {
+                int end = lineStart + prefix.length();
+                if (!isKey) {
+                    position = end;
+                    return true;
+                }
+                if (end < limit) {
+                    byte next = buffer.get(end);
+                    if (next == ' ' || next == '\t' || next == ':') {
+                        position = next == ':' ? end + 1 : end;
+                        return true;
+                    }
+                }
+            }
+            while (lineStart < limit && buffer.get(lineStart) != '\n') {
+                lineStart++;
+            }
+            lineStart++;
+        }
+        return false;
+    }
+
+    private boolean matches(int index, String s) {
+        if (index + s.length() > limit) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (buffer.get(index + i) != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int parseLongs(long[] values) {
+        int count = 0;
+        while (count < values.length) {
+            skipWhitespace();
+            if (position >= limit || buffer.get(position) == '\n') {
+                break;
+            }
+            long value = parseLong();
+            if (value < 0) {
+                skipToken();
+            }
+            values[count++] = value;
+        }
+        return count;
+    }
+
+    /**
+     * @return the non-negative number at the current position, or {@code -1} if there is none
+     */
+    private long parseLong() {
+        skipWhitespace();
+        int start = position;
+        long value = 0;
+        while (position < limit) {
+            byte b = buffer.get(position);
+            if (b < '0' || b > '9') {
+                break;
+            }
+            value = value * 10 + (b - '0');
+            position++;
+        }
+        return position > start ? value : -1;
+    }
+
+    private double parseDecimal() {
+        long integer = parseLong();
+        if (integer < 0) {
+            return Double.NaN;
+        }
+        double value = integer;
+        if (position < limit && buffer.get(position) == '.') {
+            position++;
+            double scale = 0.1;
+            while (position < limit) {
+                byte b = buffer.get(position);
+                if (b < '0' || b > '9') {
+                    break;
+                }
+                value += (b - '0') * scale;
+                scale /= 10;
+                position++;
+            }
+        }
+        return value;
+    }
+
+    private void skipWhitespace() {
+        while (position < limit) {
+            byte b = buffer.get(position);
+            if (b != ' ' && b != '\t') {
+                break;
+            }
+            position++;
+        }
+    }
+
+    private void skipToken() {
+        while (position < limit) {
+            byte b = buffer.get(position);
+            if (b == ' ' || b == '\t' || b == '\n') {
+                break;
+            }
+            position++;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        for (FileChannel channel : channels.values()) {
+            closeQuietly(channel);
+        }
+        channels.clear();
+    }
+
+    private static void closeQuietly(@Nullable FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+}
@@ -20,29 +20,30 @@ package co.elastic.apm.agent.metrics.builtin;
 
 import co.elastic.apm.agent.context.AbstractLifecycleListener;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
-import co.elastic.apm.agent.matcher.WildcardMatcher;
 import co.elastic.apm.agent.metrics.DoubleSupplier;
 import co.elastic.apm.agent.metrics.Labels;
 import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
 import co.elastic.apm.agent.util.JmxUtils;
-import org.stagemonitor.util.StringUtils;
 
 import javax.annotation.Nullable;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.lang.management.ManagementFactory;
 import java.lang.management.OperatingSystemMXBean;
 import java.lang.reflect.Method;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
-import static co.elastic.apm.agent.matcher.WildcardMatcher.caseSensitiveMatcher;
 
 /**
- * Record metrics related to the CPU and memory, gathered by the JVM.
+ * Record metrics related to the CPU and memory.
+ * <p>
+ * On Linux, the metrics are read from the {@code /proc} file system with a {@link ProcFileReader}.
+ * Otherwise, they are gathered by the JVM.
+ * </p>
+ * <p>
+ * Inside a container, {@code /proc/stat} reports the CPU usage of the whole host.
+ * That's why, if the cgroup of the process has a CPU limit, the CPU usage is calculated from the cgroup's CPU accounting
+ * and is relative to that limit.
+ * </p>
  * <p>
  * Supported JVM implementations:
  * <ul>
@@ -55,6 +56,28 @@ import static co.elastic.apm.agent.matcher.WildcardMatcher.caseSensitiveMatcher;
  */
 public class SystemMetrics extends AbstractLifecycleListener {
 
+    private static final Logger logger = LoggerFactory.getLogger(SystemMetrics.class);
+
+    /**
+     * The index of the {@code utime} field in {@code /proc/self/stat}, relative to the first field after the command name
+     */
+    static final int SELF_STAT_UTIME = 11;
+    static final int SELF_STAT_STIME = 12;
+    static final int SELF_STAT_VSIZE = 20;
+
+    private static final String[] PRESSURE_RESOURCES = {"cpu", "memory", "io"};
+    private static final String[] MEM_INFO_KEYS = {"MemAvailable", "MemFree", "Buffers", "Cached", "MemTotal"};
+    private static final int MEM_AVAILABLE = 0;
+    private static final int MEM_FREE = 1;
+    private static final int BUFFERS = 2;
+    private static final int CACHED = 3;
+    private static final int MEM_TOTAL = 4;
+    private static final String CGROUP2_CPU_MAX = "cpu.max";
+    private static final String CGROUP2_CPU_STAT = "cpu.stat";
+    private static final String CGROUP1_CPU_QUOTA = "cpu/cpu.cfs_quota_us";
+    private static final String CGROUP1_CPU_PERIOD = "cpu/cpu.cfs_period_us";
+    private static final String CGROUP1_CPU_USAGE = "cpuacct/cpuacct.usage";
+
     private final OperatingSystemMXBean operatingSystemBean;
 
     @Nullable
@@ -71,20 +94,40 @@ public class SystemMetrics extends AbstractLifecycleListener {
 
     @Nullable
     private final Method virtualProcessMemory;
+
+    @Nullable
+    private final Method processCpuTime;
+    private final ProcFileReader procFileReader = new ProcFileReader();
+    private final File procStatFile;
+    private final File procSelfStatFile;
     private final File memInfoFile;
+    private final File pressureDir;
+    /**
+     * The cgroup file system root, which is the cgroup of the process inside of a container
+     */
+    private final File cgroupDir;
 
     public SystemMetrics() {
         this(new File("/proc/meminfo"));
     }
 
     SystemMetrics(File memInfoFile) {
+        this(new File("/proc/stat"), new File("/proc/self/stat"), memInfoFile, new File("/proc/pressure"), new File("/sys/fs/cgroup"));
+    }
+
+    SystemMetrics(File procStatFile, File procSelfStatFile, File memInfoFile, File pressureDir, File cgroupDir) {
         this.operatingSystemBean = ManagementFactory.getOperatingSystemMXBean();
         this.systemCpuUsage = JmxUtils.getOperatingSystemMBeanMethod(operatingSystemBean, "getSystemCpuLoad");
         this.processCpuUsage = JmxUtils.getOperatingSystemMBeanMethod(operatingSystemBean, "getProcessCpuLoad");
         this.freeMemory = JmxUtils.getOperatingSystemMBeanMethod(operatingSystemBean, "getFreePhysicalMemorySize");
         this.totalMemory = JmxUtils.getOperatingSystemMBeanMethod(operatingSystemBean, "getTotalPhysicalMemorySize");
         this.virtualProcessMemory = JmxUtils.getOperatingSystemMBeanMethod(operatingSystemBean, "getCommittedVirtualMemorySize");
+        this.processCpuTime = JmxUtils.getOperatingSystemMBeanMethod(operatingSystemBean, "getProcessCpuTime");
+        this.procStatFile = procStatFile;
+        this.procSelfStatFile = procSelfStatFile;
         this.memInfoFile = memInfoFile;
+        this.pressureDir = pressureDir;
+        this.cgroupDir = cgroupDir;
     }
 
     @Override
@@ -92,67 +135,127 @@ public class SystemMetrics extends AbstractLifecycleListener {
         bindTo(tracer.getMetricRegistry());
     }
 
+    @Override
+    public void stop() throws Exception {
+        procFileReader.close();
+    }
+
     void bindTo(MetricRegistry metricRegistry) {
-        // J9 always returns -1 on the first call
-        metricRegistry.addUnlessNan("system.cpu.total.norm.pct", Labels.EMPTY, new DoubleSupplier() {
+        double cgroupCpuLimit = getCgroupCpuLimit();
+        if (cgroupCpuLimit > 0 && bindCgroupCpuUsage(metricRegistry, cgroupCpuLimit)) {
+            logger.debug("Calculating the CPU usage relative to the cgroup CPU limit of {} CPUs", cgroupCpuLimit);
+        } else {
+            bindCpuUsage(metricRegistry);
+        }
+        bindMemory(metricRegistry);
+
+        for (String resource : PRESSURE_RESOURCES) {
+            File pressureFile = new File(pressureDir, resource);
+            if (pressureFile.canRead()) {
+                addPressure(metricRegistry, "system.pressure." + resource, pressureFile, procFileReader);
+            }
+        }
+    }
+
+    /**
+     * @return the number of CPUs the cgroup of this process is limited to, or {@link Double#NaN} if there is no limit
+     */
+    private double getCgroupCpuLimit() {
+        // cgroup v2: "$MAX $PERIOD", where $MAX is "max" if there is no limit
+        long[] quotaAndPeriod = new long[2];
+        if (procFileReader.readLongs(new File(cgroupDir, CGROUP2_CPU_MAX), "", quotaAndPeriod) == 2) {
+            return quotaAndPeriod[0] > 0 && quotaAndPeriod[1] > 0 ? (double) quotaAndPeriod[0] / quotaAndPeriod[1] : Double.NaN;
+        }
+        // cgroup v1: the quota is -1 if there is no limit
+        return procFileReader.readNumber(new File(cgroupDir, CGROUP1_CPU_QUOTA)) / procFileReader.readNumber(new File(cgroupDir, CGROUP1_CPU_PERIOD));
+    }
+
+    /**
+     * @return {@code false} if the CPU usage of the cgroup can't be read
+     */
+    private boolean bindCgroupCpuUsage(MetricRegistry metricRegistry, double cgroupCpuLimit) {
+        final File cgroup2CpuStatFile = new File(cgroupDir, CGROUP2_CPU_STAT);
+        final File cgroup1CpuUsageFile = new File(cgroupDir, CGROUP1_CPU_USAGE);
+        final boolean cgroup2 = cgroup2CpuStatFile.canRead();
+        CgroupCpuUsage cgroupCpuUsage = new CgroupCpuUsage(cgroupCpuLimit) {
             @Override
-            public double get() {
-                return invoke(systemCpuUsage);
+            protected double getUsageNanos() {
+                if (cgroup2) {
+                    return procFileReader.readValue(cgroup2CpuStatFile, "usage_usec") * 1000;
+                }
+                return procFileReader.readNumber(cgroup1CpuUsageFile);
             }
-        });
+        };
+        // the first value is calculated from the usage since this sample
+        cgroupCpuUsage.get();
+        if (!cgroupCpuUsage.isSupported()) {
+            return false;
+        }
+        metricRegistry.add("system.cpu.total.norm.pct", Labels.EMPTY, cgroupCpuUsage);
 
-        metricRegistry.addUnlessNan("system.process.cpu.total.norm.pct", Labels.EMPTY, new DoubleSupplier() {
+        CgroupCpuUsage processCpuUsage = new CgroupCpuUsage(cgroupCpuLimit) {
             @Override
-            public double get() {
-                return invoke(processCpuUsage);
+            protected double getUsageNanos() {
+                return invoke(processCpuTime);
             }
-        });
+        };
+        processCpuUsage.get();
+        if (processCpuUsage.isSupported()) {
+            metricRegistry.add("system.process.cpu.total.norm.pct", Labels.EMPTY, processCpuUsage);
+        }
+        return true;
+    }
+
+    private void bindCpuUsage(MetricRegistry metricRegistry) {
+        ProcCpuUsage procSystemCpuUsage = new ProcCpuUsage(procFileReader, procStatFile, null);
+        if (procSystemCpuUsage.isSupported()) {
+            // the first value is calculated from the usage since this sample
+            metricRegistry.add("system.cpu.total.norm.pct", Labels.EMPTY, procSystemCpuUsage);
+        } else {
+            // J9 always returns -1 on the first call
+            metricRegistry.addUnlessNan("system.cpu.total.norm.pct", Labels.EMPTY, new DoubleSupplier() {
+                @Override
+                public double get() {
+                    return invoke(systemCpuUsage);
+                }
+            });
+        }
+
+        ProcCpuUsage procProcessCpuUsage = new ProcCpuUsage(procFileReader, procStatFile, procSelfStatFile);
+        if (procProcessCpuUsage.isSupported()) {
+            metricRegistry.add("system.process.cpu.total.norm.pct", Labels.EMPTY, procProcessCpuUsage);
+        } else {
+            metricRegistry.addUnlessNan("system.process.cpu.total.norm.pct", Labels.EMPTY, new DoubleSupplier() {
+                @Override
+                public double get() {
+                    return invoke(processCpuUsage);
+                }
+            });
+        }
+    }
 
+    private void bindMemory(MetricRegistry metricRegistry) {
         if (memInfoFile.canRead()) {
             metricRegistry.addUnlessNan("system.memory.actual.free", Labels.EMPTY, new DoubleSupplier() {
-                final List<WildcardMatcher> relevantLines = Arrays.asList(
-                    caseSensitiveMatcher("MemAvailable:*kB"),
-                    caseSensitiveMatcher("MemFree:*kB"),
-                    caseSensitiveMatcher("Buffers:*kB"),
-                    caseSensitiveMatcher("Cached:*kB"));
+                private final double[] memInfo = new double[MEM_INFO_KEYS.length];
 
                 @Override
                 public double get() {
-                    Map<String, Long> memInfo = new HashMap<>();
-                    try (BufferedReader fileReader = new BufferedReader(new FileReader(memInfoFile))) {
-                        for (String memInfoLine = fileReader.readLine(); memInfoLine != null && !memInfoLine.isEmpty(); memInfoLine = fileReader.readLine()) {
-                            if (WildcardMatcher.isAnyMatch(relevantLines, memInfoLine)) {
-                                final String[] memInfoSplit = StringUtils.split(memInfoLine, ' ');
-                                memInfo.put(memInfoSplit[0], Long.parseLong(memInfoSplit[1]) * 1024);
-                            }
-                        }
-                        if (memInfo.containsKey("MemAvailable:")) {
-                            return memInfo.get("MemAvailable:");
-                        } else if (memInfo.containsKey("MemFree:")) {
-                            return memInfo.get("MemFree:") + memInfo.get("Buffers:") + memInfo.get("Cached:");
-                        } else {
-                            return Double.NaN;
-                        }
-                    } catch (Exception e) {
+                    if (!procFileReader.readValues(memInfoFile, MEM_INFO_KEYS, memInfo)) {
                         return Double.NaN;
                     }
+                    if (!Double.isNaN(memInfo[MEM_AVAILABLE])) {
+                        return memInfo[MEM_AVAILABLE] * 1024;
+                    }
+                    // NaN if any of them is missing
+                    return (memInfo[MEM_FREE] + memInfo[BUFFERS] + memInfo[CACHED]) * 1024;
                 }
             });
 
             metricRegistry.addUnlessNan("system.memory.total", Labels.EMPTY, new DoubleSupplier() {
                 @Override
                 public double get() {
-                    try (BufferedReader fileReader = new BufferedReader(new FileReader(memInfoFile))) {
-                        for (String memInfoLine = fileReader.readLine(); memInfoLine != null && !memInfoLine.isEmpty(); memInfoLine = fileReader.readLine()) {
-                            if (memInfoLine.startsWith("MemTotal:")) {
-                                final String[] memInfoSplit = StringUtils.split(memInfoLine, ' ');
-                                return Long.parseLong(memInfoSplit[1]) * 1024;
-                            }
-                        }
-                        return Double.NaN;
-                    } catch (Exception e) {
-                        return Double.NaN;
-                    }
+                    return procFileReader.readValue(memInfoFile, MEM_INFO_KEYS[MEM_TOTAL]) * 1024;
                 }
             });
         } else {
@@ -170,10 +273,48 @@ public class SystemMetrics extends AbstractLifecycleListener {
             });
         }
 
-        metricRegistry.addUnlessNegative("system.process.memory.size", Labels.EMPTY, new DoubleSupplier() {
+        if (procSelfStatFile.canRead()) {
+            metricRegistry.addUnlessNegative("system.process.memory.size", Labels.EMPTY, new DoubleSupplier() {
+                private final long[] selfStat = new long[SELF_STAT_VSIZE + 1];
+
+                @Override
+                public double get() {
+                    if (procFileReader.readLongsAfterLast(procSelfStatFile, ')', selfStat) < selfStat.length) {
+                        return -1;
+                    }
+                    return selfStat[SELF_STAT_VSIZE];
+                }
+            });
+        } else {
+            metricRegistry.addUnlessNegative("system.process.memory.size", Labels.EMPTY, new DoubleSupplier() {
+                @Override
+                public double get() {
+                    return invoke(virtualProcessMemory);
+                }
+            });
+        }
+    }
+
+    /**
+     * Adds the {@code some} and {@code full} share of the last 10 seconds of a pressure stall information (PSI) file,
+     * that is the share of time in which some or all non-idle tasks were stalled on the resource.
+     *
+     * @param metricRegistry the metric registry
+     * @param prefix         the prefix of the metric names
+     * @param pressureFile   the PSI file, for example {@code /proc/pressure/cpu} or {@code cpu.pressure} of a cgroup v2
+     * @param procFileReader the reader of the file
+     */
+    static void addPressure(MetricRegistry metricRegistry, String prefix, final File pressureFile, final ProcFileReader procFileReader) {
+        metricRegistry.addUnlessNan(prefix + ".some.pct", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return procFileReader.readPressure(pressureFile, "some", "avg10") / 100;
+            }
+        });
+        metricRegistry.addUnlessNan(prefix + ".full.pct", Labels.EMPTY, new DoubleSupplier() {
             @Override
             public double get() {
-                return invoke(virtualProcessMemory);
+                return procFileReader.readPressure(pressureFile, "full", "avg10") / 100;
             }
         });
     }
@@ -185,4 +326,114 @@ public class SystemMetrics extends AbstractLifecycleListener {
             return Double.NaN;
         }
     }
+
+    /**
+     * Calculates the normalized CPU usage of the system or of this process since the last call,
+     * based on the {@code cpu} line of {@code /proc/stat} and the {@code utime} and {@code stime} of {@code /proc/self/stat}.
+     * <p>
+     * The {@code cpu} line of {@code /proc/stat} sums up the time of all CPUs,
+     * so dividing by its total yields a value between 0 and 1 without having to know the number of CPUs or the clock tick rate.
+     * </p>
+     */
+    private static class ProcCpuUsage implements DoubleSupplier {
+
+        private static final int IDLE = 3;
+        private static final int IOWAIT = 4;
+
+        private final ProcFileReader procFileReader;
+        private final File procStatFile;
+        @Nullable
+        private final File procSelfStatFile;
+        /**
+         * user, nice, system, idle, iowait, irq, softirq and steal,
+         * guest time is not included as it is already accounted for in user and nice
+         */
+        private final long[] cpuTimes = new long[8];
+        private final long[] selfStat = new long[SELF_STAT_STIME + 1];
+        private long lastTotal = -1;
+        private long lastUsed;
+
+        private ProcCpuUsage(ProcFileReader procFileReader, File procStatFile, @Nullable File procSelfStatFile) {
+            this.procFileReader = procFileReader;
+            this.procStatFile = procStatFile;
+            this.procSelfStatFile = procSelfStatFile;
+            if (procStatFile.canRead() && (procSelfStatFile == null || procSelfStatFile.canRead())) {
+                get();
+            }
+        }
+
+        boolean isSupported() {
+            return lastTotal >= 0;
+        }
+
+        @Override
+        public double get() {
+            int count = procFileReader.readLongs(procStatFile, "cpu ", cpuTimes);
+            if (count <= IOWAIT) {
+                return Double.NaN;
+            }
+            long total = 0;
+            for (int i = 0; i < count; i++) {
+                total += Math.max(cpuTimes[i], 0);
+            }
+            long used;
+            if (procSelfStatFile == null) {
+                used = total - cpuTimes[IDLE] - cpuTimes[IOWAIT];
+            } else {
+                if (procFileReader.readLongsAfterLast(procSelfStatFile, ')', selfStat) < selfStat.length) {
+                    return Double.NaN;
+                }
+                used = selfStat[SELF_STAT_UTIME] + selfStat[SELF_STAT_STIME];
+            }
+            double usage = Double.NaN;
+            if (lastTotal >= 0 && total > lastTotal) {
+                usage = Math.min(1, Math.max(0, (double) (used - lastUsed) / (total - lastTotal)));
+            }
+            lastTotal = total;
+            lastUsed = used;
+            return usage;
+        }
+    }
+
+    /**
+     * Calculates the normalized CPU usage since the last call, relative to the CPU limit of the cgroup of this process,
+     * that is the CPU time divided by the CPU time the cgroup could have used in the meantime.
+     */
+    private abstract static class CgroupCpuUsage implements DoubleSupplier {
+
+        private final double cpuLimit;
+        private boolean hasLastValue;
+        private long lastNanos;
+        private double lastUsageNanos;
+
+        private CgroupCpuUsage(double cpuLimit) {
+            this.cpuLimit = cpuLimit;
+        }
+
+        /**
+         * @return the total CPU time in nanoseconds, or {@link Double#NaN} if it can't be read
+         */
+        protected abstract double getUsageNanos();
+
+        boolean isSupported() {
+            return hasLastValue;
+        }
+
+        @Override
+        public double get() {
+            double usageNanos = getUsageNanos();
+            if (Double.isNaN(usageNanos) || usageNanos < 0) {
+                return Double.NaN;
+            }
+            long nanos = System.nanoTime();
+            double usage = Double.NaN;
+            if (hasLastValue && nanos - lastNanos > 0) {
+                usage = Math.min(1, Math.max(0, (usageNanos - lastUsageNanos) / ((nanos - lastNanos) * cpuLimit)));
+            }
+            hasLastValue = true;
+            lastNanos = nanos;
+            lastUsageNanos = usageNanos;
+            return usage;
+        }
+    }
 }
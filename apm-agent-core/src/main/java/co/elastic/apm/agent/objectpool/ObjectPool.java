@@ -50,5 +50,28 @@ public interface ObjectPool<T> {
      */
     long getGarbageCreated();
 
+    /**
+     * @return number of objects that have been allocated because the pool did not have any available instance
+     */
+    long getObjectsCreated();
+
+    /**
+     * @return number of objects that have been recycled, including the ones that could not be returned to the pool
+     */
+    long getObjectsRecycled();
+
+    /**
+     * @return number of available objects that {@link #trim(int)} can remove, regardless of the calling thread
+     */
+    int getTrimmableObjects();
+
+    /**
+     * Removes available objects from the pool, so that they can be garbage-collected
+     *
+     * @param maxObjects maximum number of objects to remove
+     * @return number of objects that have been removed
+     */
+    int trim(int maxObjects);
+
     void clear();
 }
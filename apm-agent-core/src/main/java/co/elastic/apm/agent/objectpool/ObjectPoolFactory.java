@@ -18,22 +18,54 @@
  */
 package co.elastic.apm.agent.objectpool;
 
+import co.elastic.apm.agent.configuration.CoreConfiguration;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.context.Message;
 import co.elastic.apm.agent.impl.error.ErrorCapture;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.TraceContext;
 import co.elastic.apm.agent.impl.transaction.Transaction;
 import co.elastic.apm.agent.objectpool.impl.QueueBasedObjectPool;
+import co.elastic.apm.agent.objectpool.impl.StripedObjectPool;
 import org.jctools.queues.atomic.MpmcAtomicArrayQueue;
 
 public class ObjectPoolFactory {
 
+    /**
+     * Number of objects in each per-thread magazine of a {@link StripedObjectPool}
+     */
+    private static final int MAGAZINE_SIZE = 16;
+
+    private final CoreConfiguration.ObjectPoolType tracerPoolType;
+
+    public ObjectPoolFactory() {
+        this(CoreConfiguration.ObjectPoolType.QUEUE);
+    }
+
+    /**
+     * @param tracerPoolType the type of pool used for transactions, spans, errors and span links
+     */
+    public ObjectPoolFactory(CoreConfiguration.ObjectPoolType tracerPoolType) {
+        this.tracerPoolType = tracerPoolType;
+    }
+
     public <T extends Recyclable> ObjectPool<T> createRecyclableObjectPool(int maxCapacity, Allocator<T> allocator) {
         return QueueBasedObjectPool.ofRecyclable(new MpmcAtomicArrayQueue<T>((maxCapacity)), false, allocator);
     }
 
+    public <T extends Recyclable> ObjectPool<T> createStripedRecyclableObjectPool(int maxCapacity, Allocator<T> allocator) {
+        return StripedObjectPool.ofRecyclable(maxCapacity, MAGAZINE_SIZE, allocator);
+    }
+
+    private <T extends Recyclable> ObjectPool<T> createTracerObjectPool(int maxCapacity, Allocator<T> allocator) {
+        if (tracerPoolType == CoreConfiguration.ObjectPoolType.STRIPED) {
+            return createStripedRecyclableObjectPool(maxCapacity, allocator);
+        }
+        return createRecyclableObjectPool(maxCapacity, allocator);
+    }
+
     public ObjectPool<Transaction> createTransactionPool(int maxCapacity, final ElasticApmTracer tracer) {
-        return createRecyclableObjectPool(maxCapacity, new Allocator<Transaction>() {
+        return createTracerObjectPool(maxCapacity, new Allocator<Transaction>() {
             @Override
             public Transaction createInstance() {
                 return new Transaction(tracer);
@@ -42,7 +74,7 @@ public class ObjectPoolFactory {
     }
 
     public ObjectPool<Span> createSpanPool(int maxCapacity, final ElasticApmTracer tracer) {
-        return createRecyclableObjectPool(maxCapacity, new Allocator<Span>() {
+        return createTracerObjectPool(maxCapacity, new Allocator<Span>() {
             @Override
             public Span createInstance() {
                 return new Span(tracer);
@@ -51,7 +83,7 @@ public class ObjectPoolFactory {
     }
 
     public ObjectPool<ErrorCapture> createErrorPool(int maxCapacity, final ElasticApmTracer tracer) {
-        return createRecyclableObjectPool(maxCapacity, new Allocator<ErrorCapture>() {
+        return createTracerObjectPool(maxCapacity, new Allocator<ErrorCapture>() {
             @Override
             public ErrorCapture createInstance() {
                 return new ErrorCapture(tracer);
@@ -59,8 +91,17 @@ public class ObjectPoolFactory {
         });
     }
 
+    public ObjectPool<Message> createMessagePool(int maxCapacity) {
+        return createTracerObjectPool(maxCapacity, new Allocator<Message>() {
+            @Override
+            public Message createInstance() {
+                return new Message();
+            }
+        });
+    }
+
     public ObjectPool<TraceContext> createSpanLinkPool(int maxCapacity, final ElasticApmTracer tracer) {
-        return createRecyclableObjectPool(maxCapacity, new Allocator<TraceContext>() {
+        return createTracerObjectPool(maxCapacity, new Allocator<TraceContext>() {
             @Override
             public TraceContext createInstance() {
                 return TraceContext.with64BitId(tracer);
@@ -0,0 +1,122 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.objectpool;
+
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.context.AbstractLifecycleListener;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adapts the number of idle objects retained by the tracer's object pools to the load,
+ * when {@link CoreConfiguration#isObjectPoolAdaptiveCapacity()} is enabled.
+ * <p>
+ * The capacity of a pool grows by the number of objects that had to be allocated because the pool was empty,
+ * and is halved after {@link #QUIET_INTERVALS} intervals without such allocations.
+ * Idle objects exceeding the capacity are {@linkplain ObjectPool#trim(int) trimmed}.
+ * As this happens in the background, the hot path of creating and recycling objects is unaffected.
+ * </p>
+ */
+public class ObjectPoolSizer extends AbstractLifecycleListener implements Runnable {
+
+    static final long INTERVAL_SECONDS = 10;
+    static final int QUIET_INTERVALS = 6;
+    static final int MIN_CAPACITY = 16;
+
+    private static final Logger logger = LoggerFactory.getLogger(ObjectPoolSizer.class);
+
+    private final List<PoolState> pools = new ArrayList<>();
+    @Nullable
+    private volatile ScheduledFuture<?> future;
+
+    @Override
+    public void start(ElasticApmTracer tracer) {
+        if (!tracer.getConfig(CoreConfiguration.class).isObjectPoolAdaptiveCapacity()) {
+            return;
+        }
+        for (Map.Entry<String, ObjectPool<?>> entry : tracer.getObjectPools().entrySet()) {
+            pools.add(new PoolState(entry.getKey(), entry.getValue()));
+        }
+        future = tracer.getSharedSingleThreadedPool().scheduleWithFixedDelay(this, INTERVAL_SECONDS, INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void stop() {
+        ScheduledFuture<?> future = this.future;
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            for (int i = 0; i < pools.size(); i++) {
+                pools.get(i).adjust();
+            }
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+        }
+    }
+
+    static class PoolState {
+        private final String name;
+        private final ObjectPool<?> pool;
+        private int capacity = MIN_CAPACITY;
+        private int quietIntervals;
+        private long lastObjectsCreated;
+
+        PoolState(String name, ObjectPool<?> pool) {
+            this.name = name;
+            this.pool = pool;
+        }
+
+        void adjust() {
+            long objectsCreated = pool.getObjectsCreated();
+            long misses = objectsCreated - lastObjectsCreated;
+            lastObjectsCreated = objectsCreated;
+            if (misses > 0) {
+                quietIntervals = 0;
+                capacity = (int) Math.min(Integer.MAX_VALUE / 2, capacity + misses);
+                logger.debug("Growing capacity of {} pool to {} after {} misses", name, capacity, misses);
+            } else if (++quietIntervals >= QUIET_INTERVALS && capacity > MIN_CAPACITY) {
+                quietIntervals = 0;
+                capacity = Math.max(MIN_CAPACITY, capacity / 2);
+                logger.debug("Shrinking capacity of {} pool to {}", name, capacity);
+            }
+            int excess = pool.getTrimmableObjects() - capacity;
+            if (excess > 0) {
+                int trimmed = pool.trim(excess);
+                logger.debug("Trimmed {} idle objects from {} pool", trimmed, name);
+            }
+        }
+
+        int getCapacity() {
+            return capacity;
+        }
+    }
+}
@@ -24,17 +24,22 @@ import co.elastic.apm.agent.objectpool.Resetter;
 
 import javax.annotation.Nullable;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public abstract class AbstractObjectPool<T> implements ObjectPool<T> {
 
     protected final Allocator<T> allocator;
     protected final Resetter<T> resetter;
     private final AtomicInteger garbageCreated;
+    private final AtomicLong objectsCreated;
+    private final AtomicLong objectsRecycled;
 
     protected AbstractObjectPool(Allocator<T> allocator, Resetter<T> resetter) {
         this.allocator = allocator;
         this.resetter = resetter;
         this.garbageCreated = new AtomicInteger();
+        this.objectsCreated = new AtomicLong();
+        this.objectsRecycled = new AtomicLong();
     }
 
     @Override
@@ -42,6 +47,7 @@ public abstract class AbstractObjectPool<T> implements ObjectPool<T> {
         T object = tryCreateInstance();
         if (object == null) {
             // pool does not have available instance, falling back to creating a new one
+            objectsCreated.incrementAndGet();
             object = allocator.createInstance();
         }
         return object;
@@ -50,6 +56,7 @@ public abstract class AbstractObjectPool<T> implements ObjectPool<T> {
     @Override
     public final void recycle(T obj) {
         resetter.recycle(obj);
+        onRecycle();
         if (!returnToPool(obj)) {
             // when not able to return object to pool, it means this object will be garbage-collected
             garbageCreated.incrementAndGet();
@@ -61,6 +68,38 @@ public abstract class AbstractObjectPool<T> implements ObjectPool<T> {
         return garbageCreated.longValue();
     }
 
+    @Override
+    public final long getObjectsCreated() {
+        return objectsCreated.get();
+    }
+
+    @Override
+    public long getObjectsRecycled() {
+        return objectsRecycled.get();
+    }
+
+    @Override
+    public int getTrimmableObjects() {
+        return getObjectsInPool();
+    }
+
+    @Override
+    public int trim(int maxObjects) {
+        int trimmed = 0;
+        while (trimmed < maxObjects && tryCreateInstance() != null) {
+            trimmed++;
+        }
+        return trimmed;
+    }
+
+    /**
+     * Counts a recycled object. Implementations that avoid contention on shared state may override this method
+     * together with {@link #getObjectsRecycled()} in order to count per thread.
+     */
+    protected void onRecycle() {
+        objectsRecycled.incrementAndGet();
+    }
+
     /**
      * Pushes object reference back into the available pooled instances
      *
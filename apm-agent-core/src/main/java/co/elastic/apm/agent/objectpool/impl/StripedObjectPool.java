@@ -0,0 +1,297 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.objectpool.impl;
+
+import co.elastic.apm.agent.objectpool.Allocator;
+import co.elastic.apm.agent.objectpool.Recyclable;
+import co.elastic.apm.agent.objectpool.Resetter;
+import org.jctools.queues.atomic.MpmcAtomicArrayQueue;
+
+import javax.annotation.Nullable;
+import java.lang.ref.WeakReference;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An object pool that stripes pooled instances across threads in order to avoid contention on a single shared queue.
+ * <p>
+ * Each thread owns two fixed-size magazines (a loaded and a previous one) it can allocate from and recycle into without
+ * any synchronization. Only when both magazines are empty (or full), the thread exchanges a whole magazine with a shared
+ * depot, which amortizes the cost of the shared queue over {@code magazineSize} operations. As magazines are exchanged
+ * as a whole, objects recycled by one thread (for example the reporter thread) flow back to the threads creating them.
+ * </p>
+ * <p>
+ * The {@code maxCapacity} bounds the number of objects held by the shared depot. In addition to that, every thread
+ * using the pool may hold up to {@code 2 * magazineSize} objects.
+ * </p>
+ * Based on "Magazines and Vmem: Extending the Slab Allocator to Many CPUs and Arbitrary Resources" by Jeff Bonwick and Jonathan Adams.
+ *
+ * @param <T> pooled object type
+ */
+public class StripedObjectPool<T> extends AbstractObjectPool<T> {
+
+    private final int magazineSize;
+    private final Queue<Magazine<T>> fullMagazines;
+    private final Queue<Magazine<T>> emptyMagazines;
+    private final ConcurrentLinkedQueue<Registration<T>> allThreadMagazines;
+    private final ThreadLocal<ThreadMagazines<T>> threadMagazines;
+    /**
+     * The recycled objects counted by threads that have terminated
+     */
+    private final AtomicLong retiredObjectsRecycled;
+    /**
+     * Incremented on {@link #clear()}, so that each thread discards its magazines on the next access
+     */
+    private volatile int epoch;
+
+    /**
+     * Creates a striped pool for types that implement {@link Recyclable}
+     *
+     * @param maxCapacity  the maximum number of objects held in the shared depot
+     * @param magazineSize the number of objects in each per-thread magazine
+     * @param allocator    a factory used to create new instances of the recyclable object
+     */
+    public static <T extends Recyclable> StripedObjectPool<T> ofRecyclable(int maxCapacity, int magazineSize, Allocator<T> allocator) {
+        return new StripedObjectPool<>(maxCapacity, magazineSize, allocator, Resetter.ForRecyclable.<T>get());
+    }
+
+    public static <T> StripedObjectPool<T> of(int maxCapacity, int magazineSize, Allocator<T> allocator, Resetter<T> resetter) {
+        return new StripedObjectPool<>(maxCapacity, magazineSize, allocator, resetter);
+    }
+
+    private StripedObjectPool(int maxCapacity, int magazineSize, Allocator<T> allocator, Resetter<T> resetter) {
+        super(allocator, resetter);
+        if (magazineSize <= 0) {
+            throw new IllegalArgumentException("magazine size must be positive: " + magazineSize);
+        }
+        this.magazineSize = magazineSize;
+        int depotMagazines = Math.max(2, maxCapacity / magazineSize);
+        this.fullMagazines = new MpmcAtomicArrayQueue<>(depotMagazines);
+        this.emptyMagazines = new MpmcAtomicArrayQueue<>(depotMagazines);
+        this.allThreadMagazines = new ConcurrentLinkedQueue<>();
+        this.threadMagazines = new ThreadLocal<>();
+        this.retiredObjectsRecycled = new AtomicLong();
+    }
+
+    @Nullable
+    @Override
+    protected T tryCreateInstance() {
+        ThreadMagazines<T> magazines = getThreadMagazines();
+        Magazine<T> loaded = magazines.loaded;
+        if (loaded.size > 0) {
+            return loaded.pop();
+        }
+        Magazine<T> previous = magazines.previous;
+        if (previous.size > 0) {
+            magazines.loaded = previous;
+            magazines.previous = loaded;
+            return previous.pop();
+        }
+        Magazine<T> full = fullMagazines.poll();
+        if (full == null) {
+            return null;
+        }
+        // both magazines are empty, keep one of them and hand the other one back to the depot
+        emptyMagazines.offer(previous);
+        magazines.previous = loaded;
+        magazines.loaded = full;
+        return full.pop();
+    }
+
+    @Override
+    protected void onRecycle() {
+        // counted per thread in returnToPool in order to avoid contention on a shared counter
+    }
+
+    @Override
+    protected boolean returnToPool(T obj) {
+        ThreadMagazines<T> magazines = getThreadMagazines();
+        // only written by the owning thread
+        magazines.objectsRecycled.lazySet(magazines.objectsRecycled.get() + 1);
+        Magazine<T> loaded = magazines.loaded;
+        if (loaded.size < magazineSize) {
+            loaded.push(obj);
+            return true;
+        }
+        Magazine<T> previous = magazines.previous;
+        if (previous.size < magazineSize) {
+            magazines.loaded = previous;
+            magazines.previous = loaded;
+            previous.push(obj);
+            return true;
+        }
+        // both magazines are full, hand one of them over to the depot
+        if (!fullMagazines.offer(previous)) {
+            return false;
+        }
+        Magazine<T> empty = emptyMagazines.poll();
+        if (empty == null) {
+            empty = new Magazine<>(magazineSize);
+        }
+        magazines.previous = loaded;
+        magazines.loaded = empty;
+        empty.push(obj);
+        return true;
+    }
+
+    /**
+     * Returns an estimate of the pooled objects, as magazines owned by other threads are read without synchronization.
+     */
+    @Override
+    public int getObjectsInPool() {
+        int count = fullMagazines.size() * magazineSize;
+        int currentEpoch = epoch;
+        for (Registration<T> registration : allThreadMagazines) {
+            ThreadMagazines<T> magazines = registration.get();
+            if (magazines == null) {
+                retire(registration);
+            } else if (magazines.epoch == currentEpoch) {
+                count += magazines.loaded.size + magazines.previous.size;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Only the objects in the shared depot can be trimmed, as the magazines are owned by the threads using this pool
+     */
+    @Override
+    public int getTrimmableObjects() {
+        return fullMagazines.size() * magazineSize;
+    }
+
+    /**
+     * Removes whole magazines from the shared depot, leaving the magazines of all threads, including the current one, untouched
+     */
+    @Override
+    public int trim(int maxObjects) {
+        int trimmed = 0;
+        while (maxObjects - trimmed >= magazineSize) {
+            Magazine<T> full = fullMagazines.poll();
+            if (full == null) {
+                break;
+            }
+            trimmed += full.size;
+            full.clear();
+            emptyMagazines.offer(full);
+        }
+        return trimmed;
+    }
+
+    @Override
+    public long getObjectsRecycled() {
+        long count = 0;
+        for (Registration<T> registration : allThreadMagazines) {
+            if (registration.get() == null) {
+                retire(registration);
+            } else {
+                count += registration.objectsRecycled.get();
+            }
+        }
+        return count + retiredObjectsRecycled.get();
+    }
+
+    /**
+     * Removes the registration of a terminated thread, keeping the objects it has recycled in the count
+     */
+    private void retire(Registration<T> registration) {
+        // removing by reference guarantees that concurrent callers count the retired registration only once
+        if (allThreadMagazines.remove(registration)) {
+            retiredObjectsRecycled.addAndGet(registration.objectsRecycled.get());
+        }
+    }
+
+    /**
+     * Clears the shared depot and the magazines of the current thread.
+     * The magazines of other threads are discarded lazily, the next time they access this pool.
+     */
+    @Override
+    public void clear() {
+        epoch++;
+        fullMagazines.clear();
+        getThreadMagazines();
+    }
+
+    private ThreadMagazines<T> getThreadMagazines() {
+        ThreadMagazines<T> magazines = threadMagazines.get();
+        if (magazines == null) {
+            magazines = new ThreadMagazines<>(magazineSize, epoch);
+            threadMagazines.set(magazines);
+            allThreadMagazines.add(new Registration<>(magazines));
+        } else if (magazines.epoch != epoch) {
+            magazines.loaded.clear();
+            magazines.previous.clear();
+            magazines.epoch = epoch;
+        }
+        return magazines;
+    }
+
+    private static class ThreadMagazines<T> {
+        private final AtomicLong objectsRecycled;
+        private Magazine<T> loaded;
+        private Magazine<T> previous;
+        private int epoch;
+
+        private ThreadMagazines(int magazineSize, int epoch) {
+            this.objectsRecycled = new AtomicLong();
+            this.loaded = new Magazine<>(magazineSize);
+            this.previous = new Magazine<>(magazineSize);
+            this.epoch = epoch;
+        }
+    }
+
+    /**
+     * Weakly references the magazines of a thread, but keeps its recycled count after the thread has terminated
+     */
+    private static class Registration<T> extends WeakReference<ThreadMagazines<T>> {
+        private final AtomicLong objectsRecycled;
+
+        private Registration(ThreadMagazines<T> magazines) {
+            super(magazines);
+            this.objectsRecycled = magazines.objectsRecycled;
+        }
+    }
+
+    private static class Magazine<T> {
+        private final Object[] objects;
+        private int size;
+
+        private Magazine(int capacity) {
+            this.objects = new Object[capacity];
+        }
+
+        private void push(T obj) {
+            objects[size++] = obj;
+        }
+
+        @SuppressWarnings("unchecked")
+        private T pop() {
+            T obj = (T) objects[--size];
+            objects[size] = null;
+            return obj;
+        }
+
+        private void clear() {
+            while (size > 0) {
+                objects[--size] = null;
+            }
+        }
+    }
+}
@@ -33,8 +33,6 @@ import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
-import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
 
 public class AbstractIntakeApiHandler {
     protected final Logger logger = LoggerFactory.getLogger(getClass());
@@ -43,7 +41,7 @@ public class AbstractIntakeApiHandler {
     protected final ReporterConfiguration reporterConfiguration;
     protected final PayloadSerializer payloadSerializer;
     protected final ApmServerClient apmServerClient;
-    protected Deflater deflater;
+    final IntakeCompressor compressor;
     protected long currentlyTransmitting = 0;
     protected long reported = 0;
     protected long dropped = 0;
@@ -55,14 +53,21 @@ public class AbstractIntakeApiHandler {
     private CountingOutputStream countingOs;
     protected int errorCount;
     protected volatile boolean shutDown;
-    private volatile boolean healthy = true;
+    /**
+     * Whether the reporter thread is currently blocked in a {@linkplain #isBlockingBackoff() blocking backoff}
+     */
+    private volatile boolean blockedInBackoff = false;
     private long requestStartedNanos;
+    /**
+     * The end of the current non-blocking backoff, or a point in time in the past if there is none
+     */
+    private volatile long backoffUntilNanos = System.nanoTime();
 
     public AbstractIntakeApiHandler(ReporterConfiguration reporterConfiguration, PayloadSerializer payloadSerializer, ApmServerClient apmServerClient) {
         this.reporterConfiguration = reporterConfiguration;
         this.payloadSerializer = payloadSerializer;
         this.apmServerClient = apmServerClient;
-        this.deflater = new Deflater(Deflater.BEST_SPEED);
+        this.compressor = new IntakeCompressor(reporterConfiguration);
     }
 
     /*
@@ -97,7 +102,7 @@ public class AbstractIntakeApiHandler {
         payloadSerializer.blockUntilReady();
         final HttpURLConnection connection = apmServerClient.startRequest(endpoint);
         if (connection != null) {
-            boolean useCompression = !isLocalhost(connection);
+            ApiRequestCompression compression = isLocalhost(connection) ? ApiRequestCompression.NONE : reporterConfiguration.getApiRequestCompression();
             try {
                 if (logger.isDebugEnabled()) {
                     logger.debug("Starting new request to {}", connection.getURL());
@@ -105,19 +110,16 @@ public class AbstractIntakeApiHandler {
                 connection.setRequestMethod("POST");
                 connection.setDoOutput(true);
                 connection.setChunkedStreamingMode(DslJsonSerializer.BUFFER_SIZE);
-                if (useCompression) {
-                    connection.setRequestProperty("Content-Encoding", "deflate");
+                String contentEncoding = compression.getContentEncoding();
+                if (contentEncoding != null) {
+                    connection.setRequestProperty("Content-Encoding", contentEncoding);
                 }
                 connection.setRequestProperty("Content-Type", "application/x-ndjson");
                 connection.setUseCaches(false);
                 connection.connect();
                 countingOs = new CountingOutputStream(connection.getOutputStream());
-                if (useCompression) {
-                    os = new DeflaterOutputStream(countingOs, deflater, true);
-                } else {
-                    os = countingOs;
-                }
-                payloadSerializer.setOutputStream(os);
+                os = compressor.wrap(countingOs, compression);
+                payloadSerializer.setOutputStream(os, isCoalescing());
                 payloadSerializer.appendMetaDataNdJsonToStream();
                 payloadSerializer.flushToOutputStream();
                 requestStartedNanos = System.nanoTime();
@@ -170,7 +172,7 @@ public class AbstractIntakeApiHandler {
                     os.close();
                 }
                 if (logger.isDebugEnabled()) {
-                    logger.debug("Flushing {} uncompressed {} compressed bytes", deflater.getBytesRead(), deflater.getBytesWritten());
+                    logger.debug("Flushing {} uncompressed {} compressed bytes", compressor.getUncompressedBytes(), compressor.getCompressedBytes());
                 }
                 InputStream inputStream = connection.getInputStream();
                 final int responseCode = connection.getResponseCode();
@@ -190,12 +192,20 @@ public class AbstractIntakeApiHandler {
                 connection = null;
                 os = null;
                 countingOs = null;
-                deflater.reset();
+                compressor.onRequestEnd();
                 currentlyTransmitting = 0;
             }
         }
     }
 
+    /**
+     * @return whether the serialized events are buffered until the subclass explicitly flushes them to the request,
+     * see {@link PayloadSerializer#setOutputStream(OutputStream, boolean)}
+     */
+    protected boolean isCoalescing() {
+        return false;
+    }
+
     protected boolean isApiRequestTimeExpired() {
         return System.nanoTime() >= requestStartedNanos + TimeUnit.MILLISECONDS.toNanos(reporterConfiguration.getApiRequestTime().getMillis());
     }
@@ -236,22 +246,54 @@ public class AbstractIntakeApiHandler {
         logger.info("Backing off for {} seconds (+/-10%)", backoffTimeSeconds);
         final long backoffTimeMillis = TimeUnit.SECONDS.toMillis(backoffTimeSeconds);
         if (backoffTimeMillis > 0) {
+            if (!isBlockingBackoff()) {
+                backoffUntilNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffTimeMillis + getRandomJitter(backoffTimeMillis));
+                return;
+            }
             // back off because there are connection issues with the apm server
             try {
-                healthy = false;
+                blockedInBackoff = true;
                 synchronized (WAIT_LOCK) {
                     WAIT_LOCK.wait(backoffTimeMillis + getRandomJitter(backoffTimeMillis));
                 }
             } catch (InterruptedException e) {
                 logger.info("APM Agent ReportingEventHandler had been interrupted", e);
             } finally {
-                healthy = true;
+                blockedInBackoff = false;
             }
         }
     }
 
+    /**
+     * Whether {@link #backoff()} should block the calling thread.
+     * If not, subclasses have to check {@link #isBackingOff()} before trying to send events to the APM Server.
+     *
+     * @return {@code true} to block the reporter thread during backoff
+     */
+    protected boolean isBlockingBackoff() {
+        return true;
+    }
+
+    /**
+     * @return {@code true} if the APM Server should not be contacted yet after a non-blocking backoff
+     */
+    protected boolean isBackingOff() {
+        return System.nanoTime() - backoffUntilNanos < 0;
+    }
+
+    /**
+     * @return {@code false} while backing off from the APM Server, regardless of whether the backoff blocks the reporter thread,
+     * so that this doesn't depend on an event being processed after the backoff has ended
+     */
     public boolean isHealthy() {
-        return healthy;
+        return !blockedInBackoff && !isBackingOff();
+    }
+
+    /**
+     * @return {@code false} only while the reporter thread is blocked in a {@linkplain #isBlockingBackoff() blocking backoff}
+     */
+    public boolean isResponsive() {
+        return !blockedInBackoff;
     }
 
     public long getReported() {
@@ -0,0 +1,59 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import javax.annotation.Nullable;
+
+/**
+ * The compression algorithms which can be used for the body of intake API requests.
+ */
+public enum ApiRequestCompression {
+    /**
+     * The request body is sent uncompressed
+     */
+    NONE(null),
+    /**
+     * The request body is compressed with zlib-wrapped deflate ({@code Content-Encoding: deflate})
+     */
+    DEFLATE("deflate"),
+    /**
+     * The request body is compressed with gzip ({@code Content-Encoding: gzip})
+     */
+    GZIP("gzip");
+
+    @Nullable
+    private final String contentEncoding;
+
+    ApiRequestCompression(@Nullable String contentEncoding) {
+        this.contentEncoding = contentEncoding;
+    }
+
+    /**
+     * @return the value of the {@code Content-Encoding} header, {@code null} if the body is not compressed
+     */
+    @Nullable
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase();
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+/**
+ * The HTTP client implementations which can be used to send intake API requests.
+ */
+public enum ApiRequestTransport {
+    /**
+     * Uses the JDK's {@link java.net.HttpURLConnection}
+     */
+    URL_CONNECTION,
+    /**
+     * Uses non-blocking socket channels with persistent connections,
+     * see {@link co.elastic.apm.agent.report.nio.NioHttpConnectionPool}
+     */
+    NIO;
+
+    @Override
+    public String toString() {
+        return name().toLowerCase();
+    }
+}
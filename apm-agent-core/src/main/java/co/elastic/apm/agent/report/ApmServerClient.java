@@ -19,6 +19,7 @@
 package co.elastic.apm.agent.report;
 
 import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.report.nio.NioHttpConnectionPool;
 import co.elastic.apm.agent.report.ssl.SslUtils;
 import co.elastic.apm.agent.util.UrlConnectionUtils;
 import co.elastic.apm.agent.util.Version;
@@ -82,11 +83,13 @@ public class ApmServerClient {
     private final ApmServerHealthChecker healthChecker;
 
     private final String userAgent;
+    private final NioHttpConnectionPool nioConnectionPool;
 
     public ApmServerClient(ReporterConfiguration reporterConfiguration, CoreConfiguration coreConfiguration) {
         this.reporterConfiguration = reporterConfiguration;
         this.healthChecker = new ApmServerHealthChecker(this);
         this.userAgent = getUserAgent(coreConfiguration);
+        this.nioConnectionPool = new NioHttpConnectionPool(reporterConfiguration);
     }
 
     public void start() {
@@ -131,13 +134,18 @@ public class ApmServerClient {
         if (url == null) {
             return null;
         }
+        if (reporterConfiguration.getApiRequestTransport() == ApiRequestTransport.NIO && nioConnectionPool.supports(url)) {
+            return prepareConnection(nioConnectionPool.openConnection(url));
+        }
         return startRequestToUrl(url);
     }
 
     @Nonnull
     private HttpURLConnection startRequestToUrl(URL url) throws IOException {
-        final URLConnection connection = UrlConnectionUtils.openUrlConnectionThreadSafely(url);
+        return prepareConnection(UrlConnectionUtils.openUrlConnectionThreadSafely(url));
+    }
 
+    private HttpURLConnection prepareConnection(URLConnection connection) {
         // change SSL socket factory to support both TLS fallback and disabling certificate validation
         if (connection instanceof HttpsURLConnection) {
             HttpsURLConnection httpsConnection = (HttpsURLConnection) connection;
@@ -172,6 +180,21 @@ public class ApmServerClient {
         return (HttpURLConnection) connection;
     }
 
+    /**
+     * Closes the connections which are kept alive for intake API requests
+     */
+    public void close() {
+        nioConnectionPool.close();
+    }
+
+    /**
+     * @return the pool of connections used for intake API requests if
+     * {@link ReporterConfiguration#getApiRequestTransport() api_request_transport} is {@link ApiRequestTransport#NIO}
+     */
+    public NioHttpConnectionPool getNioConnectionPool() {
+        return nioConnectionPool;
+    }
+
     @Nullable
     URL appendPathToCurrentUrl(String apmServerPath) throws MalformedURLException {
         URL currentUrl = getCurrentUrl();
@@ -21,21 +21,26 @@ package co.elastic.apm.agent.report;
 import co.elastic.apm.agent.impl.error.ErrorCapture;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.report.disruptor.AdaptiveWaitStrategy;
 import co.elastic.apm.agent.report.disruptor.ExponentionallyIncreasingSleepingWaitStrategy;
 import co.elastic.apm.agent.util.MathUtils;
 import co.elastic.apm.agent.common.ThreadUtils;
 import com.dslplatform.json.JsonWriter;
 import com.lmax.disruptor.EventFactory;
+import com.lmax.disruptor.EventHandler;
 import com.lmax.disruptor.EventTranslator;
 import com.lmax.disruptor.EventTranslatorOneArg;
 import com.lmax.disruptor.IgnoreExceptionHandler;
 import com.lmax.disruptor.InsufficientCapacityException;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.WaitStrategy;
 import com.lmax.disruptor.dsl.Disruptor;
 import com.lmax.disruptor.dsl.ProducerType;
 import co.elastic.apm.agent.sdk.logging.Logger;
 import co.elastic.apm.agent.sdk.logging.LoggerFactory;
 
 import javax.annotation.Nullable;
+import java.util.Map;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
@@ -55,12 +60,14 @@ public class ApmServerReporter implements Reporter {
         @Override
         public void translateTo(ReportingEvent event, long sequence, Transaction t) {
             event.setTransaction(t);
+            event.setPublishedNs(System.nanoTime());
         }
     };
     private static final EventTranslatorOneArg<ReportingEvent, Span> SPAN_EVENT_TRANSLATOR = new EventTranslatorOneArg<ReportingEvent, Span>() {
         @Override
         public void translateTo(ReportingEvent event, long sequence, Span s) {
             event.setSpan(s);
+            event.setPublishedNs(System.nanoTime());
         }
     };
     private static final EventTranslatorOneArg<ReportingEvent, Thread> END_REQUEST_EVENT_TRANSLATOR = new EventTranslatorOneArg<ReportingEvent, Thread>() {
@@ -87,12 +94,21 @@ public class ApmServerReporter implements Reporter {
         @Override
         public void translateTo(ReportingEvent event, long sequence, ErrorCapture error) {
             event.setError(error);
+            event.setPublishedNs(System.nanoTime());
         }
     };
     private static final EventTranslatorOneArg<ReportingEvent, JsonWriter> JSON_WRITER_EVENT_TRANSLATOR = new EventTranslatorOneArg<ReportingEvent, JsonWriter>() {
         @Override
         public void translateTo(ReportingEvent event, long sequence, JsonWriter jsonWriter) {
             event.setJsonWriter(jsonWriter);
+            event.setPublishedNs(System.nanoTime());
+        }
+    };
+    private static final EventTranslatorOneArg<ReportingEvent, SerializedEvent> SERIALIZED_EVENT_TRANSLATOR = new EventTranslatorOneArg<ReportingEvent, SerializedEvent>() {
+        @Override
+        public void translateTo(ReportingEvent event, long sequence, SerializedEvent serializedEvent) {
+            event.setSerializedEvent(serializedEvent);
+            event.setPublishedNs(System.nanoTime());
         }
     };
     private static final EventTranslatorOneArg<ReportingEvent, Thread> SHUTDOWN_EVENT_TRANSLATOR = new EventTranslatorOneArg<ReportingEvent, Thread>() {
@@ -103,28 +119,94 @@ public class ApmServerReporter implements Reporter {
         }
     };
 
+    /**
+     * Once the queue is almost full, spans are only admitted if they are not larger than the average queued event
+     */
+    private static final int SPAN_SIZE_TOLERANCE = 1;
+    private static final int TRANSACTION_SIZE_TOLERANCE = 2;
+
     private final Disruptor<ReportingEvent> disruptor;
     private final AtomicLong dropped = new AtomicLong();
     private final boolean dropTransactionIfQueueFull;
     private final ReportingEventHandler reportingEventHandler;
     private final boolean syncReport;
+    @Nullable
+    private final ProducerSideSerializer producerSideSerializer;
+    @Nullable
+    private final QueueByteBudget byteBudget;
+    private final ReporterStatistics statistics;
+    /**
+     * The number of queue slots and bytes that may be occupied when an event of a given lane is added, indexed by {@link ReporterLane#ordinal()},
+     * or {@code null} if no {@code queue_lane_limits} are configured.
+     */
+    @Nullable
+    private final long[] laneSlotLimits;
+    @Nullable
+    private final long[] laneByteLimits;
 
     public ApmServerReporter(boolean dropTransactionIfQueueFull, ReporterConfiguration reporterConfiguration,
                              ReportingEventHandler reportingEventHandler) {
+        this(dropTransactionIfQueueFull, reporterConfiguration, reportingEventHandler, "server-reporter", null);
+    }
+
+    /**
+     * @param producerSideSerializer if not {@code null}, transactions, spans and errors are serialized on the thread that reports them
+     */
+    public ApmServerReporter(boolean dropTransactionIfQueueFull, ReporterConfiguration reporterConfiguration,
+                             ReportingEventHandler reportingEventHandler, final String threadName,
+                             @Nullable ProducerSideSerializer producerSideSerializer) {
+        this(dropTransactionIfQueueFull, reporterConfiguration, reportingEventHandler, threadName, producerSideSerializer, new ReporterStatistics());
+    }
+
+    /**
+     * @param statistics the statistics the reporter thread records into, may be shared with other reporters
+     */
+    public ApmServerReporter(boolean dropTransactionIfQueueFull, ReporterConfiguration reporterConfiguration,
+                             ReportingEventHandler reportingEventHandler, final String threadName,
+                             @Nullable ProducerSideSerializer producerSideSerializer, ReporterStatistics statistics) {
         this.dropTransactionIfQueueFull = dropTransactionIfQueueFull;
+        this.statistics = statistics;
+        this.producerSideSerializer = producerSideSerializer;
         this.syncReport = reporterConfiguration.isReportSynchronously();
+        long maxQueueBytes = reporterConfiguration.getMaxQueueBytes();
+        this.byteBudget = dropTransactionIfQueueFull && maxQueueBytes > 0 ? new QueueByteBudget(maxQueueBytes) : null;
         disruptor = new Disruptor<>(new TransactionEventFactory(), MathUtils.getNextPowerOf2(reporterConfiguration.getMaxQueueSize()), new ThreadFactory() {
             @Override
             public Thread newThread(Runnable r) {
                 Thread thread = new Thread(r);
                 thread.setDaemon(true);
-                thread.setName(ThreadUtils.addElasticApmThreadPrefix("server-reporter"));
+                thread.setName(ThreadUtils.addElasticApmThreadPrefix(threadName));
                 return thread;
             }
-        }, ProducerType.MULTI, new ExponentionallyIncreasingSleepingWaitStrategy(100_000, 10_000_000));
+        }, ProducerType.MULTI, createWaitStrategy(reporterConfiguration.getReporterWaitStrategy()));
+        Map<ReporterLane, Integer> queueLaneLimits = reporterConfiguration.getQueueLaneLimits();
+        if (dropTransactionIfQueueFull && !queueLaneLimits.isEmpty()) {
+            laneSlotLimits = getLaneLimits(queueLaneLimits, disruptor.getRingBuffer().getBufferSize());
+            laneByteLimits = byteBudget != null ? getLaneLimits(queueLaneLimits, byteBudget.getMaxBytes()) : null;
+        } else {
+            laneSlotLimits = null;
+            laneByteLimits = null;
+        }
         this.reportingEventHandler = reportingEventHandler;
         disruptor.setDefaultExceptionHandler(new IgnoreExceptionHandler());
-        disruptor.handleEventsWith(this.reportingEventHandler);
+        disruptor.handleEventsWith(new RecordingEventHandler(reportingEventHandler, statistics.newRecorder()));
+    }
+
+    private static long[] getLaneLimits(Map<ReporterLane, Integer> queueLaneLimits, long capacity) {
+        ReporterLane[] lanes = ReporterLane.values();
+        long[] limits = new long[lanes.length];
+        for (ReporterLane lane : lanes) {
+            Integer percent = queueLaneLimits.get(lane);
+            limits[lane.ordinal()] = percent != null ? capacity * percent / 100 : Long.MAX_VALUE;
+        }
+        return limits;
+    }
+
+    private static WaitStrategy createWaitStrategy(ReporterWaitStrategy waitStrategy) {
+        if (waitStrategy == ReporterWaitStrategy.ADAPTIVE) {
+            return new AdaptiveWaitStrategy();
+        }
+        return new ExponentionallyIncreasingSleepingWaitStrategy(100_000, 10_000_000);
     }
 
     @Override
@@ -135,7 +217,13 @@ public class ApmServerReporter implements Reporter {
 
     @Override
     public void report(Transaction transaction) {
-        if (!tryAddEventToRingBuffer(transaction, TRANSACTION_EVENT_TRANSLATOR)) {
+        if (producerSideSerializer != null) {
+            if (!isQueueFull(transaction, ReporterLane.TRANSACTION)) {
+                reportSerialized(producerSideSerializer.serialize(transaction), TRANSACTION_SIZE_TOLERANCE);
+            }
+            transaction.decrementReferences();
+        } else if (!tryAddEventToRingBuffer(transaction, byteBudget != null ? EventSizeEstimator.estimateSize(transaction) : 0,
+            TRANSACTION_SIZE_TOLERANCE, ReporterLane.TRANSACTION, TRANSACTION_EVENT_TRANSLATOR)) {
             transaction.decrementReferences();
         }
         if (syncReport) {
@@ -145,7 +233,13 @@ public class ApmServerReporter implements Reporter {
 
     @Override
     public void report(Span span) {
-        if (!tryAddEventToRingBuffer(span, SPAN_EVENT_TRANSLATOR)) {
+        if (producerSideSerializer != null) {
+            if (!isQueueFull(span, ReporterLane.SPAN)) {
+                reportSerialized(producerSideSerializer.serialize(span), SPAN_SIZE_TOLERANCE);
+            }
+            span.decrementReferences();
+        } else if (!tryAddEventToRingBuffer(span, byteBudget != null ? EventSizeEstimator.estimateSize(span) : 0,
+            SPAN_SIZE_TOLERANCE, ReporterLane.SPAN, SPAN_EVENT_TRANSLATOR)) {
             span.decrementReferences();
         }
         if (syncReport) {
@@ -175,16 +269,20 @@ public class ApmServerReporter implements Reporter {
     @Override
     public boolean flush(long timeout, TimeUnit unit, boolean followupWithFlushRequest) {
         if (followupWithFlushRequest) {
-            return publishAndWaitForEvent(timeout, unit, MAKE_FLUSH_REQUEST_EVENT_TRANSLATOR);
+            return publishAndWaitForEvent(timeout, unit, MAKE_FLUSH_REQUEST_EVENT_TRANSLATOR, true);
         }
-        return publishAndWaitForEvent(timeout, unit, END_REQUEST_EVENT_TRANSLATOR);
+        return publishAndWaitForEvent(timeout, unit, END_REQUEST_EVENT_TRANSLATOR, true);
     }
 
-    private boolean publishAndWaitForEvent(long timeout, TimeUnit unit, EventTranslatorOneArg<ReportingEvent, Thread> eventTranslator) {
-        if (!reportingEventHandler.isHealthy()) {
+    /**
+     * @param requireHealthy {@code true} to give up while the reporting event handler is not {@linkplain ReportingEventHandler#isHealthy() healthy},
+     *                       {@code false} to only give up while it is not {@linkplain ReportingEventHandler#isResponsive() responsive}
+     */
+    private boolean publishAndWaitForEvent(long timeout, TimeUnit unit, EventTranslatorOneArg<ReportingEvent, Thread> eventTranslator,
+                                           boolean requireHealthy) {
+        if (!isAvailable(requireHealthy)) {
             return false;
         }
-        ReportingEventHandler reportingEventHandler = this.reportingEventHandler;
         long startNs = System.nanoTime();
         long thresholdNs;
         if (timeout < 0) {
@@ -200,21 +298,25 @@ public class ApmServerReporter implements Reporter {
                 } finally {
                     disruptor.getRingBuffer().publish(sequence);
                 }
-                return waitForEventProcessed(sequence, thresholdNs);
+                return waitForEventProcessed(sequence, thresholdNs, requireHealthy);
             } catch (InsufficientCapacityException e) {
                 LockSupport.parkNanos(100_000);
                 if (Thread.currentThread().isInterrupted()) {
                     break;
                 }
             }
-        } while (System.nanoTime() < thresholdNs && reportingEventHandler.isHealthy());
+        } while (System.nanoTime() < thresholdNs && isAvailable(requireHealthy));
         return false;
     }
 
-    private boolean waitForEventProcessed(long sequence, long thresholdNs) {
+    private boolean isAvailable(boolean requireHealthy) {
+        return requireHealthy ? reportingEventHandler.isHealthy() : reportingEventHandler.isResponsive();
+    }
+
+    private boolean waitForEventProcessed(long sequence, long thresholdNs, boolean requireHealthy) {
         ReportingEventHandler reportingEventHandler = this.reportingEventHandler;
         for (long nowNs = System.nanoTime();
-             nowNs < thresholdNs && reportingEventHandler.isHealthy() && !reportingEventHandler.isProcessed(sequence);
+             nowNs < thresholdNs && isAvailable(requireHealthy) && !reportingEventHandler.isProcessed(sequence);
              nowNs = System.nanoTime()) {
 
             // periodically waking up to check if the connection turned unhealthy
@@ -232,7 +334,8 @@ public class ApmServerReporter implements Reporter {
     @Override
     public void close() {
         logger.info("dropped events because of full queue: {}", dropped.get());
-        publishAndWaitForEvent(5, TimeUnit.SECONDS, SHUTDOWN_EVENT_TRANSLATOR);
+        // also shuts down during a non-blocking backoff, so that the compressor and the spill buffer are closed
+        publishAndWaitForEvent(5, TimeUnit.SECONDS, SHUTDOWN_EVENT_TRANSLATOR, false);
         reportingEventHandler.close();
         try {
             disruptor.shutdown(1, TimeUnit.SECONDS);
@@ -243,7 +346,13 @@ public class ApmServerReporter implements Reporter {
 
     @Override
     public void report(ErrorCapture error) {
-        if (!tryAddEventToRingBuffer(error, ERROR_EVENT_TRANSLATOR)) {
+        if (producerSideSerializer != null) {
+            if (!isQueueFull(error, ReporterLane.ERROR)) {
+                reportSerialized(producerSideSerializer.serialize(error), QueueByteBudget.UNLIMITED_SIZE_TOLERANCE);
+            }
+            error.recycle();
+        } else if (!tryAddEventToRingBuffer(error, byteBudget != null ? EventSizeEstimator.estimateSize(error) : 0,
+            QueueByteBudget.UNLIMITED_SIZE_TOLERANCE, ReporterLane.ERROR, ERROR_EVENT_TRANSLATOR)) {
             error.recycle();
         }
         if (syncReport) {
@@ -256,20 +365,105 @@ public class ApmServerReporter implements Reporter {
         if (jsonWriter.size() == 0) {
             return;
         }
-        tryAddEventToRingBuffer(jsonWriter, JSON_WRITER_EVENT_TRANSLATOR);
+        tryAddEventToRingBuffer(jsonWriter, jsonWriter.size(), TRANSACTION_SIZE_TOLERANCE, ReporterLane.METRICSET, JSON_WRITER_EVENT_TRANSLATOR);
+        if (syncReport) {
+            flush();
+        }
+    }
+
+    @Override
+    public void report(SerializedEvent serializedEvent) {
+        if (serializedEvent.getSize() == 0) {
+            serializedEvent.recycle();
+            return;
+        }
+        reportSerialized(serializedEvent, TRANSACTION_SIZE_TOLERANCE);
         if (syncReport) {
             flush();
         }
     }
 
-    private <E> boolean tryAddEventToRingBuffer(E event, EventTranslatorOneArg<ReportingEvent, E> eventTranslator) {
+    private void reportSerialized(SerializedEvent serializedEvent, int sizeTolerance) {
+        if (!tryAddEventToRingBuffer(serializedEvent, serializedEvent.getSize(), sizeTolerance, serializedEvent.getLane(), SERIALIZED_EVENT_TRANSLATOR)) {
+            serializedEvent.recycle();
+        }
+    }
+
+    /**
+     * Avoids serializing an event on the producer side if we already know that it will be dropped.
+     */
+    private boolean isQueueFull(Object event, ReporterLane lane) {
+        if (!dropTransactionIfQueueFull) {
+            return false;
+        }
+        if (!disruptor.getRingBuffer().hasAvailableCapacity(1)) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Could not add {} {} to ring buffer as no slots are available", event.getClass().getSimpleName(), event);
+            }
+            onDropped(lane);
+            return true;
+        }
+        if (isLaneFull(event, lane)) {
+            onDropped(lane);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether the queue is already filled up to the {@code queue_lane_limits} of the lane,
+     * so that the remaining room is reserved for events of higher priority lanes.
+     */
+    private boolean isLaneFull(Object event, ReporterLane lane) {
+        if (laneSlotLimits == null) {
+            return false;
+        }
+        RingBuffer<ReportingEvent> ringBuffer = disruptor.getRingBuffer();
+        boolean laneFull = ringBuffer.getBufferSize() - ringBuffer.remainingCapacity() >= laneSlotLimits[lane.ordinal()]
+            || laneByteLimits != null && byteBudget != null && byteBudget.getQueuedBytes() >= laneByteLimits[lane.ordinal()];
+        if (laneFull && logger.isDebugEnabled()) {
+            logger.debug("Could not add {} {} to ring buffer as the {} lane is full", event.getClass().getSimpleName(), event, lane);
+        }
+        return laneFull;
+    }
+
+    private void onDropped(ReporterLane lane) {
+        dropped.incrementAndGet();
+        statistics.onDropped(lane);
+    }
+
+    /**
+     * @param estimatedSize the estimated size of the event in bytes, only relevant if {@code max_queue_bytes} is set
+     * @param sizeTolerance see {@link QueueByteBudget#tryAcquire(long, int)}
+     * @param lane          the lane of the event, see {@link ReporterConfiguration#getQueueLaneLimits()}
+     */
+    private <E> boolean tryAddEventToRingBuffer(E event, long estimatedSize, int sizeTolerance, ReporterLane lane,
+                                                EventTranslatorOneArg<ReportingEvent, E> eventTranslator) {
         if (dropTransactionIfQueueFull) {
-            boolean queueFull = !disruptor.getRingBuffer().tryPublishEvent(eventTranslator, event);
+            boolean queueFull;
+            if (isLaneFull(event, lane)) {
+                onDropped(lane);
+                return false;
+            } else if (byteBudget == null) {
+                queueFull = !disruptor.getRingBuffer().tryPublishEvent(eventTranslator, event);
+            } else if (!byteBudget.tryAcquire(estimatedSize, sizeTolerance)) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Could not add {} {} with an estimated size of {} bytes to ring buffer as it exceeds the byte budget",
+                        event.getClass().getSimpleName(), event, estimatedSize);
+                }
+                onDropped(lane);
+                return false;
+            } else {
+                queueFull = !tryPublishEvent(event, estimatedSize, byteBudget, eventTranslator);
+                if (queueFull) {
+                    byteBudget.release(estimatedSize);
+                }
+            }
             if (queueFull) {
                 if (logger.isDebugEnabled()) {
                     logger.debug("Could not add {} {} to ring buffer as no slots are available", event.getClass().getSimpleName(), event);
                 }
-                dropped.incrementAndGet();
+                onDropped(lane);
                 return false;
             }
         } else {
@@ -278,6 +472,60 @@ public class ApmServerReporter implements Reporter {
         return true;
     }
 
+    private <E> boolean tryPublishEvent(E event, long estimatedSize, QueueByteBudget byteBudget, EventTranslatorOneArg<ReportingEvent, E> eventTranslator) {
+        RingBuffer<ReportingEvent> ringBuffer = disruptor.getRingBuffer();
+        long sequence;
+        try {
+            sequence = ringBuffer.tryNext();
+        } catch (InsufficientCapacityException e) {
+            return false;
+        }
+        try {
+            ReportingEvent reportingEvent = ringBuffer.get(sequence);
+            eventTranslator.translateTo(reportingEvent, sequence, event);
+            reportingEvent.setQueuedBytes(byteBudget, estimatedSize);
+        } finally {
+            ringBuffer.publish(sequence);
+        }
+        return true;
+    }
+
+    @Override
+    public long getQueuedBytes() {
+        return byteBudget != null ? byteBudget.getQueuedBytes() : -1;
+    }
+
+    @Override
+    public ReporterStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Records the {@link ReporterStatistics} around the actual {@link ReportingEventHandler}
+     */
+    private static class RecordingEventHandler implements EventHandler<ReportingEvent> {
+        private final ReportingEventHandler delegate;
+        private final ReporterStatistics.Recorder recorder;
+
+        private RecordingEventHandler(ReportingEventHandler delegate, ReporterStatistics.Recorder recorder) {
+            this.delegate = delegate;
+            this.recorder = recorder;
+        }
+
+        @Override
+        public void onEvent(ReportingEvent event, long sequence, boolean endOfBatch) throws Exception {
+            // the handler resets the event
+            long publishedNs = event.getPublishedNs();
+            ReporterLane lane = event.getLane();
+            recorder.beforeEvent();
+            try {
+                delegate.onEvent(event, sequence, endOfBatch);
+            } finally {
+                recorder.afterEvent(publishedNs, lane, endOfBatch);
+            }
+        }
+    }
+
     static class TransactionEventFactory implements EventFactory<ReportingEvent> {
         @Override
         public ReportingEvent newInstance() {
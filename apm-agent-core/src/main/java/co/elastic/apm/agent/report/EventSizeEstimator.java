@@ -0,0 +1,107 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.impl.context.AbstractContext;
+import co.elastic.apm.agent.impl.context.Message;
+import co.elastic.apm.agent.impl.context.Request;
+import co.elastic.apm.agent.impl.context.TransactionContext;
+import co.elastic.apm.agent.impl.error.ErrorCapture;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.StackFrame;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+
+import javax.annotation.Nullable;
+import java.util.List;
+
+/**
+ * Estimates how many bytes an event occupies while it is waiting in the reporter queue.
+ * <p>
+ * The estimate is based on the variable-sized parts of an event which dominate its serialized size and retained heap,
+ * like the request body, headers, the DB statement or the stack trace.
+ * Only fields which can be read without allocating are taken into account, so the estimate is rough by design.
+ * </p>
+ */
+public final class EventSizeEstimator {
+
+    static final int TRANSACTION_BASE_SIZE = 1024;
+    static final int SPAN_BASE_SIZE = 512;
+    static final int ERROR_BASE_SIZE = 1024;
+    static final int MAP_ENTRY_SIZE = 64;
+    static final int LABELS_SIZE = 4 * MAP_ENTRY_SIZE;
+    static final int STACK_FRAME_SIZE = 128;
+    /**
+     * Getting the actual depth of a stack trace would allocate, so we assume a typical one
+     */
+    static final int STACK_TRACE_SIZE = 64 * STACK_FRAME_SIZE;
+    private static final int MAX_EXCEPTION_CAUSES = 16;
+
+    private EventSizeEstimator() {
+    }
+
+    static long estimateSize(Transaction transaction) {
+        return TRANSACTION_BASE_SIZE + transaction.getNameForSerialization().length() + estimateSize(transaction.getContext());
+    }
+
+    public static long estimateSize(Span span) {
+        long size = SPAN_BASE_SIZE + span.getNameForSerialization().length() + estimateSize((AbstractContext) span.getContext());
+        List<StackFrame> stackFrames = span.getStackFrames();
+        if (stackFrames != null) {
+            size += (long) stackFrames.size() * STACK_FRAME_SIZE;
+        } else if (span.getStacktrace() != null) {
+            size += STACK_TRACE_SIZE;
+        }
+        size += length(span.getContext().getDb().getStatement());
+        size += length(span.getContext().getDb().getStatementBuffer());
+        return size;
+    }
+
+    static long estimateSize(ErrorCapture error) {
+        long size = ERROR_BASE_SIZE + error.getCulprit().length() + estimateSize(error.getContext());
+        Throwable exception = error.getException();
+        for (int i = 0; exception != null && i < MAX_EXCEPTION_CAUSES; i++) {
+            size += STACK_TRACE_SIZE;
+            exception = exception.getCause();
+        }
+        return size;
+    }
+
+    private static long estimateSize(TransactionContext context) {
+        Request request = context.getRequest();
+        long size = estimateSize((AbstractContext) context);
+        size += (long) MAP_ENTRY_SIZE * (request.getHeaders().size() + request.getCookies().size() + request.getFormUrlEncodedParameters().size());
+        size += (long) MAP_ENTRY_SIZE * context.getResponse().getHeaders().size();
+        size += length(request.getRawBody());
+        size += length(request.getBodyBufferForSerialization());
+        return size;
+    }
+
+    private static long estimateSize(AbstractContext context) {
+        Message message = context.getMessageForRead();
+        long size = message != null ? length(message.getBodyForRead()) : 0;
+        if (context.hasLabels()) {
+            size += LABELS_SIZE;
+        }
+        return size;
+    }
+
+    private static int length(@Nullable CharSequence charSequence) {
+        return charSequence != null ? charSequence.length() : 0;
+    }
+}
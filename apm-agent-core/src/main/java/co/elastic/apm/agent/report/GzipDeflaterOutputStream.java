@@ -0,0 +1,82 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes gzip framed data, similar to {@link java.util.zip.GZIPOutputStream}.
+ * <p>
+ * The difference is that {@link java.util.zip.GZIPOutputStream} always allocates its own {@link Deflater}
+ * which is released when the stream is closed.
+ * This stream uses a {@link Deflater} which is provided by the caller so that it can be reset and reused across requests.
+ * The provided {@link Deflater} has to be created with {@code nowrap = true}, as the gzip header and trailer are written by this stream.
+ * </p>
+ */
+class GzipDeflaterOutputStream extends DeflaterOutputStream {
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final byte[] HEADER = {
+        (byte) GZIP_MAGIC,
+        (byte) (GZIP_MAGIC >> 8),
+        Deflater.DEFLATED,
+        0, // flags
+        0, 0, 0, 0, // modification time
+        0, // extra flags
+        (byte) 0xff // operating system: unknown
+    };
+
+    private final CRC32 crc = new CRC32();
+    private boolean trailerWritten;
+
+    GzipDeflaterOutputStream(OutputStream out, Deflater deflater, int size) throws IOException {
+        super(out, deflater, size, true);
+        out.write(HEADER);
+    }
+
+    @Override
+    public void write(@Nonnull byte[] b, int off, int len) throws IOException {
+        super.write(b, off, len);
+        crc.update(b, off, len);
+    }
+
+    @Override
+    public void finish() throws IOException {
+        super.finish();
+        if (!trailerWritten) {
+            trailerWritten = true;
+            byte[] trailer = new byte[8];
+            writeInt((int) crc.getValue(), trailer, 0);
+            writeInt(def.getTotalIn(), trailer, 4);
+            out.write(trailer);
+        }
+    }
+
+    private static void writeInt(int i, byte[] buf, int offset) {
+        buf[offset] = (byte) i;
+        buf[offset + 1] = (byte) (i >> 8);
+        buf[offset + 2] = (byte) (i >> 16);
+        buf[offset + 3] = (byte) (i >> 24);
+    }
+}
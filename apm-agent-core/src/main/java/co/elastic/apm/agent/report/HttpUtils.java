@@ -18,6 +18,7 @@
  */
 package co.elastic.apm.agent.report;
 
+import co.elastic.apm.agent.report.nio.NioHttpURLConnection;
 import org.stagemonitor.util.IOUtils;
 
 import javax.annotation.Nullable;
@@ -52,6 +53,10 @@ public class HttpUtils {
      * In order to be able to reuse the underlying TCP connections,
      * the input stream must be consumed and closed
      * see also https://docs.oracle.com/javase/8/docs/technotes/guides/net/http-keepalive.html
+     * <p>
+     * A {@link NioHttpURLConnection} is disconnected afterwards, which closes its channel unless the response has been fully
+     * read and the channel has been returned to the pool.
+     * </p>
      *
      * @param connection the connection
      */
@@ -63,6 +68,9 @@ public class HttpUtils {
             } catch (IOException ignored) {
                 // silently ignored
             }
+            if (connection instanceof NioHttpURLConnection) {
+                connection.disconnect();
+            }
         }
     }
 }
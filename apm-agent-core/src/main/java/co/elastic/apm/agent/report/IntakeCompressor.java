@@ -0,0 +1,190 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * The compression stage of the intake API requests.
+ * <p>
+ * A {@link Deflater} is relatively expensive to create as it allocates native memory.
+ * That's why this class keeps one {@link Deflater} per wrapping format and resets it after each request,
+ * instead of creating a new one for every request.
+ * </p>
+ * <p>
+ * Not thread safe, must only be used by the reporter thread.
+ * </p>
+ */
+public class IntakeCompressor {
+
+    private static final Logger logger = LoggerFactory.getLogger(IntakeCompressor.class);
+
+    static final int MIN_ADAPTIVE_LEVEL = Deflater.BEST_SPEED;
+    static final int MAX_ADAPTIVE_LEVEL = 6;
+    /**
+     * If the reporter thread spends more than this fraction of the request duration on the CPU,
+     * the compression level is decreased so that the reporter can keep up with the producers.
+     */
+    static final double HIGH_CPU_UTILIZATION = 0.5;
+    /**
+     * If the reporter thread spends less than this fraction of the request duration on the CPU,
+     * the compression level is increased in order to reduce the bytes on the wire.
+     */
+    static final double LOW_CPU_UTILIZATION = 0.1;
+
+    private final ReporterConfiguration reporterConfiguration;
+    @Nullable
+    private final ThreadMXBean threadMXBean;
+    @Nullable
+    private Deflater zlibDeflater;
+    @Nullable
+    private Deflater rawDeflater;
+    @Nullable
+    private Deflater currentDeflater;
+    private int adaptiveLevel = MIN_ADAPTIVE_LEVEL;
+    private long requestStartedNanos;
+    private long requestStartedCpuNanos;
+
+    public IntakeCompressor(ReporterConfiguration reporterConfiguration) {
+        this.reporterConfiguration = reporterConfiguration;
+        ThreadMXBean threadMXBean = null;
+        try {
+            threadMXBean = ManagementFactory.getThreadMXBean();
+            if (!threadMXBean.isCurrentThreadCpuTimeSupported()) {
+                threadMXBean = null;
+            }
+        } catch (Throwable ignore) {
+            // we can't adapt the compression level based on the CPU time of the reporter thread
+        }
+        this.threadMXBean = threadMXBean;
+    }
+
+    /**
+     * Wraps the request body stream with a compressing stream, according to the provided compression algorithm.
+     *
+     * @param os          the request body stream
+     * @param compression the compression algorithm
+     * @return the stream the (uncompressed) request body should be written to
+     */
+    public OutputStream wrap(OutputStream os, ApiRequestCompression compression) throws IOException {
+        requestStartedNanos = System.nanoTime();
+        requestStartedCpuNanos = getCurrentThreadCpuTime();
+        switch (compression) {
+            case DEFLATE:
+                if (zlibDeflater == null) {
+                    zlibDeflater = new Deflater(Deflater.BEST_SPEED);
+                }
+                currentDeflater = zlibDeflater;
+                currentDeflater.reset();
+                currentDeflater.setLevel(getLevel());
+                return new DeflaterOutputStream(os, currentDeflater, DslJsonSerializer.BUFFER_SIZE, true);
+            case GZIP:
+                if (rawDeflater == null) {
+                    rawDeflater = new Deflater(Deflater.BEST_SPEED, true);
+                }
+                currentDeflater = rawDeflater;
+                currentDeflater.reset();
+                currentDeflater.setLevel(getLevel());
+                return new GzipDeflaterOutputStream(os, currentDeflater, DslJsonSerializer.BUFFER_SIZE);
+            default:
+                currentDeflater = null;
+                return os;
+        }
+    }
+
+    /**
+     * Must be called after the request has ended.
+     * Adjusts the compression level, if enabled, and resets the {@link Deflater} so that it can be reused by the next request.
+     */
+    public void onRequestEnd() {
+        if (currentDeflater == null) {
+            return;
+        }
+        if (reporterConfiguration.isApiRequestCompressionLevelAdaptive() && requestStartedCpuNanos >= 0) {
+            adjustLevel(getCurrentThreadCpuTime() - requestStartedCpuNanos, System.nanoTime() - requestStartedNanos);
+        }
+        currentDeflater.reset();
+        currentDeflater = null;
+    }
+
+    void adjustLevel(long cpuNanos, long wallNanos) {
+        if (wallNanos <= 0 || cpuNanos < 0) {
+            return;
+        }
+        double cpuUtilization = (double) cpuNanos / wallNanos;
+        int previousLevel = adaptiveLevel;
+        if (cpuUtilization > HIGH_CPU_UTILIZATION && adaptiveLevel > MIN_ADAPTIVE_LEVEL) {
+            adaptiveLevel--;
+        } else if (cpuUtilization < LOW_CPU_UTILIZATION && adaptiveLevel < MAX_ADAPTIVE_LEVEL) {
+            adaptiveLevel++;
+        }
+        if (previousLevel != adaptiveLevel && logger.isDebugEnabled()) {
+            logger.debug("Changing compression level from {} to {} as the reporter CPU utilization was {}%",
+                previousLevel, adaptiveLevel, (int) (cpuUtilization * 100));
+        }
+    }
+
+    int getLevel() {
+        if (reporterConfiguration.isApiRequestCompressionLevelAdaptive()) {
+            return adaptiveLevel;
+        }
+        return reporterConfiguration.getApiRequestCompressionLevel();
+    }
+
+    long getUncompressedBytes() {
+        return currentDeflater != null ? currentDeflater.getBytesRead() : 0;
+    }
+
+    long getCompressedBytes() {
+        return currentDeflater != null ? currentDeflater.getBytesWritten() : 0;
+    }
+
+    private long getCurrentThreadCpuTime() {
+        if (threadMXBean == null) {
+            return -1;
+        }
+        return threadMXBean.getCurrentThreadCpuTime();
+    }
+
+    /**
+     * Releases the native resources of the {@link Deflater}s.
+     * Must be called on the reporter thread, after the last request has ended.
+     */
+    public void close() {
+        if (zlibDeflater != null) {
+            zlibDeflater.end();
+        }
+        if (rawDeflater != null) {
+            rawDeflater.end();
+        }
+        zlibDeflater = null;
+        rawDeflater = null;
+        currentDeflater = null;
+    }
+}
@@ -19,6 +19,7 @@
 package co.elastic.apm.agent.report;
 
 import co.elastic.apm.agent.report.processor.ProcessorEventHandler;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
 import co.elastic.apm.agent.report.serialize.PayloadSerializer;
 import co.elastic.apm.agent.util.ExecutorUtils;
 import co.elastic.apm.agent.sdk.logging.Logger;
@@ -42,12 +43,31 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
     @Nullable
     private Runnable timeoutTask;
     private final AtomicLong processed = new AtomicLong();
+    @Nullable
+    private final SpillBuffer spillBuffer;
+    /**
+     * The number of spilled events which have been replayed in the current request
+     */
+    private long currentlyReplaying;
+    private final long maxBatchBytes;
     private static final Logger logger = LoggerFactory.getLogger(IntakeV2ReportingEventHandler.class);
 
     public IntakeV2ReportingEventHandler(ReporterConfiguration reporterConfiguration, ProcessorEventHandler processorEventHandler,
                                          PayloadSerializer payloadSerializer, ApmServerClient apmServerClient) {
+        this(reporterConfiguration, processorEventHandler, payloadSerializer, apmServerClient, null);
+    }
+
+    /**
+     * @param spillBuffer if not {@code null}, events are written to this buffer while backing off from the APM Server
+     *                    instead of blocking the reporter thread, and replayed once the APM Server accepts requests again
+     */
+    public IntakeV2ReportingEventHandler(ReporterConfiguration reporterConfiguration, ProcessorEventHandler processorEventHandler,
+                                         PayloadSerializer payloadSerializer, ApmServerClient apmServerClient,
+                                         @Nullable SpillBuffer spillBuffer) {
         super(reporterConfiguration, payloadSerializer, apmServerClient);
         this.processorEventHandler = processorEventHandler;
+        this.spillBuffer = spillBuffer;
+        this.maxBatchBytes = reporterConfiguration.getMaxBatchBytes();
         this.timeoutTimer = ExecutorUtils.createSingleThreadSchedulingDaemonPool("request-timeout-timer");
     }
 
@@ -68,6 +88,9 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
                     endRequest();
                 }
                 dispatchEvent(event, sequence, endOfBatch);
+                if (endOfBatch) {
+                    flushBatch();
+                }
             }
         } finally {
             processed.set(sequence);
@@ -100,6 +123,7 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
             case ERROR:
             case TRANSACTION:
             case JSON_WRITER:
+            case SERIALIZED:
                 handleIntakeEvent(event, sequence, endOfBatch);
                 break;
         }
@@ -108,16 +132,33 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
     private void handleShutdownEvent() {
         shutDown = true;
         endRequest();
+        compressor.close();
+        if (spillBuffer != null) {
+            spillBuffer.close();
+        }
     }
 
     private void handleIntakeEvent(ReportingEvent event, long sequence, boolean endOfBatch) {
         processorEventHandler.onEvent(event, sequence, endOfBatch);
+        if (spillBuffer != null && connection == null && isBackingOff()) {
+            spill(event, spillBuffer);
+            return;
+        }
         try {
             if (connection == null) {
+                if (spillBuffer != null) {
+                    spillBuffer.flushFrame();
+                }
                 connection = startRequest(INTAKE_V2_URL);
             }
             if (connection != null) {
                 writeEvent(event);
+                if (isCoalescing() && payloadSerializer.getBufferSize() >= maxBatchBytes) {
+                    payloadSerializer.flushToOutputStream();
+                }
+                if (spillBuffer != null && errorCount == 0) {
+                    replaySpilledEvents(spillBuffer);
+                }
             } else {
                 if (logger.isDebugEnabled()) {
                     logger.debug("Failed to get APM server connection, dropping event: {}", event);
@@ -133,6 +174,33 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
         }
     }
 
+    /**
+     * Compresses and writes the events which have been coalesced during the current batch with a single write.
+     * <p>
+     * Small batches are coalesced with the following ones until they fill at least the default serialization buffer,
+     * as compressing each of them individually would be more expensive than not coalescing at all.
+     * </p>
+     */
+    private void flushBatch() {
+        if (!isCoalescing() || connection == null || payloadSerializer.getBufferSize() < DslJsonSerializer.BUFFER_SIZE) {
+            return;
+        }
+        try {
+            payloadSerializer.flushToOutputStream();
+        } catch (Exception e) {
+            logger.error("Failed to write batch of events with this error: {}", e.getMessage());
+            logger.debug("Event handling failure", e);
+            long failedEvents = currentlyTransmitting;
+            endRequest();
+            onConnectionError(null, failedEvents, 0);
+        }
+    }
+
+    @Override
+    protected boolean isCoalescing() {
+        return maxBatchBytes > 0;
+    }
+
     private void handleConnectionError(ReportingEvent event, Exception e) {
         logger.error("Failed to handle event of type {} with this error: {}", event.getType(), e.getMessage());
         logger.debug("Event handling failure", e);
@@ -150,20 +218,94 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
     }
 
     private void writeEvent(ReportingEvent event) {
-        if (event.getTransaction() != null) {
+        if (serializeEvent(event)) {
             currentlyTransmitting++;
+        }
+    }
+
+    /**
+     * @return whether the event counts towards the number of reported events
+     */
+    private boolean serializeEvent(ReportingEvent event) {
+        if (event.getTransaction() != null) {
             payloadSerializer.serializeTransactionNdJson(event.getTransaction());
         } else if (event.getSpan() != null) {
-            currentlyTransmitting++;
             payloadSerializer.serializeSpanNdJson(event.getSpan());
         } else if (event.getError() != null) {
-            currentlyTransmitting++;
             payloadSerializer.serializeErrorNdJson(event.getError());
+        } else if (event.getSerializedEvent() != null) {
+            SerializedEvent serializedEvent = event.getSerializedEvent();
+            payloadSerializer.writeBytes(serializedEvent.getBytes(), serializedEvent.getSize());
+            // like metric sets reported as a JsonWriter, chunks of metric sets don't count as reported events
+            return serializedEvent.getLane() != ReporterLane.METRICSET;
         } else if (event.getJsonWriter() != null) {
             payloadSerializer.writeBytes(event.getJsonWriter().getByteBuffer(), event.getJsonWriter().size());
+            return false;
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private void spill(ReportingEvent event, SpillBuffer spillBuffer) {
+        try {
+            payloadSerializer.setOutputStream(spillBuffer.getOutputStream());
+            boolean countAsEvent = serializeEvent(event);
+            payloadSerializer.fullFlush();
+            spillBuffer.onEventWritten(countAsEvent);
+        } catch (Exception e) {
+            logger.debug("Failed to spill event {}: {}", event, e.getMessage());
+            dropped++;
+        }
+    }
+
+    /**
+     * Appends spilled events to the current request, limited by the replay rate and the size of the request.
+     */
+    private void replaySpilledEvents(SpillBuffer spillBuffer) {
+        while (!spillBuffer.isEmpty() && !shouldEndRequest()) {
+            int replayed = spillBuffer.replay(payloadSerializer, System.nanoTime());
+            if (replayed < 0) {
+                return;
+            }
+            currentlyReplaying += replayed;
         }
     }
 
+    @Override
+    protected void onRequestSuccess() {
+        super.onRequestSuccess();
+        if (spillBuffer != null) {
+            reported += currentlyReplaying;
+            currentlyReplaying = 0;
+            spillBuffer.onReplayAccepted();
+        }
+    }
+
+    @Override
+    protected void onConnectionError(@Nullable Integer responseCode, long droppedEvents, long reportedEvents) {
+        super.onConnectionError(responseCode, droppedEvents, reportedEvents);
+        if (spillBuffer != null) {
+            // the replayed events are not dropped but replayed again with the next request
+            currentlyReplaying = 0;
+            spillBuffer.onReplayFailed();
+        }
+    }
+
+    /**
+     * @return the number of dropped events, including the ones the spill buffer has dropped because it was full or because they were corrupted
+     */
+    @Override
+    public long getDropped() {
+        return spillBuffer != null ? dropped + spillBuffer.getDroppedEvents() : dropped;
+    }
+
+    @Override
+    protected boolean isBlockingBackoff() {
+        // when spilling, the reporter thread has to keep consuming events while backing off
+        return spillBuffer == null;
+    }
+
     @Override
     @Nullable
     protected HttpURLConnection startRequest(String endpoint) throws Exception {
@@ -183,7 +325,7 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
     public void close() {
         super.close();
         logger.info("Reported events: {}", reported);
-        logger.info("Dropped events: {}", dropped);
+        logger.info("Dropped events: {}", getDropped());
         timeoutTimer.shutdownNow();
     }
 
@@ -0,0 +1,154 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.impl.error.ErrorCapture;
+import co.elastic.apm.agent.impl.metadata.MetaData;
+import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.objectpool.Allocator;
+import co.elastic.apm.agent.objectpool.ObjectPool;
+import co.elastic.apm.agent.objectpool.ObjectPoolFactory;
+import co.elastic.apm.agent.objectpool.Resetter;
+import co.elastic.apm.agent.objectpool.impl.QueueBasedObjectPool;
+import co.elastic.apm.agent.report.processor.ProcessorEventHandler;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import com.dslplatform.json.DslJson;
+import com.dslplatform.json.JsonWriter;
+import org.jctools.queues.atomic.MpmcAtomicArrayQueue;
+
+import java.util.concurrent.Future;
+
+/**
+ * Serializes transactions, spans and errors on the thread that ends them, instead of on the reporter thread.
+ * <p>
+ * This lets the {@link Transaction}, {@link Span} or {@link ErrorCapture} be recycled right away,
+ * instead of having to wait until the reporter thread has processed the event.
+ * Only the serialized bytes are added to the ring buffer,
+ * so that the reporter thread is only responsible for compressing and sending them.
+ * </p>
+ * <p>
+ * The {@link DslJsonSerializer}s, which hold buffers of {@link DslJsonSerializer#BUFFER_SIZE} and more each,
+ * are borrowed from a pool for the duration of a serialization.
+ * The pool keeps at most one serializer per CPU, so that the retained heap doesn't grow with the number of threads that end events.
+ * The serialized bytes are copied to a pooled {@link JsonWriter} whose buffer only grows to the size of the events it holds,
+ * so that the events waiting in the queue don't retain a serializer each.
+ * </p>
+ * <p>
+ * The {@link co.elastic.apm.agent.report.processor.Processor}s are also executed on the thread that ends the event.
+ * </p>
+ */
+public class ProducerSideSerializer {
+
+    /**
+     * The initial buffer size of the pooled writers, which is enough for most spans
+     */
+    static final int INITIAL_EVENT_BUFFER_SIZE = 1024;
+    /**
+     * The maximum number of pooled serializers, as there are hardly more threads serializing at the same time
+     */
+    private static final int MAX_POOLED_SERIALIZERS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private final ObjectPool<SerializedEvent> pool;
+    private final ObjectPool<DslJsonSerializer> serializers;
+    private final ProcessorEventHandler processorEventHandler;
+
+    public ProducerSideSerializer(final StacktraceConfiguration stacktraceConfiguration, final ApmServerClient apmServerClient,
+                                  final Future<MetaData> metaData, ProcessorEventHandler processorEventHandler,
+                                  ObjectPoolFactory objectPoolFactory, int maxPooledEvents) {
+        this.processorEventHandler = processorEventHandler;
+        this.serializers = QueueBasedObjectPool.of(new MpmcAtomicArrayQueue<DslJsonSerializer>(MAX_POOLED_SERIALIZERS), false,
+            new Allocator<DslJsonSerializer>() {
+                @Override
+                public DslJsonSerializer createInstance() {
+                    return new DslJsonSerializer(stacktraceConfiguration, apmServerClient, metaData);
+                }
+            },
+            new Resetter<DslJsonSerializer>() {
+                @Override
+                public void recycle(DslJsonSerializer serializer) {
+                    // discards what a serialization may have left behind if it has failed
+                    serializer.getJsonWriter().reset();
+                }
+            });
+        final DslJson<Object> dslJson = new DslJson<>(new DslJson.Settings<>());
+        this.pool = objectPoolFactory.createRecyclableObjectPool(maxPooledEvents, new Allocator<SerializedEvent>() {
+            @Override
+            public SerializedEvent createInstance() {
+                // the lane is set whenever an event is serialized
+                return new SerializedEvent(dslJson.newWriter(INITIAL_EVENT_BUFFER_SIZE), pool, ReporterLane.SPAN);
+            }
+        });
+    }
+
+    public SerializedEvent serialize(Transaction transaction) {
+        processorEventHandler.processBeforeReport(transaction);
+        DslJsonSerializer serializer = serializers.createInstance();
+        try {
+            serializer.serializeTransactionNdJson(transaction);
+            return toSerializedEvent(serializer, ReporterLane.TRANSACTION);
+        } finally {
+            recycle(serializer);
+        }
+    }
+
+    public SerializedEvent serialize(Span span) {
+        DslJsonSerializer serializer = serializers.createInstance();
+        try {
+            serializer.serializeSpanNdJson(span);
+            return toSerializedEvent(serializer, ReporterLane.SPAN);
+        } finally {
+            recycle(serializer);
+        }
+    }
+
+    public SerializedEvent serialize(ErrorCapture error) {
+        processorEventHandler.processBeforeReport(error);
+        DslJsonSerializer serializer = serializers.createInstance();
+        try {
+            serializer.serializeErrorNdJson(error);
+            return toSerializedEvent(serializer, ReporterLane.ERROR);
+        } finally {
+            recycle(serializer);
+        }
+    }
+
+    private SerializedEvent toSerializedEvent(DslJsonSerializer serializer, ReporterLane lane) {
+        JsonWriter jw = serializer.getJsonWriter();
+        SerializedEvent serializedEvent = pool.createInstance();
+        serializedEvent.setLane(lane);
+        serializedEvent.getJsonWriter().writeAscii(jw.getByteBuffer(), jw.size());
+        return serializedEvent;
+    }
+
+    private void recycle(DslJsonSerializer serializer) {
+        // one big event should not increase the retained heap for good
+        if (serializer.getJsonWriter().getByteBuffer().length <= SerializedEvent.MAX_POOLED_BUFFER_SIZE) {
+            serializers.recycle(serializer);
+        }
+    }
+
+    /**
+     * @return the number of serialized events which could not be returned to the pool
+     */
+    public long getGarbageCreated() {
+        return pool.getGarbageCreated();
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the estimated number of bytes the events in a reporter queue may occupy.
+ * <p>
+ * When the queue fills up, the largest and least valuable events are rejected first.
+ * Once the queued bytes exceed {@link #SOFT_LIMIT_RATIO} of the budget,
+ * an event is only admitted if it is not larger than the average queued event times its {@code sizeTolerance}.
+ * That way, small events and events with an {@link #UNLIMITED_SIZE_TOLERANCE} (errors) can still be queued
+ * until the budget is exhausted.
+ * </p>
+ */
+class QueueByteBudget {
+
+    static final double SOFT_LIMIT_RATIO = 0.75;
+    static final int UNLIMITED_SIZE_TOLERANCE = -1;
+
+    private final long maxBytes;
+    private final long softLimit;
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicLong queuedEvents = new AtomicLong();
+
+    QueueByteBudget(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.softLimit = (long) (maxBytes * SOFT_LIMIT_RATIO);
+    }
+
+    /**
+     * @param bytes         the estimated size of the event
+     * @param sizeTolerance how many times larger than the average queued event this event may be once the soft limit is exceeded,
+     *                      or {@link #UNLIMITED_SIZE_TOLERANCE}
+     * @return {@code true} if the event may be added to the queue, in which case {@link #release(long)} has to be called
+     * after it has been processed
+     */
+    boolean tryAcquire(long bytes, int sizeTolerance) {
+        long queued = queuedBytes.get();
+        if (queued > softLimit && sizeTolerance != UNLIMITED_SIZE_TOLERANCE) {
+            long events = queuedEvents.get();
+            if (events > 0 && bytes > queued / events * sizeTolerance) {
+                return false;
+            }
+        }
+        if (queuedBytes.addAndGet(bytes) > maxBytes) {
+            queuedBytes.addAndGet(-bytes);
+            return false;
+        }
+        queuedEvents.incrementAndGet();
+        return true;
+    }
+
+    void release(long bytes) {
+        queuedBytes.addAndGet(-bytes);
+        queuedEvents.decrementAndGet();
+    }
+
+    long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    long getMaxBytes() {
+        return maxBytes;
+    }
+}
@@ -23,6 +23,7 @@ import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.Transaction;
 import com.dslplatform.json.JsonWriter;
 
+import javax.annotation.Nullable;
 import java.io.Closeable;
 import java.util.concurrent.TimeUnit;
 
@@ -38,10 +39,34 @@ public interface Reporter extends Closeable {
 
     void report(JsonWriter jsonWriter);
 
+    /**
+     * Reports events that have already been serialized to ND-JSON, such as a chunk of metric sets.
+     * <p>
+     * The reporter takes ownership of the event and {@linkplain SerializedEvent#recycle() recycles} it
+     * after it has been written or dropped.
+     * </p>
+     *
+     * @param serializedEvent the serialized events
+     */
+    void report(SerializedEvent serializedEvent);
+
     long getDropped();
 
     long getReported();
 
+    /**
+     * @return the estimated size of the events which are currently queued, in bytes,
+     * or {@code -1} if the queue is not limited by {@code max_queue_bytes}
+     */
+    long getQueuedBytes();
+
+    /**
+     * @return statistics about how the reporter threads consume the reported events,
+     * or {@code null} if this reporter does not use reporter threads
+     */
+    @Nullable
+    ReporterStatistics getStatistics();
+
     /**
      * Flushes pending events and ends the HTTP request to APM server.
      * <p>
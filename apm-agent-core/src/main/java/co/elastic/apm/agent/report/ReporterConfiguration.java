@@ -27,15 +27,22 @@ import co.elastic.apm.agent.matcher.WildcardMatcherValueConverter;
 import co.elastic.apm.agent.sdk.logging.LoggerFactory;
 import org.stagemonitor.configuration.ConfigurationOption;
 import org.stagemonitor.configuration.ConfigurationOptionProvider;
+import org.stagemonitor.configuration.converter.EnumValueConverter;
+import org.stagemonitor.configuration.converter.IntegerValueConverter;
 import org.stagemonitor.configuration.converter.ListValueConverter;
+import org.stagemonitor.configuration.converter.MapValueConverter;
 import org.stagemonitor.configuration.converter.UrlValueConverter;
 
 import javax.annotation.Nullable;
 import java.net.URL;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 
+import static co.elastic.apm.agent.configuration.validation.RangeValidator.isInRange;
 import static co.elastic.apm.agent.configuration.validation.RangeValidator.isNotInRange;
+import static co.elastic.apm.agent.configuration.validation.RangeValidator.min;
 
 public class ReporterConfiguration extends ConfigurationOptionProvider {
 
@@ -153,6 +160,187 @@ public class ReporterConfiguration extends ConfigurationOptionProvider {
         .dynamic(false)
         .buildWithDefault(512);
 
+    private final ConfigurationOption<ByteValue> maxQueueBytes = ByteValueConverter.byteOption()
+        .key("max_queue_bytes")
+        .configurationCategory(REPORTER_CATEGORY)
+        .tags("added[1.35.0]", "experimental")
+        .description("The maximum estimated size of buffered events.\n" +
+            "\n" +
+            "In addition to the number of events limited by <<config-max-queue-size, `max_queue_size`>>,\n" +
+            "this limits the estimated number of bytes the buffered events may occupy.\n" +
+            "The size of an event is estimated based on its variable-sized parts, like the request body, headers, the DB statement or the stack trace.\n" +
+            "\n" +
+            "When the queue fills up, the largest and least valuable events are rejected first.\n" +
+            "Once 75% of the budget is used, spans which are larger than the average buffered event\n" +
+            "and transactions which are more than twice as large are rejected.\n" +
+            "Errors are only rejected if the budget is exhausted.\n" +
+            "\n" +
+            "The current estimated size of the buffered events is reported as the `agent.events.queue.bytes` metric.\n" +
+            "When <<config-reporter-threads, `reporter_threads`>> is greater than one, each queue has its own budget.\n" +
+            "Setting this to `0b` disables the limit.\n" +
+            "\n" +
+            "Allowed byte units are `b`, `kb`, `mb` and `gb`. `1kb` is equal to `1024b`.")
+        .dynamic(false)
+        .buildWithDefault(ByteValue.of("0b"));
+
+    private final ConfigurationOption<Integer> reporterThreads = ConfigurationOption.integerOption()
+        .key("reporter_threads")
+        .configurationCategory(REPORTER_CATEGORY)
+        .tags("added[1.35.0]", "experimental")
+        .description("The number of threads that serialize, compress and send events to the APM Server.\n" +
+            "\n" +
+            "By default, a single thread is reporting all events.\n" +
+            "When the application creates more events than a single thread can handle, the queue fills up and events are dropped.\n" +
+            "In that case, setting a higher value spreads the events across multiple queues,\n" +
+            "each with its own reporter thread and connection to the APM Server.\n" +
+            "Events are assigned to a queue based on the thread that has created them.\n" +
+            "\n" +
+            "Note that each queue is sized according to <<config-max-queue-size, `max_queue_size`>>.")
+        .addValidator(min(1))
+        .dynamic(false)
+        .buildWithDefault(1);
+
+    private final ConfigurationOption<ReporterWaitStrategy> reporterWaitStrategy = ConfigurationOption.enumOption(ReporterWaitStrategy.class)
+        .key("reporter_wait_strategy")
+        .configurationCategory(REPORTER_CATEGORY)
+        .tags("added[1.35.0]", "experimental")
+        .description("How the reporter thread waits for new events when its queue is empty.\n" +
+            "\n" +
+            "Available options:\n" +
+            "\n" +
+            " - sleeping - sleeps for increasing periods of up to 10ms.\n" +
+            "   This adds up to 10ms of latency to flushes and the reporter thread wakes up periodically, even if there are no events.\n" +
+            " - adaptive - switches between spinning, yielding, sleeping and blocking, based on how frequently events arrived recently.\n" +
+            "   In quiet services, the reporter thread blocks until the next event is reported.\n" +
+            "\n" +
+            "The `agent.events.reporter.idle.pct`, `agent.events.batch.size.avg` and `agent.events.latency.count` metrics\n" +
+            "help to assess the effect of this setting.")
+        .dynamic(false)
+        .buildWithDefault(ReporterWaitStrategy.SLEEPING);
+
+    private final ConfigurationOption<ByteValue> maxBatchBytes = ByteValueConverter.byteOption()
+        .key("max_batch_bytes")
+        .configurationCategory(REPORTER_CATEGORY)
+        .tags("added[1.35.0]", "experimental")
+        .description("The maximum number of uncompressed bytes the reporter thread coalesces before compressing and writing them to the request.\n" +
+            "\n" +
+            "By default, the serialized events are written to the request whenever the 16kb serialization buffer is full.\n" +
+            "When this is set, all events the reporter thread takes from the queue at once are serialized into a single buffer,\n" +
+            "which is compressed and written with a single write, at the latest when it exceeds this size.\n" +
+            "Under load, this reduces the number of compression invocations and writes to the connection.\n" +
+            "The buffer grows up to this size and is kept for the lifetime of the reporter thread.\n" +
+            "Setting this to `0b` disables coalescing.\n" +
+            "\n" +
+            "Allowed byte units are `b`, `kb`, `mb` and `gb`. `1kb` is equal to `1024b`.")
+        .dynamic(false)
+        .buildWithDefault(ByteValue.of("0b"));
+
+    private final ConfigurationOption<Map<ReporterLane, Integer>> queueLaneLimits = ConfigurationOption
+        .builder(new MapValueConverter<ReporterLane, Integer>(new EnumValueConverter<ReporterLane>(ReporterLane.class), IntegerValueConverter.INSTANCE, "=", ","), Map.class)
+        .key("queue_lane_limits")
+        .configurationCategory(REPORTER_CATEGORY)
+        .tags("added[1.35.0]", "experimental")
+        .description("Reserves room in the reporter queue for more valuable events, with the format `lane=percent[,lane=percent[,...]]`.\n" +
+            "\n" +
+            "The lanes are `error`, `transaction`, `metricset` and `span`.\n" +
+            "An event is dropped if the queue is already filled to the configured percentage of its lane,\n" +
+            "considering both <<config-max-queue-size, `max_queue_size`>> and <<config-max-queue-bytes, `max_queue_bytes`>>.\n" +
+            "Lanes that are not configured may fill the whole queue.\n" +
+            "By default, spans are dropped once the queue is filled to 70% and transactions once it is filled to 90%,\n" +
+            "so that a flood of spans can't cause errors, transactions and metrics to be dropped.\n" +
+            "Setting the limit of all lanes to `100` lets any event fill the whole queue.\n" +
+            "\n" +
+            "The `agent.events.dropped` and `agent.events.processed` metrics show how many events of each lane\n" +
+            "have been dropped and processed.")
+        .addValidator(new ConfigurationOption.Validator<Map<ReporterLane, Integer>>() {
+            @Override
+            public void assertValid(@Nullable Map<ReporterLane, Integer> value) {
+                if (value != null) {
+                    for (Map.Entry<ReporterLane, Integer> entry : value.entrySet()) {
+                        if (entry.getValue() < 0 || entry.getValue() > 100) {
+                            throw new IllegalArgumentException("The limit of the " + entry.getKey() + " lane must be between 0 and 100");
+                        }
+                    }
+                }
+            }
+        })
+        .dynamic(false)
+        .buildWithDefault(defaultQueueLaneLimits());
+
+    private static Map<ReporterLane, Integer> defaultQueueLaneLimits() {
+        Map<ReporterLane, Integer> limits = new EnumMap<>(ReporterLane.class);
+        limits.put(ReporterLane.TRANSACTION, 90);
+        limits.put(ReporterLane.SPAN, 70);
+        return limits;
+    }
+
+    private final ConfigurationOption<Boolean> serializeEventsOnEnd = ConfigurationOption.booleanOption()
+        .key("serialize_events_on_end")
+        .configurationCategory(REPORTER_CATEGORY)
+        .tags("added[1.35.0]", "experimental")
+        .description("If enabled, transactions, spans and errors are serialized on the application thread that ends them,\n" +
+            "instead of on the thread that sends them to the APM Server.\n" +
+            "\n" +
+            "This lets the agent reuse the transaction and span objects right away,\n" +
+            "instead of keeping them alive until the reporter thread has processed them.\n" +
+            "It also moves the serialization cost off the reporter thread, which then only has to compress and send the events.\n" +
+            "The downside is that the serialization is done on application threads, adding some latency to them.")
+        .dynamic(false)
+        .buildWithDefault(false);
+
+    private final ConfigurationOption<ByteValue> spillMaxSize = ByteValueConverter.byteOption()
+        .key("spill_max_size")
+        .configurationCategory(REPORTER_CATEGORY)
+        .tags("added[1.35.0]", "experimental")
+        .description("The maximum size of the on-disk buffer for events that can't be sent while the APM Server is unavailable.\n" +
+            "\n" +
+            "By default, the reporter thread waits while backing off from an unavailable APM Server,\n" +
+            "so that events are dropped as soon as the queue is full.\n" +
+            "When this is set, events are instead compressed and written to segment files in <<config-spill-dir, `spill_dir`>>\n" +
+            "while backing off.\n" +
+            "Once the APM Server accepts events again, the buffered events are sent along with new events,\n" +
+            "limited by <<config-spill-replay-rate, `spill_replay_rate`>>.\n" +
+            "When the buffer is full, further events are dropped.\n" +
+            "Buffered events are not kept across restarts of the application.\n" +
+            "\n" +
+            "When <<config-reporter-threads, `reporter_threads`>> is greater than one, each reporter thread has its own buffer,\n" +
+            "which gets an equal share of this size and of <<config-spill-replay-rate, `spill_replay_rate`>>.\n" +
+            "Setting this to `0b` disables the on-disk buffer.\n" +
+            "\n" +
+            "Allowed byte units are `b`, `kb`, `mb` and `gb`. `1kb` is equal to `1024b`.")
+        .dynamic(false)
+        .buildWithDefault(ByteValue.of("0b"));
+
+    private final ConfigurationOption<String> spillDir = ConfigurationOption.stringOption()
+        .key("spill_dir")
+        .configurationCategory(REPORTER_CATEGORY)
+        .tags("added[1.35.0]", "experimental")
+        .description("The directory in which the on-disk buffer configured by <<config-spill-max-size, `spill_max_size`>> is created.\n" +
+            "The agent creates a new sub-directory on startup and deletes it on shutdown.\n" +
+            "If not set, the temporary directory of the JVM (`java.io.tmpdir`) is used.")
+        .dynamic(false)
+        .build();
+
+    private final ConfigurationOption<ByteValue> spillReplayRate = ByteValueConverter.byteOption()
+        .key("spill_replay_rate")
+        .configurationCategory(REPORTER_CATEGORY)
+        .tags("added[1.35.0]", "experimental")
+        .description("The maximum number of uncompressed bytes per second that are sent from the on-disk buffer\n" +
+            "configured by <<config-spill-max-size, `spill_max_size`>> once the APM Server is available again.\n" +
+            "This makes sure that an APM Server which has just recovered is not overwhelmed by buffered events.\n" +
+            "\n" +
+            "Allowed byte units are `b`, `kb`, `mb` and `gb`. `1kb` is equal to `1024b`.")
+        .addValidator(new ConfigurationOption.Validator<ByteValue>() {
+            @Override
+            public void assertValid(@Nullable ByteValue value) {
+                if (value != null && value.getBytes() <= 0) {
+                    throw new IllegalArgumentException("spill_replay_rate must be greater than 0b");
+                }
+            }
+        })
+        .dynamic(false)
+        .buildWithDefault(ByteValue.of("1mb"));
+
     private final ConfigurationOption<Boolean> reportSynchronously = ConfigurationOption.booleanOption()
         .key("report_sync")
         .tags("internal")
@@ -188,6 +376,65 @@ public class ReporterConfiguration extends ConfigurationOptionProvider {
             "Allowed byte units are `b`, `kb` and `mb`. `1kb` is equal to `1024b`.")
         .buildWithDefault(ByteValue.of("768kb"));
 
+    private final ConfigurationOption<ApiRequestCompression> apiRequestCompression = ConfigurationOption.enumOption(ApiRequestCompression.class)
+        .key("api_request_compression")
+        .configurationCategory(REPORTER_CATEGORY)
+        .tags("added[1.35.0]")
+        .dynamic(true)
+        .description("The compression algorithm used for the request body which is sent to the APM server intake api.\n" +
+            "\n" +
+            "Available options:\n" +
+            "\n" +
+            " - none - the request body is not compressed.\n" +
+            " - deflate - the request body is compressed with zlib-wrapped deflate.\n" +
+            " - gzip - the request body is compressed with gzip.\n" +
+            "\n" +
+            "NOTE: Requests to an APM Server running on `localhost` are never compressed.")
+        .buildWithDefault(ApiRequestCompression.DEFLATE);
+
+    private final ConfigurationOption<Integer> apiRequestCompressionLevel = ConfigurationOption.integerOption()
+        .key("api_request_compression_level")
+        .configurationCategory(REPORTER_CATEGORY)
+        .tags("added[1.35.0]")
+        .dynamic(true)
+        .description("The compression level used for the request body which is sent to the APM server intake api.\n" +
+            "Ranges from `0` (no compression) over `1` (fastest compression) to `9` (best compression).\n" +
+            "\n" +
+            "A higher level reduces the number of bytes on the wire at the expense of the CPU usage of the reporter thread.\n" +
+            "This option is ignored if <<config-api-request-compression-adaptive, `api_request_compression_adaptive`>> is enabled.")
+        .addValidator(isInRange(0, 9))
+        .buildWithDefault(1);
+
+    private final ConfigurationOption<Boolean> apiRequestCompressionAdaptive = ConfigurationOption.booleanOption()
+        .key("api_request_compression_adaptive")
+        .configurationCategory(REPORTER_CATEGORY)
+        .tags("added[1.35.0]", "experimental")
+        .dynamic(true)
+        .description("If enabled, the compression level is tuned after each request to the APM server intake api,\n" +
+            "based on the CPU time the reporter thread has spent during the request.\n" +
+            "When the reporter thread is busy, the level is decreased so that the agent can keep up with the events to report.\n" +
+            "When the reporter thread is mostly idle, the level is increased up to `6` so that less bytes are sent over the network.")
+        .buildWithDefault(false);
+
+    private final ConfigurationOption<ApiRequestTransport> apiRequestTransport = ConfigurationOption.enumOption(ApiRequestTransport.class)
+        .key("api_request_transport")
+        .configurationCategory(REPORTER_CATEGORY)
+        .tags("added[1.35.0]", "experimental")
+        .dynamic(false)
+        .description("The HTTP client used to send events to the APM server intake api.\n" +
+            "\n" +
+            "Available options:\n" +
+            "\n" +
+            " - url_connection - uses the HTTP client of the JDK.\n" +
+            " - nio - uses non-blocking socket channels which are kept open across requests.\n" +
+            "\n" +
+            "With `nio`, a new request does not require another TCP and TLS handshake.\n" +
+            "The request body is framed in direct buffers which are reused for the lifetime of a connection,\n" +
+            "which reduces the allocations of the reporter thread.\n" +
+            "\n" +
+            "NOTE: If a proxy is configured for the APM Server URL, the HTTP client of the JDK is always used.")
+        .buildWithDefault(ApiRequestTransport.URL_CONNECTION);
+
     private final ConfigurationOption<TimeDuration> metricsInterval = TimeDurationValueConverter.durationOption("s")
         .key("metrics_interval")
         .tags("added[1.3.0]")
@@ -277,6 +524,47 @@ public class ReporterConfiguration extends ConfigurationOptionProvider {
         return maxQueueSize.get();
     }
 
+    public long getMaxQueueBytes() {
+        return maxQueueBytes.get().getBytes();
+    }
+
+    public int getReporterThreads() {
+        return reporterThreads.get();
+    }
+
+    public ReporterWaitStrategy getReporterWaitStrategy() {
+        return reporterWaitStrategy.get();
+    }
+
+    public long getMaxBatchBytes() {
+        return maxBatchBytes.get().getBytes();
+    }
+
+    /**
+     * @return the percentage of the reporter queue that may be filled when an event of a given lane is added,
+     * lanes without a limit may fill the whole queue
+     */
+    public Map<ReporterLane, Integer> getQueueLaneLimits() {
+        return queueLaneLimits.get();
+    }
+
+    public boolean isSerializeEventsOnEnd() {
+        return serializeEventsOnEnd.get();
+    }
+
+    public long getSpillMaxSize() {
+        return spillMaxSize.get().getBytes();
+    }
+
+    @Nullable
+    public String getSpillDir() {
+        return spillDir.get();
+    }
+
+    public long getSpillReplayRate() {
+        return spillReplayRate.get().getBytes();
+    }
+
     public boolean isReportSynchronously() {
         return reportSynchronously.get();
     }
@@ -293,6 +581,22 @@ public class ReporterConfiguration extends ConfigurationOptionProvider {
         return apiRequestSize.get().getBytes();
     }
 
+    public ApiRequestCompression getApiRequestCompression() {
+        return apiRequestCompression.get();
+    }
+
+    public int getApiRequestCompressionLevel() {
+        return apiRequestCompressionLevel.get();
+    }
+
+    public boolean isApiRequestCompressionLevelAdaptive() {
+        return apiRequestCompressionAdaptive.get();
+    }
+
+    public ApiRequestTransport getApiRequestTransport() {
+        return apiRequestTransport.get();
+    }
+
     //Only whole seconds are used, so drop the fractional part at 1 second resolution
     public long getMetricsIntervalMs() {
         return (metricsInterval.get().getMillis()/1000L)*1000L;
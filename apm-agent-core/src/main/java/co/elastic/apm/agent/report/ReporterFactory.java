@@ -20,33 +20,108 @@ package co.elastic.apm.agent.report;
 
 import co.elastic.apm.agent.impl.metadata.MetaData;
 import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
+import co.elastic.apm.agent.objectpool.ObjectPoolFactory;
 import co.elastic.apm.agent.report.processor.ProcessorEventHandler;
 import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+import co.elastic.apm.agent.util.MathUtils;
 import org.stagemonitor.configuration.ConfigurationRegistry;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Future;
 
 public class ReporterFactory {
 
+    private static final Logger logger = LoggerFactory.getLogger(ReporterFactory.class);
+
     public Reporter createReporter(ConfigurationRegistry configurationRegistry,
                                    ApmServerClient apmServerClient,
                                    Future<MetaData> metaData) {
+        return createReporter(configurationRegistry, apmServerClient, metaData, new ObjectPoolFactory());
+    }
+
+    public Reporter createReporter(ConfigurationRegistry configurationRegistry,
+                                   ApmServerClient apmServerClient,
+                                   Future<MetaData> metaData,
+                                   ObjectPoolFactory objectPoolFactory) {
 
         ReporterConfiguration reporterConfiguration = configurationRegistry.getConfig(ReporterConfiguration.class);
-        ReportingEventHandler reportingEventHandler = getReportingEventHandler(configurationRegistry, reporterConfiguration, metaData, apmServerClient);
-        return new ApmServerReporter(true, reporterConfiguration, reportingEventHandler);
+        ProducerSideSerializer producerSideSerializer = null;
+        if (reporterConfiguration.isSerializeEventsOnEnd()) {
+            producerSideSerializer = new ProducerSideSerializer(configurationRegistry.getConfig(StacktraceConfiguration.class),
+                apmServerClient, metaData, ProcessorEventHandler.loadProcessors(configurationRegistry), objectPoolFactory,
+                MathUtils.getNextPowerOf2(reporterConfiguration.getMaxQueueSize()));
+        }
+        int reporterThreads = reporterConfiguration.getReporterThreads();
+        File spillDirectory = createSpillDirectory(reporterConfiguration);
+        ReporterStatistics statistics = new ReporterStatistics();
+        if (reporterThreads <= 1) {
+            ReportingEventHandler reportingEventHandler = getReportingEventHandler(configurationRegistry, reporterConfiguration, metaData, apmServerClient,
+                createSpillBuffer(reporterConfiguration, spillDirectory, "server-reporter", 1));
+            return new ApmServerReporter(true, reporterConfiguration, reportingEventHandler, "server-reporter", producerSideSerializer, statistics);
+        }
+        List<Reporter> shards = new ArrayList<>(reporterThreads);
+        for (int i = 0; i < reporterThreads; i++) {
+            ReportingEventHandler reportingEventHandler = getReportingEventHandler(configurationRegistry, reporterConfiguration, metaData, apmServerClient,
+                createSpillBuffer(reporterConfiguration, spillDirectory, "server-reporter-" + i, reporterThreads));
+            shards.add(new ApmServerReporter(true, reporterConfiguration, reportingEventHandler, "server-reporter-" + i, producerSideSerializer, statistics));
+        }
+        return new ShardedReporter(shards);
     }
 
     @Nonnull
     private ReportingEventHandler getReportingEventHandler(ConfigurationRegistry configurationRegistry,
                                                            ReporterConfiguration reporterConfiguration,
                                                            Future<MetaData> metaData,
-                                                           ApmServerClient apmServerClient) {
+                                                           ApmServerClient apmServerClient,
+                                                           @Nullable SpillBuffer spillBuffer) {
 
         DslJsonSerializer payloadSerializer = new DslJsonSerializer(configurationRegistry.getConfig(StacktraceConfiguration.class), apmServerClient, metaData);
         ProcessorEventHandler processorEventHandler = ProcessorEventHandler.loadProcessors(configurationRegistry);
-        return new IntakeV2ReportingEventHandler(reporterConfiguration, processorEventHandler, payloadSerializer, apmServerClient);
+        return new IntakeV2ReportingEventHandler(reporterConfiguration, processorEventHandler, payloadSerializer, apmServerClient, spillBuffer);
+    }
+
+    @Nullable
+    private File createSpillDirectory(ReporterConfiguration reporterConfiguration) {
+        if (reporterConfiguration.getSpillMaxSize() <= 0) {
+            return null;
+        }
+        String spillDir = reporterConfiguration.getSpillDir();
+        if (spillDir == null || spillDir.isEmpty()) {
+            spillDir = System.getProperty("java.io.tmpdir");
+        }
+        try {
+            File baseDirectory = new File(spillDir);
+            if (!baseDirectory.isDirectory() && !baseDirectory.mkdirs()) {
+                throw new IOException("Could not create directory " + baseDirectory);
+            }
+            File spillDirectory = Files.createTempDirectory(baseDirectory.toPath(), "elastic-apm-spill-").toFile();
+            spillDirectory.deleteOnExit();
+            return spillDirectory;
+        } catch (IOException e) {
+            logger.warn("Disabling the on-disk spill buffer as the directory {} could not be created: {}", spillDir, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @param shards the number of reporter threads, which share the configured size and replay rate
+     */
+    @Nullable
+    private SpillBuffer createSpillBuffer(ReporterConfiguration reporterConfiguration, @Nullable File spillDirectory, String name, int shards) {
+        if (spillDirectory == null) {
+            return null;
+        }
+        return new SpillBuffer(new File(spillDirectory, name),
+            reporterConfiguration.getSpillMaxSize() / shards,
+            Math.max(1, reporterConfiguration.getSpillReplayRate() / shards));
     }
 
 }
@@ -0,0 +1,203 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Statistics about how the reporter threads consume the events from their ring buffers:
+ * how long they are idle, how many events they process per batch, how long it takes from publishing an event until it is processed
+ * and how many events of each {@link ReporterLane} have been processed or dropped because the queue was full.
+ * <p>
+ * Each reporter thread records into its own {@link Recorder}, which only publishes its values at the end of a batch.
+ * That keeps the overhead per event low and allows the shards of a {@link ShardedReporter} to share the same statistics.
+ * All values are cumulative.
+ * </p>
+ */
+public class ReporterStatistics {
+
+    /**
+     * The upper bounds of the latency buckets in microseconds.
+     * Latencies above the last bound are counted in an additional, unbounded bucket.
+     */
+    private static final long[] LATENCY_BUCKET_BOUNDS_US = {10, 100, 1_000, 10_000, 100_000};
+    private static final String[] LATENCY_BUCKET_NAMES = {"10us", "100us", "1ms", "10ms", "100ms", "inf"};
+
+    private final List<Recorder> recorders = new CopyOnWriteArrayList<>();
+    private final AtomicLong idleNs = new AtomicLong();
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLongArray latencyBuckets = new AtomicLongArray(LATENCY_BUCKET_NAMES.length);
+    private final AtomicLongArray processedPerLane = new AtomicLongArray(ReporterLane.values().length);
+    private final AtomicLongArray droppedPerLane = new AtomicLongArray(ReporterLane.values().length);
+
+    /**
+     * Creates a recorder for a single reporter thread
+     */
+    public Recorder newRecorder() {
+        Recorder recorder = new Recorder();
+        recorders.add(recorder);
+        return recorder;
+    }
+
+    public int getConsumers() {
+        return recorders.size();
+    }
+
+    /**
+     * @param nowNs the current {@link System#nanoTime()}
+     * @return the summed up time all reporter threads were waiting for events, including the current waits
+     */
+    public long getIdleNs(long nowNs) {
+        long idle = idleNs.get();
+        for (Recorder recorder : recorders) {
+            long idleSinceNs = recorder.idleSinceNs;
+            if (idleSinceNs != 0) {
+                idle += Math.max(0, nowNs - idleSinceNs);
+            }
+        }
+        return idle;
+    }
+
+    public long getEvents() {
+        return events.get();
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public static int getLatencyBuckets() {
+        return LATENCY_BUCKET_NAMES.length;
+    }
+
+    /**
+     * @return the inclusive upper bound of the latency bucket, for example {@code 1ms}, or {@code inf} for the last bucket
+     */
+    public static String getLatencyBucketName(int bucket) {
+        return LATENCY_BUCKET_NAMES[bucket];
+    }
+
+    /**
+     * @return the number of events whose publish-to-consume latency fell into the provided bucket
+     */
+    public long getLatencyCount(int bucket) {
+        return latencyBuckets.get(bucket);
+    }
+
+    /**
+     * @return the number of events of the provided lane the reporter threads have taken from their queues
+     */
+    public long getProcessed(ReporterLane lane) {
+        return processedPerLane.get(lane.ordinal());
+    }
+
+    /**
+     * @return the number of events of the provided lane that have not been added to the queue because it was full
+     */
+    public long getDropped(ReporterLane lane) {
+        return droppedPerLane.get(lane.ordinal());
+    }
+
+    /**
+     * To be called when an event could not be added to the queue
+     */
+    void onDropped(ReporterLane lane) {
+        droppedPerLane.incrementAndGet(lane.ordinal());
+    }
+
+    static int getLatencyBucket(long latencyNs) {
+        long latencyUs = TimeUnit.NANOSECONDS.toMicros(latencyNs);
+        for (int i = 0; i < LATENCY_BUCKET_BOUNDS_US.length; i++) {
+            if (latencyUs <= LATENCY_BUCKET_BOUNDS_US[i]) {
+                return i;
+            }
+        }
+        return LATENCY_BUCKET_BOUNDS_US.length;
+    }
+
+    /**
+     * Records the statistics of a single reporter thread.
+     * Not thread safe, must only be used by the reporter thread it has been created for.
+     */
+    public class Recorder {
+        private final long[] latencyCounts = new long[LATENCY_BUCKET_NAMES.length];
+        private final long[] laneCounts = new long[ReporterLane.values().length];
+        /**
+         * The {@link System#nanoTime()} since when the reporter thread has been waiting for events, or {@code 0} while it is busy
+         */
+        private volatile long idleSinceNs = System.nanoTime();
+        private int batchSize;
+
+        private Recorder() {
+        }
+
+        /**
+         * To be called before an event is processed
+         */
+        public void beforeEvent() {
+            if (batchSize == 0) {
+                long idleSinceNs = this.idleSinceNs;
+                this.idleSinceNs = 0;
+                idleNs.addAndGet(Math.max(0, System.nanoTime() - idleSinceNs));
+            }
+        }
+
+        /**
+         * To be called after an event has been processed
+         *
+         * @param publishedNs the {@link System#nanoTime()} when the event has been published, or {@code 0} if unknown
+         * @param lane        the lane of the event, or {@code null} for internal events, such as flush requests
+         * @param endOfBatch  whether the event was the last one that was available in the ring buffer
+         */
+        public void afterEvent(long publishedNs, @Nullable ReporterLane lane, boolean endOfBatch) {
+            long nowNs = System.nanoTime();
+            batchSize++;
+            if (publishedNs != 0) {
+                latencyCounts[getLatencyBucket(nowNs - publishedNs)]++;
+            }
+            if (lane != null) {
+                laneCounts[lane.ordinal()]++;
+            }
+            if (endOfBatch) {
+                events.addAndGet(batchSize);
+                batches.incrementAndGet();
+                for (int i = 0; i < latencyCounts.length; i++) {
+                    if (latencyCounts[i] != 0) {
+                        latencyBuckets.addAndGet(i, latencyCounts[i]);
+                        latencyCounts[i] = 0;
+                    }
+                }
+                for (int i = 0; i < laneCounts.length; i++) {
+                    if (laneCounts[i] != 0) {
+                        processedPerLane.addAndGet(i, laneCounts[i]);
+                        laneCounts[i] = 0;
+                    }
+                }
+                batchSize = 0;
+                idleSinceNs = nowNs;
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+/**
+ * The strategies the reporter thread can use to wait for new events in its ring buffer.
+ */
+public enum ReporterWaitStrategy {
+    /**
+     * Parks for exponentially increasing periods of up to 10ms,
+     * see {@link co.elastic.apm.agent.report.disruptor.ExponentionallyIncreasingSleepingWaitStrategy}
+     */
+    SLEEPING,
+    /**
+     * Spins, yields, parks or blocks based on the observed arrival rate of events,
+     * see {@link co.elastic.apm.agent.report.disruptor.AdaptiveWaitStrategy}
+     */
+    ADAPTIVE;
+
+    @Override
+    public String toString() {
+        return name().toLowerCase();
+    }
+}
@@ -30,6 +30,7 @@ import static co.elastic.apm.agent.report.ReportingEvent.ReportingEventType.END_
 import static co.elastic.apm.agent.report.ReportingEvent.ReportingEventType.ERROR;
 import static co.elastic.apm.agent.report.ReportingEvent.ReportingEventType.JSON_WRITER;
 import static co.elastic.apm.agent.report.ReportingEvent.ReportingEventType.MAKE_FLUSH_REQUEST;
+import static co.elastic.apm.agent.report.ReportingEvent.ReportingEventType.SERIALIZED;
 import static co.elastic.apm.agent.report.ReportingEvent.ReportingEventType.SHUTDOWN;
 import static co.elastic.apm.agent.report.ReportingEvent.ReportingEventType.SPAN;
 import static co.elastic.apm.agent.report.ReportingEvent.ReportingEventType.TRANSACTION;
@@ -47,7 +48,13 @@ public class ReportingEvent {
     @Nullable
     private JsonWriter jsonWriter;
     @Nullable
+    private SerializedEvent serializedEvent;
+    @Nullable
     private Thread unparkAfterProcessed;
+    @Nullable
+    private QueueByteBudget byteBudget;
+    private long queuedBytes;
+    private long publishedNs;
 
     public void resetState() {
         this.transaction = null;
@@ -55,7 +62,11 @@ public class ReportingEvent {
         this.error = null;
         this.span = null;
         this.jsonWriter = null;
+        this.serializedEvent = null;
         this.unparkAfterProcessed = null;
+        this.byteBudget = null;
+        this.queuedBytes = 0;
+        this.publishedNs = 0;
     }
 
     @Nullable
@@ -127,6 +138,16 @@ public class ReportingEvent {
         this.type = JSON_WRITER;
     }
 
+    @Nullable
+    public SerializedEvent getSerializedEvent() {
+        return serializedEvent;
+    }
+
+    public void setSerializedEvent(SerializedEvent serializedEvent) {
+        this.serializedEvent = serializedEvent;
+        this.type = SERIALIZED;
+    }
+
     public void end() {
         if (transaction != null) {
             transaction.decrementReferences();
@@ -134,12 +155,61 @@ public class ReportingEvent {
             span.decrementReferences();
         } else if (error != null) {
             error.recycle();
+        } else if (serializedEvent != null) {
+            serializedEvent.recycle();
+        }
+        if (byteBudget != null) {
+            byteBudget.release(queuedBytes);
         }
         if (unparkAfterProcessed != null) {
             LockSupport.unpark(unparkAfterProcessed);
         }
     }
 
+    /**
+     * Makes sure the estimated size of this event is released from the budget after it has been processed
+     */
+    void setQueuedBytes(QueueByteBudget byteBudget, long queuedBytes) {
+        this.byteBudget = byteBudget;
+        this.queuedBytes = queuedBytes;
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} when this event has been published to the ring buffer,
+     * or {@code 0} for events that are not sent to the APM Server, such as flush requests
+     */
+    public long getPublishedNs() {
+        return publishedNs;
+    }
+
+    void setPublishedNs(long publishedNs) {
+        this.publishedNs = publishedNs;
+    }
+
+    /**
+     * @return the lane of the event, or {@code null} for internal events, such as flush requests
+     */
+    @Nullable
+    public ReporterLane getLane() {
+        if (type == null) {
+            return null;
+        }
+        switch (type) {
+            case TRANSACTION:
+                return ReporterLane.TRANSACTION;
+            case SPAN:
+                return ReporterLane.SPAN;
+            case ERROR:
+                return ReporterLane.ERROR;
+            case JSON_WRITER:
+                return ReporterLane.METRICSET;
+            case SERIALIZED:
+                return serializedEvent != null ? serializedEvent.getLane() : null;
+            default:
+                return null;
+        }
+    }
+
     public void unparkAfterProcessed(@Nullable Thread thread) {
         unparkAfterProcessed = thread;
     }
@@ -149,6 +219,6 @@ public class ReportingEvent {
     }
 
     enum ReportingEventType {
-        END_REQUEST, MAKE_FLUSH_REQUEST, TRANSACTION, SPAN, ERROR, SHUTDOWN, JSON_WRITER, WAKEUP
+        END_REQUEST, MAKE_FLUSH_REQUEST, TRANSACTION, SPAN, ERROR, SHUTDOWN, JSON_WRITER, SERIALIZED, WAKEUP
     }
 }
@@ -33,4 +33,10 @@ public interface ReportingEventHandler extends EventHandler<ReportingEvent> {
     void close();
 
     boolean isHealthy();
+
+    /**
+     * @return whether the handler processes events, even if it is not {@linkplain #isHealthy() healthy},
+     * for example because it spills them to disk instead of blocking while backing off from the APM Server
+     */
+    boolean isResponsive();
 }
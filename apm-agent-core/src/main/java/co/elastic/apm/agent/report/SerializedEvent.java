@@ -0,0 +1,89 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.objectpool.ObjectPool;
+import co.elastic.apm.agent.objectpool.Recyclable;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import com.dslplatform.json.JsonWriter;
+
+/**
+ * A transaction, span or error which has already been serialized to ND-JSON on the thread that has ended it,
+ * or a chunk of metric sets that have been serialized by the {@link co.elastic.apm.agent.report.serialize.MetricRegistryReporter}.
+ * <p>
+ * Instances are pooled by {@link ProducerSideSerializer} or the {@link co.elastic.apm.agent.report.serialize.MetricRegistryReporter}
+ * and have to be {@linkplain #recycle() recycled} after the bytes have been written to the intake API request.
+ * </p>
+ */
+public class SerializedEvent implements Recyclable {
+
+    /**
+     * Instances whose buffer has grown beyond this size are not returned to the pool,
+     * so that one big event does not increase the retained heap for good.
+     */
+    static final int MAX_POOLED_BUFFER_SIZE = DslJsonSerializer.BUFFER_SIZE * 4;
+
+    private final JsonWriter jsonWriter;
+    private final ObjectPool<SerializedEvent> pool;
+    private ReporterLane lane;
+
+    /**
+     * Creates an event whose serialized bytes are written to the {@linkplain #getJsonWriter() JSON writer} directly.
+     *
+     * @param jsonWriter the writer to hold the serialized events
+     * @param pool       the pool to return this instance to when it is {@linkplain #recycle() recycled}
+     * @param lane       the lane of the queue this event is reported in
+     */
+    public SerializedEvent(JsonWriter jsonWriter, ObjectPool<SerializedEvent> pool, ReporterLane lane) {
+        this.jsonWriter = jsonWriter;
+        this.pool = pool;
+        this.lane = lane;
+    }
+
+    public JsonWriter getJsonWriter() {
+        return jsonWriter;
+    }
+
+    public byte[] getBytes() {
+        return jsonWriter.getByteBuffer();
+    }
+
+    public int getSize() {
+        return jsonWriter.size();
+    }
+
+    public ReporterLane getLane() {
+        return lane;
+    }
+
+    void setLane(ReporterLane lane) {
+        this.lane = lane;
+    }
+
+    @Override
+    public void resetState() {
+        jsonWriter.reset();
+    }
+
+    public void recycle() {
+        if (jsonWriter.getByteBuffer().length <= MAX_POOLED_BUFFER_SIZE) {
+            pool.recycle(this);
+        }
+    }
+}
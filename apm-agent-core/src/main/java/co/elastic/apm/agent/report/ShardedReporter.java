@@ -0,0 +1,158 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.impl.error.ErrorCapture;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import com.dslplatform.json.JsonWriter;
+
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Distributes the events to multiple {@link Reporter}s, each with its own ring buffer, reporter thread, serializer,
+ * compression stage and connection to the APM Server.
+ * <p>
+ * The reporter an event is added to is determined by the id of the thread reporting the event.
+ * That way, the producing threads are spread across the shards and the reporting throughput scales with the number of shards.
+ * There are no ordering guarantees for events reported from different threads, which is fine as the APM Server does not require events to
+ * arrive in any particular order.
+ * </p>
+ */
+public class ShardedReporter implements Reporter {
+
+    private final Reporter[] shards;
+
+    public ShardedReporter(List<? extends Reporter> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is required");
+        }
+        this.shards = shards.toArray(new Reporter[0]);
+    }
+
+    private Reporter getShard() {
+        return shards[(int) (Thread.currentThread().getId() % shards.length)];
+    }
+
+    @Override
+    public void start() {
+        for (Reporter shard : shards) {
+            shard.start();
+        }
+    }
+
+    @Override
+    public void report(Transaction transaction) {
+        getShard().report(transaction);
+    }
+
+    @Override
+    public void report(Span span) {
+        getShard().report(span);
+    }
+
+    @Override
+    public void report(ErrorCapture error) {
+        getShard().report(error);
+    }
+
+    @Override
+    public void report(JsonWriter jsonWriter) {
+        getShard().report(jsonWriter);
+    }
+
+    @Override
+    public void report(SerializedEvent serializedEvent) {
+        getShard().report(serializedEvent);
+    }
+
+    @Override
+    public long getDropped() {
+        long dropped = 0;
+        for (Reporter shard : shards) {
+            dropped += shard.getDropped();
+        }
+        return dropped;
+    }
+
+    @Override
+    public long getReported() {
+        long reported = 0;
+        for (Reporter shard : shards) {
+            reported += shard.getReported();
+        }
+        return reported;
+    }
+
+    @Override
+    public long getQueuedBytes() {
+        long queuedBytes = 0;
+        for (Reporter shard : shards) {
+            long shardQueuedBytes = shard.getQueuedBytes();
+            if (shardQueuedBytes < 0) {
+                return -1;
+            }
+            queuedBytes += shardQueuedBytes;
+        }
+        return queuedBytes;
+    }
+
+    /**
+     * {@link ReporterFactory} creates the shards with a shared {@link ReporterStatistics} instance,
+     * which covers the reporter threads of all shards.
+     */
+    @Nullable
+    @Override
+    public ReporterStatistics getStatistics() {
+        return shards[0].getStatistics();
+    }
+
+    /**
+     * Flushes all shards, one after the other.
+     * <p>
+     * If {@code followupWithFlushRequest} is {@code true}, only the last shard makes a flush request to the APM Server.
+     * As the shards are flushed sequentially, the requests of all other shards have already ended at that point.
+     * </p>
+     */
+    @Override
+    public boolean flush(long timeout, TimeUnit unit, boolean followupWithFlushRequest) {
+        long thresholdNs = timeout < 0 ? Long.MAX_VALUE : System.nanoTime() + unit.toNanos(timeout);
+        boolean flushed = true;
+        for (int i = 0; i < shards.length; i++) {
+            long remainingNs = timeout < 0 ? -1 : Math.max(0, thresholdNs - System.nanoTime());
+            boolean lastShard = i == shards.length - 1;
+            flushed &= shards[i].flush(remainingNs, TimeUnit.NANOSECONDS, followupWithFlushRequest && lastShard);
+        }
+        return flushed;
+    }
+
+    @Override
+    public boolean flush() {
+        return flush(-1, TimeUnit.NANOSECONDS, false);
+    }
+
+    @Override
+    public void close() {
+        for (Reporter shard : shards) {
+            shard.close();
+        }
+    }
+}
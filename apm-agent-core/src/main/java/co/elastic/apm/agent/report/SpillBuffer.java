@@ -0,0 +1,455 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.report.serialize.PayloadSerializer;
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A bounded on-disk buffer for intake events, used while the APM Server is unavailable.
+ * <p>
+ * Events are serialized as ND-JSON into a {@linkplain #getOutputStream() staging buffer}.
+ * Once the staging buffer exceeds {@link #FRAME_SIZE}, its content is deflated and appended to the current segment file as a frame.
+ * Frames only ever contain complete events.
+ * </p>
+ * <pre>
+ * frame := compressedLength(int) uncompressedLength(int) events(int) crc32(int) deflated-nd-json(byte[compressedLength])
+ * </pre>
+ * <p>
+ * Once the APM Server is healthy again, the frames are {@linkplain #replay(PayloadSerializer, long) replayed},
+ * oldest first, at a limited rate so that the server is not overwhelmed.
+ * Frames which fail the CRC check are skipped.
+ * Replayed frames are only {@linkplain #onReplayAccepted() released} once the APM Server has accepted the request they've been part of,
+ * otherwise they are {@linkplain #onReplayFailed() replayed again} with the next request.
+ * Segment files are deleted as soon as all of their frames have been released.
+ * </p>
+ * <p>
+ * The heap overhead is constant and independent of the amount of spilled data.
+ * This class is not thread-safe and is only meant to be used by the reporter thread.
+ * </p>
+ */
+public class SpillBuffer implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(SpillBuffer.class);
+
+    static final int FRAME_SIZE = 64 * 1024;
+    static final int FRAME_HEADER_SIZE = 16;
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    private final File directory;
+    private final long maxSize;
+    private final long segmentSize;
+    private final long replayBytesPerSecond;
+    private final StagingOutputStream staging = new StagingOutputStream();
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+    private final CRC32 crc32 = new CRC32();
+    private final ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private byte[] compressed = new byte[FRAME_SIZE];
+    private byte[] uncompressed = new byte[FRAME_SIZE];
+    private int stagedEvents;
+    private long size;
+    private long spilledEvents;
+    private volatile long droppedEvents;
+    private long nextSegmentId;
+    private double replayTokens;
+    private long lastReplayNanos;
+
+    /**
+     * @param directory            the directory the segment files are stored in, which is created if it does not exist yet
+     * @param maxSize              the maximum size of all segment files
+     * @param replayBytesPerSecond the maximum number of uncompressed bytes replayed per second
+     */
+    public SpillBuffer(File directory, long maxSize, long replayBytesPerSecond) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.segmentSize = Math.max(FRAME_SIZE, maxSize / 8);
+        this.replayBytesPerSecond = replayBytesPerSecond;
+    }
+
+    /**
+     * @return the stream events are serialized into while the APM Server is unavailable
+     */
+    public OutputStream getOutputStream() {
+        return staging;
+    }
+
+    /**
+     * Has to be called after an event has been completely written to the {@linkplain #getOutputStream() output stream}.
+     *
+     * @param countAsEvent whether this is an actual event (like a transaction) or something that is not counted, like a metric set
+     */
+    public void onEventWritten(boolean countAsEvent) {
+        if (countAsEvent) {
+            stagedEvents++;
+        }
+        if (staging.size() >= FRAME_SIZE) {
+            flushFrame();
+        }
+    }
+
+    /**
+     * Writes the staged events to disk
+     */
+    public void flushFrame() {
+        if (staging.size() == 0) {
+            return;
+        }
+        try {
+            int compressedLength = deflate(staging.getBuffer(), staging.size());
+            int frameSize = FRAME_HEADER_SIZE + compressedLength;
+            if (size + frameSize > maxSize) {
+                logger.debug("Dropping {} events as the spill buffer is full", stagedEvents);
+                droppedEvents += stagedEvents;
+                return;
+            }
+            Segment segment = getWritableSegment(frameSize);
+            crc32.reset();
+            crc32.update(compressed, 0, compressedLength);
+            ((Buffer) header).clear();
+            header.putInt(compressedLength).putInt(staging.size()).putInt(stagedEvents).putInt((int) crc32.getValue());
+            ((Buffer) header).flip();
+            segment.write(header, ByteBuffer.wrap(compressed, 0, compressedLength));
+            segment.events += stagedEvents;
+            size += frameSize;
+            spilledEvents += stagedEvents;
+        } catch (IOException e) {
+            logger.warn("Failed to write to spill buffer in {}: {}", directory, e.getMessage());
+            droppedEvents += stagedEvents;
+        } finally {
+            staging.reset();
+            stagedEvents = 0;
+        }
+    }
+
+    private int deflate(byte[] input, int length) {
+        deflater.reset();
+        deflater.setInput(input, 0, length);
+        deflater.finish();
+        int compressedLength = 0;
+        while (!deflater.finished()) {
+            if (compressedLength == compressed.length) {
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+            compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+        }
+        return compressedLength;
+    }
+
+    private Segment getWritableSegment(int frameSize) throws IOException {
+        Segment segment = segments.peekLast();
+        if (segment == null || segment.sealed || segment.size + frameSize > segmentSize) {
+            if (segment != null) {
+                segment.seal();
+            }
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create directory " + directory);
+            }
+            segment = new Segment(new File(directory, String.format("%s%019d", SEGMENT_PREFIX, nextSegmentId++)));
+            segments.add(segment);
+        }
+        return segment;
+    }
+
+    /**
+     * Replays the oldest frame which has not been replayed yet if the rate limit allows it.
+     * <p>
+     * The frame is kept until {@link #onReplayAccepted()} or {@link #onReplayFailed()} is called.
+     * </p>
+     *
+     * @param serializer the serializer of the current intake API request
+     * @param nowNanos   the current {@link System#nanoTime()}
+     * @return the number of replayed events, or {@code -1} if no frame has been replayed
+     */
+    public int replay(PayloadSerializer serializer, long nowNanos) {
+        if (isEmpty() || !acquireReplayTokens(nowNanos)) {
+            return -1;
+        }
+        // makes sure frames staged before the server became healthy again are replayed, too
+        flushFrame();
+        Segment segment = getUnreplayedSegment();
+        if (segment == null) {
+            return -1;
+        }
+        try {
+            segment.seal();
+            int events = -1;
+            while (events < 0 && segment.readPosition < segment.size) {
+                events = readFrame(segment, serializer);
+            }
+            return events;
+        } catch (IOException e) {
+            logger.warn("Failed to read from spill buffer in {}: {}", directory, e.getMessage());
+            droppedEvents += segment.events - segment.readEvents;
+            segments.remove(segment);
+            size -= segment.size;
+            segment.delete();
+            return -1;
+        }
+    }
+
+    @Nullable
+    private Segment getUnreplayedSegment() {
+        for (Segment segment : segments) {
+            if (segment.readPosition < segment.size) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Has to be called after the APM Server has accepted a request which contained {@linkplain #replay(PayloadSerializer, long) replayed} frames.
+     * Deletes the segment files whose frames have all been replayed.
+     */
+    public void onReplayAccepted() {
+        for (Segment segment = segments.peekFirst(); segment != null; segment = segments.peekFirst()) {
+            if (segment.readPosition < segment.size) {
+                segment.acceptedPosition = segment.readPosition;
+                segment.acceptedEvents = segment.readEvents;
+                return;
+            }
+            segments.removeFirst();
+            size -= segment.size;
+            segment.delete();
+        }
+    }
+
+    /**
+     * Has to be called after a request which contained {@linkplain #replay(PayloadSerializer, long) replayed} frames has failed,
+     * so that these frames are replayed again with the next request.
+     */
+    public void onReplayFailed() {
+        for (Segment segment : segments) {
+            segment.readPosition = segment.acceptedPosition;
+            segment.readEvents = segment.acceptedEvents;
+        }
+    }
+
+    private boolean acquireReplayTokens(long nowNanos) {
+        if (lastReplayNanos != 0) {
+            replayTokens = Math.min(replayBytesPerSecond, replayTokens + (nowNanos - lastReplayNanos) * replayBytesPerSecond / 1e9);
+        } else {
+            replayTokens = replayBytesPerSecond;
+        }
+        lastReplayNanos = nowNanos;
+        return replayTokens > 0;
+    }
+
+    /**
+     * @return the number of events in the frame, or {@code -1} if the frame is corrupted
+     */
+    private int readFrame(Segment segment, PayloadSerializer serializer) throws IOException {
+        ((Buffer) header).clear();
+        segment.read(header);
+        ((Buffer) header).flip();
+        int compressedLength = header.getInt();
+        int uncompressedLength = header.getInt();
+        int events = header.getInt();
+        int crc = header.getInt();
+        long frameEnd = segment.readPosition + compressedLength;
+        if (compressedLength < 0 || uncompressedLength < 0 || segment.readPosition + compressedLength > segment.size) {
+            throw new IOException("Invalid frame header in " + segment.file);
+        }
+        if (compressed.length < compressedLength) {
+            compressed = new byte[compressedLength];
+        }
+        segment.read(ByteBuffer.wrap(compressed, 0, compressedLength));
+        crc32.reset();
+        crc32.update(compressed, 0, compressedLength);
+        segment.readEvents += events;
+        if ((int) crc32.getValue() != crc) {
+            // corrupted frames are read again after a failed replay but should only be counted once
+            if (frameEnd > segment.droppedPosition) {
+                logger.warn("Skipping corrupted frame with {} events in {}", events, segment.file);
+                droppedEvents += events;
+                segment.droppedPosition = frameEnd;
+            }
+            return -1;
+        }
+        if (uncompressed.length < uncompressedLength) {
+            uncompressed = new byte[uncompressedLength];
+        }
+        try {
+            inflater.reset();
+            inflater.setInput(compressed, 0, compressedLength);
+            int length = 0;
+            while (length < uncompressedLength && !inflater.finished()) {
+                length += inflater.inflate(uncompressed, length, uncompressedLength - length);
+            }
+            serializer.writeBytes(uncompressed, length);
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+        replayTokens -= uncompressedLength;
+        return events;
+    }
+
+    /**
+     * @return whether there are no spilled events, including replayed events which have not been accepted by the APM Server yet
+     */
+    public boolean isEmpty() {
+        return segments.isEmpty() && staging.size() == 0;
+    }
+
+    /**
+     * @return the size of all segment files
+     */
+    public long getSize() {
+        return size;
+    }
+
+    public long getSpilledEvents() {
+        return spilledEvents;
+    }
+
+    /**
+     * @return the number of events which have been dropped because the buffer was full or because they were corrupted or unreadable
+     */
+    public long getDroppedEvents() {
+        return droppedEvents;
+    }
+
+    /**
+     * Deletes all segment files
+     */
+    @Override
+    public void close() {
+        for (Segment segment : segments) {
+            segment.delete();
+        }
+        segments.clear();
+        size = 0;
+        if (directory.isDirectory() && !directory.delete()) {
+            logger.debug("Could not delete spill buffer directory {}", directory);
+        }
+        staging.reset();
+        deflater.end();
+        inflater.end();
+    }
+
+    private static class Segment {
+        private final File file;
+        @Nullable
+        private RandomAccessFile randomAccessFile;
+        private long size;
+        /**
+         * The number of events in all frames
+         */
+        private long events;
+        private long readPosition;
+        /**
+         * The number of events in the frames before the {@link #readPosition}
+         */
+        private long readEvents;
+        /**
+         * The {@link #readPosition} up to which the APM Server has accepted the replayed frames
+         */
+        private long acceptedPosition;
+        private long acceptedEvents;
+        /**
+         * The end of the last corrupted frame that has been counted as dropped
+         */
+        private long droppedPosition;
+        private boolean sealed;
+
+        private Segment(File file) throws IOException {
+            this.file = file;
+            this.randomAccessFile = new RandomAccessFile(file, "rw");
+            this.randomAccessFile.setLength(0);
+        }
+
+        private FileChannel getChannel() throws IOException {
+            if (randomAccessFile == null) {
+                throw new IOException("Segment has been deleted: " + file);
+            }
+            return randomAccessFile.getChannel();
+        }
+
+        private void write(ByteBuffer header, ByteBuffer payload) throws IOException {
+            FileChannel channel = getChannel();
+            long position = size;
+            while (header.hasRemaining()) {
+                position += channel.write(header, position);
+            }
+            while (payload.hasRemaining()) {
+                position += channel.write(payload, position);
+            }
+            size = position;
+        }
+
+        private void read(ByteBuffer buffer) throws IOException {
+            FileChannel channel = getChannel();
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, readPosition);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                readPosition += read;
+            }
+        }
+
+        private void seal() {
+            sealed = true;
+        }
+
+        private void delete() {
+            if (randomAccessFile != null) {
+                try {
+                    randomAccessFile.close();
+                } catch (IOException ignore) {
+                }
+                randomAccessFile = null;
+            }
+            if (!file.delete()) {
+                logger.debug("Could not delete spill buffer segment {}", file);
+            }
+        }
+    }
+
+    private static class StagingOutputStream extends ByteArrayOutputStream {
+
+        private StagingOutputStream() {
+            super(FRAME_SIZE * 2);
+        }
+
+        private byte[] getBuffer() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.disruptor;
+
+import com.lmax.disruptor.AlertException;
+import com.lmax.disruptor.Sequence;
+import com.lmax.disruptor.SequenceBarrier;
+import com.lmax.disruptor.WaitStrategy;
+import com.lmax.disruptor.util.ThreadHints;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A wait strategy that switches between spinning, yielding, parking and blocking,
+ * based on how long the consumer had to wait for new events recently.
+ * <p>
+ * The expected idle time is an exponentially weighted moving average of the previous waits.
+ * It starts at {@link #YIELD_NS}, and the consumer always spins and yields for at least that long before blocking,
+ * unless the service is quiet, so that bursts are picked up without a context switch from the very first event.
+ * If events arrive in quick succession, the consumer spins and yields so that it picks them up without a context switch.
+ * If the expected idle time is moderate, the consumer parks for exponentially increasing periods,
+ * similar to {@link ExponentionallyIncreasingSleepingWaitStrategy}.
+ * Once the consumer has waited for longer than the expected idle time,
+ * or if the service is so quiet that the expected idle time exceeds {@link #BLOCKING_THRESHOLD_NS},
+ * it blocks until a producer signals that a new event has been published.
+ * </p>
+ * <p>
+ * Contrary to a sleeping strategy, quiet services don't burn CPU cycles for periodic wakeups
+ * and flushes don't have to wait until the consumer wakes up.
+ * Producers only have to signal the consumer if it is actually blocked,
+ * which is cheap to check, as in {@link com.lmax.disruptor.LiteBlockingWaitStrategy}.
+ * </p>
+ * <p>
+ * This strategy must only be used by a single consumer, as the moving average is not thread safe.
+ * </p>
+ */
+public final class AdaptiveWaitStrategy implements WaitStrategy {
+
+    /**
+     * The consumer spins while it has been waiting for less than this
+     */
+    static final long SPIN_NS = TimeUnit.MICROSECONDS.toNanos(10);
+    /**
+     * The consumer yields while it has been waiting for less than this
+     */
+    static final long YIELD_NS = TimeUnit.MICROSECONDS.toNanos(100);
+    /**
+     * If the expected idle time is larger than this, the consumer blocks right away
+     */
+    static final long BLOCKING_THRESHOLD_NS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long MIN_PARK_NS = TimeUnit.MICROSECONDS.toNanos(10);
+    /**
+     * Guards against lost signals, even though they should not happen
+     */
+    private static final long MAX_BLOCK_NS = TimeUnit.MILLISECONDS.toNanos(100);
+    /**
+     * The weight of the most recent wait for the moving average, as the power of two of the divisor (1/8)
+     */
+    private static final int SMOOTHING_SHIFT = 3;
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition processorNotifyCondition = lock.newCondition();
+    private final AtomicBoolean signalNeeded = new AtomicBoolean(false);
+    private long expectedIdleNs = YIELD_NS;
+
+    @Override
+    public long waitFor(long sequence, Sequence cursor, Sequence dependentSequence, SequenceBarrier barrier) throws AlertException, InterruptedException {
+        long availableSequence = dependentSequence.get();
+        if (availableSequence >= sequence) {
+            return availableSequence;
+        }
+        final long start = System.nanoTime();
+        final long activeWaitNs = getActiveWaitNs();
+        long parkNs = MIN_PARK_NS;
+        long waitedNs = 0;
+        while ((availableSequence = dependentSequence.get()) < sequence) {
+            barrier.checkAlert();
+            if (waitedNs >= activeWaitNs) {
+                availableSequence = block(sequence, cursor, dependentSequence, barrier);
+                break;
+            } else if (waitedNs < SPIN_NS) {
+                ThreadHints.onSpinWait();
+            } else if (waitedNs < YIELD_NS) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(Math.min(parkNs, activeWaitNs - waitedNs));
+                parkNs *= 2;
+            }
+            waitedNs = System.nanoTime() - start;
+        }
+        onIdle(System.nanoTime() - start);
+        return availableSequence;
+    }
+
+    private long block(long sequence, Sequence cursor, Sequence dependentSequence, SequenceBarrier barrier) throws AlertException, InterruptedException {
+        if (cursor.get() < sequence) {
+            lock.lock();
+            try {
+                do {
+                    signalNeeded.getAndSet(true);
+                    if (cursor.get() >= sequence) {
+                        break;
+                    }
+                    barrier.checkAlert();
+                    processorNotifyCondition.awaitNanos(MAX_BLOCK_NS);
+                } while (cursor.get() < sequence);
+            } finally {
+                lock.unlock();
+            }
+        }
+        long availableSequence;
+        while ((availableSequence = dependentSequence.get()) < sequence) {
+            barrier.checkAlert();
+            ThreadHints.onSpinWait();
+        }
+        return availableSequence;
+    }
+
+    private void onIdle(long idleNs) {
+        // capping the sample lets the average recover quickly after long quiet periods
+        long sample = Math.min(idleNs, 2 * BLOCKING_THRESHOLD_NS);
+        expectedIdleNs += (sample - expectedIdleNs) >> SMOOTHING_SHIFT;
+    }
+
+    /**
+     * Doesn't wait actively for longer than twice the expected idle time, but at least until the consumer would start to park
+     */
+    long getActiveWaitNs() {
+        return expectedIdleNs > BLOCKING_THRESHOLD_NS ? 0 : Math.max(YIELD_NS, 2 * expectedIdleNs);
+    }
+
+    long getExpectedIdleNs() {
+        return expectedIdleNs;
+    }
+
+    @Override
+    public void signalAllWhenBlocking() {
+        if (signalNeeded.getAndSet(false)) {
+            lock.lock();
+            try {
+                processorNotifyCondition.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
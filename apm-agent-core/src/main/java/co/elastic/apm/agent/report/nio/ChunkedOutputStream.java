@@ -0,0 +1,166 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.nio;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes a request body with chunked transfer encoding.
+ * <p>
+ * The bytes are copied once into the direct {@linkplain NioChannel#getRequestBuffer() request buffer} of the connection,
+ * which leaves room for the chunk size in front of the data and for the chunk delimiter behind it,
+ * so that a full chunk is framed in place and handed to the channel with a single write.
+ * The request head is written together with the first chunk.
+ * </p>
+ */
+class ChunkedOutputStream extends OutputStream {
+
+    static final int CHUNK_SIZE = 16 * 1024;
+    /**
+     * Up to four hex digits for the chunk size, followed by CRLF
+     */
+    private static final int CHUNK_HEADER_SIZE = 6;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+    static final int BUFFER_CAPACITY = CHUNK_HEADER_SIZE + CHUNK_SIZE + CRLF.length + LAST_CHUNK.length;
+    private static final byte[] HEX_DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+
+    private final NioChannel channel;
+    private final ByteBuffer buffer;
+    private final ByteBuffer[] buffers;
+    private final int timeoutMillis;
+    @Nullable
+    private ByteBuffer head;
+    private boolean closed;
+    private boolean failed;
+
+    ChunkedOutputStream(NioChannel channel, ByteBuffer head, int timeoutMillis) {
+        this.channel = channel;
+        this.head = head;
+        this.timeoutMillis = timeoutMillis;
+        this.buffer = channel.getRequestBuffer();
+        this.buffers = new ByteBuffer[]{head, buffer};
+        ((Buffer) buffer).clear();
+        ((Buffer) buffer).position(CHUNK_HEADER_SIZE);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        buffer.put((byte) b);
+        if (chunkLength() == CHUNK_SIZE) {
+            writeChunk(false);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            int length = Math.min(len, CHUNK_SIZE - chunkLength());
+            buffer.put(b, off, length);
+            off += length;
+            len -= length;
+            if (chunkLength() == CHUNK_SIZE) {
+                writeChunk(false);
+            }
+        }
+    }
+
+    private int chunkLength() {
+        return buffer.position() - CHUNK_HEADER_SIZE;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        if (chunkLength() > 0) {
+            writeChunk(false);
+        }
+    }
+
+    /**
+     * Writes the last chunk, which completes the request
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        ensureOpen();
+        writeChunk(true);
+        closed = true;
+    }
+
+    private void writeChunk(boolean last) throws IOException {
+        int chunkLength = chunkLength();
+        int end = buffer.position();
+        int start = CHUNK_HEADER_SIZE;
+        if (chunkLength > 0) {
+            buffer.put(CRLF);
+            end = buffer.position();
+            start -= CRLF.length;
+            buffer.put(start, CRLF[0]).put(start + 1, CRLF[1]);
+            for (int remaining = chunkLength; remaining > 0; remaining >>>= 4) {
+                buffer.put(--start, HEX_DIGITS[remaining & 0xf]);
+            }
+        }
+        if (last) {
+            ((Buffer) buffer).position(end);
+            buffer.put(LAST_CHUNK);
+            end = buffer.position();
+        }
+        ((Buffer) buffer).limit(end).position(start);
+        try {
+            if (head != null) {
+                channel.write(buffers, timeoutMillis);
+                head = null;
+            } else {
+                channel.write(buffer, timeoutMillis);
+            }
+        } catch (IOException e) {
+            failed = true;
+            // the state of the connection is unknown, so it can't be reused
+            channel.close();
+            throw e;
+        }
+        ((Buffer) buffer).clear();
+        ((Buffer) buffer).position(CHUNK_HEADER_SIZE);
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream is closed");
+        }
+        if (failed) {
+            throw new IOException("A previous write has failed");
+        }
+    }
+
+    /**
+     * @return {@code true} if the request has been completely written to the channel
+     */
+    boolean isComplete() {
+        return closed && !failed;
+    }
+}
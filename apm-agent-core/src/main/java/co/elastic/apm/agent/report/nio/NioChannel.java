@@ -0,0 +1,467 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.nio;
+
+import javax.annotation.Nullable;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A non-blocking {@link SocketChannel}, optionally secured by an {@link SSLEngine},
+ * which offers blocking reads and writes with a timeout.
+ * <p>
+ * All network buffers are direct buffers which are allocated once per connection,
+ * so that writing to and reading from a connection does not allocate.
+ * </p>
+ * <p>
+ * Instances are not thread-safe and are used by one thread at a time.
+ * </p>
+ */
+class NioChannel implements Closeable {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final ByteBuffer[] EMPTY_BUFFERS = {EMPTY};
+    private static final int RESPONSE_BUFFER_SIZE = 8 * 1024;
+
+    private final String host;
+    private final int port;
+    private final boolean secure;
+    private final SocketChannel channel;
+    private final Selector selector;
+    private final SelectionKey selectionKey;
+    @Nullable
+    private final SSLEngine engine;
+    /**
+     * Encrypted data to be written to the channel (read mode)
+     */
+    @Nullable
+    private final ByteBuffer netOut;
+    /**
+     * Encrypted data read from the channel (read mode)
+     */
+    @Nullable
+    private final ByteBuffer netIn;
+    /**
+     * Decrypted data which has not been consumed yet (read mode)
+     */
+    @Nullable
+    private final ByteBuffer appIn;
+    /**
+     * Holds the chunk of the request body that is currently being written, see {@link ChunkedOutputStream}
+     */
+    private final ByteBuffer requestBuffer = ByteBuffer.allocateDirect(ChunkedOutputStream.BUFFER_CAPACITY);
+    /**
+     * Holds the response head and the start of the response body (read mode)
+     */
+    private final ByteBuffer responseBuffer = ByteBuffer.allocate(RESPONSE_BUFFER_SIZE);
+    private final ByteBuffer[] singleBuffer = {EMPTY};
+    /**
+     * Receives the byte that indicates that an idle plain text connection has been closed, see {@link #isStale()}
+     */
+    private final ByteBuffer staleCheckBuffer = ByteBuffer.allocate(1);
+    private long releasedNanos;
+    private boolean closed;
+
+    private NioChannel(String host, int port, SocketChannel channel, Selector selector, @Nullable SSLEngine engine) throws IOException {
+        this.host = host;
+        this.port = port;
+        this.channel = channel;
+        this.selector = selector;
+        this.selectionKey = channel.register(selector, 0);
+        this.engine = engine;
+        this.secure = engine != null;
+        if (engine != null) {
+            netOut = ByteBuffer.allocateDirect(engine.getSession().getPacketBufferSize());
+            ((Buffer) netOut).flip();
+            netIn = ByteBuffer.allocateDirect(engine.getSession().getPacketBufferSize());
+            ((Buffer) netIn).flip();
+            appIn = ByteBuffer.allocateDirect(engine.getSession().getApplicationBufferSize());
+            ((Buffer) appIn).flip();
+        } else {
+            netOut = null;
+            netIn = null;
+            appIn = null;
+        }
+    }
+
+    /**
+     * Opens a connection and performs the TLS handshake if an {@link SSLContext} is provided.
+     */
+    static NioChannel open(String host, int port, @Nullable SSLContext sslContext, boolean verifyHostname, int timeoutMillis) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        Selector selector = null;
+        NioChannel nioChannel = null;
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            selector = Selector.open();
+            SSLEngine engine = null;
+            if (sslContext != null) {
+                engine = sslContext.createSSLEngine(host, port);
+                engine.setUseClientMode(true);
+                if (verifyHostname) {
+                    SSLParameters sslParameters = engine.getSSLParameters();
+                    sslParameters.setEndpointIdentificationAlgorithm("HTTPS");
+                    engine.setSSLParameters(sslParameters);
+                }
+            }
+            nioChannel = new NioChannel(host, port, channel, selector, engine);
+            if (!channel.connect(new InetSocketAddress(host, port))) {
+                nioChannel.await(SelectionKey.OP_CONNECT, timeoutMillis, "connect");
+                channel.finishConnect();
+            }
+            if (engine != null) {
+                nioChannel.handshake(timeoutMillis);
+            }
+            return nioChannel;
+        } catch (IOException | RuntimeException e) {
+            if (nioChannel != null) {
+                nioChannel.close();
+            } else {
+                channel.close();
+                if (selector != null) {
+                    selector.close();
+                }
+            }
+            throw e;
+        }
+    }
+
+    private void handshake(int timeoutMillis) throws IOException {
+        assert engine != null && netIn != null && appIn != null;
+        engine.beginHandshake();
+        while (true) {
+            switch (engine.getHandshakeStatus()) {
+                case NEED_WRAP:
+                    wrap(EMPTY_BUFFERS, timeoutMillis);
+                    break;
+                case NEED_UNWRAP:
+                    SSLEngineResult.Status status = netIn.hasRemaining() ? unwrap() : SSLEngineResult.Status.BUFFER_UNDERFLOW;
+                    if (status == SSLEngineResult.Status.CLOSED) {
+                        throw new SSLException("Connection closed during TLS handshake with " + this);
+                    }
+                    if (status == SSLEngineResult.Status.BUFFER_UNDERFLOW && readFromChannel(timeoutMillis) < 0) {
+                        throw new EOFException("Connection closed during TLS handshake with " + this);
+                    }
+                    break;
+                case NEED_TASK:
+                    runDelegatedTasks();
+                    break;
+                default:
+                    // FINISHED or NOT_HANDSHAKING
+                    return;
+            }
+        }
+    }
+
+    private void runDelegatedTasks() {
+        assert engine != null;
+        for (Runnable task = engine.getDelegatedTask(); task != null; task = engine.getDelegatedTask()) {
+            task.run();
+        }
+    }
+
+    /**
+     * Writes all remaining bytes of the provided buffers, in order, using gathering writes.
+     */
+    void write(ByteBuffer[] buffers, int timeoutMillis) throws IOException {
+        if (engine == null) {
+            while (hasRemaining(buffers)) {
+                if (channel.write(buffers) == 0) {
+                    await(SelectionKey.OP_WRITE, timeoutMillis, "write");
+                }
+            }
+        } else {
+            while (hasRemaining(buffers)) {
+                wrap(buffers, timeoutMillis);
+            }
+        }
+    }
+
+    /**
+     * Writes all remaining bytes of the provided buffer.
+     */
+    void write(ByteBuffer buffer, int timeoutMillis) throws IOException {
+        if (engine == null) {
+            writeToChannel(buffer, timeoutMillis);
+        } else {
+            singleBuffer[0] = buffer;
+            try {
+                while (buffer.hasRemaining()) {
+                    wrap(singleBuffer, timeoutMillis);
+                }
+            } finally {
+                singleBuffer[0] = EMPTY;
+            }
+        }
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void wrap(ByteBuffer[] srcs, int timeoutMillis) throws IOException {
+        assert engine != null && netOut != null;
+        ((Buffer) netOut).clear();
+        SSLEngineResult result = engine.wrap(srcs, netOut);
+        ((Buffer) netOut).flip();
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+            throw new SSLException("SSLEngine is closed");
+        } else if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+            throw new SSLException("Packet buffer too small: " + netOut.capacity());
+        }
+        writeToChannel(netOut, timeoutMillis);
+        if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+            runDelegatedTasks();
+        }
+    }
+
+    private void writeToChannel(ByteBuffer buffer, int timeoutMillis) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.write(buffer) == 0) {
+                await(SelectionKey.OP_WRITE, timeoutMillis, "write");
+            }
+        }
+    }
+
+    /**
+     * Reads at least one byte into the provided buffer, blocking for at most {@code timeoutMillis}.
+     *
+     * @return the number of bytes read or {@code -1} if the connection has been closed
+     */
+    int read(ByteBuffer dst, int timeoutMillis) throws IOException {
+        if (engine == null) {
+            int read;
+            while ((read = channel.read(dst)) == 0) {
+                await(SelectionKey.OP_READ, timeoutMillis, "read");
+            }
+            return read;
+        }
+        assert netIn != null && appIn != null;
+        while (!appIn.hasRemaining()) {
+            SSLEngineResult.Status status = netIn.hasRemaining() ? unwrap() : SSLEngineResult.Status.BUFFER_UNDERFLOW;
+            if (status == SSLEngineResult.Status.CLOSED) {
+                return -1;
+            }
+            SSLEngineResult.HandshakeStatus handshakeStatus = engine.getHandshakeStatus();
+            if (handshakeStatus == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+            } else if (handshakeStatus == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                // for example a TLS 1.3 key update
+                wrap(EMPTY_BUFFERS, timeoutMillis);
+            } else if (status == SSLEngineResult.Status.BUFFER_UNDERFLOW && readFromChannel(timeoutMillis) < 0) {
+                return -1;
+            }
+        }
+        int length = Math.min(appIn.remaining(), dst.remaining());
+        int limit = appIn.limit();
+        ((Buffer) appIn).limit(appIn.position() + length);
+        dst.put(appIn);
+        ((Buffer) appIn).limit(limit);
+        return length;
+    }
+
+    private SSLEngineResult.Status unwrap() throws IOException {
+        assert engine != null && netIn != null && appIn != null;
+        appIn.compact();
+        try {
+            SSLEngineResult result = engine.unwrap(netIn, appIn);
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                throw new SSLException("Application buffer too small: " + appIn.capacity());
+            }
+            if (result.getStatus() == SSLEngineResult.Status.OK && !netIn.hasRemaining() && result.bytesProduced() == 0
+                && result.bytesConsumed() == 0) {
+                return SSLEngineResult.Status.BUFFER_UNDERFLOW;
+            }
+            return result.getStatus();
+        } finally {
+            ((Buffer) appIn).flip();
+        }
+    }
+
+    private int readFromChannel(int timeoutMillis) throws IOException {
+        assert netIn != null;
+        netIn.compact();
+        try {
+            if (!netIn.hasRemaining()) {
+                throw new SSLException("Packet buffer too small: " + netIn.capacity());
+            }
+            int read;
+            while ((read = channel.read(netIn)) == 0) {
+                await(SelectionKey.OP_READ, timeoutMillis, "read");
+            }
+            if (read < 0 && engine != null && !engine.isInboundDone()) {
+                try {
+                    engine.closeInbound();
+                } catch (SSLException ignore) {
+                    // the server did not send a close_notify
+                }
+            }
+            return read;
+        } finally {
+            ((Buffer) netIn).flip();
+        }
+    }
+
+    private void await(int operation, int timeoutMillis, String operationName) throws IOException {
+        selectionKey.interestOps(operation);
+        try {
+            long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            long start = System.nanoTime();
+            long remainingMillis = timeoutMillis;
+            // select also returns without a selected key on spurious wakeups, so only the deadline means that the operation timed out
+            while (selector.select(remainingMillis) == 0) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException(operationName + " interrupted (" + host + ":" + port + ")");
+                }
+                if (timeoutMillis > 0) {
+                    long remainingNanos = timeoutNanos - (System.nanoTime() - start);
+                    if (remainingNanos <= 0) {
+                        throw new SocketTimeoutException(operationName + " timed out after " + timeoutMillis + "ms (" + host + ":" + port + ")");
+                    }
+                    // a timeout of 0 would block indefinitely
+                    remainingMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(remainingNanos));
+                }
+            }
+        } finally {
+            selector.selectedKeys().clear();
+            selectionKey.interestOps(0);
+        }
+    }
+
+    /**
+     * Checks whether an idle connection has been closed by the server, without blocking.
+     *
+     * @return {@code true} if the connection can't be reused
+     */
+    boolean isStale() {
+        if (closed || !channel.isOpen()) {
+            return true;
+        }
+        // an idle connection should not receive anything except for TLS post-handshake messages, like session tickets
+        try {
+            if (engine == null || netIn == null || appIn == null) {
+                ((Buffer) staleCheckBuffer).clear();
+                return channel.read(staleCheckBuffer) != 0;
+            }
+            netIn.compact();
+            int read;
+            try {
+                read = channel.read(netIn);
+            } finally {
+                ((Buffer) netIn).flip();
+            }
+            if (read < 0) {
+                return true;
+            }
+            while (netIn.hasRemaining()) {
+                SSLEngineResult.Status status = unwrap();
+                if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                }
+                if (status != SSLEngineResult.Status.OK || appIn.hasRemaining()
+                    || engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    // closed, incomplete record, unexpected application data or a message that requires an answer
+                    return true;
+                }
+            }
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    ByteBuffer getRequestBuffer() {
+        return requestBuffer;
+    }
+
+    ByteBuffer getResponseBuffer() {
+        return responseBuffer;
+    }
+
+    boolean matches(String host, int port, boolean secure) {
+        return this.port == port && this.secure == secure && this.host.equals(host);
+    }
+
+    void onReleased(long nanoTime) {
+        releasedNanos = nanoTime;
+    }
+
+    long getReleasedNanos() {
+        return releasedNanos;
+    }
+
+    boolean isSecure() {
+        return secure;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (engine != null && netOut != null) {
+            engine.closeOutbound();
+            try {
+                // best effort close_notify, without waiting for the channel to become writable
+                ((Buffer) netOut).clear();
+                engine.wrap(EMPTY, netOut);
+                ((Buffer) netOut).flip();
+                channel.write(netOut);
+            } catch (IOException | RuntimeException ignore) {
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException ignore) {
+        }
+        try {
+            channel.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    @Override
+    public String toString() {
+        return (secure ? "https://" : "http://") + host + ":" + port;
+    }
+}
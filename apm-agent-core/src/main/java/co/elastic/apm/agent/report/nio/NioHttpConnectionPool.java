@@ -0,0 +1,208 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.nio;
+
+import co.elastic.apm.agent.report.ReporterConfiguration;
+import co.elastic.apm.agent.report.ssl.SslUtils;
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+import co.elastic.apm.agent.util.GlobalLocks;
+
+import javax.annotation.Nullable;
+import javax.net.ssl.SSLContext;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates {@link HttpURLConnection}s for intake API requests that are based on non-blocking socket channels
+ * and keeps the underlying connections alive so that subsequent requests can reuse them.
+ * <p>
+ * Compared to the JDK's {@link HttpURLConnection}, this avoids the per-request allocations of the JDK's HTTP client,
+ * frames the chunks of the request body in direct buffers that are reused for the lifetime of a connection,
+ * and reliably reuses TLS sessions as long as the APM Server keeps the connection open.
+ * </p>
+ */
+public class NioHttpConnectionPool implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(NioHttpConnectionPool.class);
+
+    /**
+     * Should be lower than the idle timeout of the APM Server (45s by default)
+     */
+    private static final long MAX_IDLE_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final int MAX_IDLE_CONNECTIONS = 8;
+
+    private final ReporterConfiguration reporterConfiguration;
+    private final ArrayDeque<NioChannel> idleChannels = new ArrayDeque<>();
+    private final AtomicLong openedConnections = new AtomicLong();
+    private final AtomicLong reusedConnections = new AtomicLong();
+    /**
+     * The result of {@link #supports(URL)} for the server URL the last request has been sent to
+     */
+    @Nullable
+    private volatile ProxyDecision lastProxyDecision;
+    private volatile boolean closed;
+
+    public NioHttpConnectionPool(ReporterConfiguration reporterConfiguration) {
+        this.reporterConfiguration = reporterConfiguration;
+    }
+
+    /**
+     * @return whether the URL can be requested with this pool, which is not the case if a proxy has been configured
+     */
+    public boolean supports(URL url) {
+        // the proxy selector is consulted only once per server, as all requests to the same server share the decision
+        ProxyDecision decision = lastProxyDecision;
+        if (decision == null || !decision.matches(url)) {
+            decision = new ProxyDecision(url, isDirect(url));
+            lastProxyDecision = decision;
+        }
+        return decision.supported;
+    }
+
+    private static boolean isDirect(URL url) {
+        String protocol = url.getProtocol();
+        if (!"http".equals(protocol) && !"https".equals(protocol)) {
+            return false;
+        }
+        GlobalLocks.JUL_INIT_LOCK.lock();
+        try {
+            ProxySelector proxySelector = ProxySelector.getDefault();
+            if (proxySelector == null) {
+                return true;
+            }
+            List<Proxy> proxies = proxySelector.select(url.toURI());
+            for (Proxy proxy : proxies) {
+                if (proxy.type() != Proxy.Type.DIRECT) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (URISyntaxException | RuntimeException e) {
+            return false;
+        } finally {
+            GlobalLocks.JUL_INIT_LOCK.unlock();
+        }
+    }
+
+    /**
+     * Creates a connection which is not connected yet
+     */
+    public HttpURLConnection openConnection(URL url) {
+        return new NioHttpURLConnection(url, this);
+    }
+
+    NioChannel acquire(URL url, int connectTimeoutMillis) throws IOException {
+        boolean secure = "https".equals(url.getProtocol());
+        String host = url.getHost();
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        long now = System.nanoTime();
+        synchronized (idleChannels) {
+            for (Iterator<NioChannel> iterator = idleChannels.descendingIterator(); iterator.hasNext(); ) {
+                NioChannel channel = iterator.next();
+                if (channel.matches(host, port, secure)) {
+                    iterator.remove();
+                    if (now - channel.getReleasedNanos() < MAX_IDLE_NANOS && !channel.isStale()) {
+                        reusedConnections.incrementAndGet();
+                        return channel;
+                    }
+                    channel.close();
+                }
+            }
+        }
+        SSLContext sslContext = null;
+        boolean verifyServerCert = reporterConfiguration.isVerifyServerCert();
+        if (secure) {
+            sslContext = SslUtils.getSSLContext(verifyServerCert);
+            if (sslContext == null) {
+                throw new IOException("Could not create an SSL context for " + url);
+            }
+        }
+        logger.debug("Opening new connection to {}:{}", host, port);
+        openedConnections.incrementAndGet();
+        return NioChannel.open(host, port, sslContext, verifyServerCert, connectTimeoutMillis);
+    }
+
+    void release(NioChannel channel) {
+        channel.onReleased(System.nanoTime());
+        synchronized (idleChannels) {
+            if (!closed && idleChannels.size() < MAX_IDLE_CONNECTIONS) {
+                idleChannels.addLast(channel);
+                return;
+            }
+        }
+        channel.close();
+    }
+
+    /**
+     * @return the number of connections that have been opened, including the ones that have been closed since
+     */
+    public long getOpenedConnections() {
+        return openedConnections.get();
+    }
+
+    /**
+     * @return the number of requests that have reused an existing connection
+     */
+    public long getReusedConnections() {
+        return reusedConnections.get();
+    }
+
+    /**
+     * Closes all idle connections
+     */
+    @Override
+    public void close() {
+        synchronized (idleChannels) {
+            closed = true;
+            for (NioChannel channel : idleChannels) {
+                channel.close();
+            }
+            idleChannels.clear();
+        }
+    }
+
+    private static class ProxyDecision {
+        private final String protocol;
+        private final String host;
+        private final int port;
+        private final boolean supported;
+
+        private ProxyDecision(URL url, boolean supported) {
+            this.protocol = url.getProtocol();
+            this.host = url.getHost();
+            this.port = url.getPort();
+            this.supported = supported;
+        }
+
+        private boolean matches(URL url) {
+            return port == url.getPort() && host.equals(url.getHost()) && protocol.equals(url.getProtocol());
+        }
+    }
+}
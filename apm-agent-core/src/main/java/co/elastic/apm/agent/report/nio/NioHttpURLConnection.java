@@ -0,0 +1,457 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.nio;
+
+import javax.annotation.Nullable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal HTTP/1.1 client connection based on a pooled {@link NioChannel}.
+ * <p>
+ * It implements just enough of {@link HttpURLConnection} for intake API requests:
+ * the request body is always sent with chunked transfer encoding,
+ * and the response body may be framed by {@code Content-Length}, chunked transfer encoding or the end of the connection.
+ * Once the response body has been consumed, the connection is returned to the {@link NioHttpConnectionPool}
+ * so that the next request can reuse it without another TCP and TLS handshake.
+ * </p>
+ */
+public class NioHttpURLConnection extends HttpURLConnection {
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final int MAX_LINE_LENGTH = 8 * 1024;
+    /**
+     * The maximum number of unread response body bytes that are skipped when closing the stream in order to reuse the connection
+     */
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    private final NioHttpConnectionPool pool;
+    @Nullable
+    private NioChannel channel;
+    @Nullable
+    private ByteBuffer head;
+    @Nullable
+    private ChunkedOutputStream requestBody;
+    @Nullable
+    private ResponseBody responseBody;
+    private final List<String> headerKeys = new ArrayList<>();
+    private final List<String> headerValues = new ArrayList<>();
+    private boolean keepAlive;
+
+    NioHttpURLConnection(URL url, NioHttpConnectionPool pool) {
+        super(url);
+        this.pool = pool;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if (connected) {
+            return;
+        }
+        // the request properties can't be read after the connection has been established
+        head = createRequestHead();
+        channel = pool.acquire(url, getConnectTimeout());
+        connected = true;
+    }
+
+    private ByteBuffer createRequestHead() {
+        StringBuilder sb = new StringBuilder(256);
+        String path = url.getFile();
+        sb.append(method).append(' ').append(path.isEmpty() ? "/" : path).append(" HTTP/1.1\r\n");
+        sb.append("Host: ").append(url.getHost());
+        if (url.getPort() != -1) {
+            sb.append(':').append(url.getPort());
+        }
+        sb.append("\r\n");
+        for (Map.Entry<String, List<String>> header : getRequestProperties().entrySet()) {
+            for (String value : header.getValue()) {
+                sb.append(header.getKey()).append(": ").append(value).append("\r\n");
+            }
+        }
+        if (doOutput) {
+            sb.append("Transfer-Encoding: chunked\r\n");
+        } else if ("POST".equals(method) || "PUT".equals(method)) {
+            sb.append("Content-Length: 0\r\n");
+        }
+        sb.append("\r\n");
+        return ByteBuffer.wrap(sb.toString().getBytes(ISO_8859_1));
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if (!doOutput) {
+            throw new ProtocolException("cannot write to a URLConnection if doOutput=false - call setDoOutput(true)");
+        }
+        if (responseCode != -1) {
+            throw new ProtocolException("Cannot write output after reading input.");
+        }
+        connect();
+        if (requestBody == null) {
+            requestBody = new ChunkedOutputStream(getChannel(), getHead(), getReadTimeout());
+        }
+        return requestBody;
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        readResponseHead();
+        return responseCode;
+    }
+
+    @Override
+    public String getResponseMessage() throws IOException {
+        readResponseHead();
+        return responseMessage;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        readResponseHead();
+        if (responseCode >= 400) {
+            if (responseCode == HTTP_NOT_FOUND || responseCode == HTTP_GONE) {
+                throw new FileNotFoundException(url.toString());
+            }
+            throw new IOException("Server returned HTTP response code: " + responseCode + " for URL: " + url);
+        }
+        return getResponseBody();
+    }
+
+    @Override
+    @Nullable
+    public InputStream getErrorStream() {
+        if (responseCode >= 400 && responseBody != null) {
+            return responseBody;
+        }
+        return null;
+    }
+
+    @Override
+    @Nullable
+    public String getHeaderField(String name) {
+        for (int i = headerKeys.size() - 1; i >= 0; i--) {
+            if (name.equalsIgnoreCase(headerKeys.get(i))) {
+                return headerValues.get(i);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    @Nullable
+    public String getHeaderFieldKey(int n) {
+        return n > 0 && n <= headerKeys.size() ? headerKeys.get(n - 1) : null;
+    }
+
+    @Override
+    @Nullable
+    public String getHeaderField(int n) {
+        return n > 0 && n <= headerValues.size() ? headerValues.get(n - 1) : null;
+    }
+
+    @Override
+    public void disconnect() {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    @Override
+    public boolean usingProxy() {
+        return false;
+    }
+
+    private void readResponseHead() throws IOException {
+        if (responseCode != -1) {
+            return;
+        }
+        connect();
+        try {
+            doReadResponseHead(getChannel());
+        } catch (IOException | RuntimeException e) {
+            disconnect();
+            throw e;
+        }
+    }
+
+    private void doReadResponseHead(NioChannel channel) throws IOException {
+        int timeoutMillis = getReadTimeout();
+        if (requestBody != null) {
+            requestBody.close();
+        } else {
+            channel.write(getHead(), timeoutMillis);
+        }
+        ByteBuffer buffer = channel.getResponseBuffer();
+        ((Buffer) buffer).clear().flip();
+        String statusLine;
+        do {
+            // skip interim responses like 100 Continue
+            statusLine = readLine(channel, buffer, timeoutMillis);
+            headerKeys.clear();
+            headerValues.clear();
+            for (String line = readLine(channel, buffer, timeoutMillis); !line.isEmpty(); line = readLine(channel, buffer, timeoutMillis)) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headerKeys.add(line.substring(0, colon).trim());
+                    headerValues.add(line.substring(colon + 1).trim());
+                }
+            }
+            parseStatusLine(statusLine);
+        } while (responseCode >= 100 && responseCode < 200);
+
+        keepAlive = statusLine.startsWith("HTTP/1.1") && !"close".equalsIgnoreCase(getHeaderField("Connection"))
+            && (requestBody == null || requestBody.isComplete());
+        long contentLength = -1;
+        boolean chunked = "chunked".equalsIgnoreCase(getHeaderField("Transfer-Encoding"));
+        if ("HEAD".equals(method) || responseCode == HTTP_NO_CONTENT || responseCode == HTTP_NOT_MODIFIED) {
+            contentLength = 0;
+        } else if (!chunked) {
+            String contentLengthHeader = getHeaderField("Content-Length");
+            if (contentLengthHeader != null) {
+                try {
+                    contentLength = Long.parseLong(contentLengthHeader);
+                } catch (NumberFormatException e) {
+                    throw new ProtocolException("Invalid Content-Length: " + contentLengthHeader);
+                }
+            } else {
+                // the body ends when the server closes the connection
+                keepAlive = false;
+            }
+        }
+        responseBody = new ResponseBody(channel, buffer, chunked, contentLength, timeoutMillis);
+        if (contentLength == 0) {
+            responseBody.onEnd();
+        }
+    }
+
+    private void parseStatusLine(String statusLine) throws ProtocolException {
+        // HTTP/1.1 202 Accepted
+        int codeStart = statusLine.indexOf(' ');
+        if (!statusLine.startsWith("HTTP/") || codeStart < 0 || statusLine.length() < codeStart + 4) {
+            throw new ProtocolException("Invalid status line: " + statusLine);
+        }
+        try {
+            responseCode = Integer.parseInt(statusLine.substring(codeStart + 1, codeStart + 4));
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Invalid status line: " + statusLine);
+        }
+        responseMessage = statusLine.length() > codeStart + 5 ? statusLine.substring(codeStart + 5) : "";
+    }
+
+    private InputStream getResponseBody() throws IOException {
+        if (responseBody == null) {
+            throw new IOException("No response");
+        }
+        return responseBody;
+    }
+
+    private NioChannel getChannel() throws IOException {
+        if (channel == null) {
+            throw new IOException("Connection has been closed");
+        }
+        return channel;
+    }
+
+    private ByteBuffer getHead() {
+        ByteBuffer head = this.head;
+        if (head == null) {
+            throw new IllegalStateException("Not connected");
+        }
+        return head;
+    }
+
+    private void onResponseBodyEnd(NioChannel channel) {
+        if (this.channel == channel) {
+            this.channel = null;
+            if (keepAlive) {
+                pool.release(channel);
+            } else {
+                channel.close();
+            }
+        }
+    }
+
+    private static String readLine(NioChannel channel, ByteBuffer buffer, int timeoutMillis) throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            int b = readByte(channel, buffer, timeoutMillis);
+            if (b < 0) {
+                throw new IOException("Unexpected end of response from " + channel);
+            } else if (b == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            } else if (line.length() == MAX_LINE_LENGTH) {
+                throw new ProtocolException("Response line exceeds " + MAX_LINE_LENGTH + " characters");
+            }
+            line.append((char) b);
+        }
+    }
+
+    private static int readByte(NioChannel channel, ByteBuffer buffer, int timeoutMillis) throws IOException {
+        if (!fill(channel, buffer, timeoutMillis)) {
+            return -1;
+        }
+        return buffer.get() & 0xff;
+    }
+
+    /**
+     * @return {@code false} if the connection has been closed and there are no more buffered bytes
+     */
+    private static boolean fill(NioChannel channel, ByteBuffer buffer, int timeoutMillis) throws IOException {
+        if (buffer.hasRemaining()) {
+            return true;
+        }
+        ((Buffer) buffer).clear();
+        try {
+            return channel.read(buffer, timeoutMillis) > 0;
+        } finally {
+            ((Buffer) buffer).flip();
+        }
+    }
+
+    /**
+     * Reads the response body and returns the connection to the pool once the body has been fully read
+     */
+    private class ResponseBody extends InputStream {
+        private final NioChannel channel;
+        private final ByteBuffer buffer;
+        private final boolean chunked;
+        private final int timeoutMillis;
+        private final byte[] singleByte = new byte[1];
+        /**
+         * The remaining bytes of the body or of the current chunk, {@code -1} if unknown
+         */
+        private long remaining;
+        private boolean ended;
+
+        private ResponseBody(NioChannel channel, ByteBuffer buffer, boolean chunked, long contentLength, int timeoutMillis) {
+            this.channel = channel;
+            this.buffer = buffer;
+            this.chunked = chunked;
+            this.remaining = chunked ? 0 : contentLength;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(singleByte, 0, 1) < 0 ? -1 : singleByte[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (ended) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            if (chunked && remaining == 0 && !nextChunk()) {
+                return -1;
+            }
+            if (!fill(channel, buffer, timeoutMillis)) {
+                if (remaining < 0) {
+                    onEnd();
+                    return -1;
+                }
+                throw new IOException("Unexpected end of response body from " + channel);
+            }
+            int length = Math.min(len, buffer.remaining());
+            if (remaining >= 0) {
+                length = (int) Math.min(length, remaining);
+            }
+            buffer.get(b, off, length);
+            if (remaining > 0) {
+                remaining -= length;
+                if (remaining == 0 && !chunked) {
+                    onEnd();
+                }
+            }
+            return length;
+        }
+
+        /**
+         * @return {@code false} if the last chunk has been read
+         */
+        private boolean nextChunk() throws IOException {
+            if (remaining == 0 && readChunkSize() == 0) {
+                // skip trailers
+                while (!readLine(channel, buffer, timeoutMillis).isEmpty()) {
+                }
+                onEnd();
+                return false;
+            }
+            return true;
+        }
+
+        private long readChunkSize() throws IOException {
+            String line = readLine(channel, buffer, timeoutMillis);
+            if (line.isEmpty()) {
+                // the CRLF after the previous chunk's data
+                line = readLine(channel, buffer, timeoutMillis);
+            }
+            int extension = line.indexOf(';');
+            try {
+                remaining = Long.parseLong((extension < 0 ? line : line.substring(0, extension)).trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Invalid chunk size: " + line);
+            }
+            return remaining;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (ended) {
+                return;
+            }
+            // try to consume the rest of the body so that the connection can be reused
+            byte[] skipBuffer = new byte[1024];
+            long drained = 0;
+            try {
+                for (int read = 0; read >= 0 && drained < MAX_DRAIN_BYTES; read = read(skipBuffer, 0, skipBuffer.length)) {
+                    drained += read;
+                }
+            } catch (IOException ignore) {
+            }
+            if (!ended) {
+                ended = true;
+                keepAlive = false;
+                onResponseBodyEnd(channel);
+            }
+        }
+
+        private void onEnd() {
+            ended = true;
+            onResponseBodyEnd(channel);
+        }
+    }
+}
@@ -18,6 +18,8 @@
  */
 package co.elastic.apm.agent.report.processor;
 
+import co.elastic.apm.agent.impl.error.ErrorCapture;
+import co.elastic.apm.agent.impl.transaction.Transaction;
 import co.elastic.apm.agent.report.ReportingEvent;
 import co.elastic.apm.agent.util.DependencyInjectingServiceLoader;
 import com.lmax.disruptor.EventHandler;
@@ -44,13 +46,21 @@ public class ProcessorEventHandler implements EventHandler<ReportingEvent> {
     @Override
     public void onEvent(ReportingEvent event, long sequence, boolean endOfBatch) {
         if (event.getTransaction() != null) {
-            for (int i = 0; i < processors.size(); i++) {
-                processors.get(i).processBeforeReport(event.getTransaction());
-            }
+            processBeforeReport(event.getTransaction());
         } else if (event.getError() != null) {
-            for (int i = 0; i < processors.size(); i++) {
-                processors.get(i).processBeforeReport(event.getError());
-            }
+            processBeforeReport(event.getError());
+        }
+    }
+
+    public void processBeforeReport(Transaction transaction) {
+        for (int i = 0; i < processors.size(); i++) {
+            processors.get(i).processBeforeReport(transaction);
+        }
+    }
+
+    public void processBeforeReport(ErrorCapture error) {
+        for (int i = 0; i < processors.size(); i++) {
+            processors.get(i).processBeforeReport(error);
         }
     }
 }
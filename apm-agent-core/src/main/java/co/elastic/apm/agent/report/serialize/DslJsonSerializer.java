@@ -70,6 +70,7 @@ import com.dslplatform.json.BoolConverter;
 import com.dslplatform.json.DslJson;
 import com.dslplatform.json.JsonWriter;
 import com.dslplatform.json.NumberConverter;
+import com.dslplatform.json.SerializationException;
 import com.dslplatform.json.StringConverter;
 
 import javax.annotation.Nullable;
@@ -116,6 +117,7 @@ public class DslJsonSerializer implements PayloadSerializer {
     private final ApmServerClient apmServerClient;
     @Nullable
     private OutputStream os;
+    private boolean coalesce;
 
     private final Future<MetaData> metaData;
     @Nullable
@@ -130,6 +132,11 @@ public class DslJsonSerializer implements PayloadSerializer {
 
     @Override
     public void setOutputStream(final OutputStream os) {
+        setOutputStream(os, false);
+    }
+
+    @Override
+    public void setOutputStream(final OutputStream os, boolean coalesce) {
         if (logger.isTraceEnabled()) {
             this.os = new ByteArrayOutputStream() {
                 @Override
@@ -142,7 +149,13 @@ public class DslJsonSerializer implements PayloadSerializer {
         } else {
             this.os = os;
         }
-        jw.reset(this.os);
+        this.coalesce = coalesce;
+        if (coalesce) {
+            // without a target stream, the buffer of the writer grows instead of being flushed when it's full
+            jw.reset();
+        } else {
+            jw.reset(this.os);
+        }
     }
 
     /**
@@ -151,13 +164,14 @@ public class DslJsonSerializer implements PayloadSerializer {
      */
     @Override
     public void fullFlush() throws IOException {
-        jw.flush();
+        flushToOutputStream();
         try {
             if (os != null) {
                 os.flush();
             }
         } finally {
             jw.reset();
+            coalesce = false;
         }
     }
 
@@ -168,7 +182,17 @@ public class DslJsonSerializer implements PayloadSerializer {
      */
     @Override
     public void flushToOutputStream() {
-        jw.flush();
+        if (!coalesce) {
+            jw.flush();
+        } else if (os != null && jw.size() > 0) {
+            try {
+                os.write(jw.getByteBuffer(), 0, jw.size());
+            } catch (IOException e) {
+                throw new SerializationException("Unable to write to target stream.", e);
+            } finally {
+                jw.reset();
+            }
+        }
     }
 
     /**
@@ -791,8 +815,7 @@ public class DslJsonSerializer implements PayloadSerializer {
 
     private void serializeOTel(AbstractSpan<?> span) {
         OTelSpanKind kind = span.getOtelKind();
-        Map<String, Object> attributes = span.getOtelAttributes();
-        boolean hasAttributes = !attributes.isEmpty();
+        boolean hasAttributes = span.hasOtelAttributes();
         boolean hasKind = kind != null;
         if (hasKind || hasAttributes) {
             writeFieldName("otel");
@@ -810,7 +833,7 @@ public class DslJsonSerializer implements PayloadSerializer {
                 writeFieldName("attributes");
                 jw.writeByte(OBJECT_START);
                 int index = 0;
-                for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+                for (Map.Entry<String, Object> entry : span.getOtelAttributes().entrySet()) {
                     if (index++ > 0) {
                         jw.writeByte(COMMA);
                     }
@@ -1069,7 +1092,7 @@ public class DslJsonSerializer implements PayloadSerializer {
         jw.writeByte(OBJECT_START);
 
         serializeService(traceContext.getServiceName(), traceContext.getServiceVersion(), context.getServiceTarget(), replaceBuilder, jw);
-        serializeMessageContext(context.getMessage());
+        serializeMessageContext(context.getMessageForRead());
         serializeDbContext(context.getDb());
         serializeHttpContext(context.getHttp());
         serializeDestination(context.getDestination(), context.getServiceTarget().getDestinationResource());
@@ -1137,8 +1160,8 @@ public class DslJsonSerializer implements PayloadSerializer {
         }
     }
 
-    private void serializeMessageContext(final Message message) {
-        if (message.hasContent()) {
+    private void serializeMessageContext(@Nullable final Message message) {
+        if (message != null && message.hasContent()) {
             writeFieldName("message");
             jw.writeByte(OBJECT_START);
             StringBuilder body = message.getBodyForRead();
@@ -1269,25 +1292,28 @@ public class DslJsonSerializer implements PayloadSerializer {
         writeFieldName("dropped_spans_stats");
         jw.writeByte(ARRAY_START);
 
-        int i = 0;
-        for (Map.Entry<DroppedSpanStats.StatsKey, DroppedSpanStats.Stats> stats : droppedSpanStats) {
-            if (i++ >= 128) {
-                break;
+        List<DroppedSpanStats.StatsKey> keys = droppedSpanStats.getKeys();
+        int written = 0;
+        for (int i = 0; i < keys.size() && written < 128; i++) {
+            DroppedSpanStats.StatsKey key = keys.get(i);
+            DroppedSpanStats.Stats stats = droppedSpanStats.getStats(key);
+            if (stats == null) {
+                continue;
             }
-            if (i > 1) {
+            if (written++ > 0) {
                 jw.writeByte(COMMA);
             }
             jw.writeByte(OBJECT_START);
-            writeField("destination_service_resource", stats.getKey().getDestinationServiceResource());
-            writeField("service_target_type", stats.getKey().getServiceType());
-            writeField("service_target_name", stats.getKey().getServiceName());
-            writeField("outcome", stats.getKey().getOutcome().toString());
+            writeField("destination_service_resource", key.getDestinationServiceResource());
+            writeField("service_target_type", key.getServiceType());
+            writeField("service_target_name", key.getServiceName());
+            writeField("outcome", key.getOutcome().toString());
             writeFieldName("duration");
             jw.writeByte(OBJECT_START);
-            writeField("count", stats.getValue().getCount());
+            writeField("count", stats.getCount());
             writeFieldName("sum");
             jw.writeByte(OBJECT_START);
-            writeLastField("us", stats.getValue().getSum());
+            writeLastField("us", stats.getSum());
             jw.writeByte(OBJECT_END);
             jw.writeByte(OBJECT_END);
             jw.writeByte(OBJECT_END);
@@ -1307,7 +1333,7 @@ public class DslJsonSerializer implements PayloadSerializer {
         }
         serializeRequest(context.getRequest());
         serializeResponse(context.getResponse());
-        serializeMessageContext(context.getMessage());
+        serializeMessageContext(context.getMessageForRead());
         if (context.hasCustom()) {
             writeFieldName("custom");
             serializeStringKeyScalarValueMap(context.getCustomIterator(), replaceBuilder, jw, true, true);
@@ -1325,12 +1351,27 @@ public class DslJsonSerializer implements PayloadSerializer {
 
     // visible for testing
     void serializeLabels(AbstractContext context) {
+        jw.writeByte(OBJECT_START);
         if (context.hasLabels()) {
-            serializeStringKeyScalarValueMap(context.getLabelIterator(), replaceBuilder, jw, false, apmServerClient.supportsNonStringLabels());
-        } else {
-            jw.writeByte(OBJECT_START);
-            jw.writeByte(OBJECT_END);
+            boolean supportsNonStringLabels = apmServerClient.supportsNonStringLabels();
+            List<String> keys = context.getLabelKeys();
+            boolean first = true;
+            for (int i = 0; i < keys.size(); i++) {
+                String key = keys.get(i);
+                Object value = context.getLabelValue(i);
+                if (value == null) {
+                    continue;
+                }
+                if (!first) {
+                    jw.writeByte(COMMA);
+                }
+                first = false;
+                writeStringValue(sanitizePropertyName(key, replaceBuilder), replaceBuilder, jw);
+                jw.writeByte(JsonWriter.SEMI);
+                serializeScalarValue(replaceBuilder, jw, value, false, supportsNonStringLabels);
+            }
         }
+        jw.writeByte(OBJECT_END);
     }
 
     private static void serializeStringKeyScalarValueMap(Iterator<? extends Map.Entry<String, ? /* String|Number|Boolean */>> it,
@@ -21,39 +21,97 @@ package co.elastic.apm.agent.report.serialize;
 import co.elastic.apm.agent.configuration.ServiceInfo;
 import co.elastic.apm.agent.context.AbstractLifecycleListener;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.metrics.DoubleSupplier;
 import co.elastic.apm.agent.metrics.Labels;
 import co.elastic.apm.agent.metrics.MetricRegistry;
 import co.elastic.apm.agent.metrics.MetricSet;
+import co.elastic.apm.agent.objectpool.Allocator;
+import co.elastic.apm.agent.objectpool.ObjectPool;
 import co.elastic.apm.agent.report.Reporter;
 import co.elastic.apm.agent.report.ReporterConfiguration;
-import com.dslplatform.json.JsonWriter;
+import co.elastic.apm.agent.report.ReporterLane;
+import co.elastic.apm.agent.report.SerializedEvent;
+import com.dslplatform.json.DslJson;
 
+import javax.annotation.Nullable;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Serializes the metric sets of the {@link MetricRegistry} every {@code metrics_interval}.
+ * <p>
+ * The metric sets are appended to pooled chunks of about {@link #CHUNK_SIZE} bytes,
+ * which are reported as a single {@link SerializedEvent} each and recycled after they have been sent,
+ * so that reporting thousands of metric sets, like breakdown metrics for many transaction names,
+ * neither allocates a buffer per metric set nor takes up a queue slot per metric set.
+ * </p>
+ */
 public class MetricRegistryReporter extends AbstractLifecycleListener implements MetricRegistry.MetricsReporter, Runnable {
 
+    /**
+     * A chunk is reported as soon as it has reached this size
+     */
+    static final int CHUNK_SIZE = DslJsonSerializer.BUFFER_SIZE;
+    private static final int MAX_POOLED_CHUNKS = 8;
+
     private final Reporter reporter;
     private final ElasticApmTracer tracer;
     private final MetricRegistry metricRegistry;
     private final MetricRegistrySerializer serializer;
+    private final ObjectPool<SerializedEvent> chunkPool;
+    /**
+     * Statistics about the previous report, read by the {@code agent.metricsets.*} gauges while the next report is serialized
+     */
+    private volatile double lastSerializedMetricSets = Double.NaN;
+    private volatile double lastSerializedBytes = Double.NaN;
+    private volatile double lastSerializationTimeUs = Double.NaN;
 
     public MetricRegistryReporter(ElasticApmTracer tracer) {
         this.tracer = tracer;
         this.reporter = tracer.getReporter();
         this.metricRegistry = tracer.getMetricRegistry();
         this.serializer = new MetricRegistrySerializer();
+        final DslJson<Object> dslJson = new DslJson<>(new DslJson.Settings<>());
+        this.chunkPool = tracer.getObjectPoolFactory().createRecyclableObjectPool(MAX_POOLED_CHUNKS, new Allocator<SerializedEvent>() {
+            @Override
+            public SerializedEvent createInstance() {
+                // leaves room for the last metric set that exceeds the chunk size
+                return new SerializedEvent(dslJson.newWriter(CHUNK_SIZE * 2), chunkPool, ReporterLane.METRICSET);
+            }
+        });
     }
 
     @Override
     public void start(ElasticApmTracer tracer) {
         long intervalMs = tracer.getConfig(ReporterConfiguration.class).getMetricsIntervalMs();
         if (intervalMs > 0) {
+            bindTo(metricRegistry);
             tracer.getSharedSingleThreadedPool().scheduleAtFixedRate(this, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
         }
     }
 
+    void bindTo(MetricRegistry metricRegistry) {
+        metricRegistry.add("agent.metricsets.serialized", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return lastSerializedMetricSets;
+            }
+        });
+        metricRegistry.add("agent.metricsets.serialization.bytes", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return lastSerializedBytes;
+            }
+        });
+        metricRegistry.add("agent.metricsets.serialization.time.us", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return lastSerializationTimeUs;
+            }
+        });
+    }
+
     @Override
     public void run() {
         metricRegistry.flipPhaseAndReport(this);
@@ -69,13 +127,43 @@ public class MetricRegistryReporter extends AbstractLifecycleListener implements
     @Override
     public void report(Map<? extends Labels, MetricSet> metricSets) {
         if (tracer.isRunning()) {
+            long startNs = System.nanoTime();
             List<ServiceInfo> serviceInfos = tracer.getServiceInfoOverrides();
+            long serializedMetricSets = 0;
+            long serializedBytes = 0;
+            SerializedEvent chunk = null;
             for (MetricSet metricSet : metricSets.values()) {
-                JsonWriter jw = serializer.serialize(metricSet, serviceInfos);
-                if (jw != null) {
-                    reporter.report(jw);
+                if (chunk == null) {
+                    chunk = chunkPool.createInstance();
+                }
+                if (serializer.serialize(metricSet, serviceInfos, chunk.getJsonWriter())) {
+                    serializedMetricSets++;
+                    if (chunk.getSize() >= CHUNK_SIZE) {
+                        serializedBytes += reportChunk(chunk);
+                        chunk = null;
+                    }
                 }
             }
+            serializedBytes += reportChunk(chunk);
+            lastSerializedMetricSets = serializedMetricSets;
+            lastSerializedBytes = serializedBytes;
+            lastSerializationTimeUs = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNs);
+        }
+    }
+
+    /**
+     * @return the size of the chunk in bytes
+     */
+    private int reportChunk(@Nullable SerializedEvent chunk) {
+        if (chunk == null) {
+            return 0;
+        }
+        int size = chunk.getSize();
+        if (size > 0) {
+            reporter.report(chunk);
+        } else {
+            chunk.recycle();
         }
+        return size;
     }
 }
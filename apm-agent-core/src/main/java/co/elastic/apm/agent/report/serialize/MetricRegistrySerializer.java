@@ -20,6 +20,7 @@ package co.elastic.apm.agent.report.serialize;
 
 import co.elastic.apm.agent.configuration.ServiceInfo;
 import co.elastic.apm.agent.metrics.DoubleSupplier;
+import co.elastic.apm.agent.metrics.Histogram;
 import co.elastic.apm.agent.metrics.MetricSet;
 import co.elastic.apm.agent.metrics.Timer;
 import com.dslplatform.json.DslJson;
@@ -40,6 +41,10 @@ public class MetricRegistrySerializer {
 
     private final DslJson<Object> dslJson = new DslJson<>(new DslJson.Settings<>());
     private final StringBuilder replaceBuilder = new StringBuilder();
+    /**
+     * Holds a single metric set until it is known whether it contains samples, before it is appended to a chunk
+     */
+    private final JsonWriter metricSetWriter = dslJson.newWriter(BUFFER_SIZE_LIMIT);
     private int maxSerializedSize = 512;
 
     /**
@@ -51,7 +56,37 @@ public class MetricRegistrySerializer {
     @Nullable
     public JsonWriter serialize(MetricSet metricSet, List<ServiceInfo> serviceInfos) {
         JsonWriter jw = dslJson.newWriter(maxSerializedSize);
-        boolean hasSamples = false;
+        if (serializeMetricSet(metricSet, serviceInfos, jw)) {
+            maxSerializedSize = Math.max(Math.min(jw.size(), BUFFER_SIZE_LIMIT), maxSerializedSize);
+            return jw;
+        }
+        return null;
+    }
+
+    /**
+     * Serializes the given metric set and appends it to a JSON writer that may already contain other metric sets,
+     * unless the metric set does not contain samples.
+     * <p>
+     * Apart from the growth of an internal buffer for unusually large metric sets, this does not allocate.
+     * </p>
+     *
+     * @param metricSet    a metric-set to serialize
+     * @param serviceInfos the service names and versions to serialize the metric set for,
+     *                     if it does not have a service name label
+     * @param jw           the writer to append the serialized metric set to
+     * @return whether the metric set has been appended, that is, whether it contains samples
+     */
+    public boolean serialize(MetricSet metricSet, List<ServiceInfo> serviceInfos, JsonWriter jw) {
+        metricSetWriter.reset();
+        if (serializeMetricSet(metricSet, serviceInfos, metricSetWriter)) {
+            jw.writeAscii(metricSetWriter.getByteBuffer(), metricSetWriter.size());
+            return true;
+        }
+        return false;
+    }
+
+    private boolean serializeMetricSet(MetricSet metricSet, List<ServiceInfo> serviceInfos, JsonWriter jw) {
+        boolean hasSamples;
         if (serviceInfos.isEmpty() || metricSet.getLabels().getServiceName() != null) {
             hasSamples = serialize(metricSet, null, null, jw);
         } else {
@@ -64,11 +99,7 @@ public class MetricRegistrySerializer {
                 }
             }
         }
-        if (hasSamples) {
-            maxSerializedSize = Math.max(Math.min(jw.size(), BUFFER_SIZE_LIMIT), maxSerializedSize);
-            return jw;
-        }
-        return null;
+        return hasSamples;
     }
 
     private boolean serialize(MetricSet metricSet, String serviceName, String serviceVersion, JsonWriter jw) {
@@ -92,6 +123,7 @@ public class MetricRegistrySerializer {
                 hasSamples = serializeGauges(metricSet.getGauges(), jw);
                 hasSamples |= serializeTimers(metricSet.getTimers(), hasSamples, jw);
                 hasSamples |= serializeCounters(metricSet.getCounters(), hasSamples, jw);
+                hasSamples |= serializeHistograms(metricSet.getHistograms(), hasSamples, jw);
                 jw.writeByte(JsonWriter.OBJECT_END);
             }
             jw.writeByte(JsonWriter.OBJECT_END);
@@ -196,6 +228,68 @@ public class MetricRegistrySerializer {
         return hasSamples;
     }
 
+    private static boolean serializeHistograms(Map<String, Histogram> histograms, boolean hasSamples, JsonWriter jw) {
+        if (histograms.isEmpty()) {
+            return hasSamples;
+        }
+        for (Map.Entry<String, Histogram> kv : histograms.entrySet()) {
+            Histogram histogram = kv.getValue();
+            if (histogram.hasContent()) {
+                if (hasSamples) {
+                    jw.writeByte(JsonWriter.COMMA);
+                }
+                serializeHistogram(kv.getKey(), histogram, jw);
+                hasSamples = true;
+            }
+        }
+        return hasSamples;
+    }
+
+    /**
+     * Serializes a histogram in the format of the intake API, only including the buckets that are not empty:
+     * <pre>
+     * "transaction.duration.histogram":{"type":"histogram","values":[1.0,12.5],"counts":[3,1]}
+     * </pre>
+     */
+    private static void serializeHistogram(String key, Histogram histogram, JsonWriter jw) {
+        DslJsonSerializer.writeFieldName(key, jw);
+        jw.writeByte(JsonWriter.OBJECT_START);
+        DslJsonSerializer.writeFieldName("type", jw);
+        jw.writeByte(JsonWriter.QUOTE);
+        jw.writeAscii("histogram");
+        jw.writeByte(JsonWriter.QUOTE);
+        jw.writeByte(JsonWriter.COMMA);
+        DslJsonSerializer.writeFieldName("values", jw);
+        jw.writeByte(JsonWriter.ARRAY_START);
+        boolean first = true;
+        for (int i = 0; i < histogram.getNumberOfBuckets(); i++) {
+            if (histogram.getBucketCount(i) > 0) {
+                if (!first) {
+                    jw.writeByte(JsonWriter.COMMA);
+                }
+                NumberConverter.serialize(histogram.getBucketValue(i), jw);
+                first = false;
+            }
+        }
+        jw.writeByte(JsonWriter.ARRAY_END);
+        jw.writeByte(JsonWriter.COMMA);
+        DslJsonSerializer.writeFieldName("counts", jw);
+        jw.writeByte(JsonWriter.ARRAY_START);
+        first = true;
+        for (int i = 0; i < histogram.getNumberOfBuckets(); i++) {
+            long count = histogram.getBucketCount(i);
+            if (count > 0) {
+                if (!first) {
+                    jw.writeByte(JsonWriter.COMMA);
+                }
+                NumberConverter.serialize(count, jw);
+                first = false;
+            }
+        }
+        jw.writeByte(JsonWriter.ARRAY_END);
+        jw.writeByte(JsonWriter.OBJECT_END);
+    }
+
     private static void serializeCounter(String key, AtomicLong value, JsonWriter jw) {
         serializeValueStart(key, "", jw);
         NumberConverter.serialize(value.get(), jw);
@@ -36,6 +36,18 @@ public interface PayloadSerializer {
      */
     void setOutputStream(OutputStream os);
 
+    /**
+     * Sets the output stream which the {@code *NdJson} methods should write to.
+     * <p>
+     * If {@code coalesce} is {@code true}, the serialized content is not written to the stream whenever the buffer is full.
+     * Instead, the buffer grows until the content is written with a single write on {@link #flushToOutputStream()} or {@link #fullFlush()}.
+     * </p>
+     *
+     * @param os       the {@link OutputStream} to which all contents are to be serialized
+     * @param coalesce whether to buffer the serialized content until it is explicitly flushed
+     */
+    void setOutputStream(OutputStream os, boolean coalesce);
+
     /**
      * Blocking until this {@link PayloadSerializer} is ready for use.
      *
@@ -36,7 +36,6 @@ import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.X509Certificate;
-import java.util.Objects;
 
 // based on https://gist.github.com/mefarazath/c9b588044d6bffd26aac3c520660bf40
 public class SslUtils {
@@ -67,6 +66,12 @@ public class SslUtils {
 
     private static boolean warningLogged = false;
 
+    @Nullable
+    private static final SSLContext validateContext;
+
+    @Nullable
+    private static final SSLContext trustAllContext;
+
     @Nullable
     private static final SSLSocketFactory validateSocketFactory;
 
@@ -74,29 +79,30 @@ public class SslUtils {
     private static final SSLSocketFactory trustAllSocketFactory;
 
     static {
-        SSLSocketFactory tmpSocketFactory = null;
+        SSLContext tmpContext = null;
         try {
-            // default factory with certificate validation
-            //noinspection ConstantConditions
-            tmpSocketFactory = TLSFallbackSSLSocketFactory.wrapFactory(createSocketFactory(null));
+            // default context with certificate validation
+            tmpContext = createSSLContext(null);
         } catch (Exception e) {
             logger.warn("Failed to construct a Socket factory with the following error: \"" + e.getMessage() + "\". " +
                 "Agent communication with APM Server may not be able to authenticate the server certificate. " +
                 "See documentation for the \"verify_server_cert\" configuration option for optional workaround", e);
         }
-        validateSocketFactory = tmpSocketFactory;
+        validateContext = tmpContext;
+        validateSocketFactory = tmpContext != null ? TLSFallbackSSLSocketFactory.wrapFactory(tmpContext.getSocketFactory()) : null;
 
-        tmpSocketFactory = null;
+        tmpContext = null;
         // without certificate validation
         try {
-            tmpSocketFactory = TLSFallbackSSLSocketFactory.wrapFactory(createSocketFactory(new TrustManager[]{X_509_TRUST_ALL}));
+            tmpContext = createSSLContext(new TrustManager[]{X_509_TRUST_ALL});
         } catch (Exception e) {
             logger.info("Failed to construct a trust-all Socket factory with the following error: \"{}\". Agent communication " +
                 "with the APM Server must verify the server certificate, meaning - the \"verify_server_cert\" configuration " +
                 "option must be set to \"true\"", e.getMessage());
             logger.debug("Socket factory creation error stack trace: ", e);
         }
-        trustAllSocketFactory = tmpSocketFactory;
+        trustAllContext = tmpContext;
+        trustAllSocketFactory = tmpContext != null ? TLSFallbackSSLSocketFactory.wrapFactory(tmpContext.getSocketFactory()) : null;
     }
 
     @Nullable
@@ -112,8 +118,27 @@ public class SslUtils {
         return trustAllSocketFactory;
     }
 
+    /**
+     * Returns the {@link SSLContext} the {@linkplain #getSSLSocketFactory(boolean) socket factories} are based on,
+     * for transports that use an {@link javax.net.ssl.SSLEngine} rather than sockets.
+     *
+     * @param validateCertificates whether the server certificates should be validated
+     * @return the SSL context, or {@code null} if it could not be created
+     */
     @Nullable
-    private static SSLSocketFactory createSocketFactory(@Nullable TrustManager[] trustManagers) throws IOException, GeneralSecurityException {
+    public static SSLContext getSSLContext(boolean validateCertificates) {
+        if (validateCertificates) {
+            return validateContext;
+        }
+        if (trustAllContext == null && !warningLogged) {
+            logger.warn("The \"verify_server_cert\" configuration option is set to \"false\", but this agent may not be " +
+                "able to communicate with APM Server without verifying the server certificates.");
+            warningLogged = true;
+        }
+        return trustAllContext;
+    }
+
+    private static SSLContext createSSLContext(@Nullable TrustManager[] trustManagers) throws IOException, GeneralSecurityException {
         SSLContext sslContext;
         try {
             sslContext = SSLContext.getInstance("SSL");
@@ -131,11 +156,11 @@ public class SslUtils {
         }
 
         sslContext.init(keyManagers, trustManagers, new java.security.SecureRandom());
-        return sslContext.getSocketFactory();
+        return sslContext;
     }
 
     public static SSLSocketFactory createTrustAllSocketFactory() throws GeneralSecurityException, IOException {
-        return Objects.requireNonNull(createSocketFactory(new TrustManager[]{X_509_TRUST_ALL}));
+        return createSSLContext(new TrustManager[]{X_509_TRUST_ALL}).getSocketFactory();
     }
 
     public static HostnameVerifier getTrustAllHostnameVerifier() {
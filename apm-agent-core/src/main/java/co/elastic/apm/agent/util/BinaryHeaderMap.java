@@ -154,7 +154,10 @@ public class BinaryHeaderMap implements Recyclable, Iterable<BinaryHeaderMap.Ent
 
     public void copyFrom(BinaryHeaderMap other) {
         resetState();
-        keys.addAll(other.keys);
+        // not using addAll as it allocates an array, even if the other map is empty
+        for (int i = 0, size = other.keys.size(); i < size; i++) {
+            keys.add(other.keys.get(i));
+        }
         ((Buffer) other.valueBuffer).flip();
         if (valueBuffer.capacity() < other.valueBuffer.remaining()) {
             valueBuffer = CharBuffer.allocate(other.valueBuffer.remaining());
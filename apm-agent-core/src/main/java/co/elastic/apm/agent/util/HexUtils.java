@@ -24,6 +24,30 @@ public class HexUtils {
 
     private final static char[] hexArray = "0123456789abcdef".toCharArray();
 
+    /**
+     * The two lower-case hex chars of each unsigned byte value, at index {@code 2 * value} and {@code 2 * value + 1}
+     */
+    private final static char[] BYTE_TO_HEX = new char[256 * 2];
+
+    /**
+     * The value of each ASCII hex char, {@code -1} for other chars
+     */
+    private final static byte[] HEX_TO_VALUE = new byte[128];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            BYTE_TO_HEX[2 * i] = hexArray[i >>> 4];
+            BYTE_TO_HEX[2 * i + 1] = hexArray[i & 0x0F];
+        }
+        for (int i = 0; i < HEX_TO_VALUE.length; i++) {
+            HEX_TO_VALUE[i] = -1;
+        }
+        for (int i = 0; i < 16; i++) {
+            HEX_TO_VALUE[hexArray[i]] = (byte) i;
+            HEX_TO_VALUE[Character.toUpperCase(hexArray[i])] = (byte) i;
+        }
+    }
+
     private HexUtils() {
         // only static utility methods, don't instantiate
     }
@@ -71,26 +95,57 @@ public class HexUtils {
         sb.append(hexArray[v & 0x0F]);
     }
 
+    /**
+     * Writes the two hex chars of a byte into a char array
+     *
+     * @param b      the byte to encode
+     * @param dest   the destination array
+     * @param offset the index of the first char in the destination array
+     * @return the index after the last written char
+     */
+    public static int writeByteAsHex(byte b, char[] dest, int offset) {
+        int i = (b & 0xFF) << 1;
+        dest[offset] = BYTE_TO_HEX[i];
+        dest[offset + 1] = BYTE_TO_HEX[i + 1];
+        return offset + 2;
+    }
+
+    /**
+     * Writes the hex chars of the given bytes into a char array
+     *
+     * @return the index after the last written char
+     */
+    public static int writeBytesAsHex(byte[] bytes, char[] dest, int offset) {
+        for (int i = 0; i < bytes.length; i++) {
+            offset = writeByteAsHex(bytes[i], dest, offset);
+        }
+        return offset;
+    }
+
     public static byte getNextByte(String hexEncodedString, int offset) {
-        final int hi = hexCharToBinary(hexEncodedString.charAt(offset));
-        final int lo = hexCharToBinary(hexEncodedString.charAt(offset + 1));
-        if (hi == -1 || lo == -1) {
+        final int value = decodeByte(hexEncodedString, offset);
+        if (value < 0) {
             throw new IllegalArgumentException("Not a hex encoded string: " + hexEncodedString + " at offset " + offset);
         }
-        return (byte) ((hi << 4) + lo);
+        return (byte) value;
     }
 
-    private static int hexCharToBinary(char ch) {
-        if ('0' <= ch && ch <= '9') {
-            return ch - '0';
-        }
-        if ('A' <= ch && ch <= 'F') {
-            return ch - 'A' + 10;
-        }
-        if ('a' <= ch && ch <= 'f') {
-            return ch - 'a' + 10;
+    /**
+     * Decodes the two hex chars at the given offset, without throwing for invalid chars
+     *
+     * @return the unsigned byte value, or a negative value if any of the two chars is not a hex char
+     */
+    public static int decodeByte(CharSequence hexEncoded, int offset) {
+        final int hi = hexCharToBinary(hexEncoded.charAt(offset));
+        final int lo = hexCharToBinary(hexEncoded.charAt(offset + 1));
+        if ((hi | lo) < 0) {
+            return -1;
         }
-        return -1;
+        return (hi << 4) | lo;
+    }
+
+    private static int hexCharToBinary(char ch) {
+        return ch < HEX_TO_VALUE.length ? HEX_TO_VALUE[ch] : -1;
     }
 
     public static void nextBytes(String hexEncodedString, int offset, byte[] bytes) {
@@ -112,6 +167,47 @@ public class HexUtils {
         }
     }
 
+    /**
+     * Writes the 16 ASCII hex chars of a {@code long} into a byte array
+     *
+     * @param l      the value to encode
+     * @param dest   the destination array
+     * @param offset the index of the first char in the destination array
+     * @return the index after the last written char
+     */
+    public static int writeAsHex(long l, byte[] dest, int offset) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            int i = (int) ((l >>> shift) & 0xFF) << 1;
+            dest[offset++] = (byte) BYTE_TO_HEX[i];
+            dest[offset++] = (byte) BYTE_TO_HEX[i + 1];
+        }
+        return offset;
+    }
+
+    /**
+     * Writes the 16 hex chars of a {@code long} into a char array
+     *
+     * @param l      the value to encode
+     * @param dest   the destination array
+     * @param offset the index of the first char in the destination array
+     * @return the index after the last written char
+     */
+    public static int writeAsHex(long l, char[] dest, int offset) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            int i = (int) ((l >>> shift) & 0xFF) << 1;
+            dest[offset++] = BYTE_TO_HEX[i];
+            dest[offset++] = BYTE_TO_HEX[i + 1];
+        }
+        return offset;
+    }
+
+    public static void writeAsHex(long l, StringBuilder sb) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            int i = (int) ((l >>> shift) & 0xFF) << 1;
+            sb.append(BYTE_TO_HEX[i]).append(BYTE_TO_HEX[i + 1]);
+        }
+    }
+
     public static void writeAsHex(long l, JsonWriter jw) {
         writeHexByte(jw, (byte) (l >> 56));
         writeHexByte(jw, (byte) (l >> 48));
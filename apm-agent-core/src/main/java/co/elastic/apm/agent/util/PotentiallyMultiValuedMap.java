@@ -178,8 +178,11 @@ public class PotentiallyMultiValuedMap implements Recyclable {
     }
 
     public void copyFrom(PotentiallyMultiValuedMap other) {
-        this.keys.addAll(other.keys);
-        this.values.addAll(other.values);
+        // not using addAll as it allocates an array, even if the other map is empty
+        for (int i = 0, size = other.keys.size(); i < size; i++) {
+            this.keys.add(other.keys.get(i));
+            this.values.add(other.values.get(i));
+        }
     }
 
     public void removeIgnoreCase(String key) {
@@ -30,7 +30,9 @@ import co.elastic.apm.agent.impl.transaction.Transaction;
 import co.elastic.apm.agent.report.ApmServerClient;
 import co.elastic.apm.agent.report.IntakeV2ReportingEventHandler;
 import co.elastic.apm.agent.report.Reporter;
+import co.elastic.apm.agent.report.ReporterStatistics;
 import co.elastic.apm.agent.report.ReportingEvent;
+import co.elastic.apm.agent.report.SerializedEvent;
 import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
 import com.dslplatform.json.JsonWriter;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -42,9 +44,11 @@ import org.awaitility.core.ThrowingRunnable;
 import org.stagemonitor.configuration.ConfigurationRegistry;
 import specs.TestJsonSpec;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -461,6 +465,26 @@ public class MockReporter implements Reporter {
         this.bytes.add(jsonWriter.toByteArray());
     }
 
+    @Override
+    public synchronized void report(SerializedEvent serializedEvent) {
+        try {
+            if (closed) {
+                return;
+            }
+            // a chunk of metric sets contains one metric set per line
+            byte[] chunk = serializedEvent.getBytes();
+            int start = 0;
+            for (int i = 0; i < serializedEvent.getSize(); i++) {
+                if (chunk[i] == '\n') {
+                    this.bytes.add(Arrays.copyOfRange(chunk, start, i + 1));
+                    start = i + 1;
+                }
+            }
+        } finally {
+            serializedEvent.recycle();
+        }
+    }
+
     @Override
     public boolean flush() {
         return true;
@@ -519,6 +543,17 @@ public class MockReporter implements Reporter {
         return 0;
     }
 
+    @Override
+    public long getQueuedBytes() {
+        return -1;
+    }
+
+    @Nullable
+    @Override
+    public ReporterStatistics getStatistics() {
+        return null;
+    }
+
     @Override
     public boolean flush(long timeout, TimeUnit unit, boolean followupWithFlushRequest) {
         return true;
@@ -0,0 +1,247 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl;
+
+import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.impl.transaction.ElasticContext;
+import co.elastic.apm.agent.impl.transaction.ElasticContextWrapper;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.objectpool.ObjectPool;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIf;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+class ActiveStackTest {
+
+    private static final List<ActivationListener> NO_LISTENERS = Collections.emptyList();
+
+    @Test
+    void testGrowsUpToMaxDepth() {
+        int maxDepth = ActiveStack.INITIAL_CAPACITY * 2 + 3;
+        ActiveStack stack = new ActiveStack(maxDepth);
+        List<ElasticContext<?>> contexts = new ArrayList<>();
+        for (int i = 0; i < maxDepth; i++) {
+            ElasticContext<?> context = mock(ElasticContext.class);
+            contexts.add(context);
+            assertThat(stack.activate(context, NO_LISTENERS)).isTrue();
+            assertThat(stack.currentContext()).isSameAs(context);
+        }
+
+        ElasticContext<?> overflow = mock(ElasticContext.class);
+        assertThat(stack.activate(overflow, NO_LISTENERS)).isFalse();
+        assertThat(stack.currentContext()).isSameAs(contexts.get(maxDepth - 1));
+        assertThat(stack.deactivate(overflow, NO_LISTENERS, true)).isFalse();
+
+        for (int i = maxDepth - 1; i >= 0; i--) {
+            assertThat(stack.currentContext()).isSameAs(contexts.get(i));
+            assertThat(stack.deactivate(contexts.get(i), NO_LISTENERS, true)).isTrue();
+        }
+        assertThat(stack.currentContext()).isNull();
+        assertThat(stack.isEmpty()).isTrue();
+    }
+
+    @Test
+    void testCurrentTransactionIsTheTransactionOfTheBottomContext() {
+        ActiveStack stack = new ActiveStack(10);
+        Transaction transaction = mock(Transaction.class);
+        ElasticContext<?> bottom = mock(ElasticContext.class);
+        doReturn(transaction).when(bottom).getTransaction();
+        ElasticContext<?> top = mock(ElasticContext.class);
+        doReturn(mock(Transaction.class)).when(top).getTransaction();
+
+        assertThat(stack.currentTransaction()).isNull();
+        stack.activate(bottom, NO_LISTENERS);
+        stack.activate(top, NO_LISTENERS);
+        assertThat(stack.currentTransaction()).isSameAs(transaction);
+
+        stack.deactivate(top, NO_LISTENERS, true);
+        assertThat(stack.currentTransaction()).isSameAs(transaction);
+        stack.deactivate(bottom, NO_LISTENERS, true);
+        assertThat(stack.currentTransaction()).isNull();
+    }
+
+    @Test
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    void testWrappedContextIsUnwrapped() {
+        ActiveStack stack = new ActiveStack(10);
+        Transaction transaction = mock(Transaction.class);
+        ElasticContext<?> context = mock(ElasticContext.class);
+        doReturn(transaction).when(context).getTransaction();
+        ElasticContext<?> wrapper = new ElasticContextWrapper(1, context);
+        ElasticContext<?> top = mock(ElasticContext.class);
+
+        stack.activate(wrapper, NO_LISTENERS);
+        assertThat(stack.currentContext()).isSameAs(context);
+        assertThat(stack.currentTransaction()).isSameAs(transaction);
+
+        stack.activate(top, NO_LISTENERS);
+        stack.deactivate(top, NO_LISTENERS, true);
+        assertThat(stack.currentContext()).isSameAs(context);
+        assertThat(stack.currentTransaction()).isSameAs(transaction);
+
+        stack.deactivate(context, NO_LISTENERS, true);
+        assertThat(stack.currentContext()).isNull();
+        assertThat(stack.currentTransaction()).isNull();
+    }
+
+    @Test
+    void testActivationOnOtherThread() throws Exception {
+        ElasticApmTracer tracer = MockTracer.createRealTracer();
+        Transaction transaction = tracer.startRootTransaction(null);
+        AtomicReference<ElasticContext<?>> activeOnOtherThread = new AtomicReference<>();
+        AtomicReference<ElasticContext<?>> activeOnOtherThreadAfterDeactivation = new AtomicReference<>();
+        try {
+            transaction.activate();
+            Thread thread = new Thread(() -> {
+                transaction.activate();
+                activeOnOtherThread.set(tracer.currentContext());
+                transaction.deactivate();
+                activeOnOtherThreadAfterDeactivation.set(tracer.currentContext());
+            });
+            thread.start();
+            thread.join();
+
+            assertThat(activeOnOtherThread.get()).isSameAs(transaction);
+            assertThat(activeOnOtherThreadAfterDeactivation.get()).isNull();
+            assertThat(tracer.currentContext()).isSameAs(transaction);
+        } finally {
+            transaction.deactivate().end();
+            tracer.stop();
+        }
+    }
+
+    @Test
+    void testResetState() {
+        ActiveStack stack = new ActiveStack(10, true);
+        ElasticContext<?> context = mock(ElasticContext.class);
+        doReturn(mock(Transaction.class)).when(context).getTransaction();
+        stack.activate(context, NO_LISTENERS);
+
+        stack.resetState();
+
+        assertThat(stack.isEmpty()).isTrue();
+        assertThat(stack.currentContext()).isNull();
+        assertThat(stack.currentTransaction()).isNull();
+    }
+
+    @Test
+    void testLookupDoesNotCreateStack() throws Exception {
+        ElasticApmTracer tracer = MockTracer.createRealTracer();
+        AtomicReference<ActiveStack> activeStack = new AtomicReference<>();
+        try {
+            Thread thread = new Thread(() -> {
+                assertThat(tracer.currentContext()).isNull();
+                assertThat(tracer.currentTransaction()).isNull();
+                activeStack.set(tracer.getActiveStack());
+            });
+            thread.start();
+            thread.join();
+
+            assertThat(activeStack.get()).isNull();
+        } finally {
+            tracer.stop();
+        }
+    }
+
+    @Test
+    void testWrappingWithoutActiveContextDoesNotCreateStack() throws Exception {
+        ElasticApmTracer tracer = MockTracer.createRealTracer();
+        AtomicReference<ActiveStack> activeStack = new AtomicReference<>();
+        try {
+            Thread thread = new Thread(() -> {
+                assertThatThrownBy(() -> tracer.wrapActiveContextIfRequired(Transaction.class, () -> null))
+                    .isInstanceOf(NullPointerException.class);
+                activeStack.set(tracer.getActiveStack());
+            });
+            thread.start();
+            thread.join();
+
+            assertThat(activeStack.get()).isNull();
+        } finally {
+            tracer.stop();
+        }
+    }
+
+    @Test
+    @EnabledIf("virtualThreadsSupported")
+    void testVirtualThreadsDoNotTakeStackFromThePoolWhenWrappingWithoutActiveContext() throws Exception {
+        ElasticApmTracer tracer = MockTracer.createRealTracer();
+        ObjectPool<?> activeStackPool = tracer.getObjectPools().get("active_stack");
+        AtomicReference<Throwable> thrown = new AtomicReference<>();
+        try {
+            Thread virtualThread = (Thread) Thread.class.getMethod("startVirtualThread", Runnable.class).invoke(null, (Runnable) () -> {
+                try {
+                    tracer.wrapActiveContextIfRequired(Transaction.class, () -> null);
+                } catch (Throwable t) {
+                    thrown.set(t);
+                }
+            });
+            virtualThread.join();
+
+            assertThat(thrown.get()).isInstanceOf(NullPointerException.class);
+            assertThat(activeStackPool.getObjectsCreated()).isZero();
+        } finally {
+            tracer.stop();
+        }
+    }
+
+    @Test
+    @EnabledIf("virtualThreadsSupported")
+    void testVirtualThreadsReturnTheirStackToThePool() throws Exception {
+        ElasticApmTracer tracer = MockTracer.createRealTracer();
+        ObjectPool<?> activeStackPool = tracer.getObjectPools().get("active_stack");
+        Transaction transaction = tracer.startRootTransaction(null);
+        AtomicReference<ElasticContext<?>> activeOnVirtualThread = new AtomicReference<>();
+        try {
+            for (int i = 0; i < 3; i++) {
+                Thread virtualThread = (Thread) Thread.class.getMethod("startVirtualThread", Runnable.class).invoke(null, (Runnable) () -> {
+                    transaction.activate();
+                    activeOnVirtualThread.set(tracer.currentContext());
+                    transaction.deactivate();
+                });
+                virtualThread.join();
+
+                assertThat(activeOnVirtualThread.get()).isSameAs(transaction);
+                assertThat(activeStackPool.getObjectsInPool()).isEqualTo(1);
+            }
+            assertThat(activeStackPool.getObjectsCreated()).isEqualTo(1);
+        } finally {
+            transaction.end();
+            tracer.stop();
+        }
+    }
+
+    static boolean virtualThreadsSupported() {
+        try {
+            Thread.class.getMethod("startVirtualThread", Runnable.class);
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+}
@@ -21,11 +21,14 @@ package co.elastic.apm.agent.impl;
 import co.elastic.apm.agent.MockReporter;
 import co.elastic.apm.agent.MockTracer;
 import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.configuration.MetricsConfiguration;
 import co.elastic.apm.agent.configuration.SpyConfiguration;
 import co.elastic.apm.agent.impl.sampling.ConstantSampler;
 import co.elastic.apm.agent.impl.transaction.AbstractSpan;
+import co.elastic.apm.agent.impl.transaction.Outcome;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.metrics.Histogram;
 import co.elastic.apm.agent.metrics.Labels;
 import co.elastic.apm.agent.metrics.MetricSet;
 import co.elastic.apm.agent.metrics.Timer;
@@ -118,7 +121,7 @@ class SpanTypeBreakdownTest {
         transaction.createSpan(10).withType("db").withSubtype("mysql").end(20);
         transaction.end(30);
 
-        assertThat(transaction.getTimerBySpanTypeAndSubtype()).isEmpty();
+        assertThat(transaction.getBreakdownAccumulator().isEmpty()).isTrue();
         tracer.getMetricRegistry().flipPhaseAndReport(metricSets -> {
             assertThat(getTimer(metricSets, "span.self_time", "app", null)).isNull();
             assertThat(getTimer(metricSets, "span.self_time", "db", "mysql")).isNull();
@@ -307,7 +310,7 @@ class SpanTypeBreakdownTest {
 
         // recycled transactions should not leak child timings
         reporter.assertRecycledAfterDecrementingReferences();
-        assertThat(reporter.getFirstTransaction().getTimerBySpanTypeAndSubtype().get("db")).isNull();
+        assertThat(reporter.getFirstTransaction().getBreakdownAccumulator().getCount("db", "mysql")).isZero();
 
         tracer.getMetricRegistry().flipPhaseAndReport(metricSets -> {
             assertThat(getTimer(metricSets, "span.self_time", "app", null).getCount()).isEqualTo(1);
@@ -375,6 +378,38 @@ class SpanTypeBreakdownTest {
         });
     }
 
+    @Test
+    void testTransactionDurationHistogram() {
+        doReturn(true).when(tracer.getConfig(MetricsConfiguration.class)).isTransactionDurationHistogramEnabled();
+        createTransaction().end(30);
+        createTransaction().end(30);
+        createTransaction().withOutcome(Outcome.FAILURE).end(1000);
+
+        tracer.getMetricRegistry().flipPhaseAndReport(metricSets -> {
+            Histogram success = getHistogram(metricSets, "success");
+            assertThat(success.getCount()).isEqualTo(2);
+            assertThat(getHistogram(metricSets, "failure").getCount()).isEqualTo(1);
+        });
+    }
+
+    @Test
+    void testTransactionDurationHistogram_disabled() {
+        createTransaction().end(30);
+
+        tracer.getMetricRegistry().flipPhaseAndReport(metricSets -> assertThat(getHistogram(metricSets, "success")).isNull());
+    }
+
+    @Nullable
+    private Histogram getHistogram(Map<? extends Labels, MetricSet> metricSets, String outcome) {
+        final Labels.Mutable labels = Labels.Mutable.of().transactionName("test").transactionType("request");
+        labels.add("outcome", outcome);
+        final MetricSet metricSet = metricSets.get(labels);
+        if (metricSet == null) {
+            return null;
+        }
+        return metricSet.getHistograms().get("transaction.duration.histogram");
+    }
+
     private Transaction createTransaction() {
         return tracer.startRootTransaction(ConstantSampler.of(true), 0, getClass().getClassLoader())
             .withName("test")
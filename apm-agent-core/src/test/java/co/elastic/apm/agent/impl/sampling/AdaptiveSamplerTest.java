@@ -0,0 +1,156 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.sampling;
+
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.configuration.SpyConfiguration;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+
+class AdaptiveSamplerTest {
+
+    private CoreConfiguration config;
+    private AdaptiveSampler sampler;
+
+    @BeforeEach
+    void setUp() {
+        config = SpyConfiguration.createSpyConfig().getConfig(CoreConfiguration.class);
+        doReturn(30).when(config).getTransactionSampleBudget();
+        sampler = new AdaptiveSampler(config, System.nanoTime());
+    }
+
+    @Test
+    void testRateIsAdjustedToBudget() {
+        assertThat(sampler.isEnabled()).isTrue();
+        assertThat(sampler.getSampler().getSampleRate()).isEqualTo(1.0);
+        for (int i = 0; i < 120; i++) {
+            sampler.onRootTransactionEnd();
+        }
+
+        sampler.adjustRates(1.0);
+
+        assertThat(sampler.getThroughput()).isEqualTo(120);
+        assertThat(sampler.getSampler().getSampleRate()).isEqualTo(0.25);
+        assertThat(sampler.getSampler().getTraceStateHeader()).isEqualTo("es=s:0.25");
+    }
+
+    @Test
+    void testThroughputIsSmoothed() {
+        for (int i = 0; i < 120; i++) {
+            sampler.onRootTransactionEnd();
+        }
+        sampler.adjustRates(1.0);
+        sampler.adjustRates(1.0);
+
+        assertThat(sampler.getThroughput()).isEqualTo(60);
+        assertThat(sampler.getSampler().getSampleRate()).isEqualTo(0.5);
+    }
+
+    @Test
+    void testBudgetIsSharedByNames() {
+        observe("GET /health", 1000);
+        observe("GET /cart", 20);
+        observe("POST /checkout", 5);
+
+        sampler.adjustRates(1.0);
+
+        // checkout needs less than its share of 10, the remaining 25 are split between cart and health
+        assertThat(sampler.getSampler("POST /checkout").getSampleRate()).isEqualTo(1.0);
+        assertThat(sampler.getSampler("GET /cart").getSampleRate()).isEqualTo(0.625);
+        assertThat(sampler.getSampler("GET /health").getSampleRate()).isEqualTo(0.0125);
+    }
+
+    @Test
+    void testSampleRateIsUpperBound() throws IOException {
+        config.getSampleRate().update(0.1, SpyConfiguration.CONFIG_SOURCE_NAME);
+        observe("GET /cart", 20);
+        observe("GET /health", 1000);
+
+        sampler.adjustRates(1.0);
+
+        assertThat(sampler.getSampler("GET /cart").getSampleRate()).isEqualTo(0.1);
+        assertThat(sampler.getSampler("GET /health").getSampleRate()).isEqualTo(0.015);
+    }
+
+    @Test
+    void testRateIsNotRoundedToZero() {
+        doReturn(1).when(config).getTransactionSampleBudget();
+        observe("GET /health", 100_000);
+
+        sampler.adjustRates(1.0);
+
+        // 1 / 100,000 would be rounded to zero with a precision of four decimal places
+        assertThat(sampler.getSampler("GET /health").getSampleRate()).isEqualTo(0.0001);
+    }
+
+    @Test
+    void testDisabledBudget() {
+        doReturn(0).when(config).getTransactionSampleBudget();
+        observe("GET /health", 1000);
+
+        sampler.adjustRates(1.0);
+
+        assertThat(sampler.isEnabled()).isFalse();
+        assertThat(sampler.getSampler("GET /health").getSampleRate()).isEqualTo(1.0);
+    }
+
+    @Test
+    void testIdleNamesAreRemoved() {
+        observe("GET /cart", 1);
+        for (int i = 0; i < 7; i++) {
+            sampler.adjustRates(1.0);
+        }
+        assertThat(sampler.getThroughput("GET /cart")).isPositive();
+
+        sampler.adjustRates(1.0);
+
+        // falls back to the reservoir shared by all other names
+        assertThat(sampler.getThroughput("GET /cart")).isZero();
+    }
+
+    @Test
+    void testNamesAreComparedByContent() {
+        StringBuilder name = new StringBuilder("GET /cart");
+        for (int i = 0; i < 20; i++) {
+            sampler.getSampler(name);
+        }
+        // the reservoir must not be affected when the buffer of the name is reused
+        name.setLength(0);
+        name.append("GET /health");
+        for (int i = 0; i < 1000; i++) {
+            sampler.getSampler(name);
+        }
+
+        sampler.adjustRates(1.0);
+
+        assertThat(sampler.getThroughput("GET /cart")).isEqualTo(20);
+        assertThat(sampler.getThroughput(new StringBuilder("GET /health"))).isEqualTo(1000);
+    }
+
+    private void observe(String name, int count) {
+        for (int i = 0; i < count; i++) {
+            sampler.getSampler(name);
+        }
+    }
+}
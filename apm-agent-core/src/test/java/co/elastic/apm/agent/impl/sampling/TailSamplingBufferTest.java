@@ -0,0 +1,225 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.sampling;
+
+import co.elastic.apm.agent.MockReporter;
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.configuration.SpyConfiguration;
+import co.elastic.apm.agent.configuration.converter.TimeDuration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.impl.transaction.Outcome;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.matcher.WildcardMatcher;
+import co.elastic.apm.agent.objectpool.TestObjectPoolFactory;
+import co.elastic.apm.agent.report.ApmServerClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+class TailSamplingBufferTest {
+
+    private ElasticApmTracer tracer;
+    private MockReporter reporter;
+    private CoreConfiguration coreConfig;
+    private TestObjectPoolFactory objectPoolFactory;
+    private TailSamplingBuffer buffer;
+    private long startUs;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        startUs = System.currentTimeMillis() * 1000;
+        objectPoolFactory = new TestObjectPoolFactory();
+        reporter = new MockReporter();
+        ConfigurationRegistry config = SpyConfiguration.createSpyConfig();
+        coreConfig = config.getConfig(CoreConfiguration.class);
+        doReturn(true).when(coreConfig).isTailSamplingEnabled();
+        doReturn(TimeDuration.of("1s")).when(coreConfig).getTailSamplingLatencyThreshold();
+        coreConfig.getSampleRate().update(0.0, SpyConfiguration.CONFIG_SOURCE_NAME);
+
+        ApmServerClient apmServerClient = mock(ApmServerClient.class);
+        doReturn(true).when(apmServerClient).supportsKeepingUnsampledTransaction();
+
+        tracer = new ElasticApmTracerBuilder()
+            .configurationRegistry(config)
+            .reporter(reporter)
+            .withObjectPoolFactory(objectPoolFactory)
+            .withApmServerClient(apmServerClient)
+            .buildAndStart();
+        buffer = tracer.getTailSamplingBuffer();
+        assertThat(buffer).isNotNull();
+    }
+
+    @AfterEach
+    void cleanupAndCheck() {
+        reporter.assertRecycledAfterDecrementingReferences();
+        objectPoolFactory.checkAllPooledObjectsHaveBeenRecycled();
+    }
+
+    @Test
+    void testFastTraceIsDroppedBySampleRate() {
+        Transaction transaction = startTransaction("fast");
+        assertThat(transaction.isSampled()).isTrue();
+        transaction.createSpan(startUs + 10).end(startUs + 20);
+        assertThat(reporter.getSpans()).isEmpty();
+        assertThat(buffer.getBufferedTraces()).isEqualTo(1);
+
+        transaction.end(startUs + 100);
+
+        assertThat(reporter.getSpans()).isEmpty();
+        assertThat(reporter.getFirstTransaction().isSampled()).isFalse();
+        assertThat(buffer.getBufferedTraces()).isZero();
+        assertThat(buffer.getBufferedBytes()).isZero();
+        assertThat(buffer.getDecisions(TailSamplingBuffer.Decision.DROP_SAMPLE_RATE)).isEqualTo(1);
+    }
+
+    @Test
+    void testSlowTraceIsKept() {
+        Transaction transaction = startTransaction("slow");
+        transaction.createSpan(startUs + 10).end(startUs + 20);
+
+        transaction.end(startUs + 2_000_000);
+
+        assertThat(reporter.getSpans()).hasSize(1);
+        assertThat(reporter.getFirstTransaction().isSampled()).isTrue();
+        assertThat(buffer.getDecisions(TailSamplingBuffer.Decision.KEEP_LATENCY)).isEqualTo(1);
+        assertThat(buffer.getBufferedTracesDecided()).isEqualTo(1);
+    }
+
+    @Test
+    void testFailedTraceIsKept() {
+        Transaction transaction = startTransaction("failed");
+        transaction.createSpan(startUs + 10).end(startUs + 20);
+
+        transaction.withOutcome(Outcome.FAILURE).end(startUs + 100);
+
+        assertThat(reporter.getSpans()).hasSize(1);
+        assertThat(reporter.getFirstTransaction().isSampled()).isTrue();
+        assertThat(buffer.getDecisions(TailSamplingBuffer.Decision.KEEP_FAILURE)).isEqualTo(1);
+    }
+
+    @Test
+    void testPolicyOverridesSampleRate() throws IOException {
+        coreConfig.getTailSamplingPolicies().update(Collections.singletonMap(WildcardMatcher.valueOf("checkout*"), 1.0), SpyConfiguration.CONFIG_SOURCE_NAME);
+        Transaction transaction = startTransaction("checkout cart");
+        transaction.createSpan(startUs + 10).end(startUs + 20);
+
+        transaction.end(startUs + 100);
+
+        assertThat(reporter.getSpans()).hasSize(1);
+        assertThat(buffer.getDecisions(TailSamplingBuffer.Decision.KEEP_POLICY)).isEqualTo(1);
+    }
+
+    @Test
+    void testKeptTraceHasEffectiveSampleRate() throws IOException {
+        coreConfig.getSampleRate().update(0.5, SpyConfiguration.CONFIG_SOURCE_NAME);
+        for (int i = 0; i < 100; i++) {
+            Transaction transaction = startTransaction("fast");
+            assertThat(transaction.getTraceContext().getSampleRate()).isEqualTo(1.0);
+            transaction.createSpan(startUs + 10).end(startUs + 20);
+            transaction.end(startUs + 100);
+        }
+
+        assertThat(reporter.getSpans()).isNotEmpty();
+        for (Span span : reporter.getSpans()) {
+            assertThat(span.getTraceContext().getSampleRate()).isEqualTo(0.5);
+        }
+        for (Transaction transaction : reporter.getTransactions()) {
+            assertThat(transaction.getTraceContext().getSampleRate()).isEqualTo(transaction.isSampled() ? 0.5 : 0.0);
+        }
+        assertThat(reporter.getSpans()).hasSize((int) reporter.getTransactions().stream().filter(Transaction::isSampled).count());
+    }
+
+    @Test
+    void testSpansEndingAfterTheDecisionFollowIt() {
+        Transaction transaction = startTransaction("fast");
+        Span span = transaction.createSpan(startUs + 10);
+
+        transaction.end(startUs + 100);
+        span.end(startUs + 200);
+
+        assertThat(reporter.getSpans()).isEmpty();
+        assertThat(buffer.getBufferedTraces()).isZero();
+    }
+
+    @Test
+    void testDecisionIsMadeEarlyWhenBufferIsFull() {
+        doReturn(0L).when(coreConfig).getTailSamplingMaxBufferBytes();
+        Transaction transaction = startTransaction("fast");
+        transaction.createSpan(startUs + 10).end(startUs + 20);
+
+        assertThat(buffer.getBufferedTraces()).isZero();
+        assertThat(buffer.getBufferedBytes()).isZero();
+        assertThat(buffer.getDecisions(TailSamplingBuffer.Decision.DROP_SAMPLE_RATE)).isEqualTo(1);
+
+        // the outcome is not considered anymore once the decision has been made
+        transaction.withOutcome(Outcome.FAILURE).end(startUs + 100);
+        assertThat(reporter.getSpans()).isEmpty();
+        assertThat(reporter.getFirstTransaction().isSampled()).isFalse();
+    }
+
+    @Test
+    void testDecisionIsMadeAfterWindowWithoutFurtherEvents() {
+        Transaction transaction = startTransaction("fast");
+        transaction.createSpan(startUs + 10).end(startUs + 20);
+        long windowNs = TimeUnit.MILLISECONDS.toNanos(coreConfig.getTailSamplingDecisionWindow().getMillis());
+
+        buffer.makeEarlyDecisions(System.nanoTime());
+        assertThat(buffer.getBufferedTraces()).isEqualTo(1);
+
+        buffer.makeEarlyDecisions(System.nanoTime() + windowNs);
+        assertThat(buffer.getBufferedTraces()).isZero();
+        assertThat(buffer.getBufferedBytes()).isZero();
+        assertThat(buffer.getDecisions(TailSamplingBuffer.Decision.DROP_SAMPLE_RATE)).isEqualTo(1);
+
+        transaction.end(startUs + 100);
+        assertThat(reporter.getSpans()).isEmpty();
+    }
+
+    @Test
+    void testWindowIsCheckedPeriodically() {
+        doReturn(TimeDuration.of("10ms")).when(coreConfig).getTailSamplingDecisionWindow();
+        Transaction transaction = startTransaction("fast");
+        transaction.createSpan(startUs + 10).end(startUs + 20);
+
+        // reschedules the sweep with the changed window
+        buffer.run();
+
+        await().untilAsserted(() -> assertThat(buffer.getBufferedTraces()).isZero());
+        transaction.end(startUs + 100);
+        assertThat(reporter.getSpans()).isEmpty();
+    }
+
+    private Transaction startTransaction(String name) {
+        Transaction transaction = tracer.startRootTransaction(tracer.getSampler(), startUs, getClass().getClassLoader());
+        assertThat(transaction).isNotNull();
+        return transaction.withName(name).withType("request");
+    }
+}
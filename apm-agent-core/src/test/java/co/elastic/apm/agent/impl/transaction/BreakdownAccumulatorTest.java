@@ -0,0 +1,169 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.transaction;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BreakdownAccumulatorTest {
+
+    private final BreakdownAccumulator accumulator = new BreakdownAccumulator();
+
+    @Test
+    void testAddAndReset() {
+        assertThat(accumulator.isEmpty()).isTrue();
+        assertThat(accumulator.add("db", "mysql", 10)).isTrue();
+        assertThat(accumulator.add("db", "mysql", 20)).isTrue();
+        assertThat(accumulator.add("db", null, 5)).isTrue();
+        assertThat(accumulator.add(new String("db"), new String("mysql"), 1)).isTrue();
+
+        assertThat(accumulator.isEmpty()).isFalse();
+        assertThat(accumulator.getCount("db", "mysql")).isEqualTo(3);
+        assertThat(accumulator.getTotalTimeUs("db", "mysql")).isEqualTo(31);
+        assertThat(accumulator.getCount("db", null)).isEqualTo(1);
+        assertThat(accumulator.getTotalTimeUs("db", null)).isEqualTo(5);
+        assertThat(accumulator.getCount("db", "postgresql")).isZero();
+
+        accumulator.resetState();
+        assertThat(accumulator.getCount("db", "mysql")).isZero();
+        assertThat(accumulator.getTotalTimeUs("db", "mysql")).isZero();
+        // the keys are kept so that they don't have to be allocated again
+        assertThat(accumulator.isEmpty()).isFalse();
+    }
+
+    @Test
+    void testSlots() {
+        accumulator.add("db", "mysql", 10);
+        accumulator.add("app", null, 20);
+
+        int slots = 0;
+        for (int slot = 0; slot < BreakdownAccumulator.MAX_KEYS; slot++) {
+            String type = accumulator.getType(slot);
+            if (type != null) {
+                slots++;
+                if (type.equals("app")) {
+                    assertThat(accumulator.getSubtype(slot)).isNull();
+                    assertThat(accumulator.getTotalTimeUs(slot)).isEqualTo(20);
+                } else {
+                    assertThat(accumulator.getSubtype(slot)).isEqualTo("mysql");
+                    assertThat(accumulator.getTotalTimeUs(slot)).isEqualTo(10);
+                }
+                assertThat(accumulator.getCount(slot)).isEqualTo(1);
+            }
+        }
+        assertThat(slots).isEqualTo(2);
+    }
+
+    @Test
+    void testLimit() {
+        for (int i = 0; i < BreakdownAccumulator.MAX_KEYS; i++) {
+            assertThat(accumulator.add("type", "subtype-" + i, 1)).isTrue();
+        }
+        assertThat(accumulator.add("type", "one-too-many", 1)).isFalse();
+        assertThat(accumulator.add("type", "subtype-0", 1)).isTrue();
+        assertThat(accumulator.getCount("type", "subtype-0")).isEqualTo(2);
+        assertThat(accumulator.getCount("type", "one-too-many")).isZero();
+    }
+
+    @Test
+    void testKeysAreEvictedAcrossRecycledTransactions() {
+        // more than half of the eviction threshold, so that the keys of two transactions exceed it
+        int keysPerTransaction = BreakdownAccumulator.EVICTION_THRESHOLD / 2 + 1;
+        // the accumulator is owned by a pooled transaction and reset whenever the transaction ends
+        for (int transaction = 0; transaction < 5; transaction++) {
+            for (int i = 0; i < keysPerTransaction; i++) {
+                assertThat(accumulator.add("type", "subtype-" + transaction + "-" + i, 1)).isTrue();
+            }
+            assertThat(accumulator.getCount("type", "subtype-" + transaction + "-0")).isEqualTo(1);
+            accumulator.resetState();
+        }
+        assertThat(accumulator.add("type", "one-more", 1)).isTrue();
+    }
+
+    @Test
+    void testKeysAreEvictedAfterReachingLimit() {
+        for (int i = 0; i <= BreakdownAccumulator.MAX_KEYS; i++) {
+            accumulator.add("type", "subtype-" + i, 1);
+        }
+        assertThat(accumulator.add("type", "one-too-many", 1)).isFalse();
+        accumulator.resetState();
+
+        assertThat(accumulator.isEmpty()).isTrue();
+        assertThat(accumulator.add("type", "one-too-many", 1)).isTrue();
+    }
+
+    @Test
+    void testConcurrentAdds() throws Exception {
+        int threads = 8;
+        int spansPerThread = 10_000;
+        String[] subtypes = {"mysql", "postgresql", "redis", null};
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(executor.submit(() -> {
+                    for (int j = 0; j < spansPerThread; j++) {
+                        accumulator.add("db", subtypes[j % subtypes.length], 2);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdown();
+        }
+        for (String subtype : subtypes) {
+            assertThat(accumulator.getCount("db", subtype)).isEqualTo(threads * spansPerThread / subtypes.length);
+            assertThat(accumulator.getTotalTimeUs("db", subtype)).isEqualTo(2L * threads * spansPerThread / subtypes.length);
+        }
+    }
+
+    @Test
+    void testStripesAreReleasedOnReset() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(() -> accumulator.add("db", "mysql", 1)));
+            }
+            for (Future<?> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertThat(accumulator.getCount("db", "mysql")).isEqualTo(8);
+
+        accumulator.resetState();
+        assertThat(accumulator.getStripeCount()).isLessThanOrEqualTo(1);
+        assertThat(accumulator.getCount("db", "mysql")).isZero();
+
+        assertThat(accumulator.add("db", "mysql", 1)).isTrue();
+        assertThat(accumulator.getCount("db", "mysql")).isEqualTo(1);
+    }
+}
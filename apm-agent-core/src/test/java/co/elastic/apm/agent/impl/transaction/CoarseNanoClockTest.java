@@ -0,0 +1,90 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.transaction;
+
+import co.elastic.apm.agent.MockReporter;
+import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.configuration.SpanConfiguration;
+import co.elastic.apm.agent.configuration.SpyConfiguration;
+import co.elastic.apm.agent.configuration.converter.TimeDuration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import org.junit.jupiter.api.Test;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.Mockito.doReturn;
+
+class CoarseNanoClockTest {
+
+    @Test
+    void testClockIsUpdatedInTheBackground() {
+        CoarseNanoClock clock = new CoarseNanoClock(TimeUnit.MILLISECONDS.toNanos(1));
+        long initial = clock.nanoTime();
+        clock.start();
+        try {
+            await().untilAsserted(() -> assertThat(clock.nanoTime()).isGreaterThan(initial));
+            assertThat(clock.nanoTime()).isLessThanOrEqualTo(System.nanoTime());
+        } finally {
+            clock.stop();
+        }
+    }
+
+    @Test
+    void testSpansUseCoarseClock() {
+        ConfigurationRegistry config = SpyConfiguration.createSpyConfig();
+        doReturn(TimeDuration.of("10ms")).when(config.getConfig(SpanConfiguration.class)).getSpanClockResolution();
+        MockReporter reporter = new MockReporter();
+        ElasticApmTracer tracer = MockTracer.createRealTracer(reporter, config);
+        try {
+            CoarseNanoClock clock = tracer.getCoarseNanoClock();
+            assertThat(clock).isNotNull();
+            // stops the background updates, so that the test controls the time
+            clock.stop();
+            Transaction transaction = tracer.startRootTransaction(null);
+            assertThat(transaction).isNotNull();
+            EpochTickClock epochClock = transaction.getTraceContext().getClock();
+
+            // the coarse clock lags behind the start of the transaction, but spans never start before their parent
+            clock.setNanoTime(clock.nanoTime() - TimeUnit.SECONDS.toNanos(1));
+            Span span = transaction.createSpan();
+            assertThat(span.getTimestamp()).isEqualTo(transaction.getTimestamp());
+
+            long childStart = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+            clock.setNanoTime(childStart);
+            Span child = span.createSpan();
+            assertThat(child.getTimestamp()).isEqualTo(epochClock.getEpochMicros(childStart));
+
+            long childEnd = childStart + TimeUnit.MILLISECONDS.toNanos(5);
+            clock.setNanoTime(childEnd);
+            child.end();
+            span.end();
+            // transactions don't use the coarse clock
+            transaction.end(epochClock.getEpochMicros(childEnd));
+
+            assertThat(child.getDuration()).isEqualTo(epochClock.getEpochMicros(childEnd) - epochClock.getEpochMicros(childStart));
+            assertThat(span.getDuration()).isEqualTo(epochClock.getEpochMicros(childEnd) - transaction.getTimestamp());
+        } finally {
+            tracer.stop();
+        }
+        assertThat(tracer.getCoarseNanoClock()).isNull();
+    }
+}
@@ -74,4 +74,35 @@ class IdTest {
         assertThat(id.readLong(0)).isEqualTo(21);
         assertThat(id.readLong(8)).isEqualTo(42);
     }
+
+    @Test
+    void testBytesRoundTrip() {
+        final Id id = Id.new128BitId();
+        id.fromHexString("0af7651916cd43dd8448eb211c80319c", 0);
+
+        byte[] bytes = new byte[20];
+        assertThat(id.toBytes(bytes, 2)).isEqualTo(18);
+        assertThat(id.dataEquals(bytes, 2)).isTrue();
+
+        final Id copy = Id.new128BitId();
+        assertThat(copy.fromBytes(bytes, 2)).isEqualTo(16);
+        assertThat(copy).isEqualTo(id);
+        assertThat(copy.toString()).isEqualTo("0af7651916cd43dd8448eb211c80319c");
+        assertThat(copy.readLong(0)).isEqualTo(0x0af7651916cd43ddL);
+        assertThat(copy.getLeastSignificantBits()).isEqualTo(0x8448eb211c80319cL);
+    }
+
+    @Test
+    void testWriteAsHexAfterMutation() {
+        final Id id = Id.new64BitId();
+        id.fromHexString("b9c7c989f97918e1", 0);
+        StringBuilder sb = new StringBuilder();
+        id.writeAsHex(sb);
+        assertThat(sb.toString()).isEqualTo("b9c7c989f97918e1");
+
+        id.fromLongs(42);
+        char[] chars = new char[16];
+        assertThat(id.writeAsHex(chars, 0)).isEqualTo(16);
+        assertThat(new String(chars)).isEqualTo("000000000000002a");
+    }
 }
@@ -68,6 +68,28 @@ class SpanTest {
         assertThat(span.getOutcome()).isEqualTo(Outcome.UNKNOWN);
     }
 
+    @Test
+    void testRarelyUsedPartsAreAllocatedLazily() {
+        Span span = new Span(tracer);
+        assertThat(span.getContext().getMessageForRead()).isNull();
+        assertThat(tracer.getMessagePool().getObjectsInPool()).isZero();
+        assertThat(span.hasOtelAttributes()).isFalse();
+        assertThat(span.getSpanLinks()).isEmpty();
+
+        span.getContext().getMessage().withQueue("orders");
+        span.getOtelAttributes().put("messaging.system", "jms");
+        assertThat(span.getContext().getMessageForRead()).isNotNull();
+        assertThat(span.getContext().hasContent()).isTrue();
+        assertThat(span.hasOtelAttributes()).isTrue();
+
+        span.resetState();
+        assertThat(span.getContext().getMessageForRead()).isNull();
+        // the message is returned to the tracer's pool
+        assertThat(tracer.getMessagePool().getObjectsInPool()).isEqualTo(1);
+        assertThat(span.getContext().hasContent()).isFalse();
+        assertThat(span.hasOtelAttributes()).isFalse();
+    }
+
     @Test
     void testOutcomeExplicitlyToUnknown() {
         Transaction transaction = tracer.startRootTransaction(null);
@@ -392,6 +392,18 @@ class TraceContextTest {
         assertThat(traceContext.getOutgoingTraceParentTextHeader().toString()).isNotEqualTo(traceParentHeader);
     }
 
+    @Test
+    void testOutgoingTextHeaderIsRenderedOnce() {
+        final TraceContext traceContext = TraceContext.with64BitId(tracer);
+        traceContext.asChildOf("00-0af7651916cd43dd8448eb211c80319c-b9c7c989f97918e1-01");
+        String traceParentHeader = traceContext.getOutgoingTraceParentTextHeader();
+        assertThat(traceParentHeader).isEqualTo("00-0af7651916cd43dd8448eb211c80319c-" + traceContext.getId() + "-01");
+        assertThat(traceContext.getOutgoingTraceParentTextHeader()).isSameAs(traceParentHeader);
+
+        traceContext.setRecorded(false);
+        assertThat(traceContext.getOutgoingTraceParentTextHeader()).isEqualTo("00-0af7651916cd43dd8448eb211c80319c-" + traceContext.getTransactionId() + "-00");
+    }
+
     @Test
     void testResetOutgoingBinaryHeader() {
         final TraceContext traceContext = TraceContext.with64BitId(tracer);
@@ -667,6 +679,16 @@ class TraceContextTest {
         assertInvalid("00-$af7651916cd43dd8448eb211c80319c-b9c7c989f97918e1-03");
     }
 
+    @Test
+    void testInvalidHeader_nonHexFlags() {
+        assertInvalid("00-0af7651916cd43dd8448eb211c80319c-b9c7c989f97918e1-0x");
+    }
+
+    @Test
+    void testInvalidHeader_nonAsciiChars() {
+        assertInvalid("00-0af7651916cd43dd8448eb211c80319c-b9c7c989f97918\u00e9-01");
+    }
+
     @Test
     void testInvalidHeader_traceIdTooLong() {
         assertInvalid("00-00af7651916cd43dd8448eb211c80319c-9c7c989f97918e1-03");
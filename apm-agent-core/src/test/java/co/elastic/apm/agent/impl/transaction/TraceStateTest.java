@@ -25,6 +25,7 @@ import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.CsvSource;
 
 import javax.annotation.Nullable;
+import java.math.BigDecimal;
 import java.util.function.BiConsumer;
 import java.util.function.Function;
 
@@ -146,6 +147,20 @@ class TraceStateTest {
         checkHeader(Double.NaN, "aa=1|2|3,bb=4|5|6");
     }
 
+    @Test
+    void joinedHeaderIsCachedUntilMutation() {
+        traceState.addTextHeader("aa=1|2|3");
+        traceState.addTextHeader("bb=4|5|6");
+        String header = traceState.toTextHeader();
+        assertThat(traceState.toTextHeader()).isSameAs(header);
+
+        traceState.addTextHeader("cc=7");
+        assertThat(traceState.toTextHeader()).isEqualTo("aa=1|2|3,bb=4|5|6,cc=7");
+
+        traceState.resetState();
+        assertThat(traceState.toTextHeader()).isNull();
+    }
+
     @Test
     void sampleRateFromHeaders() {
         traceState.addTextHeader("aa=1|2|3");
@@ -226,6 +241,20 @@ class TraceStateTest {
         assertThat(TraceState.getHeaderValue(traceState.getSampleRate())).isEqualTo(header);
     }
 
+    @Test
+    void parseDecimalIsConsistentWithParseDouble() {
+        for (int i = 0; i <= 10000; i++) {
+            String rate = BigDecimal.valueOf(i).movePointLeft(4).toPlainString();
+            assertThat(TraceState.parseDecimal(rate, 0, rate.length())).isEqualTo(Double.parseDouble(rate));
+        }
+        for (String rate : new String[]{"0", "1", "1.", ".5", "0.12345678901234"}) {
+            assertThat(TraceState.parseDecimal(rate, 0, rate.length())).isEqualTo(Double.parseDouble(rate));
+        }
+        for (String rate : new String[]{"", ".", "1e-4", "-0.5", "0.1.2", "0.123456789012345", "abc"}) {
+            assertThat(TraceState.parseDecimal(rate, 0, rate.length())).isNaN();
+        }
+    }
+
     private void checkHeader(double expectedSampleRate, @Nullable String expectedHeader) {
         double sampleRate = traceState.getSampleRate();
         if (Double.isNaN(expectedSampleRate)) {
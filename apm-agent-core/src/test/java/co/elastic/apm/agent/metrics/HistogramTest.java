@@ -0,0 +1,75 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HistogramTest {
+
+    @Test
+    void testSmallValuesAreExact() {
+        for (int i = 0; i < 2 << Histogram.SUB_BUCKET_BITS; i++) {
+            assertThat(Histogram.getBucketIndex(i)).isEqualTo(i);
+            assertThat(Histogram.getLowestValue(i)).isEqualTo(i);
+        }
+    }
+
+    @Test
+    void testBucketsAreContiguous() {
+        for (int i = 1; i < Histogram.BUCKET_COUNT; i++) {
+            long lowestValue = Histogram.getLowestValue(i);
+            assertThat(Histogram.getBucketIndex(lowestValue)).isEqualTo(i);
+            assertThat(Histogram.getBucketIndex(lowestValue - 1)).isEqualTo(i - 1);
+        }
+        assertThat(Histogram.getBucketIndex(Histogram.MAX_VALUE)).isEqualTo(Histogram.BUCKET_COUNT - 1);
+    }
+
+    @Test
+    void testRelativeError() {
+        Histogram histogram = new Histogram();
+        for (long value = 1; value < Histogram.MAX_VALUE; value = value * 3 + 1) {
+            double bucketValue = histogram.getBucketValue(Histogram.getBucketIndex(value));
+            assertThat(Math.abs(bucketValue - value) / value).isLessThanOrEqualTo(1.0 / (1 << Histogram.SUB_BUCKET_BITS));
+        }
+    }
+
+    @Test
+    void testUpdateAndReset() {
+        Histogram histogram = new Histogram();
+        histogram.update(-1);
+        histogram.update(3);
+        histogram.update(1000);
+        histogram.update(1001);
+        histogram.update(Long.MAX_VALUE);
+
+        assertThat(histogram.getCount()).isEqualTo(5);
+        assertThat(histogram.getBucketCount(0)).isEqualTo(1);
+        assertThat(histogram.getBucketCount(3)).isEqualTo(1);
+        assertThat(histogram.getBucketCount(Histogram.getBucketIndex(1000))).isEqualTo(2);
+        assertThat(histogram.getBucketCount(histogram.getNumberOfBuckets() - 1)).isEqualTo(1);
+
+        histogram.resetState();
+        assertThat(histogram.hasContent()).isFalse();
+        for (int i = 0; i < histogram.getNumberOfBuckets(); i++) {
+            assertThat(histogram.getBucketCount(i)).isZero();
+        }
+    }
+}
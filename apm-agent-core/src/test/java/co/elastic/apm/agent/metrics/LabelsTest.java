@@ -121,6 +121,33 @@ class LabelsTest {
         assertNotEqual(l1, l2);
     }
 
+    @Test
+    void testCachedHashCodeIsUpdated() {
+        Labels.Mutable labels = Labels.Mutable.of()
+            .transactionName(new StringBuilder("foo"))
+            .transactionType("request");
+        assertEqualsHashCode(labels, labels.immutableCopy());
+
+        labels.spanType("db").spanSubType("mysql");
+        assertEqualsHashCode(labels, labels.immutableCopy());
+
+        labels.spanType("app").spanSubType(null);
+        assertEqualsHashCode(labels, labels.immutableCopy());
+
+        Labels.Immutable previous = labels.immutableCopy();
+        labels.transactionName(new StringBuilder("bar"));
+        assertEqualsHashCode(labels, labels.immutableCopy());
+        assertNotEqual(labels, previous);
+
+        previous = labels.immutableCopy();
+        labels.add("outcome", "success");
+        assertEqualsHashCode(labels, labels.immutableCopy());
+        assertNotEqual(labels, previous);
+
+        labels.resetState();
+        assertEqualsHashCode(labels, Labels.EMPTY);
+    }
+
     private void assertNotEqual(Labels l1, Labels l2) {
         assertThat(l1.hashCode()).isNotEqualTo(l2.hashCode());
         assertThat(l1).isNotEqualTo(l2);
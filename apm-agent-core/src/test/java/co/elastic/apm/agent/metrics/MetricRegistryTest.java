@@ -154,6 +154,16 @@ class MetricRegistryTest {
         metricRegistry.flipPhaseAndReport(metricSets -> assertThat(metricSets).hasSize(1008));
     }
 
+    @Test
+    void testLimitIsEnforcedConcurrently() {
+        doReturn(10).when(metricsConfiguration).getMetricSetLimit();
+        metricRegistry = new MetricRegistry(reporterConfiguration, metricsConfiguration);
+        IntStream.range(0, 1000).parallel().forEach(i -> metricRegistry.updateTimer("timer", Labels.Mutable.of("foo", Integer.toString(i % 100)), 1));
+
+        metricRegistry.flipPhaseAndReport(metricSets -> assertThat(metricSets).hasSize(10));
+        metricRegistry.flipPhaseAndReport(metricSets -> assertThat(metricSets).hasSize(10));
+    }
+
     @Test
     void testBuffersRotationWithReport() throws ExecutionException, InterruptedException {
         final CompletableFuture<Map<? extends Labels, MetricSet>> originalMetricSets = new CompletableFuture<>();
@@ -0,0 +1,67 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics.builtin;
+
+import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.configuration.MetricsConfiguration;
+import co.elastic.apm.agent.configuration.SpyConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.metrics.Labels;
+import co.elastic.apm.agent.report.Reporter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+class AgentObjectPoolMetricsTest {
+
+    private final Labels transactionPool = Labels.Mutable.of("pool", "transaction");
+    private ConfigurationRegistry config;
+    private ElasticApmTracer tracer;
+
+    @BeforeEach
+    void setUp() {
+        config = SpyConfiguration.createSpyConfig();
+        tracer = MockTracer.createRealTracer(mock(Reporter.class), config);
+    }
+
+    @AfterEach
+    void tearDown() {
+        tracer.stop();
+    }
+
+    @Test
+    void testDisabledByDefault() {
+        new AgentObjectPoolMetrics().start(tracer);
+
+        assertThat(tracer.getMetricRegistry().getGaugeValue("agent.objectpool.size", transactionPool)).isNaN();
+    }
+
+    @Test
+    void testEnabled() {
+        doReturn(true).when(config.getConfig(MetricsConfiguration.class)).isObjectPoolMetricsEnabled();
+        new AgentObjectPoolMetrics().start(tracer);
+
+        assertThat(tracer.getMetricRegistry().getGaugeValue("agent.objectpool.size", transactionPool)).isNotNaN();
+    }
+}
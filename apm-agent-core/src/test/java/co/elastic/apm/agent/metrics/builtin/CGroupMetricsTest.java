@@ -96,6 +96,65 @@ class CGroupMetricsTest {
             .isEqualTo(Double.valueOf(Double.NaN));
     }
 
+    @Test
+    void testCgroup2CpuStatsEventsAndPressure() throws Exception {
+        File mountInfo = new File(getClass().getResource("/proc/sys_cgroup2").toURI());
+        File fileTmp = File.createTempFile("temp", null);
+        fileTmp.deleteOnExit();
+        FileWriter fw = new FileWriter(fileTmp);
+        fw.write("30 23 0:26 / " + mountInfo.getAbsolutePath() + " rw,nosuid,nodev,noexec,relatime shared:4 - cgroup2 cgroup rw,seclabel\n");
+        fw.close();
+
+        CGroupMetrics cgroupMetrics = new CGroupMetrics(new File(getClass().getResource("/proc/cgroup2").toURI()), fileTmp);
+        cgroupMetrics.bindTo(metricRegistry);
+
+        assertThat(metricRegistry.getGaugeValue("system.process.cgroup.cpu.stats.periods", Labels.EMPTY)).isEqualTo(15237);
+        assertThat(metricRegistry.getGaugeValue("system.process.cgroup.cpu.stats.throttled.periods", Labels.EMPTY)).isEqualTo(483);
+        assertThat(metricRegistry.getGaugeValue("system.process.cgroup.cpu.stats.throttled.ns", Labels.EMPTY)).isEqualTo(5392811000L);
+        assertThat(metricRegistry.getGaugeValue("system.process.cgroup.memory.events.high", Labels.EMPTY)).isEqualTo(12);
+        assertThat(metricRegistry.getGaugeValue("system.process.cgroup.memory.events.max", Labels.EMPTY)).isEqualTo(3);
+        assertThat(metricRegistry.getGaugeValue("system.process.cgroup.memory.events.oom_kill", Labels.EMPTY)).isEqualTo(1);
+        assertThat(metricRegistry.getGaugeValue("system.process.cgroup.pressure.memory.some.pct", Labels.EMPTY)).isEqualTo(0.125);
+        assertThat(metricRegistry.getGaugeValue("system.process.cgroup.pressure.memory.full.pct", Labels.EMPTY)).isEqualTo(0.0625);
+        cgroupMetrics.stop();
+    }
+
+    @Test
+    void testCgroup1CpuStats() throws Exception {
+        File memoryMount = new File(getClass().getResource("/proc/limited/memory").toURI());
+        File cpuMount = new File(getClass().getResource("/proc/limited/cpu").toURI());
+        File fileTmp = File.createTempFile("temp", null);
+        fileTmp.deleteOnExit();
+        FileWriter fw = new FileWriter(fileTmp);
+        fw.write("38 30 0:34 / " + cpuMount.getAbsolutePath() + " rw,nosuid,nodev,noexec,relatime shared:9 - cgroup cgroup rw,seclabel,cpu,cpuacct\n");
+        fw.write("39 30 0:35 / " + memoryMount.getAbsolutePath() + " rw,nosuid,nodev,noexec,relatime shared:10 - cgroup cgroup rw,seclabel,memory\n");
+        fw.close();
+
+        CGroupMetrics cgroupMetrics = new CGroupMetrics(new File(getClass().getResource("/proc/cgroup").toURI()), fileTmp);
+        cgroupMetrics.bindTo(metricRegistry);
+
+        assertThat(metricRegistry.getGaugeValue("system.process.cgroup.memory.mem.usage.bytes", Labels.EMPTY)).isEqualTo(964778496);
+        assertThat(metricRegistry.getGaugeValue("system.process.cgroup.cpu.stats.periods", Labels.EMPTY)).isEqualTo(9011);
+        assertThat(metricRegistry.getGaugeValue("system.process.cgroup.cpu.stats.throttled.periods", Labels.EMPTY)).isEqualTo(211);
+        assertThat(metricRegistry.getGaugeValue("system.process.cgroup.cpu.stats.throttled.ns", Labels.EMPTY)).isEqualTo(48203714930L);
+        // memory events and pressure stall information are only available in cgroup v2
+        assertThat(metricRegistry.getGaugeValue("system.process.cgroup.memory.events.oom", Labels.EMPTY))
+            .isEqualTo(Double.valueOf(Double.NaN));
+        cgroupMetrics.stop();
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings ={
+        "38 30 0:34 / /sys/fs/cgroup/cpu,cpuacct rw,nosuid,nodev,noexec,relatime shared:9 - cgroup cgroup rw,seclabel,cpu,cpuacct|/sys/fs/cgroup/cpu,cpuacct",
+    })
+    void testCgroup1CpuRegex(String testString) throws Exception {
+        String[] split = testString.split("\\|");
+        CGroupMetrics cgroupMetrics = createUnlimitedSystemMetrics();
+        assertThat(cgroupMetrics.applyCgroupRegex(CGroupMetrics.CGROUP1_CPU_MOUNT_POINT, split[0])).isEqualTo(split[1]);
+        assertThat(cgroupMetrics.applyCgroupRegex(CGroupMetrics.CGROUP1_CPU_MOUNT_POINT,
+            "39 30 0:35 / /sys/fs/cgroup/cpuset rw,nosuid,nodev,noexec,relatime shared:10 - cgroup cgroup rw,seclabel,cpuset")).isNull();
+    }
+
     @ParameterizedTest
     @ValueSource(strings ={
         "39 30 0:36 / /sys/fs/cgroup/memory rw,nosuid,nodev,noexec,relatime shared:4 - cgroup2 cgroup rw,seclabel|/sys/fs/cgroup/memory",
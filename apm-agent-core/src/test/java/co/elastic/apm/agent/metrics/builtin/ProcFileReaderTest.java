@@ -0,0 +1,126 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics.builtin;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.URISyntaxException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.offset;
+
+class ProcFileReaderTest {
+
+    private final ProcFileReader reader = new ProcFileReader();
+
+    @AfterEach
+    void tearDown() {
+        reader.close();
+    }
+
+    @Test
+    void testReadNumber() throws Exception {
+        assertThat(reader.readNumber(getFile("/proc/limited/memory/memory.usage_in_bytes"))).isEqualTo(964778496);
+        // Casting to Double is required so that comparison of two Double#NaN will be correct (see Double#equals javadoc for info)
+        assertThat(reader.readNumber(getFile("/proc/sys_cgroup2_unlimited/slice/memory.max"))).isEqualTo(Double.valueOf(Double.NaN));
+        assertThat(reader.readNumber(new File("does-not-exist"))).isEqualTo(Double.valueOf(Double.NaN));
+    }
+
+    @Test
+    void testReadValue() throws Exception {
+        File memInfo = getFile("/proc/meminfo");
+        assertThat(reader.readValue(memInfo, "MemTotal")).isEqualTo(7778104);
+        assertThat(reader.readValue(memInfo, "Mem")).isEqualTo(Double.valueOf(Double.NaN));
+
+        File memoryEvents = getFile("/proc/sys_cgroup2/slice/memory.events");
+        assertThat(reader.readValue(memoryEvents, "oom")).isEqualTo(1);
+        assertThat(reader.readValue(memoryEvents, "high")).isEqualTo(12);
+        assertThat(reader.readValue(memoryEvents, "missing")).isEqualTo(Double.valueOf(Double.NaN));
+    }
+
+    @Test
+    void testReadValues() throws Exception {
+        double[] values = new double[3];
+        assertThat(reader.readValues(getFile("/proc/sys_cgroup2/slice/cpu.stat"), new String[]{"throttled_usec", "nr_periods", "throttled_time"}, values)).isTrue();
+        assertThat(values[0]).isEqualTo(5392811);
+        assertThat(values[1]).isEqualTo(15237);
+        assertThat(values[2]).isEqualTo(Double.valueOf(Double.NaN));
+        assertThat(reader.readValues(new File("does-not-exist"), new String[]{"nr_periods"}, values)).isFalse();
+    }
+
+    @Test
+    void testReadLongs() throws Exception {
+        long[] values = new long[8];
+        assertThat(reader.readLongs(getFile("/proc/stat"), "cpu ", values)).isEqualTo(8);
+        assertThat(values).containsExactly(10132153, 290696, 3084719, 46828483, 16683, 0, 25195, 0);
+
+        long[] cpu1 = new long[16];
+        assertThat(reader.readLongs(getFile("/proc/stat"), "cpu1 ", cpu1)).isEqualTo(10);
+        assertThat(cpu1[0]).isEqualTo(1335725);
+        assertThat(cpu1[9]).isEqualTo(0);
+    }
+
+    @Test
+    void testReadLongsAfterLast() throws Exception {
+        long[] values = new long[SystemMetrics.SELF_STAT_VSIZE + 1];
+        assertThat(reader.readLongsAfterLast(getFile("/proc/self_stat"), ')', values)).isEqualTo(values.length);
+        // the state is not a number
+        assertThat(values[0]).isEqualTo(-1);
+        assertThat(values[SystemMetrics.SELF_STAT_UTIME]).isEqualTo(2750);
+        assertThat(values[SystemMetrics.SELF_STAT_STIME]).isEqualTo(412);
+        assertThat(values[SystemMetrics.SELF_STAT_VSIZE]).isEqualTo(5323587584L);
+    }
+
+    @Test
+    void testReadPressure() throws Exception {
+        File pressure = getFile("/proc/pressure/memory");
+        assertThat(reader.readPressure(pressure, "some", "avg10")).isEqualTo(12.5);
+        assertThat(reader.readPressure(pressure, "some", "avg60")).isCloseTo(3.1, offset(0.0001));
+        assertThat(reader.readPressure(pressure, "full", "avg10")).isEqualTo(6.25);
+        assertThat(reader.readPressure(pressure, "full", "total")).isEqualTo(1200);
+        assertThat(reader.readPressure(pressure, "full", "avg")).isEqualTo(Double.valueOf(Double.NaN));
+    }
+
+    @Test
+    void testRereadsChangedFile() throws IOException {
+        File file = File.createTempFile("proc", null);
+        file.deleteOnExit();
+        write(file, "1234567\n");
+        assertThat(reader.readNumber(file)).isEqualTo(1234567);
+        write(file, "42\n");
+        assertThat(reader.readNumber(file)).isEqualTo(42);
+        assertThat(file.delete()).isTrue();
+        reader.close();
+        assertThat(reader.readNumber(file)).isEqualTo(Double.valueOf(Double.NaN));
+    }
+
+    private File getFile(String path) throws URISyntaxException {
+        return new File(getClass().getResource(path).toURI());
+    }
+
+    static void write(File file, String content) throws IOException {
+        try (FileWriter fw = new FileWriter(file)) {
+            fw.write(content);
+        }
+    }
+}
@@ -25,12 +25,14 @@ import co.elastic.apm.agent.report.ReporterConfiguration;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.condition.DisabledOnOs;
 import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.CsvSource;
 
 import java.io.File;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.offset;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
 
@@ -65,6 +67,82 @@ class SystemMetricsTest {
         assertThat(metricRegistry.getGaugeValue("system.memory.total", Labels.EMPTY)).isEqualTo(7964778496L);
     }
 
+    @Test
+    void testProcCpuUsage() throws Exception {
+        File procStat = File.createTempFile("stat", null);
+        procStat.deleteOnExit();
+        File procSelfStat = File.createTempFile("self_stat", null);
+        procSelfStat.deleteOnExit();
+        ProcFileReaderTest.write(procStat, procStat(100, 100, 700, 100));
+        ProcFileReaderTest.write(procSelfStat, procSelfStat(10, 20));
+
+        SystemMetrics systemMetrics = new SystemMetrics(procStat, procSelfStat, new File("does-not-exist"), new File("does-not-exist"), new File("does-not-exist"));
+        systemMetrics.bindTo(metricRegistry);
+
+        ProcFileReaderTest.write(procStat, procStat(300, 200, 1300, 200));
+        ProcFileReaderTest.write(procSelfStat, procSelfStat(110, 70));
+        assertThat(metricRegistry.getGaugeValue("system.cpu.total.norm.pct", Labels.EMPTY)).isEqualTo(0.3);
+        assertThat(metricRegistry.getGaugeValue("system.process.cpu.total.norm.pct", Labels.EMPTY)).isEqualTo(0.15);
+        assertThat(metricRegistry.getGaugeValue("system.process.memory.size", Labels.EMPTY)).isEqualTo(4096);
+        systemMetrics.stop();
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+        "cpu.max,                 50000 100000, cpu.stat,              usage_usec 1000",
+        "cpu/cpu.cfs_quota_us,    50000,        cpuacct/cpuacct.usage, 1000000",
+    })
+    void testCgroupCpuUsage(String limitFile, String limit, String usageFile, String usage, @TempDir File cgroupDir) throws Exception {
+        File procStat = File.createTempFile("stat", null);
+        procStat.deleteOnExit();
+        ProcFileReaderTest.write(procStat, procStat(100, 100, 700, 100));
+        assertThat(new File(cgroupDir, "cpu").mkdir() && new File(cgroupDir, "cpuacct").mkdir()).isTrue();
+        ProcFileReaderTest.write(new File(cgroupDir, limitFile), limit + "\n");
+        ProcFileReaderTest.write(new File(cgroupDir, "cpu/cpu.cfs_period_us"), "100000\n");
+        ProcFileReaderTest.write(new File(cgroupDir, usageFile), usage + "\n");
+
+        SystemMetrics systemMetrics = new SystemMetrics(procStat, new File("does-not-exist"), new File("does-not-exist"), new File("does-not-exist"), cgroupDir);
+        systemMetrics.bindTo(metricRegistry);
+
+        // /proc/stat would report a usage of 0.3 for the whole host
+        ProcFileReaderTest.write(procStat, procStat(300, 200, 1300, 200));
+        assertThat(metricRegistry.getGaugeValue("system.cpu.total.norm.pct", Labels.EMPTY)).isEqualTo(0.0);
+        // way more than the half CPU the cgroup is limited to, since the last call
+        ProcFileReaderTest.write(new File(cgroupDir, usageFile), usage + "000000\n");
+        assertThat(metricRegistry.getGaugeValue("system.cpu.total.norm.pct", Labels.EMPTY)).isEqualTo(1.0);
+        assertThat(metricRegistry.getGaugeValue("system.process.cpu.total.norm.pct", Labels.EMPTY)).isBetween(0.0, 1.0);
+        systemMetrics.stop();
+    }
+
+    @Test
+    void testProcFixtures() throws Exception {
+        SystemMetrics systemMetrics = new SystemMetrics(
+            new File(getClass().getResource("/proc/stat").toURI()),
+            new File(getClass().getResource("/proc/self_stat").toURI()),
+            new File(getClass().getResource("/proc/meminfo").toURI()),
+            new File(getClass().getResource("/proc/pressure").toURI()),
+            new File("does-not-exist"));
+        systemMetrics.bindTo(metricRegistry);
+
+        assertThat(metricRegistry.getGaugeValue("system.process.memory.size", Labels.EMPTY)).isEqualTo(5323587584L);
+        assertThat(metricRegistry.getGaugeValue("system.pressure.memory.some.pct", Labels.EMPTY)).isEqualTo(0.125);
+        assertThat(metricRegistry.getGaugeValue("system.pressure.memory.full.pct", Labels.EMPTY)).isEqualTo(0.0625);
+        assertThat(metricRegistry.getGaugeValue("system.pressure.cpu.some.pct", Labels.EMPTY)).isCloseTo(0.0153, offset(0.000001));
+        assertThat(metricRegistry.getGaugeValue("system.pressure.cpu.full.pct", Labels.EMPTY)).isEqualTo(0.0);
+        assertThat(metricRegistry.getGaugeValue("system.pressure.io.some.pct", Labels.EMPTY)).isCloseTo(0.004, offset(0.000001));
+        systemMetrics.stop();
+    }
+
+    private static String procStat(long user, long system, long idle, long iowait) {
+        return "cpu  " + user + " 0 " + system + " " + idle + " " + iowait + " 0 0 0 0 0\n" +
+            "cpu0 " + user + " 0 " + system + " " + idle + " " + iowait + " 0 0 0 0 0\n" +
+            "ctxt 311484283\n";
+    }
+
+    private static String procSelfStat(long utime, long stime) {
+        return "4242 (java) S 1 4242 4242 0 -1 4194560 134085 0 21 0 " + utime + " " + stime + " 0 0 20 0 42 0 1027 4096 77963\n";
+    }
+
     private void consumeCpu() {
         int result = 1;
         for (int i = 0; i < 10000; i++) {
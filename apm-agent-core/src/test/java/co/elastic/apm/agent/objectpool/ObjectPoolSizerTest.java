@@ -0,0 +1,101 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.objectpool;
+
+import co.elastic.apm.agent.objectpool.impl.QueueBasedObjectPool;
+import org.jctools.queues.atomic.MpmcAtomicArrayQueue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static co.elastic.apm.agent.objectpool.ObjectPoolSizer.MIN_CAPACITY;
+import static co.elastic.apm.agent.objectpool.ObjectPoolSizer.QUIET_INTERVALS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ObjectPoolSizerTest {
+
+    private ObjectPool<TestRecyclable> pool;
+    private ObjectPoolSizer.PoolState poolState;
+
+    @BeforeEach
+    void setUp() {
+        pool = QueueBasedObjectPool.ofRecyclable(new MpmcAtomicArrayQueue<>(1024), false, TestRecyclable::new);
+        poolState = new ObjectPoolSizer.PoolState("test", pool);
+    }
+
+    @Test
+    void testGrowOnMissesAndTrimExcess() {
+        burst(100);
+        poolState.adjust();
+        assertThat(poolState.getCapacity()).isEqualTo(MIN_CAPACITY + 100);
+        assertThat(pool.getObjectsInPool()).isEqualTo(100);
+
+        burst(MIN_CAPACITY + 100);
+        poolState.adjust();
+        assertThat(poolState.getCapacity())
+            .describedAs("the capacity grows by the number of misses")
+            .isEqualTo(MIN_CAPACITY + 100 + MIN_CAPACITY);
+        assertThat(pool.getObjectsInPool()).isEqualTo(MIN_CAPACITY + 100);
+
+        burst(1000);
+        poolState.adjust();
+        assertThat(poolState.getCapacity()).isEqualTo(2 * MIN_CAPACITY + 100 + 1000 - (MIN_CAPACITY + 100));
+        assertThat(pool.getObjectsInPool()).isEqualTo(1000);
+    }
+
+    @Test
+    void testShrinkAfterQuietIntervals() {
+        burst(200);
+        poolState.adjust();
+        int capacity = poolState.getCapacity();
+        assertThat(pool.getObjectsInPool()).isEqualTo(200);
+
+        for (int i = 0; i < QUIET_INTERVALS - 1; i++) {
+            burst(10);
+            poolState.adjust();
+        }
+        assertThat(poolState.getCapacity()).isEqualTo(capacity);
+        assertThat(pool.getObjectsInPool()).isEqualTo(200);
+
+        poolState.adjust();
+        assertThat(poolState.getCapacity()).isEqualTo(capacity / 2);
+        assertThat(pool.getObjectsInPool()).isEqualTo(capacity / 2);
+
+        for (int i = 0; i < 10 * QUIET_INTERVALS; i++) {
+            poolState.adjust();
+        }
+        assertThat(poolState.getCapacity()).isEqualTo(MIN_CAPACITY);
+        assertThat(pool.getObjectsInPool()).isEqualTo(MIN_CAPACITY);
+    }
+
+    /**
+     * Creates the given number of objects concurrently and recycles them afterwards
+     */
+    private void burst(int objects) {
+        List<TestRecyclable> inFlight = new ArrayList<>();
+        for (int i = 0; i < objects; i++) {
+            inFlight.add(pool.createInstance());
+        }
+        for (TestRecyclable recyclable : inFlight) {
+            pool.recycle(recyclable);
+        }
+    }
+}
@@ -137,4 +137,31 @@ public abstract class ObjectPoolTest<T extends ObjectPool<TestRecyclable>> {
         assertThat(objectPool.getObjectsInPool()).isEqualTo(1);
     }
 
+    @Test
+    public void testCounters() {
+        testMaxElements();
+
+        assertThat(objectPool.getObjectsCreated()).isEqualTo(MAX_SIZE * 2);
+        assertThat(objectPool.getObjectsRecycled()).isEqualTo(MAX_SIZE * 2);
+
+        objectPool.recycle(objectPool.createInstance());
+        assertThat(objectPool.getObjectsCreated())
+            .describedAs("reusing a pooled instance does not create a new one")
+            .isEqualTo(MAX_SIZE * 2);
+        assertThat(objectPool.getObjectsRecycled()).isEqualTo(MAX_SIZE * 2 + 1);
+    }
+
+    @Test
+    public void testTrim() {
+        testMaxElements();
+
+        assertThat(objectPool.trim(MAX_SIZE / 2)).isEqualTo(MAX_SIZE / 2);
+        assertThat(objectPool.getObjectsInPool()).isEqualTo(MAX_SIZE / 2);
+
+        assertThat(objectPool.trim(MAX_SIZE))
+            .describedAs("trimming stops when the pool is empty")
+            .isEqualTo(MAX_SIZE / 2);
+        assertThat(objectPool.getObjectsInPool()).isEqualTo(0);
+    }
+
 }
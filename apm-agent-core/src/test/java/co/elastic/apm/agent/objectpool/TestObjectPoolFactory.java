@@ -19,6 +19,7 @@
 package co.elastic.apm.agent.objectpool;
 
 import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.context.Message;
 import co.elastic.apm.agent.impl.error.ErrorCapture;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.TraceContext;
@@ -41,10 +42,19 @@ public class TestObjectPoolFactory extends ObjectPoolFactory {
     private BookkeeperObjectPool<Span> spanPool;
     private BookkeeperObjectPool<ErrorCapture> errorPool;
     private BookkeeperObjectPool<TraceContext> spanLinksPool;
+    private BookkeeperObjectPool<Message> messagePool;
 
     @Override
     public <T extends Recyclable> ObjectPool<T> createRecyclableObjectPool(int maxCapacity, Allocator<T> allocator) {
-        ObjectPool<T> pool = super.createRecyclableObjectPool(maxCapacity, allocator);
+        return wrap(super.createRecyclableObjectPool(maxCapacity, allocator));
+    }
+
+    @Override
+    public <T extends Recyclable> ObjectPool<T> createStripedRecyclableObjectPool(int maxCapacity, Allocator<T> allocator) {
+        return wrap(super.createStripedRecyclableObjectPool(maxCapacity, allocator));
+    }
+
+    private <T> BookkeeperObjectPool<T> wrap(ObjectPool<T> pool) {
         BookkeeperObjectPool<T> wrappedPool = new BookkeeperObjectPool<>(pool);
         createdPools.add(wrappedPool);
         return wrappedPool;
@@ -116,6 +126,12 @@ public class TestObjectPoolFactory extends ObjectPoolFactory {
         return spanLinksPool;
     }
 
+    @Override
+    public ObjectPool<Message> createMessagePool(int maxCapacity) {
+        messagePool = (BookkeeperObjectPool<Message>) super.createMessagePool(maxCapacity);
+        return messagePool;
+    }
+
     public BookkeeperObjectPool<Transaction> getTransactionPool() {
         return transactionPool;
     }
@@ -131,4 +147,8 @@ public class TestObjectPoolFactory extends ObjectPoolFactory {
     public BookkeeperObjectPool<TraceContext> getSpanLinksPool() {
         return spanLinksPool;
     }
+
+    public BookkeeperObjectPool<Message> getMessagePool() {
+        return messagePool;
+    }
 }
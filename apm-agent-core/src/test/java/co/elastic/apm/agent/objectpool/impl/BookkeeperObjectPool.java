@@ -80,6 +80,26 @@ public class BookkeeperObjectPool<T> implements ObjectPool<T> {
         return pool.getGarbageCreated();
     }
 
+    @Override
+    public long getObjectsCreated() {
+        return pool.getObjectsCreated();
+    }
+
+    @Override
+    public long getObjectsRecycled() {
+        return pool.getObjectsRecycled();
+    }
+
+    @Override
+    public int getTrimmableObjects() {
+        return pool.getTrimmableObjects();
+    }
+
+    @Override
+    public int trim(int maxObjects) {
+        return pool.trim(maxObjects);
+    }
+
     @Override
     public void clear() {
         pool.clear();
@@ -0,0 +1,196 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.objectpool.impl;
+
+import co.elastic.apm.agent.objectpool.TestRecyclable;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+class StripedObjectPoolTest {
+
+    private static final int MAGAZINE_SIZE = 4;
+    private static final int DEPOT_CAPACITY = 2 * MAGAZINE_SIZE;
+
+    private StripedObjectPool<TestRecyclable> objectPool;
+
+    @BeforeEach
+    void setUp() {
+        objectPool = StripedObjectPool.ofRecyclable(DEPOT_CAPACITY, MAGAZINE_SIZE, TestRecyclable::new);
+    }
+
+    @Test
+    void testRecycle() {
+        TestRecyclable instance = objectPool.createInstance();
+        instance.setState(1);
+        objectPool.recycle(instance);
+        assertThat(instance.getState()).isEqualTo(0);
+        assertThat(objectPool.getObjectsInPool()).isEqualTo(1);
+        assertThat(objectPool.createInstance()).isSameAs(instance);
+        assertThat(objectPool.getObjectsInPool()).isEqualTo(0);
+    }
+
+    @Test
+    void testMaxElements() {
+        // two magazines owned by the current thread plus the depot
+        int capacity = 2 * MAGAZINE_SIZE + DEPOT_CAPACITY;
+        List<TestRecyclable> recyclables = createInstances(capacity + 4);
+        for (int i = 0; i < recyclables.size(); i++) {
+            objectPool.recycle(recyclables.get(i));
+            assertThat(objectPool.getObjectsInPool()).isEqualTo(Math.min(i + 1, capacity));
+        }
+        assertThat(objectPool.getGarbageCreated()).isEqualTo(4);
+    }
+
+    @Test
+    void testMagazinesAreExchangedAcrossThreads() throws Exception {
+        final List<TestRecyclable> recyclables = createInstances(2 * MAGAZINE_SIZE + DEPOT_CAPACITY);
+        // keeps the recycler thread alive, as the magazines of terminated threads are eventually garbage collected
+        CountDownLatch done = new CountDownLatch(1);
+        recycleInOtherThread(recyclables, done);
+        assertThat(objectPool.getObjectsInPool()).isEqualTo(recyclables.size());
+
+        // only full magazines handed over to the depot are visible to other threads
+        Set<TestRecyclable> reused = Collections.newSetFromMap(new IdentityHashMap<>());
+        reused.addAll(createInstances(DEPOT_CAPACITY));
+        assertThat(reused).allMatch(recyclables::contains);
+        assertThat(objectPool.createInstance()).isNotIn(recyclables);
+        assertThat(objectPool.getObjectsInPool()).isEqualTo(2 * MAGAZINE_SIZE);
+        done.countDown();
+    }
+
+    @Test
+    void testAlternatingAtMagazineBoundaryStaysThreadLocal() {
+        List<TestRecyclable> recyclables = createInstances(MAGAZINE_SIZE);
+        for (TestRecyclable recyclable : recyclables) {
+            objectPool.recycle(recyclable);
+        }
+        for (int i = 0; i < 10; i++) {
+            TestRecyclable instance = objectPool.createInstance();
+            objectPool.recycle(instance);
+            objectPool.recycle(objectPool.createInstance());
+        }
+        assertThat(objectPool.getObjectsInPool()).isEqualTo(MAGAZINE_SIZE);
+        assertThat(objectPool.getGarbageCreated()).isEqualTo(0);
+    }
+
+    @Test
+    void testObjectsRecycledByTerminatedThreadsAreCounted() throws Exception {
+        final List<TestRecyclable> recyclables = createInstances(2 * MAGAZINE_SIZE + DEPOT_CAPACITY + 1);
+        Thread recycler = new Thread(() -> {
+            for (TestRecyclable recyclable : recyclables) {
+                objectPool.recycle(recyclable);
+            }
+        });
+        recycler.start();
+        recycler.join();
+        objectPool.recycle(objectPool.createInstance());
+
+        assertThat(objectPool.getObjectsCreated()).isEqualTo(recyclables.size());
+        assertThat(objectPool.getObjectsRecycled()).isEqualTo(recyclables.size() + 1);
+        assertThat(objectPool.getGarbageCreated()).isEqualTo(1);
+
+        // the magazines of a terminated thread are only weakly referenced
+        // once they have been collected, their objects are no longer pooled, but they still count as recycled
+        final int objectsInPool = objectPool.getObjectsInPool();
+        recycler = null;
+        await().untilAsserted(() -> {
+            System.gc();
+            assertThat(objectPool.getObjectsInPool()).isLessThan(objectsInPool);
+        });
+        assertThat(objectPool.getObjectsRecycled()).isEqualTo(recyclables.size() + 1);
+    }
+
+    @Test
+    void testTrimFromOtherThread() throws Exception {
+        final List<TestRecyclable> recyclables = createInstances(2 * MAGAZINE_SIZE + DEPOT_CAPACITY);
+        CountDownLatch done = new CountDownLatch(1);
+        recycleInOtherThread(recyclables, done);
+
+        // only the objects in the depot can be trimmed
+        assertThat(objectPool.trim(Integer.MAX_VALUE)).isEqualTo(DEPOT_CAPACITY);
+        assertThat(objectPool.getObjectsInPool()).isEqualTo(2 * MAGAZINE_SIZE);
+        done.countDown();
+    }
+
+    @Test
+    void testTrimLeavesMagazinesOfCurrentThread() {
+        List<TestRecyclable> recyclables = createInstances(2 * MAGAZINE_SIZE + DEPOT_CAPACITY);
+        for (TestRecyclable recyclable : recyclables) {
+            objectPool.recycle(recyclable);
+        }
+        assertThat(objectPool.getObjectsInPool()).isEqualTo(2 * MAGAZINE_SIZE + DEPOT_CAPACITY);
+        assertThat(objectPool.getTrimmableObjects()).isEqualTo(DEPOT_CAPACITY);
+
+        // only whole magazines are trimmed
+        assertThat(objectPool.trim(MAGAZINE_SIZE + 1)).isEqualTo(MAGAZINE_SIZE);
+        assertThat(objectPool.trim(Integer.MAX_VALUE)).isEqualTo(DEPOT_CAPACITY - MAGAZINE_SIZE);
+        assertThat(objectPool.getTrimmableObjects()).isZero();
+        assertThat(objectPool.getObjectsInPool()).isEqualTo(2 * MAGAZINE_SIZE);
+    }
+
+    @Test
+    void testClear() throws Exception {
+        final List<TestRecyclable> recyclables = createInstances(2 * MAGAZINE_SIZE + DEPOT_CAPACITY);
+        CountDownLatch done = new CountDownLatch(1);
+        recycleInOtherThread(recyclables, done);
+        objectPool.recycle(objectPool.createInstance());
+
+        objectPool.clear();
+
+        assertThat(objectPool.getObjectsInPool()).isEqualTo(0);
+        assertThat(objectPool.createInstance()).isNotIn(recyclables);
+        done.countDown();
+    }
+
+    private void recycleInOtherThread(List<TestRecyclable> recyclables, CountDownLatch done) throws InterruptedException {
+        CountDownLatch recycled = new CountDownLatch(1);
+        Thread recycler = new Thread(() -> {
+            for (TestRecyclable recyclable : recyclables) {
+                objectPool.recycle(recyclable);
+            }
+            recycled.countDown();
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        recycler.setDaemon(true);
+        recycler.start();
+        recycled.await();
+    }
+
+    private List<TestRecyclable> createInstances(int count) {
+        List<TestRecyclable> instances = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            instances.add(objectPool.createInstance());
+        }
+        return instances;
+    }
+}
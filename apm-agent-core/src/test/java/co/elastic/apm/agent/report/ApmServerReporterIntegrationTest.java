@@ -23,6 +23,7 @@ import co.elastic.apm.agent.configuration.CoreConfiguration;
 import co.elastic.apm.agent.configuration.converter.TimeDuration;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.error.ErrorCapture;
+import co.elastic.apm.agent.impl.metadata.MetaData;
 import co.elastic.apm.agent.impl.metadata.MetaDataMock;
 import co.elastic.apm.agent.impl.metadata.ProcessInfo;
 import co.elastic.apm.agent.impl.metadata.Service;
@@ -30,6 +31,7 @@ import co.elastic.apm.agent.impl.metadata.SystemInfo;
 import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.objectpool.ObjectPoolFactory;
 import co.elastic.apm.agent.report.processor.ProcessorEventHandler;
 import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
 import io.undertow.Undertow;
@@ -41,16 +43,20 @@ import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.stagemonitor.configuration.ConfigurationRegistry;
 
 import javax.annotation.Nullable;
+import java.io.File;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.net.URL;
+import java.time.Duration;
 import java.util.Collections;
 import java.util.Deque;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
@@ -77,6 +83,7 @@ class ApmServerReporterIntegrationTest {
     private ApmServerReporter reporter;
 
     private IntakeV2ReportingEventHandler v2handler;
+    private ApmServerClient apmServerClient;
 
     private final AtomicReference<String> token = new AtomicReference<>();
     private final AtomicReference<TimeDuration> timeout = new AtomicReference<>();
@@ -134,7 +141,7 @@ class ApmServerReporterIntegrationTest {
         final Service service = new Service();
         final ProcessInfo title = new ProcessInfo("title");
         final ProcessorEventHandler processorEventHandler = ProcessorEventHandler.loadProcessors(config);
-        ApmServerClient apmServerClient = new ApmServerClient(reporterConfiguration, config.getConfig(CoreConfiguration.class));
+        apmServerClient = new ApmServerClient(reporterConfiguration, config.getConfig(CoreConfiguration.class));
         apmServerClient.start();
         v2handler = new IntakeV2ReportingEventHandler(
             reporterConfiguration,
@@ -180,6 +187,60 @@ class ApmServerReporterIntegrationTest {
         assertThat(reporter.getReported()).isEqualTo(1);
     }
 
+    @Test
+    void testReportSerializedEvents() {
+        reporter.close();
+        Future<MetaData> metaData = MetaDataMock.create(new ProcessInfo("title"), new Service(), new SystemInfo("x64", "localhost", null, "platform"), null, Collections.emptyMap(), null);
+        ProcessorEventHandler processorEventHandler = ProcessorEventHandler.loadProcessors(tracer.getConfigurationRegistry());
+        ProducerSideSerializer producerSideSerializer = new ProducerSideSerializer(mock(StacktraceConfiguration.class), apmServerClient, metaData, processorEventHandler, new ObjectPoolFactory(), 16);
+        v2handler = new IntakeV2ReportingEventHandler(
+            reporterConfiguration,
+            processorEventHandler,
+            new DslJsonSerializer(mock(StacktraceConfiguration.class), apmServerClient, metaData),
+            apmServerClient);
+        reporter = new ApmServerReporter(false, reporterConfiguration, v2handler, "server-reporter", producerSideSerializer);
+        reporter.start();
+
+        reporter.report(new Transaction(tracer));
+        reporter.report(new Span(tracer));
+        reporter.report(new ErrorCapture(tracer));
+        assertThat(reporter.flush(5, TimeUnit.SECONDS, false)).isTrue();
+        assertThat(reporter.getDropped()).isEqualTo(0);
+        assertThat(reporter.getReported()).isEqualTo(3);
+        assertThat(receivedIntakeApiCalls.get()).isEqualTo(1);
+        // metadata + 3 events
+        assertThat(receivedEvents.get()).isEqualTo(4);
+        assertThat(producerSideSerializer.getGarbageCreated()).isZero();
+    }
+
+    @Test
+    void testAdaptiveWaitStrategy() {
+        reporter.close();
+        doReturn(ReporterWaitStrategy.ADAPTIVE).when(reporterConfiguration).getReporterWaitStrategy();
+        Future<MetaData> metaData = MetaDataMock.create(new ProcessInfo("title"), new Service(), new SystemInfo("x64", "localhost", null, "platform"), null, Collections.emptyMap(), null);
+        v2handler = new IntakeV2ReportingEventHandler(
+            reporterConfiguration,
+            ProcessorEventHandler.loadProcessors(tracer.getConfigurationRegistry()),
+            new DslJsonSerializer(mock(StacktraceConfiguration.class), apmServerClient, metaData),
+            apmServerClient);
+        ReporterStatistics statistics = new ReporterStatistics();
+        reporter = new ApmServerReporter(false, reporterConfiguration, v2handler, "server-reporter", null, statistics);
+        reporter.start();
+
+        reporter.report(new Transaction(tracer));
+        reporter.report(new Span(tracer));
+        assertThat(reporter.flush(5, TimeUnit.SECONDS, false)).isTrue();
+        assertThat(reporter.getReported()).isEqualTo(2);
+        assertThat(receivedIntakeApiCalls.get()).isEqualTo(1);
+        // the transaction, the span and the flush event
+        assertThat(statistics.getEvents()).isEqualTo(3);
+        long latencyCount = 0;
+        for (int i = 0; i < ReporterStatistics.getLatencyBuckets(); i++) {
+            latencyCount += statistics.getLatencyCount(i);
+        }
+        assertThat(latencyCount).isEqualTo(2);
+    }
+
     @Test
     void testReportSpan() {
         reporter.report(new Span(tracer));
@@ -257,4 +318,41 @@ class ApmServerReporterIntegrationTest {
         assertThat(v2handler.isHealthy()).isFalse();
         assertThat(reporter.flush(1, TimeUnit.SECONDS, false)).isFalse();
     }
+
+    @Test
+    void testFlushAndCloseAfterNonBlockingBackoffWithoutEvents(@TempDir File tempDir) {
+        File spillDir = new File(tempDir, "spill");
+        SpillBuffer spillBuffer = new SpillBuffer(spillDir, 1024 * 1024, 1024 * 1024);
+        IntakeV2ReportingEventHandler spillingHandler = new IntakeV2ReportingEventHandler(
+            reporterConfiguration,
+            ProcessorEventHandler.loadProcessors(tracer.getConfigurationRegistry()),
+            new DslJsonSerializer(
+                mock(StacktraceConfiguration.class),
+                apmServerClient,
+                MetaDataMock.create(new ProcessInfo("title"), new Service(), new SystemInfo("x64", "localhost", null, "platform"), null, Collections.emptyMap(), null)
+            ),
+            apmServerClient,
+            spillBuffer);
+        ApmServerReporter spillingReporter = new ApmServerReporter(false, reporterConfiguration, spillingHandler);
+        spillingReporter.start();
+
+        statusCode = HttpStatus.SERVICE_UNAVAILABLE_503;
+        // the first error does not back off, the second one backs off for about a second without blocking the reporter thread
+        spillingReporter.report(new Transaction(tracer));
+        spillingReporter.flush(1, TimeUnit.SECONDS, false);
+        spillingReporter.report(new Transaction(tracer));
+        spillingReporter.flush(1, TimeUnit.SECONDS, false);
+        assertThat(spillingHandler.isHealthy()).isFalse();
+        assertThat(spillingHandler.isResponsive()).isTrue();
+        spillingReporter.report(new Transaction(tracer));
+
+        // no further events are reported, the handler has to become healthy again on its own
+        await().atMost(Duration.ofSeconds(3)).until(spillingHandler::isHealthy);
+        assertThat(spillingReporter.flush(1, TimeUnit.SECONDS, false)).isTrue();
+        assertThat(spillBuffer.isEmpty()).isFalse();
+
+        spillingReporter.close();
+        assertThat(spillBuffer.isEmpty()).isTrue();
+        assertThat(spillDir).doesNotExist();
+    }
 }
@@ -0,0 +1,106 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.configuration.SpyConfiguration;
+import co.elastic.apm.agent.impl.error.ErrorCapture;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+class ApmServerReporterTest {
+
+    private ReporterConfiguration reporterConfiguration;
+
+    @BeforeEach
+    void setUp() {
+        reporterConfiguration = SpyConfiguration.createSpyConfig().getConfig(ReporterConfiguration.class);
+        doReturn(8).when(reporterConfiguration).getMaxQueueSize();
+    }
+
+    @Test
+    void testQueueLaneLimits() {
+        doReturn(Map.of(ReporterLane.SPAN, 50, ReporterLane.TRANSACTION, 75)).when(reporterConfiguration).getQueueLaneLimits();
+        // the reporter is not started, so that the events stay in the queue
+        ApmServerReporter reporter = new ApmServerReporter(true, reporterConfiguration, mock(ReportingEventHandler.class));
+        ReporterStatistics statistics = reporter.getStatistics();
+
+        for (int i = 0; i < 8; i++) {
+            reporter.report(mock(Span.class));
+        }
+        assertThat(statistics.getDropped(ReporterLane.SPAN)).isEqualTo(4);
+
+        for (int i = 0; i < 2; i++) {
+            reporter.report(mock(Transaction.class));
+        }
+        assertThat(statistics.getDropped(ReporterLane.TRANSACTION)).isEqualTo(0);
+        reporter.report(mock(Transaction.class));
+        assertThat(statistics.getDropped(ReporterLane.TRANSACTION)).isEqualTo(1);
+
+        // errors may use the remaining room
+        for (int i = 0; i < 3; i++) {
+            reporter.report(mock(ErrorCapture.class));
+        }
+        assertThat(statistics.getDropped(ReporterLane.ERROR)).isEqualTo(1);
+        assertThat(reporter.getDropped()).isEqualTo(6);
+    }
+
+    @Test
+    void testDefaultQueueLaneLimits() {
+        ApmServerReporter reporter = new ApmServerReporter(true, reporterConfiguration, mock(ReportingEventHandler.class));
+        ReporterStatistics statistics = reporter.getStatistics();
+
+        // a flood of spans may only fill 70% of the queue
+        for (int i = 0; i < 8; i++) {
+            reporter.report(mock(Span.class));
+        }
+        assertThat(statistics.getDropped(ReporterLane.SPAN)).isEqualTo(3);
+
+        // transactions may fill 90% of the queue
+        for (int i = 0; i < 3; i++) {
+            reporter.report(mock(Transaction.class));
+        }
+        assertThat(statistics.getDropped(ReporterLane.TRANSACTION)).isEqualTo(1);
+
+        reporter.report(mock(ErrorCapture.class));
+        assertThat(statistics.getDropped(ReporterLane.ERROR)).isEqualTo(0);
+    }
+
+    @Test
+    void testWithoutQueueLaneLimits() {
+        doReturn(Map.of()).when(reporterConfiguration).getQueueLaneLimits();
+        ApmServerReporter reporter = new ApmServerReporter(true, reporterConfiguration, mock(ReportingEventHandler.class));
+        ReporterStatistics statistics = reporter.getStatistics();
+
+        for (int i = 0; i < 10; i++) {
+            reporter.report(mock(Span.class));
+        }
+        reporter.report(mock(ErrorCapture.class));
+
+        assertThat(statistics.getDropped(ReporterLane.SPAN)).isEqualTo(2);
+        assertThat(statistics.getDropped(ReporterLane.ERROR)).isEqualTo(1);
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.error.ErrorCapture;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class EventSizeEstimatorTest {
+
+    private final ElasticApmTracer tracer = MockTracer.create();
+
+    @Test
+    void testTransactionWithRequestBody() {
+        Transaction transaction = new Transaction(tracer);
+        long emptySize = EventSizeEstimator.estimateSize(transaction);
+        assertThat(emptySize).isGreaterThanOrEqualTo(EventSizeEstimator.TRANSACTION_BASE_SIZE);
+
+        transaction.getContext().getRequest().setRawBody("x".repeat(10_000));
+        transaction.getContext().getRequest().addHeader("foo", "bar");
+        assertThat(EventSizeEstimator.estimateSize(transaction)).isEqualTo(emptySize + 10_000 + EventSizeEstimator.MAP_ENTRY_SIZE);
+    }
+
+    @Test
+    void testSpanWithStatementAndStackTrace() {
+        Span span = new Span(tracer);
+        long emptySize = EventSizeEstimator.estimateSize(span);
+        assertThat(emptySize).isGreaterThanOrEqualTo(EventSizeEstimator.SPAN_BASE_SIZE);
+
+        span.getContext().getDb().withStatement("SELECT * FROM foo");
+        span.withStacktrace(new Throwable());
+        assertThat(EventSizeEstimator.estimateSize(span)).isEqualTo(emptySize + "SELECT * FROM foo".length() + EventSizeEstimator.STACK_TRACE_SIZE);
+    }
+
+    @Test
+    void testErrorWithCause() {
+        ErrorCapture error = new ErrorCapture(tracer);
+        long emptySize = EventSizeEstimator.estimateSize(error);
+        error.setException(new RuntimeException(new IllegalStateException()));
+        assertThat(EventSizeEstimator.estimateSize(error)).isGreaterThanOrEqualTo(emptySize + 2 * EventSizeEstimator.STACK_TRACE_SIZE);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.spy;
+
+class IntakeCompressorTest {
+
+    private ReporterConfiguration reporterConfiguration;
+    private IntakeCompressor compressor;
+
+    @BeforeEach
+    void setUp() {
+        reporterConfiguration = spy(ReporterConfiguration.class);
+        compressor = new IntakeCompressor(reporterConfiguration);
+    }
+
+    @AfterEach
+    void tearDown() {
+        compressor.close();
+    }
+
+    @Test
+    void testDeflate() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            byte[] compressed = compress(ApiRequestCompression.DEFLATE, "{\"foo\":\"bar\"}\n" + i);
+            assertThat(decompress(new InflaterInputStream(new ByteArrayInputStream(compressed)))).isEqualTo("{\"foo\":\"bar\"}\n" + i);
+        }
+    }
+
+    @Test
+    void testGzip() throws IOException {
+        // makes sure the Deflater is properly reset between requests
+        for (int i = 0; i < 3; i++) {
+            byte[] compressed = compress(ApiRequestCompression.GZIP, "{\"foo\":\"bar\"}\n" + i);
+            assertThat(decompress(new GZIPInputStream(new ByteArrayInputStream(compressed)))).isEqualTo("{\"foo\":\"bar\"}\n" + i);
+        }
+    }
+
+    @Test
+    void testNone() throws IOException {
+        byte[] compressed = compress(ApiRequestCompression.NONE, "{\"foo\":\"bar\"}\n");
+        assertThat(new String(compressed, StandardCharsets.UTF_8)).isEqualTo("{\"foo\":\"bar\"}\n");
+    }
+
+    @Test
+    void testConfiguredLevel() {
+        doReturn(5).when(reporterConfiguration).getApiRequestCompressionLevel();
+        compressor.adjustLevel(0, 1_000_000);
+        assertThat(compressor.getLevel()).isEqualTo(5);
+    }
+
+    @Test
+    void testAdaptiveLevel() {
+        doReturn(true).when(reporterConfiguration).isApiRequestCompressionLevelAdaptive();
+        assertThat(compressor.getLevel()).isEqualTo(IntakeCompressor.MIN_ADAPTIVE_LEVEL);
+
+        // idle reporter thread
+        for (int i = 0; i < 10; i++) {
+            compressor.adjustLevel(1, 100);
+        }
+        assertThat(compressor.getLevel()).isEqualTo(IntakeCompressor.MAX_ADAPTIVE_LEVEL);
+
+        // moderately busy reporter thread
+        compressor.adjustLevel(30, 100);
+        assertThat(compressor.getLevel()).isEqualTo(IntakeCompressor.MAX_ADAPTIVE_LEVEL);
+
+        // busy reporter thread
+        for (int i = 0; i < 10; i++) {
+            compressor.adjustLevel(90, 100);
+        }
+        assertThat(compressor.getLevel()).isEqualTo(IntakeCompressor.MIN_ADAPTIVE_LEVEL);
+    }
+
+    private byte[] compress(ApiRequestCompression compression, String s) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        OutputStream os = compressor.wrap(baos, compression);
+        os.write(s.getBytes(StandardCharsets.UTF_8));
+        os.flush();
+        os.close();
+        compressor.onRequestEnd();
+        return baos.toByteArray();
+    }
+
+    private static String decompress(InputStream is) throws IOException {
+        try (is) {
+            return new String(is.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -29,6 +29,7 @@ import co.elastic.apm.agent.impl.metadata.SystemInfo;
 import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.objectpool.ObjectPoolFactory;
 import co.elastic.apm.agent.report.processor.ProcessorEventHandler;
 import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
 import com.dslplatform.json.DslJson;
@@ -38,19 +39,25 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.tomakehurst.wiremock.WireMockServer;
 import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.verification.LoggedRequest;
+import org.apache.commons.lang3.RandomStringUtils;
 import org.junit.Rule;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.stagemonitor.configuration.ConfigurationRegistry;
 
 import javax.annotation.Nonnull;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.Collections;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -63,6 +70,8 @@ import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.serviceUnavailable;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 
 class IntakeV2ReportingEventHandlerTest {
@@ -165,6 +174,35 @@ class IntakeV2ReportingEventHandlerTest {
         assertThat(ndJsonNodes.get(4).get("foo").textValue()).isEqualTo("bar");
     }
 
+    @Test
+    void testReportSerializedEvents() throws Exception {
+        ProducerSideSerializer producerSideSerializer = new ProducerSideSerializer(
+            mock(StacktraceConfiguration.class),
+            apmServerClient,
+            MetaDataMock.create(new ProcessInfo("title"), new Service(), new SystemInfo("x64", "localhost", null, "platform"), null, Collections.emptyMap(), null),
+            mock(ProcessorEventHandler.class),
+            new ObjectPoolFactory(),
+            4);
+        SerializedEvent serializedTransaction = producerSideSerializer.serialize(new Transaction(MockTracer.create()));
+        reportSerialized(serializedTransaction);
+        SerializedEvent serializedSpan = producerSideSerializer.serialize(new Span(MockTracer.create()));
+        // the serialized transaction has been recycled after it has been written to the request
+        assertThat(serializedSpan).isSameAs(serializedTransaction);
+        // pooled events only hold the serialized bytes, not the buffers of a serializer
+        assertThat(serializedSpan.getBytes().length).isLessThan(DslJsonSerializer.BUFFER_SIZE);
+        reportSerialized(serializedSpan);
+        reportSerialized(producerSideSerializer.serialize(new ErrorCapture(MockTracer.create())));
+        reportingEventHandler.endRequest();
+
+        final List<JsonNode> ndJsonNodes = getNdJsonNodes();
+        assertThat(ndJsonNodes).hasSize(4);
+        assertThat(ndJsonNodes.get(0).get("metadata")).isNotNull();
+        assertThat(ndJsonNodes.get(1).get("transaction")).isNotNull();
+        assertThat(ndJsonNodes.get(2).get("span")).isNotNull();
+        assertThat(ndJsonNodes.get(3).get("error")).isNotNull();
+        assertThat(producerSideSerializer.getGarbageCreated()).isZero();
+    }
+
     @Test
     void testNoopWhenNotConnected() throws Exception {
         reportTransaction(nonConnectedReportingEventHandler);
@@ -202,6 +240,176 @@ class IntakeV2ReportingEventHandlerTest {
         mockApmServer2.verify(postRequestedFor(urlEqualTo(APM_SERVER_PATH + INTAKE_V2_URL)));
     }
 
+    @Test
+    void testSpillWhileBackingOff(@TempDir File tempDir) throws Exception {
+        ConfigurationRegistry configurationRegistry = SpyConfiguration.createSpyConfig();
+        SpillBuffer spillBuffer = new SpillBuffer(tempDir, 1024 * 1024, 1024 * 1024);
+        IntakeV2ReportingEventHandler spillingReportingEventHandler = new IntakeV2ReportingEventHandler(
+            configurationRegistry.getConfig(ReporterConfiguration.class),
+            mock(ProcessorEventHandler.class),
+            new DslJsonSerializer(
+                mock(StacktraceConfiguration.class),
+                apmServerClient,
+                MetaDataMock.create(new ProcessInfo("title"), new Service(), new SystemInfo("x64", "localhost", null, "platform"), null, Collections.emptyMap(), null)
+            ),
+            apmServerClient,
+            spillBuffer);
+        mockApmServer1.stubFor(post(INTAKE_V2_URL).willReturn(serviceUnavailable()));
+        mockApmServer2.stubFor(post(APM_SERVER_PATH + INTAKE_V2_URL).willReturn(serviceUnavailable()));
+
+        // the first error does not back off, the second one backs off for about a second
+        reportTransaction(spillingReportingEventHandler);
+        spillingReportingEventHandler.endRequest();
+        reportTransaction(spillingReportingEventHandler);
+        spillingReportingEventHandler.endRequest();
+        assertThat(spillingReportingEventHandler.isHealthy()).isFalse();
+        assertThat(spillingReportingEventHandler.isResponsive()).isTrue();
+
+        mockApmServer1.resetRequests();
+        mockApmServer2.resetRequests();
+        reportTransaction(spillingReportingEventHandler);
+        reportSpan(spillingReportingEventHandler);
+        assertThat(spillingReportingEventHandler.getBufferSize()).isZero();
+        assertThat(spillBuffer.isEmpty()).isFalse();
+        mockApmServer1.verify(0, postRequestedFor(urlEqualTo(INTAKE_V2_URL)));
+        mockApmServer2.verify(0, postRequestedFor(urlEqualTo(APM_SERVER_PATH + INTAKE_V2_URL)));
+
+        mockApmServer1.stubFor(post(INTAKE_V2_URL).willReturn(ok()));
+        await().atMost(Duration.ofSeconds(2)).until(() -> !spillingReportingEventHandler.isBackingOff());
+        // the spilled events are only replayed after the APM Server has accepted a request
+        reportTransaction(spillingReportingEventHandler);
+        spillingReportingEventHandler.endRequest();
+        assertThat(spillBuffer.isEmpty()).isFalse();
+        reportTransaction(spillingReportingEventHandler);
+        spillingReportingEventHandler.endRequest();
+        assertThat(spillBuffer.isEmpty()).isTrue();
+
+        List<LoggedRequest> requests = mockApmServer1.findAll(postRequestedFor(urlEqualTo(INTAKE_V2_URL)));
+        assertThat(requests).hasSize(2);
+        List<JsonNode> ndJsonNodes = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(requests.get(1).getBody())))
+            .lines()
+            .map(IntakeV2ReportingEventHandlerTest::getReadTree)
+            .collect(Collectors.toList());
+        assertThat(ndJsonNodes).hasSize(4);
+        assertThat(ndJsonNodes.get(0).get("metadata")).isNotNull();
+        assertThat(ndJsonNodes.get(1).get("transaction")).isNotNull();
+        assertThat(ndJsonNodes.get(2).get("transaction")).isNotNull();
+        assertThat(ndJsonNodes.get(3).get("span")).isNotNull();
+        assertThat(spillingReportingEventHandler.getReported()).isEqualTo(4);
+    }
+
+    @Test
+    void testReplayAgainAfterFailedRequest(@TempDir File tempDir) throws Exception {
+        ConfigurationRegistry configurationRegistry = SpyConfiguration.createSpyConfig();
+        SpillBuffer spillBuffer = new SpillBuffer(tempDir, 1024 * 1024, 1024 * 1024);
+        IntakeV2ReportingEventHandler spillingReportingEventHandler = new IntakeV2ReportingEventHandler(
+            configurationRegistry.getConfig(ReporterConfiguration.class),
+            mock(ProcessorEventHandler.class),
+            new DslJsonSerializer(
+                mock(StacktraceConfiguration.class),
+                apmServerClient,
+                MetaDataMock.create(new ProcessInfo("title"), new Service(), new SystemInfo("x64", "localhost", null, "platform"), null, Collections.emptyMap(), null)
+            ),
+            apmServerClient,
+            spillBuffer);
+        spillBuffer.getOutputStream().write("{\"transaction\":{}}\n".getBytes(StandardCharsets.UTF_8));
+        spillBuffer.onEventWritten(true);
+        mockApmServer1.stubFor(post(INTAKE_V2_URL).willReturn(serviceUnavailable()));
+        mockApmServer2.stubFor(post(APM_SERVER_PATH + INTAKE_V2_URL).willReturn(serviceUnavailable()));
+
+        reportTransaction(spillingReportingEventHandler);
+        spillingReportingEventHandler.endRequest();
+        // the replayed event is kept for the next request and not counted as dropped
+        assertThat(spillBuffer.isEmpty()).isFalse();
+        assertThat(spillingReportingEventHandler.getDropped()).isEqualTo(1);
+
+        mockApmServer1.stubFor(post(INTAKE_V2_URL).willReturn(ok()));
+        mockApmServer2.stubFor(post(APM_SERVER_PATH + INTAKE_V2_URL).willReturn(ok()));
+        reportTransaction(spillingReportingEventHandler);
+        spillingReportingEventHandler.endRequest();
+        reportTransaction(spillingReportingEventHandler);
+        spillingReportingEventHandler.endRequest();
+        assertThat(spillBuffer.isEmpty()).isTrue();
+        assertThat(spillingReportingEventHandler.getReported()).isEqualTo(3);
+        assertThat(spillingReportingEventHandler.getDropped()).isEqualTo(1);
+    }
+
+    @Test
+    void testEventsDroppedBySpillBufferAreCounted(@TempDir File tempDir) throws Exception {
+        // too small for any frame
+        SpillBuffer spillBuffer = new SpillBuffer(tempDir, SpillBuffer.FRAME_HEADER_SIZE, 1024 * 1024);
+        IntakeV2ReportingEventHandler spillingReportingEventHandler = new IntakeV2ReportingEventHandler(
+            SpyConfiguration.createSpyConfig().getConfig(ReporterConfiguration.class),
+            mock(ProcessorEventHandler.class),
+            new DslJsonSerializer(
+                mock(StacktraceConfiguration.class),
+                apmServerClient,
+                MetaDataMock.create(new ProcessInfo("title"), new Service(), new SystemInfo("x64", "localhost", null, "platform"), null, Collections.emptyMap(), null)
+            ),
+            apmServerClient,
+            spillBuffer);
+        spillBuffer.getOutputStream().write("{\"transaction\":{}}\n".getBytes(StandardCharsets.UTF_8));
+        spillBuffer.onEventWritten(true);
+        spillBuffer.flushFrame();
+
+        assertThat(spillBuffer.getDroppedEvents()).isEqualTo(1);
+        assertThat(spillingReportingEventHandler.getDropped()).isEqualTo(1);
+    }
+
+    @Test
+    void testCoalesceBatch() throws Exception {
+        IntakeV2ReportingEventHandler coalescingReportingEventHandler = createCoalescingReportingEventHandler(1024 * 1024);
+        byte[] largeEvent = ("{\"foo\":\"" + RandomStringUtils.randomAlphanumeric(DslJsonSerializer.BUFFER_SIZE) + "\"}\n").getBytes();
+
+        reportTransaction(coalescingReportingEventHandler, false);
+        int bufferSize = coalescingReportingEventHandler.getBufferSize();
+        assertThat(bufferSize).isGreaterThan(0);
+        reportTransaction(coalescingReportingEventHandler, true);
+        // small batches are coalesced with the next ones
+        assertThat(coalescingReportingEventHandler.getBufferSize()).isGreaterThan(bufferSize);
+        reportBytes(coalescingReportingEventHandler, largeEvent, false);
+        assertThat(coalescingReportingEventHandler.getBufferSize()).isGreaterThan(DslJsonSerializer.BUFFER_SIZE);
+        // the end of the batch writes all coalesced events to the request
+        reportTransaction(coalescingReportingEventHandler, true);
+        assertThat(coalescingReportingEventHandler.getBufferSize()).isZero();
+        coalescingReportingEventHandler.endRequest();
+
+        final List<JsonNode> ndJsonNodes = getNdJsonNodes();
+        assertThat(ndJsonNodes).hasSize(5);
+        assertThat(ndJsonNodes.get(0).get("metadata")).isNotNull();
+        assertThat(ndJsonNodes.get(1).get("transaction")).isNotNull();
+        assertThat(ndJsonNodes.get(2).get("transaction")).isNotNull();
+        assertThat(ndJsonNodes.get(3).get("foo")).isNotNull();
+        assertThat(ndJsonNodes.get(4).get("transaction")).isNotNull();
+        assertThat(coalescingReportingEventHandler.getReported()).isEqualTo(3);
+    }
+
+    @Test
+    void testCoalesceBatchUpToMaxBatchBytes() throws Exception {
+        IntakeV2ReportingEventHandler coalescingReportingEventHandler = createCoalescingReportingEventHandler(1);
+
+        reportTransaction(coalescingReportingEventHandler, false);
+        assertThat(coalescingReportingEventHandler.getBufferSize()).isZero();
+        coalescingReportingEventHandler.endRequest();
+
+        assertThat(getNdJsonNodes()).hasSize(2);
+    }
+
+    private IntakeV2ReportingEventHandler createCoalescingReportingEventHandler(long maxBatchBytes) {
+        ConfigurationRegistry configurationRegistry = SpyConfiguration.createSpyConfig();
+        ReporterConfiguration reporterConfiguration = configurationRegistry.getConfig(ReporterConfiguration.class);
+        doReturn(maxBatchBytes).when(reporterConfiguration).getMaxBatchBytes();
+        return new IntakeV2ReportingEventHandler(
+            reporterConfiguration,
+            mock(ProcessorEventHandler.class),
+            new DslJsonSerializer(
+                mock(StacktraceConfiguration.class),
+                apmServerClient,
+                MetaDataMock.create(new ProcessInfo("title"), new Service(), new SystemInfo("x64", "localhost", null, "platform"), null, Collections.emptyMap(), null)
+            ),
+            apmServerClient);
+    }
+
     @Test
     void testExponentialBackoff() {
         assertThat(IntakeV2ReportingEventHandler.getBackoffTimeSeconds(0)).isEqualTo(0);
@@ -222,13 +430,21 @@ class IntakeV2ReportingEventHandlerTest {
     }
 
     private void reportTransaction(IntakeV2ReportingEventHandler reportingEventHandler) throws Exception {
+        reportTransaction(reportingEventHandler, true);
+    }
+
+    private void reportTransaction(IntakeV2ReportingEventHandler reportingEventHandler, boolean endOfBatch) throws Exception {
         final ReportingEvent reportingEvent = new ReportingEvent();
         reportingEvent.setTransaction(new Transaction(MockTracer.create()));
 
-        reportingEventHandler.onEvent(reportingEvent, -1, true);
+        reportingEventHandler.onEvent(reportingEvent, -1, endOfBatch);
     }
 
     private void reportSpan() throws Exception {
+        reportSpan(reportingEventHandler);
+    }
+
+    private void reportSpan(IntakeV2ReportingEventHandler reportingEventHandler) throws Exception {
         final ReportingEvent reportingEvent = new ReportingEvent();
         reportingEvent.setSpan(new Span(MockTracer.create()));
 
@@ -242,13 +458,23 @@ class IntakeV2ReportingEventHandlerTest {
         reportingEventHandler.onEvent(reportingEvent, -1, true);
     }
 
+    private void reportSerialized(SerializedEvent serializedEvent) throws Exception {
+        final ReportingEvent reportingEvent = new ReportingEvent();
+        reportingEvent.setSerializedEvent(serializedEvent);
+        reportingEventHandler.onEvent(reportingEvent, -1, true);
+    }
+
     private void reportBytes(byte[] bytes) throws Exception {
+        reportBytes(reportingEventHandler, bytes, true);
+    }
+
+    private void reportBytes(IntakeV2ReportingEventHandler reportingEventHandler, byte[] bytes, boolean endOfBatch) throws Exception {
         final ReportingEvent reportingEvent = new ReportingEvent();
         JsonWriter jw = new DslJson<>().newWriter();
         jw.writeAscii(bytes);
         reportingEvent.setJsonWriter(jw);
 
-        reportingEventHandler.onEvent(reportingEvent, -1, true);
+        reportingEventHandler.onEvent(reportingEvent, -1, endOfBatch);
     }
 
     private void sendShutdownEvent() throws Exception {
@@ -0,0 +1,105 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.configuration.SpyConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+class QueueByteBudgetTest {
+
+    @Test
+    void testRejectsEventsExceedingBudget() {
+        QueueByteBudget budget = new QueueByteBudget(1000);
+        assertThat(budget.tryAcquire(600, QueueByteBudget.UNLIMITED_SIZE_TOLERANCE)).isTrue();
+        assertThat(budget.tryAcquire(500, QueueByteBudget.UNLIMITED_SIZE_TOLERANCE)).isFalse();
+        assertThat(budget.getQueuedBytes()).isEqualTo(600);
+        assertThat(budget.tryAcquire(400, QueueByteBudget.UNLIMITED_SIZE_TOLERANCE)).isTrue();
+        assertThat(budget.getQueuedBytes()).isEqualTo(1000);
+
+        budget.release(600);
+        budget.release(400);
+        assertThat(budget.getQueuedBytes()).isZero();
+        assertThat(budget.tryAcquire(1001, QueueByteBudget.UNLIMITED_SIZE_TOLERANCE)).isFalse();
+    }
+
+    @Test
+    void testRejectsLargeEventsAboveSoftLimit() {
+        QueueByteBudget budget = new QueueByteBudget(1000);
+        for (int i = 0; i < 8; i++) {
+            assertThat(budget.tryAcquire(100, 1)).isTrue();
+        }
+        // above the soft limit, the average queued event has 100 bytes
+        assertThat(budget.tryAcquire(101, 1)).isFalse();
+        assertThat(budget.tryAcquire(150, 2)).isTrue();
+        assertThat(budget.tryAcquire(10, 1)).isTrue();
+        assertThat(budget.tryAcquire(40, QueueByteBudget.UNLIMITED_SIZE_TOLERANCE)).isTrue();
+        assertThat(budget.getQueuedBytes()).isEqualTo(1000);
+    }
+
+    @Test
+    void testReportingEventReleasesBudget() {
+        QueueByteBudget budget = new QueueByteBudget(1000);
+        assertThat(budget.tryAcquire(100, 1)).isTrue();
+        ReportingEvent reportingEvent = new ReportingEvent();
+        reportingEvent.setQueuedBytes(budget, 100);
+        reportingEvent.end();
+        reportingEvent.resetState();
+        assertThat(budget.getQueuedBytes()).isZero();
+
+        // after resetState, the event must not release the budget again
+        reportingEvent.end();
+        assertThat(budget.getQueuedBytes()).isZero();
+    }
+
+    @Test
+    void testReporterDropsEventsExceedingBudget() {
+        ElasticApmTracer tracer = MockTracer.create();
+        ReporterConfiguration reporterConfiguration = SpyConfiguration.createSpyConfig().getConfig(ReporterConfiguration.class);
+        doReturn(10 * 1024L).when(reporterConfiguration).getMaxQueueBytes();
+        // the lanes may use the whole budget
+        doReturn(Map.of()).when(reporterConfiguration).getQueueLaneLimits();
+        // the reporter is not started so that events stay in the queue
+        ApmServerReporter reporter = new ApmServerReporter(true, reporterConfiguration, mock(ReportingEventHandler.class));
+
+        long transactionSize = EventSizeEstimator.estimateSize(new Transaction(tracer));
+        long maxTransactions = 10 * 1024 / transactionSize;
+        for (int i = 0; i < maxTransactions; i++) {
+            reporter.report(new Transaction(tracer));
+        }
+        assertThat(reporter.getDropped()).isZero();
+        assertThat(reporter.getQueuedBytes()).isEqualTo(maxTransactions * transactionSize);
+
+        reporter.report(new Transaction(tracer));
+        assertThat(reporter.getDropped()).isEqualTo(1);
+        // spans are smaller than the average queued event and still fit the budget
+        reporter.report(new Span(tracer));
+        assertThat(reporter.getDropped()).isEqualTo(1);
+        assertThat(reporter.getQueuedBytes()).isEqualTo(maxTransactions * transactionSize + EventSizeEstimator.estimateSize(new Span(tracer)));
+    }
+}
@@ -38,9 +38,11 @@ import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.stagemonitor.configuration.ConfigurationRegistry;
+import org.stagemonitor.util.IOUtils;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 import java.net.URL;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -80,7 +82,9 @@ class ReporterFactoryTest {
         server.addConnector(httpsConnector);
         server.setHandler(new AbstractHandler() {
             @Override
-            public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) {
+            public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+                // consume the request body so that the connection can be reused
+                IOUtils.consumeAndClose(request.getInputStream());
                 baseRequest.setHandled(true);
                 requestHandled.set(true);
             }
@@ -132,4 +136,43 @@ class ReporterFactoryTest {
             .describedAs("request should have produced a certificate validation error")
             .isFalse();
     }
+
+    @Test
+    void testShardedReporter() throws Exception {
+        doReturn(false).when(reporterConfiguration).isVerifyServerCert();
+        doReturn(2).when(reporterConfiguration).getReporterThreads();
+        ApmServerClient apmServerClient = new ApmServerClient(reporterConfiguration, configuration.getConfig(CoreConfiguration.class));
+        apmServerClient.start();
+        final Reporter reporter = reporterFactory.createReporter(configuration, apmServerClient, MetaDataMock.create());
+        assertThat(reporter).isInstanceOf(ShardedReporter.class);
+        reporter.start();
+
+        reporter.report(new Transaction(MockTracer.create()));
+        assertThat(reporter.flush()).isTrue();
+
+        assertThat(requestHandled).isTrue();
+        reporter.close();
+    }
+
+    @Test
+    void testNioTransport() throws Exception {
+        doReturn(false).when(reporterConfiguration).isVerifyServerCert();
+        doReturn(ApiRequestTransport.NIO).when(reporterConfiguration).getApiRequestTransport();
+        ApmServerClient apmServerClient = new ApmServerClient(reporterConfiguration, configuration.getConfig(CoreConfiguration.class));
+        apmServerClient.start();
+        final Reporter reporter = reporterFactory.createReporter(configuration, apmServerClient, MetaDataMock.create());
+        reporter.start();
+
+        reporter.report(new Transaction(MockTracer.create()));
+        assertThat(reporter.flush()).isTrue();
+        assertThat(requestHandled).isTrue();
+
+        requestHandled.set(false);
+        reporter.report(new Transaction(MockTracer.create()));
+        assertThat(reporter.flush()).isTrue();
+        assertThat(requestHandled).isTrue();
+        assertThat(apmServerClient.getNioConnectionPool().getOpenedConnections()).isEqualTo(1);
+        reporter.close();
+        apmServerClient.close();
+    }
 }
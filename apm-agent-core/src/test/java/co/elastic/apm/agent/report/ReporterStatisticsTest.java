@@ -0,0 +1,143 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ReporterStatisticsTest {
+
+    private final ReporterStatistics statistics = new ReporterStatistics();
+
+    @Test
+    void testBatches() {
+        ReporterStatistics.Recorder recorder = statistics.newRecorder();
+
+        recordEvent(recorder, 0, false);
+        recordEvent(recorder, 0, false);
+        recordEvent(recorder, 0, true);
+        assertThat(statistics.getEvents()).isEqualTo(3);
+        assertThat(statistics.getBatches()).isEqualTo(1);
+
+        recordEvent(recorder, 0, true);
+        assertThat(statistics.getEvents()).isEqualTo(4);
+        assertThat(statistics.getBatches()).isEqualTo(2);
+    }
+
+    @Test
+    void testBatchIsPublishedAtTheEnd() {
+        ReporterStatistics.Recorder recorder = statistics.newRecorder();
+
+        recordEvent(recorder, System.nanoTime(), false);
+
+        assertThat(statistics.getEvents()).isZero();
+        assertThat(statistics.getLatencyCount(0)).isZero();
+    }
+
+    @Test
+    void testLatency() {
+        ReporterStatistics.Recorder recorder = statistics.newRecorder();
+
+        recordEvent(recorder, System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(5), false);
+        recordEvent(recorder, System.nanoTime() - TimeUnit.SECONDS.toNanos(1), false);
+        // events that are not sent to the APM Server don't have a publish timestamp
+        recordEvent(recorder, 0, true);
+
+        assertThat(statistics.getLatencyCount(getBucket("10ms"))).isEqualTo(1);
+        assertThat(statistics.getLatencyCount(getBucket("inf"))).isEqualTo(1);
+        long total = 0;
+        for (int i = 0; i < ReporterStatistics.getLatencyBuckets(); i++) {
+            total += statistics.getLatencyCount(i);
+        }
+        assertThat(total).isEqualTo(2);
+    }
+
+    @Test
+    void testLatencyBuckets() {
+        assertThat(ReporterStatistics.getLatencyBucket(0)).isEqualTo(getBucket("10us"));
+        assertThat(ReporterStatistics.getLatencyBucket(TimeUnit.MICROSECONDS.toNanos(10))).isEqualTo(getBucket("10us"));
+        assertThat(ReporterStatistics.getLatencyBucket(TimeUnit.MICROSECONDS.toNanos(11))).isEqualTo(getBucket("100us"));
+        assertThat(ReporterStatistics.getLatencyBucket(TimeUnit.MILLISECONDS.toNanos(100))).isEqualTo(getBucket("100ms"));
+        assertThat(ReporterStatistics.getLatencyBucket(TimeUnit.MINUTES.toNanos(1))).isEqualTo(getBucket("inf"));
+    }
+
+    @Test
+    void testIdleTime() throws Exception {
+        ReporterStatistics.Recorder recorder = statistics.newRecorder();
+        recordEvent(recorder, 0, true);
+        long idleAfterBatch = statistics.getIdleNs(System.nanoTime());
+
+        Thread.sleep(20);
+
+        // includes the time the recorder is currently waiting
+        long idleWhileWaiting = statistics.getIdleNs(System.nanoTime());
+        assertThat(idleWhileWaiting - idleAfterBatch).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(20));
+
+        recorder.beforeEvent();
+        long idleWhileBusy = statistics.getIdleNs(System.nanoTime());
+        assertThat(idleWhileBusy).isGreaterThanOrEqualTo(idleWhileWaiting);
+        Thread.sleep(20);
+        assertThat(statistics.getIdleNs(System.nanoTime())).isEqualTo(idleWhileBusy);
+        recorder.afterEvent(0, null, true);
+    }
+
+    @Test
+    void testLanes() {
+        ReporterStatistics.Recorder recorder = statistics.newRecorder();
+
+        recorder.beforeEvent();
+        recorder.afterEvent(0, ReporterLane.SPAN, false);
+        recorder.afterEvent(0, ReporterLane.SPAN, false);
+        assertThat(statistics.getProcessed(ReporterLane.SPAN)).isZero();
+        recorder.afterEvent(0, ReporterLane.ERROR, false);
+        recorder.afterEvent(0, null, true);
+        statistics.onDropped(ReporterLane.SPAN);
+
+        assertThat(statistics.getProcessed(ReporterLane.SPAN)).isEqualTo(2);
+        assertThat(statistics.getProcessed(ReporterLane.ERROR)).isEqualTo(1);
+        assertThat(statistics.getProcessed(ReporterLane.TRANSACTION)).isZero();
+        assertThat(statistics.getDropped(ReporterLane.SPAN)).isEqualTo(1);
+        assertThat(statistics.getDropped(ReporterLane.ERROR)).isZero();
+    }
+
+    @Test
+    void testConsumers() {
+        statistics.newRecorder();
+        statistics.newRecorder();
+
+        assertThat(statistics.getConsumers()).isEqualTo(2);
+    }
+
+    private static void recordEvent(ReporterStatistics.Recorder recorder, long publishedNs, boolean endOfBatch) {
+        recorder.beforeEvent();
+        recorder.afterEvent(publishedNs, null, endOfBatch);
+    }
+
+    private static int getBucket(String name) {
+        for (int i = 0; i < ReporterStatistics.getLatencyBuckets(); i++) {
+            if (ReporterStatistics.getLatencyBucketName(i).equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException(name);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+class ShardedReporterTest {
+
+    private Reporter shard0;
+    private Reporter shard1;
+    private ShardedReporter reporter;
+
+    @BeforeEach
+    void setUp() {
+        shard0 = mock(Reporter.class);
+        shard1 = mock(Reporter.class);
+        reporter = new ShardedReporter(List.of(shard0, shard1));
+    }
+
+    @Test
+    void testRequiresShards() {
+        assertThatThrownBy(() -> new ShardedReporter(List.of())).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void testShardByThreadId() throws Exception {
+        Transaction transaction = mock(Transaction.class);
+        Span span = mock(Span.class);
+        Thread thread = new Thread(() -> {
+            reporter.report(transaction);
+            reporter.report(span);
+        });
+        thread.start();
+        thread.join();
+
+        Reporter expectedShard = thread.getId() % 2 == 0 ? shard0 : shard1;
+        Reporter otherShard = expectedShard == shard0 ? shard1 : shard0;
+        verify(expectedShard).report(transaction);
+        verify(expectedShard).report(span);
+        verify(otherShard, never()).report(transaction);
+        verify(otherShard, never()).report(span);
+    }
+
+    @Test
+    void testCountersAreAggregated() {
+        doReturn(1L).when(shard0).getReported();
+        doReturn(2L).when(shard1).getReported();
+        doReturn(3L).when(shard0).getDropped();
+        doReturn(4L).when(shard1).getDropped();
+
+        assertThat(reporter.getReported()).isEqualTo(3);
+        assertThat(reporter.getDropped()).isEqualTo(7);
+    }
+
+    @Test
+    void testOnlyLastShardMakesFlushRequest() {
+        doReturn(true).when(shard0).flush(anyLong(), eq(TimeUnit.NANOSECONDS), eq(false));
+        doReturn(true).when(shard1).flush(anyLong(), eq(TimeUnit.NANOSECONDS), eq(true));
+
+        assertThat(reporter.flush(1, TimeUnit.SECONDS, true)).isTrue();
+
+        verify(shard0).flush(anyLong(), eq(TimeUnit.NANOSECONDS), eq(false));
+        verify(shard1).flush(anyLong(), eq(TimeUnit.NANOSECONDS), eq(true));
+    }
+
+    @Test
+    void testFlushFailsIfAnyShardFails() {
+        doReturn(true).when(shard0).flush(-1, TimeUnit.NANOSECONDS, false);
+        doReturn(false).when(shard1).flush(-1, TimeUnit.NANOSECONDS, false);
+
+        assertThat(reporter.flush()).isFalse();
+    }
+
+    @Test
+    void testLifecycle() {
+        reporter.start();
+        reporter.close();
+
+        verify(shard0).start();
+        verify(shard1).start();
+        verify(shard0).close();
+        verify(shard1).close();
+    }
+}
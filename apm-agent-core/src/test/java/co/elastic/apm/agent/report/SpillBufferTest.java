@@ -0,0 +1,229 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.report.serialize.PayloadSerializer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+class SpillBufferTest {
+
+    @TempDir
+    File tempDir;
+    private File spillDir;
+    private PayloadSerializer serializer;
+    private ByteArrayOutputStream replayed;
+
+    @BeforeEach
+    void setUp() {
+        spillDir = new File(tempDir, "spill");
+        replayed = new ByteArrayOutputStream();
+        serializer = mock(PayloadSerializer.class);
+        doAnswer(invocation -> {
+            replayed.write(invocation.<byte[]>getArgument(0), 0, invocation.<Integer>getArgument(1));
+            return null;
+        }).when(serializer).writeBytes(any(), anyInt());
+    }
+
+    @AfterEach
+    void tearDown() {
+        assertThat(spillDir.exists()).isFalse();
+    }
+
+    @Test
+    void testWriteAndReplay() throws Exception {
+        SpillBuffer spillBuffer = new SpillBuffer(spillDir, 1024 * 1024, 1024 * 1024);
+        assertThat(spillBuffer.isEmpty()).isTrue();
+        writeEvent(spillBuffer, "{\"transaction\":{}}\n", true);
+        writeEvent(spillBuffer, "{\"span\":{}}\n", true);
+        writeEvent(spillBuffer, "{\"metricset\":{}}\n", false);
+        assertThat(spillBuffer.isEmpty()).isFalse();
+
+        spillBuffer.flushFrame();
+        assertThat(spillBuffer.getSize()).isPositive();
+        assertThat(spillBuffer.getSpilledEvents()).isEqualTo(2);
+        assertThat(spillDir.listFiles()).hasSize(1);
+
+        assertThat(spillBuffer.replay(serializer, System.nanoTime())).isEqualTo(2);
+        assertThat(replayed.toString(StandardCharsets.UTF_8)).isEqualTo("{\"transaction\":{}}\n{\"span\":{}}\n{\"metricset\":{}}\n");
+        assertThat(spillBuffer.replay(serializer, System.nanoTime())).isEqualTo(-1);
+        // replayed frames are kept until the APM Server has accepted them
+        assertThat(spillBuffer.isEmpty()).isFalse();
+        assertThat(spillDir.listFiles()).hasSize(1);
+
+        spillBuffer.onReplayAccepted();
+        assertThat(spillBuffer.isEmpty()).isTrue();
+        assertThat(spillBuffer.getSize()).isZero();
+        assertThat(spillDir.listFiles()).isEmpty();
+        spillBuffer.close();
+    }
+
+    @Test
+    void testReplayAgainAfterFailure() throws Exception {
+        SpillBuffer spillBuffer = new SpillBuffer(spillDir, 1024 * 1024, 1024 * 1024);
+        writeEvent(spillBuffer, "{\"transaction\":{\"id\":1}}\n", true);
+        spillBuffer.flushFrame();
+        writeEvent(spillBuffer, "{\"transaction\":{\"id\":2}}\n", true);
+        spillBuffer.flushFrame();
+
+        assertThat(spillBuffer.replay(serializer, System.nanoTime())).isEqualTo(1);
+        spillBuffer.onReplayAccepted();
+        assertThat(spillBuffer.replay(serializer, System.nanoTime())).isEqualTo(1);
+        spillBuffer.onReplayFailed();
+        assertThat(spillBuffer.isEmpty()).isFalse();
+
+        // only the frame which has not been accepted is replayed again
+        assertThat(spillBuffer.replay(serializer, System.nanoTime())).isEqualTo(1);
+        assertThat(spillBuffer.replay(serializer, System.nanoTime())).isEqualTo(-1);
+        assertThat(replayed.toString(StandardCharsets.UTF_8))
+            .isEqualTo("{\"transaction\":{\"id\":1}}\n{\"transaction\":{\"id\":2}}\n{\"transaction\":{\"id\":2}}\n");
+        spillBuffer.onReplayAccepted();
+        assertThat(spillBuffer.isEmpty()).isTrue();
+        assertThat(spillBuffer.getDroppedEvents()).isZero();
+        spillBuffer.close();
+    }
+
+    @Test
+    void testReplayFlushesStagedEvents() throws Exception {
+        SpillBuffer spillBuffer = new SpillBuffer(spillDir, 1024 * 1024, 1024 * 1024);
+        writeEvent(spillBuffer, "{\"transaction\":{}}\n", true);
+
+        assertThat(spillBuffer.replay(serializer, System.nanoTime())).isEqualTo(1);
+        assertThat(replayed.toString(StandardCharsets.UTF_8)).isEqualTo("{\"transaction\":{}}\n");
+        spillBuffer.close();
+    }
+
+    @Test
+    void testWritesFramesOnEventBoundaries() throws Exception {
+        SpillBuffer spillBuffer = new SpillBuffer(spillDir, 1024 * 1024, 1024 * 1024);
+        String event = randomEvent(SpillBuffer.FRAME_SIZE / 4);
+        for (int i = 0; i < 5; i++) {
+            writeEvent(spillBuffer, event, true);
+        }
+        // the first four events exceed the frame size
+        assertThat(spillBuffer.getSpilledEvents()).isEqualTo(4);
+
+        assertThat(spillBuffer.replay(serializer, System.nanoTime())).isEqualTo(4);
+        assertThat(spillBuffer.replay(serializer, System.nanoTime())).isEqualTo(1);
+        assertThat(replayed.size()).isEqualTo(event.length() * 5);
+        spillBuffer.close();
+    }
+
+    @Test
+    void testSkipCorruptedFrames() throws Exception {
+        SpillBuffer spillBuffer = new SpillBuffer(spillDir, 1024 * 1024, 1024 * 1024);
+        writeEvent(spillBuffer, "{\"transaction\":{\"id\":1}}\n", true);
+        spillBuffer.flushFrame();
+        writeEvent(spillBuffer, "{\"transaction\":{\"id\":2}}\n", true);
+        spillBuffer.flushFrame();
+
+        File[] segments = spillDir.listFiles();
+        assertThat(segments).hasSize(1);
+        try (RandomAccessFile file = new RandomAccessFile(segments[0], "rw")) {
+            file.seek(SpillBuffer.FRAME_HEADER_SIZE);
+            int b = file.read();
+            file.seek(SpillBuffer.FRAME_HEADER_SIZE);
+            file.write(~b);
+        }
+
+        assertThat(spillBuffer.replay(serializer, System.nanoTime())).isEqualTo(1);
+        assertThat(replayed.toString(StandardCharsets.UTF_8)).isEqualTo("{\"transaction\":{\"id\":2}}\n");
+        assertThat(spillBuffer.getDroppedEvents()).isEqualTo(1);
+        // the corrupted frame is skipped again, but only counted once
+        spillBuffer.onReplayFailed();
+        assertThat(spillBuffer.replay(serializer, System.nanoTime())).isEqualTo(1);
+        assertThat(spillBuffer.getDroppedEvents()).isEqualTo(1);
+        spillBuffer.onReplayAccepted();
+        assertThat(spillBuffer.isEmpty()).isTrue();
+        spillBuffer.close();
+    }
+
+    @Test
+    void testMaxSize() throws Exception {
+        SpillBuffer spillBuffer = new SpillBuffer(spillDir, SpillBuffer.FRAME_SIZE, 1024 * 1024);
+        String event = randomEvent(SpillBuffer.FRAME_SIZE);
+        writeEvent(spillBuffer, event, true);
+        writeEvent(spillBuffer, event, true);
+
+        assertThat(spillBuffer.getSpilledEvents()).isEqualTo(1);
+        assertThat(spillBuffer.getDroppedEvents()).isEqualTo(1);
+        assertThat(spillBuffer.getSize()).isLessThanOrEqualTo(SpillBuffer.FRAME_SIZE);
+
+        // accepted replays free up space
+        assertThat(spillBuffer.replay(serializer, System.nanoTime())).isEqualTo(1);
+        spillBuffer.onReplayAccepted();
+        writeEvent(spillBuffer, event, true);
+        assertThat(spillBuffer.getSpilledEvents()).isEqualTo(2);
+        spillBuffer.close();
+    }
+
+    @Test
+    void testReplayRateLimit() throws Exception {
+        SpillBuffer spillBuffer = new SpillBuffer(spillDir, 1024 * 1024, 1024);
+        writeEvent(spillBuffer, randomEvent(4 * 1024), true);
+        spillBuffer.flushFrame();
+        writeEvent(spillBuffer, randomEvent(4 * 1024), true);
+        spillBuffer.flushFrame();
+
+        long now = System.nanoTime();
+        assertThat(spillBuffer.replay(serializer, now)).isEqualTo(1);
+        // the first frame has used up the budget of four seconds
+        assertThat(spillBuffer.replay(serializer, now + TimeUnit.SECONDS.toNanos(1))).isEqualTo(-1);
+        assertThat(spillBuffer.replay(serializer, now + TimeUnit.SECONDS.toNanos(5))).isEqualTo(1);
+        spillBuffer.onReplayAccepted();
+        assertThat(spillBuffer.isEmpty()).isTrue();
+        spillBuffer.close();
+    }
+
+    private static void writeEvent(SpillBuffer spillBuffer, String event, boolean countAsEvent) throws IOException {
+        OutputStream os = spillBuffer.getOutputStream();
+        os.write(event.getBytes(StandardCharsets.UTF_8));
+        spillBuffer.onEventWritten(countAsEvent);
+    }
+
+    /**
+     * Creates an event that does not compress well
+     */
+    private static String randomEvent(int size) {
+        Random random = new Random(42);
+        StringBuilder sb = new StringBuilder(size);
+        sb.append("{\"s\":\"");
+        while (sb.length() < size - 3) {
+            sb.append((char) ('a' + random.nextInt(26)));
+        }
+        return sb.append("\"}\n").toString();
+    }
+}
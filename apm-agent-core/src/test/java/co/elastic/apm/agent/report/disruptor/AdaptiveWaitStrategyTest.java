@@ -0,0 +1,133 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.disruptor;
+
+import com.lmax.disruptor.AlertException;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.Sequence;
+import com.lmax.disruptor.SequenceBarrier;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+class AdaptiveWaitStrategyTest {
+
+    private AdaptiveWaitStrategy waitStrategy;
+    private RingBuffer<Object> ringBuffer;
+    private SequenceBarrier barrier;
+
+    @BeforeEach
+    void setUp() {
+        waitStrategy = new AdaptiveWaitStrategy();
+        ringBuffer = RingBuffer.createMultiProducer(Object::new, 8, waitStrategy);
+        barrier = ringBuffer.newBarrier();
+    }
+
+    @Test
+    void testAvailableEventDoesNotWait() throws Exception {
+        ringBuffer.publish(ringBuffer.next());
+
+        assertThat(barrier.waitFor(0)).isEqualTo(0);
+        assertThat(waitStrategy.getExpectedIdleNs()).isEqualTo(AdaptiveWaitStrategy.YIELD_NS);
+    }
+
+    @Test
+    void testColdConsumerWaitsActively() throws Exception {
+        assertThat(waitStrategy.getActiveWaitNs()).isGreaterThanOrEqualTo(AdaptiveWaitStrategy.YIELD_NS);
+        Sequence cursor = new Sequence(-1);
+        AtomicInteger checks = new AtomicInteger();
+        // publishes the event while the consumer is waiting, without signalling it
+        SequenceBarrier publishingBarrier = mock(SequenceBarrier.class);
+        doAnswer(invocation -> {
+            if (checks.incrementAndGet() == 3) {
+                cursor.set(0);
+            }
+            return null;
+        }).when(publishingBarrier).checkAlert();
+
+        long start = System.nanoTime();
+        assertThat(waitStrategy.waitFor(0, cursor, cursor, publishingBarrier)).isEqualTo(0);
+
+        // a blocked consumer would only have noticed the event after the safety timeout
+        assertThat(System.nanoTime() - start).isLessThan(TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    void testBlockedConsumerIsSignalled() throws Exception {
+        CompletableFuture<Long> consumer = CompletableFuture.supplyAsync(this::waitForFirstEvent);
+        // longer than the safety timeout of a blocking wait
+        Thread.sleep(150);
+        assertThat(consumer).isNotDone();
+
+        long publishedNs = System.nanoTime();
+        ringBuffer.publish(ringBuffer.next());
+
+        assertThat(consumer.get(1, TimeUnit.SECONDS)).isEqualTo(0);
+        assertThat(System.nanoTime() - publishedNs).isLessThan(TimeUnit.MILLISECONDS.toNanos(50));
+        assertThat(waitStrategy.getExpectedIdleNs()).isPositive();
+    }
+
+    @Test
+    void testExpectedIdleTimeAdapts() throws Exception {
+        for (int i = 0; i < 32; i++) {
+            final long sequence = i;
+            CompletableFuture<Long> consumer = CompletableFuture.supplyAsync(() -> waitFor(sequence));
+            Thread.sleep(30);
+            ringBuffer.publish(ringBuffer.next());
+            assertThat(consumer.get(1, TimeUnit.SECONDS)).isEqualTo(sequence);
+        }
+        // quiet periods let the consumer block right away
+        assertThat(waitStrategy.getExpectedIdleNs()).isGreaterThan(AdaptiveWaitStrategy.BLOCKING_THRESHOLD_NS);
+    }
+
+    @Test
+    void testAlertWakesUpBlockedConsumer() throws Exception {
+        CompletableFuture<Long> consumer = CompletableFuture.supplyAsync(this::waitForFirstEvent);
+        Thread.sleep(50);
+
+        barrier.alert();
+
+        assertThatThrownBy(() -> consumer.get(1, TimeUnit.SECONDS))
+            .isInstanceOf(ExecutionException.class)
+            .hasRootCauseInstanceOf(AlertException.class);
+    }
+
+    private long waitForFirstEvent() {
+        return waitFor(0);
+    }
+
+    private long waitFor(long sequence) {
+        try {
+            return barrier.waitFor(sequence);
+        } catch (AlertException e) {
+            throw new IllegalStateException(e);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.nio;
+
+import co.elastic.apm.agent.configuration.SpyConfiguration;
+import co.elastic.apm.agent.report.HttpUtils;
+import co.elastic.apm.agent.report.ReporterConfiguration;
+import org.eclipse.jetty.http.HttpVersion;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.NetworkConnector;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.SecureRequestCustomizer;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.SslConnectionFactory;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.stagemonitor.util.IOUtils;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.doReturn;
+
+class NioHttpConnectionPoolTest {
+
+    private Server server;
+    private ReporterConfiguration reporterConfiguration;
+    private NioHttpConnectionPool pool;
+    private final List<String> receivedBodies = new CopyOnWriteArrayList<>();
+    private volatile int responseStatus = 202;
+    private volatile String responseBody = "";
+    private volatile boolean chunkedResponse;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = new Server();
+        Path keyStorePath = Paths.get(NioHttpConnectionPoolTest.class.getResource("/keystore").toURI());
+        SslContextFactory sslContextFactory = new SslContextFactory(keyStorePath.toAbsolutePath().toString());
+        sslContextFactory.setKeyStorePassword("password");
+
+        ServerConnector httpConnector = new ServerConnector(server);
+        httpConnector.setPort(0);
+        server.addConnector(httpConnector);
+        HttpConfiguration httpsConfiguration = new HttpConfiguration();
+        httpsConfiguration.addCustomizer(new SecureRequestCustomizer());
+        ServerConnector httpsConnector = new ServerConnector(server,
+            new SslConnectionFactory(sslContextFactory, HttpVersion.HTTP_1_1.asString()),
+            new HttpConnectionFactory(httpsConfiguration));
+        httpsConnector.setPort(0);
+        server.addConnector(httpsConnector);
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+                baseRequest.setHandled(true);
+                receivedBodies.add(IOUtils.toString(request.getInputStream()));
+                response.setStatus(responseStatus);
+                OutputStream os = response.getOutputStream();
+                byte[] body = responseBody.getBytes(StandardCharsets.UTF_8);
+                if (chunkedResponse) {
+                    os.write(body, 0, body.length / 2);
+                    response.flushBuffer();
+                    os.write(body, body.length / 2, body.length - body.length / 2);
+                } else {
+                    response.setContentLength(body.length);
+                    os.write(body);
+                }
+            }
+        });
+        server.start();
+        reporterConfiguration = SpyConfiguration.createSpyConfig().getConfig(ReporterConfiguration.class);
+        doReturn(false).when(reporterConfiguration).isVerifyServerCert();
+        pool = new NioHttpConnectionPool(reporterConfiguration);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        pool.close();
+        server.stop();
+    }
+
+    @Test
+    void testReuseConnection() throws Exception {
+        assertThat(post(getUrl(0), "foo")).isEqualTo(202);
+        assertThat(post(getUrl(0), "bar")).isEqualTo(202);
+
+        assertThat(receivedBodies).containsExactly("foo", "bar");
+        assertThat(pool.getOpenedConnections()).isEqualTo(1);
+        assertThat(pool.getReusedConnections()).isEqualTo(1);
+    }
+
+    @Test
+    void testReuseTlsConnection() throws Exception {
+        assertThat(post(getUrl(1), "foo")).isEqualTo(202);
+        assertThat(post(getUrl(1), "bar")).isEqualTo(202);
+
+        assertThat(receivedBodies).containsExactly("foo", "bar");
+        assertThat(pool.getOpenedConnections()).isEqualTo(1);
+        assertThat(pool.getReusedConnections()).isEqualTo(1);
+    }
+
+    @Test
+    void testValidatingSslCertificate() {
+        doReturn(true).when(reporterConfiguration).isVerifyServerCert();
+
+        assertThatThrownBy(() -> post(getUrl(1), "foo")).isInstanceOf(IOException.class);
+        assertThat(receivedBodies).isEmpty();
+    }
+
+    @Test
+    void testLargeRequestBody() throws Exception {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; body.length() < 5 * ChunkedOutputStream.CHUNK_SIZE; i++) {
+            body.append(i).append('\n');
+        }
+        assertThat(post(getUrl(1), body.toString())).isEqualTo(202);
+
+        assertThat(receivedBodies).containsExactly(body.toString());
+    }
+
+    @Test
+    void testChunkedResponse() throws Exception {
+        responseStatus = 200;
+        responseBody = "{\"accepted\":1}";
+        chunkedResponse = true;
+
+        HttpURLConnection connection = startRequest(getUrl(0), "foo");
+        assertThat(connection.getResponseCode()).isEqualTo(200);
+        assertThat(connection.getHeaderField("transfer-encoding")).isEqualTo("chunked");
+        try (InputStream is = connection.getInputStream()) {
+            assertThat(IOUtils.toString(is)).isEqualTo("{\"accepted\":1}");
+        }
+        assertThat(post(getUrl(0), "bar")).isEqualTo(200);
+        assertThat(pool.getReusedConnections()).isEqualTo(1);
+    }
+
+    @Test
+    void testErrorResponse() throws Exception {
+        responseStatus = 503;
+        responseBody = "queue is full";
+
+        HttpURLConnection connection = startRequest(getUrl(0), "foo");
+        assertThat(connection.getResponseCode()).isEqualTo(503);
+        assertThatThrownBy(connection::getInputStream).isInstanceOf(IOException.class);
+        try (InputStream errorStream = connection.getErrorStream()) {
+            assertThat(errorStream).isNotNull();
+            assertThat(IOUtils.toString(errorStream)).isEqualTo("queue is full");
+        }
+
+        responseStatus = 202;
+        assertThat(post(getUrl(0), "bar")).isEqualTo(202);
+        assertThat(pool.getReusedConnections()).isEqualTo(1);
+    }
+
+    @Test
+    void testStaleConnection() throws Exception {
+        assertThat(post(getUrl(0), "foo")).isEqualTo(202);
+        server.stop();
+        server.start();
+
+        assertThat(post(getUrl(0), "bar")).isEqualTo(202);
+        assertThat(pool.getOpenedConnections()).isEqualTo(2);
+        assertThat(pool.getReusedConnections()).isEqualTo(0);
+    }
+
+    @Test
+    void testProxySelectorIsConsultedOncePerServer() throws Exception {
+        ProxySelector defaultProxySelector = ProxySelector.getDefault();
+        AtomicInteger selections = new AtomicInteger();
+        ProxySelector.setDefault(new ProxySelector() {
+            @Override
+            public List<Proxy> select(URI uri) {
+                selections.incrementAndGet();
+                return Collections.singletonList(Proxy.NO_PROXY);
+            }
+
+            @Override
+            public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+            }
+        });
+        try {
+            assertThat(pool.supports(new URL("http://localhost:8200/intake/v2/events"))).isTrue();
+            assertThat(pool.supports(new URL("http://localhost:8200/config/v1/agents"))).isTrue();
+            assertThat(selections.get()).isEqualTo(1);
+
+            assertThat(pool.supports(new URL("https://localhost:8200/intake/v2/events"))).isTrue();
+            assertThat(selections.get()).isEqualTo(2);
+        } finally {
+            ProxySelector.setDefault(defaultProxySelector);
+        }
+    }
+
+    @Test
+    void testReadResponseBodyByteByByte() throws Exception {
+        responseBody = "{\"ok\":true}";
+        HttpURLConnection connection = startRequest(getUrl(0), "foo");
+        assertThat(connection.getResponseCode()).isEqualTo(202);
+        StringBuilder body = new StringBuilder();
+        try (InputStream is = connection.getInputStream()) {
+            for (int b = is.read(); b != -1; b = is.read()) {
+                body.append((char) b);
+            }
+        }
+        assertThat(body.toString()).isEqualTo(responseBody);
+    }
+
+    @Test
+    void testChannelIsClosedWhenWritingFails() throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket()) {
+            // a server that doesn't read the request, so that the client runs into the write timeout
+            serverSocket.setReceiveBufferSize(1024);
+            serverSocket.bind(new InetSocketAddress("localhost", 0));
+            HttpURLConnection connection = pool.openConnection(new URL("http://localhost:" + serverSocket.getLocalPort() + "/intake/v2/events"));
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setReadTimeout(100);
+            connection.connect();
+            try (Socket socket = serverSocket.accept()) {
+                OutputStream os = connection.getOutputStream();
+                assertThatThrownBy(() -> {
+                    byte[] chunk = new byte[ChunkedOutputStream.CHUNK_SIZE];
+                    for (int i = 0; i < 1024; i++) {
+                        os.write(chunk);
+                    }
+                }).isInstanceOf(SocketTimeoutException.class);
+
+                // the server only sees the end of the stream if the client has closed the connection
+                socket.setSoTimeout(5000);
+                InputStream is = socket.getInputStream();
+                byte[] buffer = new byte[64 * 1024];
+                while (is.read(buffer) >= 0) {
+                }
+                HttpUtils.consumeAndClose(connection);
+            }
+        }
+        assertThat(pool.getReusedConnections()).isZero();
+    }
+
+    private int post(URL url, String body) throws IOException {
+        HttpURLConnection connection = startRequest(url, body);
+        int responseCode = connection.getResponseCode();
+        IOUtils.consumeAndClose(connection.getErrorStream());
+        if (responseCode < 400) {
+            IOUtils.consumeAndClose(connection.getInputStream());
+        }
+        return responseCode;
+    }
+
+    private HttpURLConnection startRequest(URL url, String body) throws IOException {
+        HttpURLConnection connection = pool.openConnection(url);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/x-ndjson");
+        connection.setConnectTimeout(1000);
+        connection.setReadTimeout(1000);
+        try (OutputStream os = connection.getOutputStream()) {
+            os.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        return connection;
+    }
+
+    private URL getUrl(int connector) throws Exception {
+        int port = ((NetworkConnector) server.getConnectors()[connector]).getLocalPort();
+        return new URL((connector == 0 ? "http" : "https") + "://localhost:" + port + "/intake/v2/events");
+    }
+}
@@ -72,6 +72,7 @@ import org.junit.jupiter.params.provider.ValueSource;
 import org.stagemonitor.configuration.ConfigurationRegistry;
 
 import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.CharBuffer;
 import java.nio.charset.StandardCharsets;
@@ -82,6 +83,7 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -111,6 +113,37 @@ class DslJsonSerializerTest {
         tracer = MockTracer.createRealTracer();
     }
 
+    @Test
+    void testCoalescingOutputStream() throws Exception {
+        AtomicInteger writes = new AtomicInteger();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                writes.incrementAndGet();
+                super.write(b, off, len);
+            }
+        };
+        byte[] line = (RandomStringUtils.randomAlphanumeric(999) + "\n").getBytes(StandardCharsets.UTF_8);
+
+        serializer.setOutputStream(bytes, true);
+        for (int i = 0; i < 50; i++) {
+            serializer.writeBytes(line, line.length);
+        }
+        // exceeds the size of the buffer, which would have been flushed to the stream otherwise
+        assertThat(serializer.getBufferSize()).isEqualTo(50 * line.length);
+        assertThat(writes.get()).isZero();
+
+        serializer.flushToOutputStream();
+        assertThat(writes.get()).isEqualTo(1);
+        assertThat(bytes.size()).isEqualTo(50 * line.length);
+        assertThat(serializer.getBufferSize()).isZero();
+
+        serializer.writeBytes(line, line.length);
+        serializer.fullFlush();
+        assertThat(writes.get()).isEqualTo(2);
+        assertThat(bytes.size()).isEqualTo(51 * line.length);
+    }
+
     @Test
     void serializeTags() {
         assertSoftly(softly -> {
@@ -139,6 +172,21 @@ class DslJsonSerializerTest {
         assertThat(serializeTags(Map.of("foo", true))).isEqualTo(toJson(expectedMap));
     }
 
+    @Test
+    void testSerializeLabelsInInsertionOrder() {
+        doReturn(true).when(apmServerClient).supportsNonStringLabels();
+        AbstractContext context = new AbstractContext() {
+        };
+        context.addLabel("foo", "bar");
+        context.addLabel("baz", 42);
+        context.addLabel("qux", true);
+        context.addLabel("foo", "quux");
+
+        serializer.serializeLabels(context);
+
+        assertThat(getAndResetSerializerJson()).isEqualTo("{\"foo\":\"quux\",\"baz\":42.0,\"qux\":true}");
+    }
+
     @ParameterizedTest
     @ValueSource(booleans = {true, false})
     void testSerializeUrlPort(boolean useNumericPort) {
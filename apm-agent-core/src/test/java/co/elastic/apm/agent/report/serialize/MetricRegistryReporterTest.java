@@ -23,12 +23,23 @@ import co.elastic.apm.agent.configuration.ServiceInfo;
 import co.elastic.apm.agent.configuration.SpyConfiguration;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.metrics.Labels;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.report.Reporter;
+import co.elastic.apm.agent.report.SerializedEvent;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.Test;
 import org.stagemonitor.configuration.source.SimpleSource;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
 
 class MetricRegistryReporterTest {
 
@@ -56,4 +67,57 @@ class MetricRegistryReporterTest {
             tracer.stop();
         }
     }
+
+    @Test
+    void testMetricSetsAreReportedInBoundedChunks() throws Exception {
+        ElasticApmTracer tracer = null;
+        try {
+            List<String> chunks = new ArrayList<>();
+            Reporter reporter = mock(Reporter.class);
+            doAnswer(invocation -> {
+                SerializedEvent chunk = invocation.getArgument(0);
+                chunks.add(new String(chunk.getBytes(), 0, chunk.getSize(), StandardCharsets.UTF_8));
+                chunk.recycle();
+                return null;
+            }).when(reporter).report(any(SerializedEvent.class));
+            tracer = new ElasticApmTracerBuilder()
+                // prevents the default MetricRegistryReporter from reporting and registering its metrics
+                .configurationRegistry(SpyConfiguration.createSpyConfig(SimpleSource.forTest("metrics_interval", "0s")))
+                .reporter(reporter)
+                .buildAndStart();
+            MetricRegistry metricRegistry = tracer.getMetricRegistry();
+            for (int i = 0; i < 500; i++) {
+                metricRegistry.incrementCounter("test.counter", Labels.Mutable.of("name", "name-" + i));
+            }
+
+            MetricRegistryReporter metricRegistryReporter = new MetricRegistryReporter(tracer);
+            metricRegistryReporter.bindTo(metricRegistry);
+            metricRegistryReporter.run();
+
+            assertThat(chunks).hasSizeGreaterThan(1).hasSizeLessThan(500);
+            ObjectMapper objectMapper = new ObjectMapper();
+            int counterMetricSets = 0;
+            long bytes = 0;
+            for (String chunk : chunks) {
+                // a chunk is reported once it has reached its size, so it can't exceed it by more than a metric set
+                assertThat(chunk.length()).isLessThan(MetricRegistryReporter.CHUNK_SIZE + 1024);
+                bytes += chunk.length();
+                for (String line : chunk.split("\n")) {
+                    JsonNode samples = objectMapper.readTree(line).get("metricset").get("samples");
+                    if (samples.has("test.counter")) {
+                        assertThat(samples.get("test.counter").get("value").asInt()).isEqualTo(1);
+                        counterMetricSets++;
+                    }
+                }
+            }
+            assertThat(counterMetricSets).isEqualTo(500);
+
+            // the self-metrics describe the previous report
+            assertThat(metricRegistry.getGaugeValue("agent.metricsets.serialized", Labels.EMPTY)).isGreaterThanOrEqualTo(500);
+            assertThat(metricRegistry.getGaugeValue("agent.metricsets.serialization.bytes", Labels.EMPTY)).isEqualTo(bytes);
+            assertThat(metricRegistry.getGaugeValue("agent.metricsets.serialization.time.us", Labels.EMPTY)).isGreaterThanOrEqualTo(0);
+        } finally {
+            tracer.stop();
+        }
+    }
 }
@@ -22,13 +22,17 @@ import co.elastic.apm.agent.configuration.MetricsConfiguration;
 import co.elastic.apm.agent.configuration.ServiceInfo;
 import co.elastic.apm.agent.metrics.Labels;
 import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.metrics.MetricSet;
 import co.elastic.apm.agent.report.ReporterConfiguration;
+import com.dslplatform.json.DslJson;
 import com.dslplatform.json.JsonWriter;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.assertj.core.data.Percentage;
 import org.junit.jupiter.api.Test;
 
 import javax.annotation.Nullable;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 
@@ -110,6 +114,41 @@ class MetricSetSerializationTest {
         assertThat(samples.get("foo.bar.count").get("value").doubleValue()).isEqualTo(1);
     }
 
+    @Test
+    void testSerializeHistograms() throws Exception {
+        final Labels.Mutable labels = Labels.Mutable.of("foo.bar", "baz");
+        registry.updateHistogram("foo.bar", labels, 1);
+        registry.updateHistogram("foo.bar", labels, 1);
+        registry.updateHistogram("foo.bar", labels, 1000);
+
+        final JsonNode jsonNode = reportAsJson();
+        assertThat(jsonNode).isNotNull();
+        final JsonNode histogram = jsonNode.get("metricset").get("samples").get("foo.bar");
+        assertThat(histogram.get("type").textValue()).isEqualTo("histogram");
+        assertThat(histogram.get("values")).hasSize(2);
+        assertThat(histogram.get("values").get(0).doubleValue()).isEqualTo(1);
+        assertThat(histogram.get("values").get(1).doubleValue()).isCloseTo(1000, Percentage.withPercentage(12.5));
+        assertThat(histogram.get("counts")).hasSize(2);
+        assertThat(histogram.get("counts").get(0).longValue()).isEqualTo(2);
+        assertThat(histogram.get("counts").get(1).longValue()).isEqualTo(1);
+    }
+
+    @Test
+    void testSerializeHistogramsReset() throws Exception {
+        final Labels.Mutable labels = Labels.Mutable.of("foo.bar", "baz");
+        registry.updateHistogram("foo.bar", labels, 1);
+        registry.updateTimer("bar.baz", labels, 42);
+
+        reportAsJson();
+        // the next report is for the other, inactive metric set
+        reportAsJson();
+
+        registry.updateTimer("bar.baz", labels, 42);
+        JsonNode jsonNode = reportAsJson();
+        assertThat(jsonNode).isNotNull();
+        assertThat(jsonNode.get("metricset").get("samples").get("foo.bar")).isNull();
+    }
+
     @Test
     void testSerializeEmptyMetricSet() throws Exception {
         final Labels.Mutable labels = Labels.Mutable.of("foo.bar", "baz");
@@ -248,6 +287,32 @@ class MetricSetSerializationTest {
         assertThat(samples2.get("foo.count").get("value").intValue()).isOne();
     }
 
+    @Test
+    void testAppendMetricSetsWithSamples() throws Exception {
+        registry.add("foo", Labels.Mutable.of("set", "nan"), () -> Double.NaN);
+        registry.add("foo", Labels.Mutable.of("set", "one"), () -> 1);
+        registry.add("foo", Labels.Mutable.of("set", "two"), () -> 2);
+
+        JsonWriter chunk = new DslJson<>(new DslJson.Settings<>()).newWriter();
+        List<Boolean> appended = new ArrayList<>();
+        registry.flipPhaseAndReport(metricSets -> {
+            for (MetricSet metricSet : metricSets.values()) {
+                appended.add(metricRegistrySerializer.serialize(metricSet, emptyList(), chunk));
+            }
+        });
+
+        assertThat(appended).containsExactlyInAnyOrder(false, true, true);
+        String[] lines = chunk.toString().split("\n");
+        assertThat(lines).hasSize(2);
+        List<Integer> values = new ArrayList<>();
+        for (String line : lines) {
+            JsonNode metricSet = objectMapper.readTree(line).get("metricset");
+            assertThat(metricSet.get("tags").get("set").asText()).isNotEqualTo("nan");
+            values.add(metricSet.get("samples").get("foo").get("value").intValue());
+        }
+        assertThat(values).containsExactlyInAnyOrder(1, 2);
+    }
+
     @Nullable
     private JsonNode reportAsJson() throws Exception {
         return  reportAsJson(emptyList());
@@ -67,4 +67,22 @@ class HexUtilsTest {
         HexUtils.writeAsHex(l, jw);
         assertThat(jw.toString()).isEqualTo("09c2572177fdae24");
     }
+
+    @Test
+    void testCharArrayRoundTripOfAllByteValues() {
+        char[] chars = new char[2];
+        for (int i = 0; i < 256; i++) {
+            assertThat(HexUtils.writeByteAsHex((byte) i, chars, 0)).isEqualTo(2);
+            assertThat(new String(chars)).isEqualTo(String.format("%02x", i));
+            assertThat(HexUtils.decodeByte(new String(chars), 0)).isEqualTo(i);
+            assertThat(HexUtils.decodeByte(new String(chars).toUpperCase(), 0)).isEqualTo(i);
+        }
+    }
+
+    @Test
+    void testDecodeInvalidByte() {
+        assertThat(HexUtils.decodeByte("0$", 0)).isNegative();
+        assertThat(HexUtils.decodeByte("g0", 0)).isNegative();
+        assertThat(HexUtils.decodeByte("0\u00e9", 0)).isNegative();
+    }
 }
@@ -20,6 +20,8 @@ package co.elastic.apm.agent.concurrent;
 
 import co.elastic.apm.agent.bci.TracerAwareInstrumentation;
 import co.elastic.apm.agent.sdk.state.GlobalVariables;
+import co.elastic.apm.agent.sdk.weakconcurrent.WeakConcurrent;
+import co.elastic.apm.agent.sdk.weakconcurrent.WeakSet;
 import co.elastic.apm.agent.util.ExecutorUtils;
 import net.bytebuddy.asm.Advice;
 import net.bytebuddy.asm.Advice.AssignReturned.ToArguments.ToArgument;
@@ -59,8 +61,16 @@ import static net.bytebuddy.matcher.ElementMatchers.takesArguments;
 
 public abstract class ExecutorInstrumentation extends TracerAwareInstrumentation {
 
+    static final String THREAD_PER_TASK_EXECUTOR_CLASS_NAME = "java.util.concurrent.ThreadPerTaskExecutor";
+
     static final Set<String> excludedClasses = GlobalVariables.get(ExecutorInstrumentation.class, "excludedClasses", new HashSet<String>());
 
+    /**
+     * Instances of {@code java.util.concurrent.ThreadPerTaskExecutor} that create virtual threads,
+     * see {@link VirtualThreadInstrumentation.VirtualThreadPerTaskExecutorInstrumentation}
+     */
+    static final WeakSet<Executor> virtualThreadPerTaskExecutors = GlobalVariables.get(ExecutorInstrumentation.class, "virtualThreadPerTaskExecutors", WeakConcurrent.<Executor>buildSet());
+
     static {
         // Used in Tomcat 7
         // Especially the wrapping of org.apache.tomcat.util.net.AprEndpoint$SocketProcessor is problematic
@@ -100,7 +110,10 @@ public abstract class ExecutorInstrumentation extends TracerAwareInstrumentation
     }
 
     private static boolean isExcluded(@Advice.This Executor executor) {
-        return excludedClasses.contains(executor.getClass().getName()) ||
+        String className = executor.getClass().getName();
+        return excludedClasses.contains(className) ||
+            // the context is propagated to the virtual threads it creates instead
+            (className.equals(THREAD_PER_TASK_EXECUTOR_CLASS_NAME) && virtualThreadPerTaskExecutors.contains(executor)) ||
             ExecutorUtils.isAgentExecutor(executor);
     }
 
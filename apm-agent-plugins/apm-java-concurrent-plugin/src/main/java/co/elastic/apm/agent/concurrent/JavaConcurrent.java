@@ -50,6 +50,8 @@ public class JavaConcurrent {
 
     private static final Set<String> EXCLUDED_EXECUTABLE_TYPES;
 
+    static final String VIRTUAL_THREAD_CLASS_NAME = "java.lang.VirtualThread";
+
     static {
         EXCLUDED_EXECUTABLE_TYPES = new HashSet<String>();
         EXCLUDED_EXECUTABLE_TYPES.add(RunnableLambdaWrapper.class.getName());
@@ -67,10 +69,16 @@ public class JavaConcurrent {
     private static boolean shouldAvoidContextPropagation(@Nullable Object executable) {
         return executable == null ||
             Thread.currentThread().getName().startsWith(ThreadUtils.ELASTIC_APM_THREAD_PREFIX) ||
-            EXCLUDED_EXECUTABLE_TYPES.contains(executable.getClass().getName()) ||
+            isExcludedExecutableType(executable.getClass().getName()) ||
             needsContext.get() == Boolean.FALSE;
     }
 
+    private static boolean isExcludedExecutableType(String className) {
+        // the continuations a virtual thread submits to its scheduler whenever it is unparked, the context is
+        // propagated to the virtual thread itself instead
+        return EXCLUDED_EXECUTABLE_TYPES.contains(className) || className.startsWith(VIRTUAL_THREAD_CLASS_NAME + "$");
+    }
+
     /**
      * Retrieves the context mapped to the provided task and activates it on the current thread.
      * It is the responsibility of the caller to deactivate the returned context at the right time.
@@ -122,6 +130,23 @@ public class JavaConcurrent {
         return runnable;
     }
 
+    /**
+     * Captures the active context when a virtual thread is created, so that it can be
+     * {@linkplain #restoreContext(Object, Tracer) restored} when the virtual thread starts to run.
+     * Keying the context by the thread avoids wrapping the task of the thread if it's a lambda.
+     */
+    public static void withContext(Thread virtualThread, Tracer tracer) {
+        if (shouldAvoidContextPropagation(virtualThread)) {
+            return;
+        }
+        AbstractSpan<?> active = tracer.getActive();
+        if (active == null) {
+            return;
+        }
+        contextMap.put(virtualThread, active);
+        active.setNonDiscardable();
+    }
+
     private static void captureContext(Object task, AbstractSpan<?> active) {
         DynamicTransformer.ensureInstrumented(task.getClass(), RUNNABLE_CALLABLE_FJTASK_INSTRUMENTATION);
         contextMap.put(task, active);
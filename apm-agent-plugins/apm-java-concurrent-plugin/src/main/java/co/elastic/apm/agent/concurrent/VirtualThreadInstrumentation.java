@@ -0,0 +1,137 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.concurrent;
+
+import co.elastic.apm.agent.bci.TracerAwareInstrumentation;
+import co.elastic.apm.agent.impl.transaction.AbstractSpan;
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.matcher.ElementMatcher;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
+import static net.bytebuddy.matcher.ElementMatchers.isConstructor;
+import static net.bytebuddy.matcher.ElementMatchers.isPrivate;
+import static net.bytebuddy.matcher.ElementMatchers.named;
+import static net.bytebuddy.matcher.ElementMatchers.returns;
+import static net.bytebuddy.matcher.ElementMatchers.takesArgument;
+import static net.bytebuddy.matcher.ElementMatchers.takesArguments;
+
+/**
+ * Propagates the active context to virtual threads (Java 21+), without wrapping their tasks.
+ */
+public abstract class VirtualThreadInstrumentation extends TracerAwareInstrumentation {
+
+    @Override
+    public Collection<String> getInstrumentationGroupNames() {
+        return Arrays.asList("concurrent", "virtual-thread");
+    }
+
+    /**
+     * Instruments the constructor of {@code java.lang.VirtualThread} to capture the context of the thread that creates
+     * the virtual thread, which covers {@code Thread.ofVirtual()}, {@code Thread.startVirtualThread(Runnable)} and
+     * virtual thread factories.
+     */
+    public static class VirtualThreadCreationInstrumentation extends VirtualThreadInstrumentation {
+
+        @Override
+        public ElementMatcher<? super TypeDescription> getTypeMatcher() {
+            return named(JavaConcurrent.VIRTUAL_THREAD_CLASS_NAME);
+        }
+
+        @Override
+        public ElementMatcher<? super MethodDescription> getMethodMatcher() {
+            return isConstructor();
+        }
+
+        public static class AdviceClass {
+            @Advice.OnMethodExit(suppress = Throwable.class, inline = false)
+            public static void onExit(@Advice.This Thread thiz) {
+                JavaConcurrent.withContext(thiz, tracer);
+            }
+        }
+    }
+
+    /**
+     * Instruments {@code java.lang.VirtualThread#run(Runnable)}, which executes the task on the virtual thread,
+     * to activate the context that has been captured when the virtual thread was created.
+     */
+    public static class VirtualThreadRunInstrumentation extends VirtualThreadInstrumentation {
+
+        @Override
+        public ElementMatcher<? super TypeDescription> getTypeMatcher() {
+            return named(JavaConcurrent.VIRTUAL_THREAD_CLASS_NAME);
+        }
+
+        @Override
+        public ElementMatcher<? super MethodDescription> getMethodMatcher() {
+            return named("run").and(isPrivate()).and(returns(void.class)).and(takesArguments(Runnable.class));
+        }
+
+        public static class AdviceClass {
+            @Nullable
+            @Advice.OnMethodEnter(suppress = Throwable.class, inline = false)
+            public static Object onEnter(@Advice.This Thread thiz) {
+                return JavaConcurrent.restoreContext(thiz, tracer);
+            }
+
+            @Advice.OnMethodExit(suppress = Throwable.class, onThrowable = Throwable.class, inline = false)
+            public static void onExit(@Nullable @Advice.Enter Object context) {
+                if (context instanceof AbstractSpan) {
+                    ((AbstractSpan<?>) context).deactivate();
+                }
+            }
+        }
+    }
+
+    /**
+     * Instruments the constructor of {@code java.util.concurrent.ThreadPerTaskExecutor}, the executor returned by
+     * {@code Executors.newVirtualThreadPerTaskExecutor()}, to exclude it from the {@link ExecutorInstrumentation}
+     * if it creates virtual threads, which already propagate the context.
+     * When it creates platform threads, the submitted tasks are still wrapped like for any other executor.
+     */
+    public static class VirtualThreadPerTaskExecutorInstrumentation extends VirtualThreadInstrumentation {
+
+        private static final String VIRTUAL_THREAD_FACTORY_CLASS_NAME = "java.lang.ThreadBuilders$VirtualThreadFactory";
+
+        @Override
+        public ElementMatcher<? super TypeDescription> getTypeMatcher() {
+            return named(ExecutorInstrumentation.THREAD_PER_TASK_EXECUTOR_CLASS_NAME);
+        }
+
+        @Override
+        public ElementMatcher<? super MethodDescription> getMethodMatcher() {
+            return isConstructor().and(takesArgument(0, named("java.util.concurrent.ThreadFactory")));
+        }
+
+        public static class AdviceClass {
+            @Advice.OnMethodExit(suppress = Throwable.class, inline = false)
+            public static void onExit(@Advice.This Executor thiz, @Advice.Argument(0) @Nullable ThreadFactory factory) {
+                if (factory != null && factory.getClass().getName().equals(VIRTUAL_THREAD_FACTORY_CLASS_NAME)) {
+                    ExecutorInstrumentation.virtualThreadPerTaskExecutors.add(thiz);
+                }
+            }
+        }
+    }
+}
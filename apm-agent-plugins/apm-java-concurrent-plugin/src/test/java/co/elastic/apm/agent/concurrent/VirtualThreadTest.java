@@ -0,0 +1,120 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.concurrent;
+
+import co.elastic.apm.agent.AbstractInstrumentationTest;
+import co.elastic.apm.agent.impl.transaction.AbstractSpan;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIf;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Virtual threads require Java 21, the methods to create them are invoked reflectively so that this test compiles on older versions
+ */
+@EnabledIf("virtualThreadsSupported")
+public class VirtualThreadTest extends AbstractInstrumentationTest {
+
+    private Transaction transaction;
+
+    @BeforeEach
+    void setUp() {
+        transaction = tracer.startRootTransaction(null).withName("transaction").activate();
+    }
+
+    @AfterEach
+    void tearDown() {
+        assertThat(tracer.getActive()).isEqualTo(transaction);
+        transaction.deactivate().end();
+    }
+
+    @Test
+    void testStartVirtualThread() throws Exception {
+        AtomicReference<AbstractSpan<?>> active = new AtomicReference<>();
+        Thread thread = (Thread) Thread.class.getMethod("startVirtualThread", Runnable.class)
+            .invoke(null, (Runnable) () -> active.set(tracer.getActive()));
+        thread.join();
+
+        assertThat(active.get()).isEqualTo(transaction);
+    }
+
+    @Test
+    void testVirtualThreadNotStartedInContext() throws Exception {
+        AtomicReference<AbstractSpan<?>> active = new AtomicReference<>();
+        transaction.deactivate();
+        Thread thread;
+        try {
+            thread = (Thread) Thread.class.getMethod("startVirtualThread", Runnable.class)
+                .invoke(null, (Runnable) () -> active.set(tracer.getActive()));
+            thread.join();
+        } finally {
+            transaction.activate();
+        }
+
+        assertThat(active.get()).isNull();
+    }
+
+    @Test
+    void testVirtualThreadPerTaskExecutor() throws Exception {
+        ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        try {
+            assertThat(executor.submit(() -> tracer.getActive()).get()).isEqualTo(transaction);
+
+            CompletableFuture<AbstractSpan<?>> activeInRunnable = new CompletableFuture<>();
+            executor.execute(() -> activeInRunnable.complete(tracer.getActive()));
+            assertThat(activeInRunnable.get(5, TimeUnit.SECONDS)).isEqualTo(transaction);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void testPlatformThreadPerTaskExecutor() throws Exception {
+        ExecutorService executor = (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+            .invoke(null, Executors.defaultThreadFactory());
+        try {
+            assertThat(executor.submit(() -> tracer.getActive()).get()).isEqualTo(transaction);
+
+            CompletableFuture<AbstractSpan<?>> activeInRunnable = new CompletableFuture<>();
+            executor.execute(() -> activeInRunnable.complete(tracer.getActive()));
+            assertThat(activeInRunnable.get(5, TimeUnit.SECONDS)).isEqualTo(transaction);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    static boolean virtualThreadsSupported() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+}
@@ -38,6 +38,7 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
@@ -127,7 +128,7 @@ public class OTelSpan implements Span {
 
     private void onTransactionEnd(Transaction t) {
 
-        Map<String, Object> attributes = span.getOtelAttributes();
+        Map<String, Object> attributes = getAttributesForRead(span);
         boolean isRpc = attributes.containsKey("rpc.system");
         boolean isHttp = attributes.containsKey("http.url") || attributes.containsKey("http.scheme");
         boolean isMessaging = attributes.containsKey("messaging.system");
@@ -146,7 +147,7 @@ public class OTelSpan implements Span {
 
     private void onSpanEnd(co.elastic.apm.agent.impl.transaction.Span s) {
 
-        Map<String, Object> attributes = s.getOtelAttributes();
+        Map<String, Object> attributes = getAttributesForRead(s);
 
         String type = null;
         String subType = null;
@@ -248,6 +249,13 @@ public class OTelSpan implements Span {
         s.withType(type).withSubtype(subType);
     }
 
+    /**
+     * Unlike {@link AbstractSpan#getOtelAttributes()}, doesn't allocate the attributes of spans that don't have any
+     */
+    private static Map<String, Object> getAttributesForRead(AbstractSpan<?> span) {
+        return span.hasOtelAttributes() ? span.getOtelAttributes() : Collections.<String, Object>emptyMap();
+    }
+
     @Nullable
     private static URI parseURI(@Nullable String s) {
         if (null == s) {